@@ -0,0 +1,103 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log of opens and closes of a proxy, which {@link CacheSimulator} replays. Every line is one event:
+ * <pre>
+ *     open 3500004 dir/big
+ *     close dir/big
+ * </pre>
+ * Size of an open is the size of the version it opened, name is the rest of line, so it may contain spaces.
+ */
+public class AccessTrace {
+    public static final String OPEN = "open";
+    public static final String CLOSE = "close";
+
+    private final PrintWriter writer;
+
+    /**
+     * constructor, events are appended to trace file
+     * @param path path of trace file
+     * @throws IOException
+     */
+    public AccessTrace(String path) throws IOException {
+        this.writer = new PrintWriter(new FileWriter(path, true));
+    }
+
+    /**
+     * log an open
+     * @param realName real name
+     * @param size size of opened version
+     */
+    public synchronized void open(String realName, long size) {
+        writer.println(OPEN + " " + size + " " + realName);
+        writer.flush();
+    }
+
+    /**
+     * log a close
+     * @param realName real name
+     */
+    public synchronized void close(String realName) {
+        writer.println(CLOSE + " " + realName);
+        writer.flush();
+    }
+
+    /**
+     * read all events of a trace file
+     * @param path path of trace file
+     * @return events in order
+     * @throws IOException
+     */
+    public static List<Event> read(String path) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(OPEN + " ")) {
+                    int space = line.indexOf(' ', OPEN.length() + 1);
+                    if (space < 0) {
+                        continue;
+                    }
+                    long size = Long.parseLong(line.substring(OPEN.length() + 1, space));
+                    events.add(new Event(true, line.substring(space + 1), size));
+                } else if (line.startsWith(CLOSE + " ")) {
+                    events.add(new Event(false, line.substring(CLOSE.length() + 1), 0));
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * one open or close
+     */
+    public static class Event {
+        private final boolean open;
+        private final String realName;
+        private final long size;
+
+        public Event(boolean open, String realName, long size) {
+            this.open = open;
+            this.realName = realName;
+            this.size = size;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public String getRealName() {
+            return realName;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
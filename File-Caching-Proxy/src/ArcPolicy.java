@@ -0,0 +1,139 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adaptive replacement cache (ARC) eviction policy, weighted by bytes.
+ * <p>
+ * Files accessed once since they entered cache are on a recency list, files accessed again on a frequency list. Names
+ * of files evicted from each list are remembered on a ghost list of it. A miss which hits a ghost list shows that the
+ * other list took too much space, so the target size of recency list moves towards it, by more bytes the smaller that
+ * ghost list is. Victims come from recency list while it is above its target. A scan only fills recency list and its
+ * ghost, so the frequency list survives it.
+ */
+public class ArcPolicy extends ListPolicy {
+    private final NodeList recent;
+    private final NodeList frequent;
+    private final Ghosts recentGhosts;
+    private final Ghosts frequentGhosts;
+    // target size of recency list in bytes
+    private long target;
+
+    /**
+     * constructor
+     * @param capacity size of cache in bytes
+     */
+    public ArcPolicy(long capacity) {
+        super(capacity);
+        this.recent = new NodeList();
+        this.frequent = new NodeList();
+        this.recentGhosts = new Ghosts();
+        this.frequentGhosts = new Ghosts();
+    }
+
+    /**
+     * get target size of recency list
+     * @return bytes
+     */
+    public synchronized long getTarget() {
+        return target;
+    }
+
+    @Override
+    void insert(Node node) {
+        Long recentGhost = recentGhosts.remove(node.key);
+        Long frequentGhost = frequentGhosts.remove(node.key);
+        if (recentGhost != null) {
+            long ratio = Math.max(1, frequentGhosts.weight / Math.max(1, recentGhosts.weight));
+            target = Math.min(capacity, target + ratio * node.weight);
+            frequent.add(node);
+        } else if (frequentGhost != null) {
+            long ratio = Math.max(1, recentGhosts.weight / Math.max(1, frequentGhosts.weight));
+            target = Math.max(0, target - ratio * node.weight);
+            frequent.add(node);
+        } else {
+            recent.add(node);
+        }
+        trimGhosts();
+    }
+
+    @Override
+    void access(Node node) {
+        if (node.list == recent) {
+            recent.remove(node);
+            frequent.add(node);
+        } else if (node.list != null) {
+            node.list.moveToLast(node);
+        }
+    }
+
+    @Override
+    Node victim() {
+        Node eldestRecent = recent.first();
+        Node eldestFrequent = frequent.first();
+        if (eldestRecent != null && (recent.weight > target || eldestFrequent == null)) {
+            return eldestRecent;
+        }
+        return eldestFrequent != null ? eldestFrequent : eldestRecent;
+    }
+
+    @Override
+    void evicted(Node node, NodeList from) {
+        (from == frequent ? frequentGhosts : recentGhosts).add(node.key, node.weight);
+        trimGhosts();
+    }
+
+    @Override
+    List<NodeList> lists() {
+        return Arrays.asList(recent, frequent);
+    }
+
+    /**
+     * keep recency list with its ghosts within capacity, and all lists within twice of it
+     */
+    private void trimGhosts() {
+        boolean dropped = true;
+        while (dropped && recent.weight + recentGhosts.weight > capacity) {
+            dropped = recentGhosts.removeEldest();
+        }
+        dropped = true;
+        while (dropped && recent.weight + frequent.weight + recentGhosts.weight + frequentGhosts.weight
+                > 2 * capacity) {
+            dropped = frequentGhosts.removeEldest() || recentGhosts.removeEldest();
+        }
+    }
+
+    /**
+     * names and sizes of evicted files, eldest first
+     */
+    private static class Ghosts {
+        private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>();
+        private long weight;
+
+        void add(String key, long size) {
+            Long old = sizes.remove(key);
+            weight += size - (old == null ? 0 : old);
+            sizes.put(key, size);
+        }
+
+        Long remove(String key) {
+            Long size = sizes.remove(key);
+            if (size != null) {
+                weight -= size;
+            }
+            return size;
+        }
+
+        boolean removeEldest() {
+            Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+            if (!it.hasNext()) {
+                return false;
+            }
+            weight -= it.next().getValue();
+            it.remove();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Validates cached versions of many files with few {@link Rpc#validate(ValidateRequest)} round trips.
+ * <p>
+ * Validations of single files which run at the same time are coalesced like a group commit: one which finds no batch
+ * in flight sends its batch at once, and the ones which arrive meanwhile wait and go together in the next batch, sent
+ * as soon as the current one returns. A sweep of many files is split into batches of bounded size instead.
+ */
+public class BatchValidator {
+
+    public static final String BATCHES = "validate.batches";
+    public static final String FILES = "validate.files";
+    public static final String STALE = "validate.stale";
+
+    private final Sender sender;
+    private final int maxBatch;
+    private final Metrics metrics;
+    // batch which collects validations while another one is in flight
+    private Batch collecting;
+    private boolean inFlight;
+
+    /**
+     * constructor
+     * @param sender sends one batch to server
+     * @param maxBatch max number of files in one batch of a sweep
+     * @param metrics metrics of proxy
+     */
+    public BatchValidator(Sender sender, int maxBatch, Metrics metrics) {
+        this.sender = sender;
+        this.maxBatch = maxBatch;
+        this.metrics = metrics;
+    }
+
+    /**
+     * validate cached version of one file, together with other validations which run at the same time
+     * @param realName real name of file
+     * @param version version number of cached copy
+     * @return result of the batch which carried the file, null if the same file waits with another version
+     * @throws IOException if batch fails or thread is interrupted
+     */
+    public ValidateResult validate(String realName, int version) throws IOException {
+        Batch batch;
+        synchronized (this) {
+            if (collecting == null) {
+                collecting = new Batch();
+            }
+            batch = collecting;
+            Integer waiting = batch.versions.putIfAbsent(realName, version);
+            if (waiting != null && waiting != version) {
+                return null;
+            }
+            while (!batch.done) {
+                if (!batch.sent && !inFlight) {
+                    // lead the batch
+                    batch.sent = true;
+                    collecting = null;
+                    inFlight = true;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted in waiting for validation of " + realName);
+                }
+            }
+        }
+        if (!batch.done) {
+            try {
+                batch.result = send(batch.versions);
+            } catch (IOException e) {
+                batch.error = e;
+            }
+            synchronized (this) {
+                batch.done = true;
+                inFlight = false;
+                notifyAll();
+            }
+        }
+        if (batch.error != null) {
+            throw new IOException("Error in batched validation", batch.error);
+        }
+        return batch.result;
+    }
+
+    /**
+     * validate cached versions of many files, in batches of bounded size sent one after another
+     * @param versions version number of cached copy by real name
+     * @return merged result of batches, its lease is the shortest one of them
+     * @throws IOException if a batch fails
+     */
+    public ValidateResult validateAll(Map<String, Integer> versions) throws IOException {
+        ValidateResult merged = new ValidateResult();
+        merged.setLeaseMillis(Long.MAX_VALUE);
+        Map<String, Integer> batch = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : versions.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+            if (batch.size() >= maxBatch) {
+                merge(merged, send(batch));
+                batch = new LinkedHashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            merge(merged, send(batch));
+        }
+        if (merged.getLeaseMillis() == Long.MAX_VALUE) {
+            merged.setLeaseMillis(0);
+        }
+        return merged;
+    }
+
+    private ValidateResult send(Map<String, Integer> versions) throws IOException {
+        ValidateResult result = sender.send(versions);
+        metrics.increment(BATCHES);
+        metrics.add(FILES, versions.size());
+        metrics.add(STALE, result.getChanged().size());
+        return result;
+    }
+
+    private static void merge(ValidateResult merged, ValidateResult result) {
+        for (Map.Entry<String, Integer> entry : result.getChanged().entrySet()) {
+            merged.setChanged(entry.getKey(), entry.getValue());
+        }
+        merged.setLeaseMillis(Math.min(merged.getLeaseMillis(), result.getLeaseMillis()));
+    }
+
+    /**
+     * sends one batch to server
+     */
+    public interface Sender {
+        /**
+         * validate cached versions
+         * @param versions version number of cached copy by real name
+         * @return files whose cached version is stale
+         * @throws IOException
+         */
+        ValidateResult send(Map<String, Integer> versions) throws IOException;
+    }
+
+    /**
+     * validations which go to server in one request
+     */
+    private static class Batch {
+        private final Map<String, Integer> versions = new HashMap<>();
+        private boolean sent;
+        private boolean done;
+        private ValidateResult result;
+        private IOException error;
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Block checksums of one version of a file, used for rsync style delta transfer.
+ * <p>
+ * The side which already holds a version (receiver) splits it into fixed size blocks and sends a weak rolling
+ * checksum and a strong MD5 checksum of every block. The side which holds the new version (sender) slides a window
+ * over the new content and only sends bytes which do not match any block, see {@link Delta}.
+ */
+public class BlockSignature implements Serializable {
+
+    public static final int MIN_BLOCK_SIZE = 2048;
+    public static final int MAX_BLOCK_SIZE = 65536;
+    public static final int STRONG_SIZE = 16;
+
+    private final String sourceName;
+    private final int blockSize;
+    private final long fileLength;
+    private final int[] weak;
+    private final byte[] strong;
+
+    private BlockSignature(String sourceName, int blockSize, long fileLength, int[] weak, byte[] strong) {
+        this.sourceName = sourceName;
+        this.blockSize = blockSize;
+        this.fileLength = fileLength;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * compute signature of a file
+     * @param sourceName name of file on the side which makes signature, the delta is applied against this file
+     * @param channel channel of file
+     * @return signature
+     * @throws IOException
+     */
+    public static BlockSignature compute(String sourceName, FileChannel channel) throws IOException {
+        long fileLength = channel.size();
+        int blockSize = chooseBlockSize(fileLength);
+        int blocks = (int) ((fileLength + blockSize - 1) / blockSize);
+        int[] weak = new int[blocks];
+        byte[] strong = new byte[blocks * STRONG_SIZE];
+        MessageDigest md5 = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        for (int i = 0; i < blocks; i++) {
+            buffer.clear();
+            long position = (long) i * blockSize;
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                // keep reading until the block is full or file ends
+            }
+            buffer.flip();
+            weak[i] = rollingChecksum(buffer.array(), 0, buffer.limit());
+            md5.update(buffer.array(), 0, buffer.limit());
+            System.arraycopy(md5.digest(), 0, strong, i * STRONG_SIZE, STRONG_SIZE);
+        }
+        return new BlockSignature(sourceName, blockSize, fileLength, weak, strong);
+    }
+
+    /**
+     * choose block size of file, about square root of file length, so that both signature and unmatched data stay
+     * small
+     * @param fileLength length of file
+     * @return block size
+     */
+    public static int chooseBlockSize(long fileLength) {
+        int blockSize = MIN_BLOCK_SIZE;
+        while (blockSize < MAX_BLOCK_SIZE && (long) blockSize * blockSize < fileLength) {
+            blockSize <<= 1;
+        }
+        return blockSize;
+    }
+
+    /**
+     * weak checksum of rsync, low 16 bits are sum of bytes, high 16 bits are weighted sum of bytes
+     * @param bytes byte array
+     * @param offset offset of window
+     * @param length length of window
+     * @return checksum
+     */
+    public static int rollingChecksum(byte[] bytes, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = bytes[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * create a MD5 digest
+     * @return message digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * get number of blocks
+     * @return number of blocks
+     */
+    public int getBlocks() {
+        return weak.length;
+    }
+
+    /**
+     * get weak checksum of block
+     * @param block block index
+     * @return weak checksum
+     */
+    public int getWeak(int block) {
+        return weak[block];
+    }
+
+    /**
+     * check whether strong checksum of block equals the given digest
+     * @param block block index
+     * @param digest MD5 digest
+     * @return true if equal
+     */
+    public boolean strongEquals(int block, byte[] digest) {
+        for (int i = 0; i < STRONG_SIZE; i++) {
+            if (strong[block * STRONG_SIZE + i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Persistent index of proxy cache, so that cached files survive a restart of proxy.
+ * <p>
+ * Every change of index is appended to a journal file as a small binary record. When the journal grows much larger
+ * than the index, the whole index is written to a snapshot file in LRU order (eldest first) and the journal starts
+ * over. On restart, the snapshot is loaded and the journal is replayed on top of it. A torn record at the end of
+ * journal, left by a crash, is ignored.
+ * <p>
+ * Accesses only change LRU order, so they are coalesced: a file touched many times is written once, and touches are
+ * written in a batch before the next put or remove, or when enough of them are pending. A crash loses at most the
+ * order of the latest accesses, never a cached version.
+ */
+public class CacheJournal {
+
+    public static final String SNAPSHOT_NAME = ".cache-index";
+    public static final String JOURNAL_NAME = ".cache-journal";
+    private static final int MIN_COMPACT_RECORDS = 1000;
+    private static final int MAX_PENDING_TOUCHES = 64;
+
+    private static final byte PUT = 'P';
+    private static final byte TOUCH = 'T';
+    private static final byte REMOVE = 'R';
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final LinkedHashMap<String, Entry> entries;
+    // files touched since touches were last written, in order of their latest touch
+    private final LinkedHashMap<String, Entry> touched;
+    private DataOutputStream journal;
+    private int journalRecords;
+
+    /**
+     * constructor
+     * @param cacheFolder cache folder of proxy
+     */
+    public CacheJournal(String cacheFolder) {
+        File folder = new File(cacheFolder);
+        folder.mkdirs();
+        this.snapshotFile = new File(folder, SNAPSHOT_NAME);
+        this.journalFile = new File(folder, JOURNAL_NAME);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.touched = new LinkedHashMap<>();
+    }
+
+    /**
+     * load index from snapshot and journal, then start a fresh journal
+     * @return entries in LRU order, eldest first
+     * @throws IOException
+     */
+    public synchronized List<Entry> load() throws IOException {
+        entries.clear();
+        replay(snapshotFile);
+        replay(journalFile);
+        compact();
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * record a new cached version of file, it becomes the freshest one
+     * @param fileInfo file info
+     * @param size size of cached copy
+     */
+    public synchronized void put(FileInfo fileInfo, long size) {
+        Entry entry = new Entry(fileInfo.getRealName(), fileInfo.getRandomName(), fileInfo.getVersion(), size);
+        entries.remove(entry.realName);
+        entries.put(entry.realName, entry);
+        append(PUT, entry);
+    }
+
+    /**
+     * record an access of file
+     * @param realName real name
+     */
+    public synchronized void touch(String realName) {
+        Entry entry = entries.get(realName);
+        if (entry == null) {
+            return;
+        }
+        touched.remove(realName);
+        touched.put(realName, entry);
+        if (touched.size() >= MAX_PENDING_TOUCHES) {
+            writeTouches();
+            flush();
+        }
+    }
+
+    /**
+     * record that a file is no longer cached
+     * @param realName real name
+     */
+    public synchronized void remove(String realName) {
+        Entry entry = entries.remove(realName);
+        if (entry != null) {
+            append(REMOVE, entry);
+        }
+    }
+
+    /**
+     * write a snapshot of index and start a fresh journal
+     */
+    public synchronized void compact() {
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            // snapshot keeps the latest order
+            touched.clear();
+            if (journal != null) {
+                journal.close();
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                for (Entry entry : entries.values()) {
+                    write(out, PUT, entry);
+                }
+            }
+            Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile)));
+            journalRecords = 0;
+        } catch (IOException e) {
+            System.err.println("Error in writing cache index snapshot");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * close journal
+     */
+    public synchronized void close() {
+        writeTouches();
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * get number of files in index
+     * @return number of files
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * check whether a file in cache folder belongs to the index itself
+     * @param fileName name of file relative to cache folder
+     * @return true if it is snapshot or journal
+     */
+    public static boolean isIndexFile(String fileName) {
+        return fileName.startsWith(SNAPSHOT_NAME) || fileName.equals(JOURNAL_NAME);
+    }
+
+    private void append(byte op, Entry entry) {
+        if (journal == null) {
+            return;
+        }
+        // pending touches come first, so that a replay sees accesses in their order
+        writeTouches();
+        try {
+            write(journal, op, entry);
+            journalRecords++;
+        } catch (IOException e) {
+            System.err.println("Error in writing cache journal");
+            e.printStackTrace();
+        }
+        flush();
+    }
+
+    private void writeTouches() {
+        if (journal == null || touched.isEmpty()) {
+            return;
+        }
+        try {
+            // every put or remove writes pending touches first, so they are all of current entries
+            for (Entry entry : touched.values()) {
+                write(journal, TOUCH, entry);
+                journalRecords++;
+            }
+        } catch (IOException e) {
+            System.err.println("Error in writing cache journal");
+            e.printStackTrace();
+        }
+        touched.clear();
+    }
+
+    private void flush() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            System.err.println("Error in writing cache journal");
+            e.printStackTrace();
+        }
+        if (journalRecords > Math.max(MIN_COMPACT_RECORDS, entries.size() * 2)) {
+            compact();
+        }
+    }
+
+    private static void write(DataOutputStream out, byte op, Entry entry) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(entry.realName);
+        if (op == PUT) {
+            out.writeUTF(entry.randomName);
+            out.writeInt(entry.version);
+            out.writeLong(entry.size);
+        }
+    }
+
+    private void replay(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte op = in.readByte();
+                String realName = in.readUTF();
+                if (op == PUT) {
+                    Entry entry = new Entry(realName, in.readUTF(), in.readInt(), in.readLong());
+                    entries.remove(realName);
+                    entries.put(realName, entry);
+                } else if (op == TOUCH) {
+                    entries.get(realName);
+                } else if (op == REMOVE) {
+                    entries.remove(realName);
+                } else {
+                    System.err.println("Error in cache journal, unknown record " + op);
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            // end of file, or a torn record written during a crash
+        }
+    }
+
+    /**
+     * record of one cached file
+     */
+    public static class Entry {
+        private final String realName;
+        private final String randomName;
+        private final int version;
+        private final long size;
+
+        Entry(String realName, String randomName, int version, long size) {
+            this.realName = realName;
+            this.randomName = randomName;
+            this.version = version;
+            this.size = size;
+        }
+
+        public String getRealName() {
+            return realName;
+        }
+
+        public String getRandomName() {
+            return randomName;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays an {@link AccessTrace} against eviction policies and reports their hit ratios, e.g.
+ * <pre>
+ *     java CacheSimulator trace.log 100000000 lru tinylfu arc
+ * </pre>
+ * Cache is simulated the way proxy uses it: an open of a file which is not cached makes room by evicting files which
+ * are not opened, then caches the file, and a file stays pinned until it is closed. A file larger than cache is still
+ * cached while it is opened.
+ */
+public class CacheSimulator {
+
+    /**
+     * main method
+     * @param args trace file, cache size in bytes, then names of policies, all policies if none
+     * @throws IOException if trace can not be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java CacheSimulator <trace file> <cache size> [lru|tinylfu|arc ...]");
+            System.exit(1);
+        }
+        List<AccessTrace.Event> events = AccessTrace.read(args[0]);
+        long capacity = Long.parseLong(args[1]);
+        List<String> policies = args.length > 2 ? Arrays.asList(args).subList(2, args.length)
+                : Arrays.asList(EvictionPolicy.LRU, EvictionPolicy.TINY_LFU, EvictionPolicy.ARC);
+        System.out.printf("%-8s %12s %12s%n", "policy", "object hits", "byte hits");
+        for (String name : policies) {
+            Result result = run(EvictionPolicy.forName(name, capacity), capacity, events);
+            System.out.printf("%-8s %12.4f %12.4f%n", name, result.getObjectHitRatio(), result.getByteHitRatio());
+        }
+    }
+
+    /**
+     * replay events against a policy
+     * @param policy empty policy
+     * @param capacity size of cache in bytes
+     * @param events events of trace
+     * @return hit counts
+     */
+    public static Result run(EvictionPolicy policy, long capacity, List<AccessTrace.Event> events) {
+        Result result = new Result();
+        Map<String, FileInfo> files = new HashMap<>();
+        for (AccessTrace.Event event : events) {
+            String realName = event.getRealName();
+            if (!event.isOpen()) {
+                policy.unpin(realName);
+                FileInfo fileInfo = files.get(realName);
+                if (fileInfo != null) {
+                    policy.touch(realName, fileInfo);
+                }
+                continue;
+            }
+            long size = event.getSize();
+            // proxy pins a file before it looks it up
+            policy.pin(realName);
+            result.opens++;
+            result.bytes += size;
+            FileInfo fileInfo = files.get(realName);
+            if (fileInfo != null && policy.contains(realName)) {
+                result.hits++;
+                result.hitBytes += size;
+                policy.updateWeight(realName, size);
+                policy.touch(realName, fileInfo);
+            } else {
+                while (policy.getTotalWeight() + size > capacity) {
+                    FileInfo victim = policy.evict();
+                    if (victim == null) {
+                        break;
+                    }
+                    files.remove(victim.getRealName());
+                }
+                fileInfo = new FileInfo(realName, realName, 1);
+                files.put(realName, fileInfo);
+                policy.put(fileInfo, size);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * hit counts of a replay
+     */
+    public static class Result {
+        private long opens;
+        private long hits;
+        private long bytes;
+        private long hitBytes;
+
+        public long getOpens() {
+            return opens;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * get part of opens which found file in cache
+         * @return ratio, 0 if there is no open
+         */
+        public double getObjectHitRatio() {
+            return opens == 0 ? 0 : (double) hits / opens;
+        }
+
+        /**
+         * get part of opened bytes which were found in cache
+         * @return ratio, 0 if there is no open
+         */
+        public double getByteHitRatio() {
+            return bytes == 0 ? 0 : (double) hitBytes / bytes;
+        }
+    }
+}
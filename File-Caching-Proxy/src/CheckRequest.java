@@ -0,0 +1,129 @@
+import java.io.Serializable;
+
+/**
+ * request of {@link Rpc#checkServer(CheckRequest)}
+ * <p>
+ * Besides name, open option and cached version, proxy tells server what it is able to reuse, so that server can pick
+ * the cheapest way to bring the cache up to date.
+ */
+public class CheckRequest implements Serializable {
+    private final String realName;
+    private final FileHandling.OpenOption option;
+    private final int version;
+    private long deltaBaseLength;
+    private ProxyCallback callback;
+    private int acceptCodecs;
+    private int chunkSize;
+    private boolean manifestWanted;
+    private PeerRpc peer;
+
+    /**
+     * constructor
+     * @param realName real name of file
+     * @param option open option
+     * @param version version number of cached copy, 0 if not cached
+     */
+    public CheckRequest(String realName, FileHandling.OpenOption option, int version) {
+        this.realName = realName;
+        this.option = option;
+        this.version = version;
+        this.deltaBaseLength = -1;
+    }
+
+    public String getRealName() {
+        return realName;
+    }
+
+    public FileHandling.OpenOption getOption() {
+        return option;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * get length of cached copy which proxy can rebuild new version from
+     * @return length in bytes, -1 if proxy can not take a delta
+     */
+    public long getDeltaBaseLength() {
+        return deltaBaseLength;
+    }
+
+    /**
+     * tell server that proxy holds a cached copy of given length and can take a delta against it
+     * @param deltaBaseLength length of cached copy
+     */
+    public void setDeltaBaseLength(long deltaBaseLength) {
+        this.deltaBaseLength = deltaBaseLength;
+    }
+
+    /**
+     * get callback of proxy
+     * @return callback, null if proxy does not take leases
+     */
+    public ProxyCallback getCallback() {
+        return callback;
+    }
+
+    /**
+     * ask server for a lease of file, server calls back to revoke it when a new version is published
+     * @param callback callback of proxy
+     */
+    public void setCallback(ProxyCallback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * get codecs proxy accepts for file content
+     * @return bit mask of {@link Codec} codecs, 0 if content must be sent raw
+     */
+    public int getAcceptCodecs() {
+        return acceptCodecs;
+    }
+
+    public void setAcceptCodecs(int acceptCodecs) {
+        this.acceptCodecs = acceptCodecs;
+    }
+
+    /**
+     * get chunk size proxy asks for, server bounds it by its own limits
+     * @return chunk size in bytes, 0 for {@link ChunksTask#CHUNK_SIZE}
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * check whether proxy asks for manifest of a chunked download, see {@link ChunksTask#getManifest()}
+     * @return true if proxy holds chunks which the new version may share
+     */
+    public boolean isManifestWanted() {
+        return manifestWanted;
+    }
+
+    public void setManifestWanted(boolean manifestWanted) {
+        this.manifestWanted = manifestWanted;
+    }
+
+    /**
+     * get peer interface of proxy
+     * @return peer interface, null if proxy does not share its cache with other proxies
+     */
+    public PeerRpc getPeer() {
+        return peer;
+    }
+
+    /**
+     * tell server that proxy serves cached versions to other proxies, and may read a new version from them. Server
+     * lists proxy as a holder of the version it checks or downloads.
+     * @param peer peer interface of proxy
+     */
+    public void setPeer(PeerRpc peer) {
+        this.peer = peer;
+    }
+}
@@ -5,7 +5,9 @@ import java.io.Serializable;
  * <p>
  * The client will send its current version number to server, if version number is behind the server, server will
  * send its current copy to client. If the file is small enough, the file can be send by one pass. If the file is
- * larger, client will call download client to download further chunks
+ * larger, client will call download client to download further chunks. If the client has an older copy of a large file,
+ * server may instead name its copy as delta source, and client asks for a delta against its own copy. If client sent
+ * a callback, server also grants a lease, during which client may use its copy without checking server again.
  */
 public class CheckResult implements Serializable {
     private final String realName;
@@ -13,6 +15,9 @@ public class CheckResult implements Serializable {
     private int errno;
     private byte[] fileContent;
     private ChunksTask chunksTask;
+    private String deltaSource;
+    private long leaseMillis;
+    private int codec;
 
     /**
      * constructor 1
@@ -97,4 +102,48 @@ public class CheckResult implements Serializable {
     public void setChunksTask(ChunksTask chunksTask) {
         this.chunksTask = chunksTask;
     }
+
+    /**
+     * get name of server copy which client should ask delta from
+     * @return random name of server copy, null if file content is sent as usual
+     */
+    public String getDeltaSource() {
+        return deltaSource;
+    }
+
+    /**
+     * set name of server copy which client should ask delta from, no file content is sent in this case
+     * @param deltaSource random name of server copy
+     */
+    public void setDeltaSource(String deltaSource) {
+        this.deltaSource = deltaSource;
+    }
+
+    /**
+     * get length of lease granted with this result
+     * @return lease length in milliseconds, 0 if no lease
+     */
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * set length of lease granted with this result
+     * @param leaseMillis lease length in milliseconds
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * get codec server picked, file content of this result and later chunk transfers are encoded by it
+     * @return codec, {@link Codec#NONE} if content is raw
+     */
+    public int getCodec() {
+        return codec;
+    }
+
+    public void setCodec(int codec) {
+        this.codec = codec;
+    }
 }
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Content address of one version of a file: SHA-256 digests of its fixed size chunks, the last chunk may be shorter.
+ * <p>
+ * Chunk boundaries do not depend on the chunk size of a transfer, so server and proxy always cut a version the same
+ * way, and two versions share a chunk wherever they hold the same bytes at the same chunk index.
+ */
+public class ChunkManifest implements Serializable {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int DIGEST_SIZE = 32;
+
+    private final long length;
+    private final byte[] digests;
+
+    private ChunkManifest(long length, byte[] digests) {
+        this.length = length;
+        this.digests = digests;
+    }
+
+    /**
+     * compute manifest of a file
+     * @param channel channel of file
+     * @return manifest
+     * @throws IOException
+     */
+    public static ChunkManifest compute(FileChannel channel) throws IOException {
+        long length = channel.size();
+        int chunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        byte[] digests = new byte[chunks * DIGEST_SIZE];
+        MessageDigest sha = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        for (int i = 0; i < chunks; i++) {
+            buffer.clear();
+            long position = (long) i * CHUNK_SIZE;
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                // keep reading until the chunk is full or file ends
+            }
+            sha.update(buffer.array(), 0, buffer.position());
+            System.arraycopy(sha.digest(), 0, digests, i * DIGEST_SIZE, DIGEST_SIZE);
+        }
+        return new ChunkManifest(length, digests);
+    }
+
+    /**
+     * compute manifest of a file
+     * @param path path of file
+     * @return manifest
+     * @throws IOException
+     */
+    public static ChunkManifest compute(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return compute(channel);
+        }
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * get number of chunks
+     * @return chunks, 0 if file is empty
+     */
+    public int getChunks() {
+        return digests.length / DIGEST_SIZE;
+    }
+
+    /**
+     * get offset of a chunk
+     * @param chunk chunk index
+     * @return offset in file
+     */
+    public long getOffset(int chunk) {
+        return (long) chunk * CHUNK_SIZE;
+    }
+
+    /**
+     * get size of a chunk
+     * @param chunk chunk index
+     * @return size, only the last chunk may be shorter than chunk size
+     */
+    public int getSize(int chunk) {
+        return (int) Math.min(CHUNK_SIZE, length - getOffset(chunk));
+    }
+
+    /**
+     * get digest of a chunk as hex string, which is the address of chunk
+     * @param chunk chunk index
+     * @return digest
+     */
+    public String getDigest(int chunk) {
+        return toHex(digests, chunk * DIGEST_SIZE, DIGEST_SIZE);
+    }
+
+    /**
+     * get address of whole content, which is a digest of the length and the digests of all chunks
+     * @return digest as hex string
+     */
+    public String getContentDigest() {
+        MessageDigest sha = newDigest();
+        sha.update(ByteBuffer.allocate(8).putLong(0, length).array());
+        sha.update(digests);
+        byte[] digest = sha.digest();
+        return toHex(digest, 0, digest.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ChunkManifest)) {
+            return false;
+        }
+        ChunkManifest other = (ChunkManifest) o;
+        return length == other.length && Arrays.equals(digests, other.digests);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(length) * 31 + Arrays.hashCode(digests);
+    }
+
+    private static String toHex(byte[] bytes, int offset, int size) {
+        StringBuilder sb = new StringBuilder(size * 2);
+        for (int i = offset; i < offset + size; i++) {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
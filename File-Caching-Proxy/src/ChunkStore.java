@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content addressed index of complete versions in cache folder, which stores identical content once.
+ * <p>
+ * Every version added to store is described by its {@link ChunkManifest}. A version whose content is already held is
+ * replaced by a hard link to it, so content shared by several paths or versions takes its bytes once, and its bytes
+ * are freed when its last version is removed. Versions stay plain files, so sessions read, map and copy them as
+ * before; they must never be written once added.
+ * <p>
+ * Chunks of all held versions are indexed by digest, so a download can copy the chunks proxy already holds, from any
+ * version, instead of asking server for them.
+ * <p>
+ * Storage is shared by whole content only: two versions which differ in one chunk take their bytes twice, though the
+ * download of the second one copies the shared chunks from the first. Sharing chunks on disk would turn versions into
+ * lists of chunk files, which sessions could no longer read, map or copy as plain files.
+ */
+public class ChunkStore {
+    public static final String SHARED_BYTES = "dedup.sharedBytes";
+    public static final String REUSED_BYTES = "dedup.reusedBytes";
+    private static final String LINK_SUFFIX = ".link";
+
+    private final String root;
+    private final Metrics metrics;
+    // contents by content digest
+    private final Map<String, Content> contents;
+    // content of every version, by file name
+    private final Map<String, Content> versions;
+    // where every held chunk is, by chunk digest
+    private final Map<String, List<Location>> chunks;
+    private boolean linkFailed;
+
+    /**
+     * constructor
+     * @param root cache folder
+     * @param metrics metrics to count shared and reused bytes
+     */
+    public ChunkStore(String root, Metrics metrics) {
+        this.root = root;
+        this.metrics = metrics;
+        this.contents = new HashMap<>();
+        this.versions = new HashMap<>();
+        this.chunks = new HashMap<>();
+    }
+
+    /**
+     * add a complete version. If identical content is held, the file of version becomes a link to it.
+     * @param name file name of version in cache folder
+     * @param manifest manifest of version
+     * @return bytes of version which are shared with another version, which is its length if identical content is
+     * held and 0 if not, -1 if it is not added because it could not be linked
+     */
+    public synchronized long add(String name, ChunkManifest manifest) {
+        if (versions.containsKey(name)) {
+            return 0;
+        }
+        String digest = manifest.getContentDigest();
+        Content content = contents.get(digest);
+        if (content == null) {
+            content = new Content(manifest);
+            contents.put(digest, content);
+            for (int i = 0; i < manifest.getChunks(); i++) {
+                chunks.computeIfAbsent(manifest.getDigest(i), key -> new ArrayList<>(1)).add(new Location(content, i));
+            }
+            content.names.add(name);
+            versions.put(name, content);
+            return 0;
+        }
+        Path target = toPath(name);
+        Path link = Paths.get(target + LINK_SUFFIX);
+        try {
+            Files.deleteIfExists(link);
+            Files.createLink(link, toPath(content.names.iterator().next()));
+            Files.move(link, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (!linkFailed) {
+                System.err.println("Error in linking " + name + ", identical versions are stored separately");
+                e.printStackTrace();
+                linkFailed = true;
+            }
+            try {
+                Files.deleteIfExists(link);
+            } catch (IOException deleteError) {
+                deleteError.printStackTrace();
+            }
+            return -1;
+        }
+        content.names.add(name);
+        versions.put(name, content);
+        metrics.add(SHARED_BYTES, manifest.getLength());
+        return manifest.getLength();
+    }
+
+    /**
+     * remove a version, before its file is deleted
+     * @param name file name of version
+     * @return bytes freed, which is its length if it was the last version of its content and 0 if not, -1 if it is
+     * not in store
+     */
+    public synchronized long remove(String name) {
+        Content content = versions.remove(name);
+        if (content == null) {
+            return -1;
+        }
+        content.names.remove(name);
+        if (!content.names.isEmpty()) {
+            return 0;
+        }
+        ChunkManifest manifest = content.manifest;
+        contents.remove(manifest.getContentDigest());
+        for (int i = 0; i < manifest.getChunks(); i++) {
+            List<Location> locations = chunks.get(manifest.getDigest(i));
+            if (locations == null) {
+                continue;
+            }
+            Iterator<Location> it = locations.iterator();
+            while (it.hasNext()) {
+                if (it.next().content == content) {
+                    it.remove();
+                }
+            }
+            if (locations.isEmpty()) {
+                chunks.remove(manifest.getDigest(i));
+            }
+        }
+        return manifest.getLength();
+    }
+
+    /**
+     * check whether a version is in store
+     * @param name file name of version
+     * @return true if it is
+     */
+    public synchronized boolean contains(String name) {
+        return versions.containsKey(name);
+    }
+
+    /**
+     * check whether store holds no version
+     * @return true if empty
+     */
+    public synchronized boolean isEmpty() {
+        return versions.isEmpty();
+    }
+
+    /**
+     * check whether a chunk is held by any version
+     * @param digest digest of chunk
+     * @return true if held
+     */
+    public synchronized boolean holds(String digest) {
+        return chunks.containsKey(digest);
+    }
+
+    /**
+     * copy a held chunk to a channel
+     * @param digest digest of chunk
+     * @param size size of chunk
+     * @param channel channel to write to
+     * @param position position in channel
+     * @return true if copied, false if no version holds the chunk or it can not be read
+     */
+    public boolean copyChunk(String digest, int size, FileChannel channel, long position) {
+        Path source;
+        long offset;
+        synchronized (this) {
+            List<Location> locations = chunks.get(digest);
+            if (locations == null) {
+                return false;
+            }
+            Location location = locations.get(0);
+            source = toPath(location.content.names.iterator().next());
+            offset = location.content.manifest.getOffset(location.chunk);
+        }
+        // the version may be deleted meanwhile, then it can not be opened and the chunk is downloaded instead
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            while (buffer.hasRemaining() && in.read(buffer, offset + buffer.position()) > 0) {
+                // keep reading until the chunk is full
+            }
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        metrics.add(REUSED_BYTES, size);
+        return true;
+    }
+
+    private Path toPath(String name) {
+        return Paths.get(root, name);
+    }
+
+    /**
+     * content held by one or more versions
+     */
+    private static class Content {
+        private final ChunkManifest manifest;
+        // versions which hold the content, all links of one file
+        private final Set<String> names;
+
+        Content(ChunkManifest manifest) {
+            this.manifest = manifest;
+            this.names = new LinkedHashSet<>();
+        }
+    }
+
+    /**
+     * a chunk of a content
+     */
+    private static class Location {
+        private final Content content;
+        private final int chunk;
+
+        Location(Content content, int chunk) {
+            this.content = content;
+            this.chunk = chunk;
+        }
+    }
+}
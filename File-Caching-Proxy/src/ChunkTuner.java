@@ -0,0 +1,111 @@
+/**
+ * Tunes chunk size of transfers from the time recent requests took.
+ * <p>
+ * The time of a request is modelled as a fixed round trip plus its bytes divided by bandwidth, and both are fitted by
+ * least squares over the latest samples of every size, small checks as well as chunks. A chunk should be large
+ * enough that its round trip is a small part of its time, so chunk size follows round trip times bandwidth, bounded
+ * by the smallest chunk worth a request and the largest one proxy is willing to hold in memory.
+ */
+public class ChunkTuner {
+    private static final int SAMPLES = 32;
+    private static final int MIN_SAMPLES = 4;
+    // chunk takes this many round trips to transfer, so round trip is at most a fifth of its time
+    private static final double TRANSFER_ROUND_TRIPS = 4;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long[] bytes;
+    private final double[] seconds;
+    private int count;
+    private int next;
+    private int chunkSize;
+    private double roundTrip;
+    private double bandwidth;
+
+    /**
+     * constructor
+     * @param minSize min chunk size
+     * @param maxSize max chunk size
+     * @param initialSize chunk size until enough requests are measured
+     */
+    public ChunkTuner(int minSize, int maxSize, int initialSize) {
+        this.minSize = minSize;
+        this.maxSize = Math.max(minSize, maxSize);
+        this.bytes = new long[SAMPLES];
+        this.seconds = new double[SAMPLES];
+        this.chunkSize = clamp(initialSize);
+    }
+
+    /**
+     * record a request which has completed
+     * @param size bytes carried by request
+     * @param nanos time from sending request to having its response
+     */
+    public synchronized void record(long size, long nanos) {
+        bytes[next] = size;
+        seconds[next] = nanos / 1e9;
+        next = (next + 1) % SAMPLES;
+        count = Math.min(count + 1, SAMPLES);
+        if (count >= MIN_SAMPLES) {
+            fit();
+        }
+    }
+
+    /**
+     * get chunk size to ask for in next transfer
+     * @return chunk size in bytes
+     */
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * get estimated round trip time
+     * @return seconds, 0 if not estimated yet
+     */
+    public synchronized double getRoundTrip() {
+        return roundTrip;
+    }
+
+    /**
+     * get estimated bandwidth of one request
+     * @return bytes per second, 0 if not estimated yet
+     */
+    public synchronized double getBandwidth() {
+        return bandwidth;
+    }
+
+    private void fit() {
+        double meanBytes = 0;
+        double meanSeconds = 0;
+        for (int i = 0; i < count; i++) {
+            meanBytes += bytes[i];
+            meanSeconds += seconds[i];
+        }
+        meanBytes /= count;
+        meanSeconds /= count;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < count; i++) {
+            covariance += (bytes[i] - meanBytes) * (seconds[i] - meanSeconds);
+            variance += (bytes[i] - meanBytes) * (bytes[i] - meanBytes);
+        }
+        if (variance == 0) {
+            // every sample has the same size, round trip and bandwidth can not be told apart
+            return;
+        }
+        double secondsPerByte = covariance / variance;
+        double intercept = meanSeconds - secondsPerByte * meanBytes;
+        if (secondsPerByte <= 0 || intercept <= 0) {
+            // noise hides one of them, keep chunk size
+            return;
+        }
+        roundTrip = intercept;
+        bandwidth = 1 / secondsPerByte;
+        chunkSize = clamp((long) (TRANSFER_ROUND_TRIPS * roundTrip * bandwidth));
+    }
+
+    private int clamp(long size) {
+        return (int) Math.max(minSize, Math.min(maxSize, size));
+    }
+}
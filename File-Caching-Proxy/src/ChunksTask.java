@@ -1,31 +1,64 @@
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
-import java.rmi.RemoteException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is used for download huge file. It shore the randomName(actual copy of files on server), file size and
- * total chunks.
+ * total chunks. Chunk size is chosen by server for every transfer, from the size proxy asks for.
  */
 public class ChunksTask implements Serializable {
 
+    // default chunk size, when proxy does not ask for another one
     public static final int CHUNK_SIZE = 1000003;
 
     private final String serverRandomName;
     private final int fileSize;
+    private final int chunkSize;
     private final int totalChunks;
     private int nextChunk;
+    private ChunkManifest manifest;
+    private List<PeerRpc> peers;
 
     /**
      * constructor
      * @param randomName name of random file
      */
     public ChunksTask(String randomName) {
+        this(randomName, CHUNK_SIZE);
+    }
+
+    /**
+     * constructor with chunk size
+     * @param randomName name of random file
+     * @param chunkSize size of every chunk but the last one
+     */
+    public ChunksTask(String randomName, int chunkSize) {
+        this(randomName, chunkSize, 1);
+    }
+
+    /**
+     * constructor with chunk size and first chunk to download
+     * @param randomName name of random file
+     * @param chunkSize size of every chunk but the last one
+     * @param firstChunk index of first chunk which is not sent with check result, 0 if no content is sent with it
+     */
+    public ChunksTask(String randomName, int chunkSize, int firstChunk) {
         this.serverRandomName = randomName;
         File file = new File(Server.toServerPath(randomName));
         this.fileSize = (int) file.length();
-        this.totalChunks = (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
-        this.nextChunk = 1;
+        this.chunkSize = chunkSize;
+        this.totalChunks = (fileSize + chunkSize - 1) / chunkSize;
+        this.nextChunk = firstChunk;
     }
 
     /**
@@ -44,6 +77,38 @@ public class ChunksTask implements Serializable {
         return fileSize;
     }
 
+    /**
+     * get chunk size of this transfer, the first chunk is sent with check result
+     * @return chunk size
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * get manifest of server copy
+     * @return manifest, null unless proxy asked for it
+     */
+    public ChunkManifest getManifest() {
+        return manifest;
+    }
+
+    public void setManifest(ChunkManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * get proxies which hold the same version, chunks may be read from them instead of from server
+     * @return peers, null if there is none
+     */
+    public List<PeerRpc> getPeers() {
+        return peers;
+    }
+
+    public void setPeers(List<PeerRpc> peers) {
+        this.peers = peers;
+    }
+
     /**
      * check if there is following chunk
      * @return true if there is following job, false if not
@@ -66,19 +131,129 @@ public class ChunksTask implements Serializable {
             System.err.println("Error: no further chunks");
             return null;
         }
-        int size = CHUNK_SIZE;
+        int size = chunkSize;
         if (nextChunk == totalChunks - 1) {
-            size = fileSize - nextChunk * CHUNK_SIZE;
+            size = fileSize - nextChunk * chunkSize;
         }
-        int offset = nextChunk * CHUNK_SIZE;
+        int offset = nextChunk * chunkSize;
         nextChunk++;
 
         byte[] bytes = null;
         try {
-            bytes = proxy.rpc.downloadChunk(serverRandomName, offset, size);
-        } catch (RemoteException e) {
+            bytes = proxy.downloadChunk(serverRandomName, offset, size);
+        } catch (IOException e) {
             e.printStackTrace();
         }
         return bytes;
     }
+
+    /**
+     * download all following chunks with at most window requests in flight, every chunk is written at its own offset
+     * of channel.
+     * @param proxy proxy
+     * @param channel channel of cache file, the first chunk should already be written
+     * @param window max number of chunk requests in flight
+     * @param executor executor which runs parallel requests
+     * @return true if every chunk is written, false if not
+     */
+    public boolean downloadAll(final Proxy proxy, final FileChannel channel, int window, ExecutorService executor) {
+        List<int[]> ranges = new ArrayList<>();
+        for (int chunk = nextChunk; chunk < totalChunks; chunk++) {
+            int offset = chunk * chunkSize;
+            ranges.add(new int[]{offset, chunk == totalChunks - 1 ? fileSize - offset : chunkSize});
+        }
+        return downloadRanges((offset, size) -> proxy.downloadChunk(serverRandomName, offset, size), channel, ranges,
+                window, executor);
+    }
+
+    /**
+     * download some ranges of server copy with at most window requests in flight, every range is written at its own
+     * offset of channel
+     * @param fetcher fetcher of ranges, from server or from peers
+     * @param channel channel of cache file
+     * @param ranges offset and size of every range, a range is no larger than chunk size
+     * @param window max number of chunk requests in flight
+     * @param executor executor which runs parallel requests
+     * @return true if every range is written, false if not
+     */
+    public boolean downloadRanges(StreamingDownload.Fetcher fetcher, final FileChannel channel, List<int[]> ranges,
+                                  int window, ExecutorService executor) {
+        final AtomicInteger next = new AtomicInteger(0);
+        List<Future<Boolean>> workers = new ArrayList<>();
+        for (int i = 0; i < window - 1 && i < ranges.size() - 1; i++) {
+            workers.add(executor.submit(new ChunkWorker(fetcher, channel, next, ranges)));
+        }
+        boolean success = new ChunkWorker(fetcher, channel, next, ranges).call();
+        for (Future<Boolean> worker : workers) {
+            try {
+                success &= worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                success = false;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                success = false;
+            }
+        }
+        nextChunk = totalChunks;
+        return success;
+    }
+
+    /**
+     * download one range and write it at its offset
+     * @param fetcher fetcher of ranges
+     * @param channel channel of cache file
+     * @param offset offset of range
+     * @param size size of range
+     * @return true if success
+     */
+    private boolean downloadChunkTo(StreamingDownload.Fetcher fetcher, FileChannel channel, int offset, int size) {
+        try {
+            byte[] bytes = fetcher.fetch(offset, size);
+            if (bytes == null || bytes.length != size) {
+                System.err.println("Error in download chunk at " + offset + " of " + serverRandomName);
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * worker which keeps taking next range until every range is taken
+     */
+    private class ChunkWorker implements Callable<Boolean> {
+        private final StreamingDownload.Fetcher fetcher;
+        private final FileChannel channel;
+        private final AtomicInteger next;
+        private final List<int[]> ranges;
+
+        ChunkWorker(StreamingDownload.Fetcher fetcher, FileChannel channel, AtomicInteger next, List<int[]> ranges) {
+            this.fetcher = fetcher;
+            this.channel = channel;
+            this.next = next;
+            this.ranges = ranges;
+        }
+
+        @Override
+        public Boolean call() {
+            int index;
+            while ((index = next.getAndIncrement()) < ranges.size()) {
+                int[] range = ranges.get(index);
+                if (!downloadChunkTo(fetcher, channel, range[0], range[1])) {
+                    // stop other workers as well
+                    next.set(ranges.size());
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of file content on wire, negotiated between proxy and server.
+ * <p>
+ * Proxy tells server which codecs it accepts in {@link CheckRequest}, and server answers the one both sides use in
+ * {@link CheckResult}. With a codec other than {@link #NONE}, every payload is sent as a frame: a flag byte telling
+ * whether the payload is compressed, the raw length, then the payload. A chunk is only compressed if a few samples of
+ * it compress well, so already compressed content costs almost nothing extra.
+ */
+public class Codec {
+
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+
+    // metric names
+    public static final String SENT_RAW = "codec.sent.rawBytes";
+    public static final String SENT_WIRE = "codec.sent.wireBytes";
+    public static final String SENT_SKIPPED = "codec.sent.skippedChunks";
+    public static final String RECEIVED_RAW = "codec.received.rawBytes";
+    public static final String RECEIVED_WIRE = "codec.received.wireBytes";
+
+    private static final int HEADER_SIZE = 5;
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+    private static final int MIN_COMPRESS_SIZE = 512;
+    private static final int SAMPLE_SIZE = 4096;
+    // compress only if samples shrink to less than this part of their size
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private Codec() {
+    }
+
+    /**
+     * get mask of codecs this side supports
+     * @return bit mask, bit i is set if codec i is supported
+     */
+    public static int supported() {
+        return 1 << DEFLATE;
+    }
+
+    /**
+     * pick codec for a transfer
+     * @param accepted mask of codecs the other side accepts
+     * @return codec both sides support, {@link #NONE} if there is none
+     */
+    public static int choose(int accepted) {
+        return (accepted & supported() & (1 << DEFLATE)) != 0 ? DEFLATE : NONE;
+    }
+
+    /**
+     * encode a payload
+     * @param data content
+     * @param offset offset of payload in content
+     * @param length length of payload
+     * @param codec negotiated codec
+     * @param metrics metrics to record sizes in, may be null
+     * @return frame to send, or the payload itself if codec is {@link #NONE}
+     */
+    public static byte[] encode(byte[] data, int offset, int length, int codec, Metrics metrics) {
+        if (codec == NONE) {
+            if (offset == 0 && length == data.length) {
+                return data;
+            }
+            byte[] payload = new byte[length];
+            System.arraycopy(data, offset, payload, 0, length);
+            return payload;
+        }
+        byte[] frame = null;
+        if (length >= MIN_COMPRESS_SIZE && worthCompressing(data, offset, length)) {
+            frame = deflate(data, offset, length);
+        } else if (metrics != null && length >= MIN_COMPRESS_SIZE) {
+            metrics.increment(SENT_SKIPPED);
+        }
+        if (frame == null) {
+            frame = new byte[HEADER_SIZE + length];
+            frame[0] = RAW;
+            ByteBuffer.wrap(frame, 1, 4).putInt(length);
+            System.arraycopy(data, offset, frame, HEADER_SIZE, length);
+        }
+        if (metrics != null) {
+            metrics.add(SENT_RAW, length);
+            metrics.add(SENT_WIRE, frame.length);
+        }
+        return frame;
+    }
+
+    /**
+     * decode a payload
+     * @param frame received frame, or payload itself if codec is {@link #NONE}
+     * @param codec negotiated codec
+     * @param metrics metrics to record sizes in, may be null
+     * @return content
+     * @throws IOException if frame is broken
+     */
+    public static byte[] decode(byte[] frame, int codec, Metrics metrics) throws IOException {
+        if (codec == NONE || frame == null || frame.length == 0) {
+            return frame;
+        }
+        if (frame.length < HEADER_SIZE) {
+            throw new IOException("Frame is too short");
+        }
+        int length = ByteBuffer.wrap(frame, 1, 4).getInt();
+        byte[] data = new byte[length];
+        if (frame[0] == RAW) {
+            System.arraycopy(frame, HEADER_SIZE, data, 0, length);
+        } else if (frame[0] == DEFLATED) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(frame, HEADER_SIZE, frame.length - HEADER_SIZE);
+                int done = 0;
+                while (done < length && !inflater.finished()) {
+                    int n = inflater.inflate(data, done, length - done);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    done += n;
+                }
+                if (done != length) {
+                    throw new IOException("Frame is shorter than its length");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new IOException("Unknown frame type " + frame[0]);
+        }
+        if (metrics != null) {
+            metrics.add(RECEIVED_RAW, length);
+            metrics.add(RECEIVED_WIRE, frame.length);
+        }
+        return data;
+    }
+
+    /**
+     * compress a few samples of payload to guess whether the whole payload compresses
+     * @param data content
+     * @param offset offset of payload
+     * @param length length of payload
+     * @return true if samples compress well
+     */
+    static boolean worthCompressing(byte[] data, int offset, int length) {
+        if (length <= 3 * SAMPLE_SIZE) {
+            return true;
+        }
+        int[] starts = {offset, offset + (length - SAMPLE_SIZE) / 2, offset + length - SAMPLE_SIZE};
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            byte[] out = new byte[SAMPLE_SIZE];
+            long compressed = 0;
+            for (int start : starts) {
+                deflater.reset();
+                deflater.setInput(data, start, SAMPLE_SIZE);
+                deflater.finish();
+                int n = 0;
+                while (!deflater.finished() && n < out.length) {
+                    n += deflater.deflate(out, n, out.length - n);
+                }
+                compressed += deflater.finished() ? n : SAMPLE_SIZE;
+            }
+            return compressed < MAX_SAMPLE_RATIO * SAMPLE_SIZE * starts.length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * compress payload into a frame
+     * @return frame, null if compressed payload is not smaller
+     */
+    private static byte[] deflate(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            byte[] frame = new byte[HEADER_SIZE + length];
+            int n = HEADER_SIZE;
+            while (!deflater.finished() && n < frame.length) {
+                n += deflater.deflate(frame, n, frame.length - n);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            frame[0] = DEFLATED;
+            ByteBuffer.wrap(frame, 1, 4).putInt(length);
+            byte[] result = new byte[n];
+            System.arraycopy(frame, 0, result, 0, n);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+}
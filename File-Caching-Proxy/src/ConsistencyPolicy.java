@@ -0,0 +1,173 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Consistency of reads by path prefix. Every open of a file for read follows the rule of the longest prefix which
+ * matches its real name, and files which match none are strict.
+ * <ul>
+ *     <li>strict: open checks server unless a lease covers the cached version, as without any rule</li>
+ *     <li>bounded: cached version is read without asking server for up to N ms after it was last validated, then open
+ *     checks server as usual. A read is at most N ms stale.</li>
+ *     <li>swr (stale-while-revalidate): cached version is read without asking server for up to N ms after it was last
+ *     validated, and after that it is still read at once while a background check brings the latest version for the
+ *     next opens. Only a file which is not cached waits for server.</li>
+ * </ul>
+ * A version counts as validated from the time the check which validated it was sent. Rules are given as a comma
+ * separated list of prefix=mode[:millis], e.g.
+ * <pre>
+ *     java -Dproxy.consistency=static/=bounded:5000,models/=swr:60000 Proxy 127.0.0.1 11122 ProxyFile 100000
+ * </pre>
+ */
+public class ConsistencyPolicy {
+
+    public static final String STRICT = "strict";
+    public static final String BOUNDED = "bounded";
+    public static final String STALE_WHILE_REVALIDATE = "swr";
+    // reads which skip server within bound of their rule, stale reads served during a refresh, and refreshes
+    public static final String CACHED_READS = "consistency.cachedReads";
+    public static final String STALE_READS = "consistency.staleReads";
+    public static final String REFRESHES = "consistency.refreshes";
+
+    private static final Rule DEFAULT = new Rule("", STRICT, 0);
+
+    // longest prefix first
+    private final List<Rule> rules;
+    private final boolean strict;
+
+    /**
+     * constructor
+     * @param rules rules by prefix
+     */
+    public ConsistencyPolicy(List<Rule> rules) {
+        this.rules = new ArrayList<>(rules);
+        this.rules.sort(Comparator.comparingInt((Rule rule) -> rule.prefix.length()).reversed());
+        this.strict = this.rules.stream().allMatch(Rule::isStrict);
+    }
+
+    /**
+     * parse rules, e.g. "static/=bounded:5000,models/=swr:60000"
+     * @param spec comma separated list of prefix=mode[:millis], empty if every file is strict
+     * @return policy
+     * @throws IllegalArgumentException if a rule can not be parsed
+     */
+    public static ConsistencyPolicy parse(String spec) {
+        List<Rule> rules = new ArrayList<>();
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int equals = item.lastIndexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Consistency rule " + item + " is not prefix=mode[:millis]");
+            }
+            String mode = item.substring(equals + 1);
+            long millis = 0;
+            int colon = mode.indexOf(':');
+            if (colon >= 0) {
+                try {
+                    millis = Long.parseLong(mode.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad staleness in consistency rule " + item);
+                }
+                mode = mode.substring(0, colon);
+            }
+            if (!mode.equals(STRICT) && !mode.equals(BOUNDED) && !mode.equals(STALE_WHILE_REVALIDATE)) {
+                throw new IllegalArgumentException("Unknown consistency mode " + mode);
+            }
+            if (millis < 0) {
+                throw new IllegalArgumentException("Bad staleness in consistency rule " + item);
+            }
+            rules.add(new Rule(item.substring(0, equals), mode, millis));
+        }
+        return new ConsistencyPolicy(rules);
+    }
+
+    /**
+     * find the rule of a file
+     * @param realName real name of file
+     * @return rule of the longest matching prefix, a strict one if none matches
+     */
+    public Rule ruleFor(String realName) {
+        for (Rule rule : rules) {
+            if (realName.startsWith(rule.prefix)) {
+                return rule;
+            }
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * check whether every file is strict, then proxy does not look rules up
+     * @return true if no rule relaxes consistency
+     */
+    public boolean isStrict() {
+        return strict;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Rule rule : rules) {
+            builder.append(builder.length() == 0 ? "" : ",").append(rule);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * consistency of files under one prefix
+     */
+    public static class Rule {
+        private final String prefix;
+        private final String mode;
+        private final long maxStaleMillis;
+        private final String readsMetric;
+
+        /**
+         * constructor
+         * @param prefix prefix of real names
+         * @param mode strict, bounded or swr
+         * @param maxStaleMillis how long a validated version is read without asking server
+         */
+        public Rule(String prefix, String mode, long maxStaleMillis) {
+            this.prefix = prefix;
+            this.mode = mode;
+            this.maxStaleMillis = maxStaleMillis;
+            this.readsMetric = "consistency." + mode + ".reads";
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        public long getMaxStaleMillis() {
+            return maxStaleMillis;
+        }
+
+        /**
+         * get name of the counter of reads which follow a rule of this mode
+         * @return metric name, e.g. consistency.bounded.reads
+         */
+        public String getReadsMetric() {
+            return readsMetric;
+        }
+
+        public boolean isStrict() {
+            return STRICT.equals(mode);
+        }
+
+        public boolean isStaleWhileRevalidate() {
+            return STALE_WHILE_REVALIDATE.equals(mode);
+        }
+
+        @Override
+        public String toString() {
+            return prefix + "=" + mode + ":" + maxStaleMillis;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Difference between a new version of a file and a base version described by {@link BlockSignature}.
+ * <p>
+ * A delta is a list of instructions, either copy some blocks from the base version, or write some literal bytes.
+ * An MD5 digest of the whole new version is attached, so the receiver can verify the rebuilt file.
+ */
+public class Delta implements Serializable {
+
+    // delta larger than this is sent as a whole file instead
+    public static final long MAX_DELTA_SIZE = 64L * 1024 * 1024;
+
+    private static final byte COPY = 'C';
+    private static final byte LITERAL = 'L';
+
+    private final int blockSize;
+    private final long targetLength;
+    private final byte[] targetDigest;
+    private final byte[] instructions;
+
+    private Delta(int blockSize, long targetLength, byte[] targetDigest, byte[] instructions) {
+        this.blockSize = blockSize;
+        this.targetLength = targetLength;
+        this.targetDigest = targetDigest;
+        this.instructions = instructions;
+    }
+
+    /**
+     * compute delta of target file against base signature
+     * @param base signature of base version
+     * @param target channel of new version
+     * @param maxSize max size of delta, usually a part of file length
+     * @return delta, or null if delta would be larger than max size
+     * @throws IOException
+     */
+    public static Delta compute(BlockSignature base, FileChannel target, long maxSize) throws IOException {
+        long length = target.size();
+        if (length > Integer.MAX_VALUE) {
+            return null;
+        }
+        int n = (int) length;
+        int bs = base.getBlockSize();
+        MappedByteBuffer content = target.map(FileChannel.MapMode.READ_ONLY, 0, n);
+        byte[] window = new byte[bs];
+
+        Map<Integer, List<Integer>> weakIndex = new HashMap<>();
+        for (int i = 0; i < base.getBlocks(); i++) {
+            // only full blocks can be matched by a full window
+            if ((long) (i + 1) * bs <= base.getFileLength()) {
+                List<Integer> blocks = weakIndex.get(base.getWeak(i));
+                if (blocks == null) {
+                    blocks = new ArrayList<>(1);
+                    weakIndex.put(base.getWeak(i), blocks);
+                }
+                blocks.add(i);
+            }
+        }
+
+        Writer writer = new Writer(content, maxSize);
+        MessageDigest md5 = BlockSignature.newDigest();
+        int literalStart = 0;
+        int i = 0;
+        int a = 0;
+        int b = 0;
+        boolean fresh = true;
+        int lastBlock = -1;
+        while (i + bs <= n) {
+            if (fresh) {
+                content.position(i);
+                content.get(window, 0, bs);
+                int weak = BlockSignature.rollingChecksum(window, 0, bs);
+                a = weak & 0xffff;
+                b = weak >>> 16;
+                fresh = false;
+            }
+            int weak = (a & 0xffff) | (b << 16);
+            List<Integer> candidates = weakIndex.get(weak);
+            int match = -1;
+            if (candidates != null) {
+                content.position(i);
+                content.get(window, 0, bs);
+                md5.update(window, 0, bs);
+                byte[] digest = md5.digest();
+                // prefer the block following the last match, so that runs of copied blocks stay together
+                if (lastBlock >= 0 && candidates.contains(lastBlock + 1) && base.strongEquals(lastBlock + 1, digest)) {
+                    match = lastBlock + 1;
+                } else {
+                    for (int block : candidates) {
+                        if (base.strongEquals(block, digest)) {
+                            match = block;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (match >= 0) {
+                if (!writer.literal(literalStart, i) || !writer.copy(match)) {
+                    return null;
+                }
+                lastBlock = match;
+                i += bs;
+                literalStart = i;
+                fresh = true;
+            } else {
+                int out = content.get(i) & 0xff;
+                if (i + bs < n) {
+                    int in = content.get(i + bs) & 0xff;
+                    a = a - out + in;
+                    b = b - bs * out + a;
+                }
+                i++;
+            }
+        }
+        if (!writer.literal(literalStart, n)) {
+            return null;
+        }
+
+        content.position(0);
+        md5.reset();
+        md5.update(content);
+        return new Delta(bs, length, md5.digest(), writer.finish());
+    }
+
+    /**
+     * rebuild new version from base version
+     * @param base channel of base version, which must be the file the signature was made from
+     * @param out channel to write new version to, written from position 0
+     * @throws IOException if rebuilt file does not match digest of new version
+     */
+    public void apply(FileChannel base, FileChannel out) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(instructions));
+        MessageDigest md5 = BlockSignature.newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(blockSize, 64 * 1024));
+        long position = 0;
+        while (in.available() > 0) {
+            byte op = in.readByte();
+            if (op == COPY) {
+                long from = (long) in.readInt() * blockSize;
+                long remaining = (long) in.readInt() * blockSize;
+                while (remaining > 0) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                    int read = base.read(buffer, from);
+                    if (read <= 0) {
+                        throw new IOException("Base version is shorter than delta expects");
+                    }
+                    from += read;
+                    remaining -= read;
+                    buffer.flip();
+                    md5.update(buffer.array(), 0, buffer.limit());
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
+                    }
+                }
+            } else if (op == LITERAL) {
+                byte[] literal = new byte[in.readInt()];
+                in.readFully(literal);
+                md5.update(literal);
+                ByteBuffer wrapped = ByteBuffer.wrap(literal);
+                while (wrapped.hasRemaining()) {
+                    position += out.write(wrapped, position);
+                }
+            } else {
+                throw new IOException("Unknown delta instruction " + op);
+            }
+        }
+        if (position != targetLength || !Arrays.equals(md5.digest(), targetDigest)) {
+            throw new IOException("Rebuilt file does not match delta");
+        }
+    }
+
+    public long getTargetLength() {
+        return targetLength;
+    }
+
+    /**
+     * get size of delta, which is roughly how many bytes it takes on wire
+     * @return size in bytes
+     */
+    public int size() {
+        return instructions.length;
+    }
+
+    /**
+     * writer of instructions, consecutive copied blocks are merged into one instruction
+     */
+    private static class Writer {
+        private final MappedByteBuffer content;
+        private final long maxSize;
+        private final ByteArrayOutputStream bytes;
+        private final DataOutputStream out;
+        private int runStart = -1;
+        private int runLength = 0;
+
+        Writer(MappedByteBuffer content, long maxSize) {
+            this.content = content;
+            this.maxSize = maxSize;
+            this.bytes = new ByteArrayOutputStream();
+            this.out = new DataOutputStream(bytes);
+        }
+
+        boolean copy(int block) throws IOException {
+            if (runLength > 0 && runStart + runLength == block) {
+                runLength++;
+                return true;
+            }
+            flushRun();
+            runStart = block;
+            runLength = 1;
+            return bytes.size() <= maxSize;
+        }
+
+        boolean literal(int from, int to) throws IOException {
+            if (from >= to) {
+                return true;
+            }
+            flushRun();
+            if (bytes.size() + (to - from) > maxSize) {
+                return false;
+            }
+            byte[] literal = new byte[to - from];
+            content.position(from);
+            content.get(literal);
+            out.writeByte(LITERAL);
+            out.writeInt(literal.length);
+            out.write(literal);
+            return true;
+        }
+
+        byte[] finish() throws IOException {
+            flushRun();
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void flushRun() throws IOException {
+            if (runLength > 0) {
+                out.writeByte(COPY);
+                out.writeInt(runStart);
+                out.writeInt(runLength);
+                runLength = 0;
+            }
+        }
+    }
+}
@@ -4,4 +4,7 @@
 public class ErrorCode {
     public static int REMOTE = -400;
     public static int READ_DIR = -305;
+    public static int NO_UPLOAD = -306;
+    public static int NO_DELTA = -307;
+    public static int NO_SPACE = -308;
 }
@@ -0,0 +1,114 @@
+import java.util.List;
+
+/**
+ * Byte weighted index of cached files, keyed by real name, which decides the order files are evicted in.
+ * <p>
+ * Files which are still opened by some client are pinned, and a pinned file is never evicted. Pins are counted per
+ * real name and may be taken before the file is put into index.
+ */
+public interface EvictionPolicy {
+
+    String LRU = "lru";
+    String TINY_LFU = "tinylfu";
+    String ARC = "arc";
+
+    /**
+     * insert a file into index, or replace the record of a file already there, it counts as an access
+     * @param fileInfo file info
+     * @param weight size of file in bytes
+     */
+    void put(FileInfo fileInfo, long weight);
+
+    /**
+     * record an access of a file
+     * @param realName real name
+     * @param fileInfo current file info of real name
+     * @return true if file is in index, false if not
+     */
+    boolean touch(String realName, FileInfo fileInfo);
+
+    /**
+     * make a file the next one to be evicted, e.g. a prefetched file which has not been opened yet
+     * @param realName real name
+     * @return true if file is in index
+     */
+    boolean demote(String realName);
+
+    /**
+     * pin a file, pinned files are never evicted
+     * @param realName real name
+     * @return current pin counter
+     */
+    int pin(String realName);
+
+    /**
+     * unpin a file
+     * @param realName real name
+     * @return current pin counter, -1 if file is not pinned
+     */
+    int unpin(String realName);
+
+    /**
+     * update size of a file, used when a new version is cached
+     * @param realName real name
+     * @param weight new size in bytes
+     */
+    void updateWeight(String realName, long weight);
+
+    /**
+     * remove file from index, e.g. when it is unlinked
+     * @param realName real name
+     * @return removed file info, null if not in index
+     */
+    FileInfo remove(String realName);
+
+    /**
+     * choose the file to evict next and remove it from index
+     * @return file info, null if every file is pinned or index is empty
+     */
+    FileInfo evict();
+
+    /**
+     * check whether file is in index
+     * @param realName real name
+     * @return true if in index
+     */
+    boolean contains(String realName);
+
+    /**
+     * get number of files in index
+     * @return number of files
+     */
+    int size();
+
+    /**
+     * get total size of files in index
+     * @return total size in bytes
+     */
+    long getTotalWeight();
+
+    /**
+     * list files roughly in eviction order, pinned files are listed at the end
+     * @return list of file info
+     */
+    List<FileInfo> snapshot();
+
+    /**
+     * create a policy by its name
+     * @param name {@link #LRU}, {@link #TINY_LFU} or {@link #ARC}
+     * @param capacity size of cache in bytes
+     * @return policy
+     */
+    static EvictionPolicy forName(String name, long capacity) {
+        switch (name) {
+            case LRU:
+                return new LruIndex();
+            case TINY_LFU:
+                return new TinyLfuPolicy(capacity);
+            case ARC:
+                return new ArcPolicy(capacity);
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy " + name);
+        }
+    }
+}
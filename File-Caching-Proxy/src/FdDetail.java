@@ -1,33 +1,32 @@
-import java.io.RandomAccessFile;
-
 /**
  * Contains of file descriptor information, such as file name, its copy name and version number and permission
  */
 public class FdDetail {
-    private RandomAccessFile raFile;
+    private SessionFile file;
     private String realName;
     private String randomName;
+    private String baseRandomName; // cached copy which a copy-on-write session reads from
     private int originalVersion;
     private int permission; // 4 for read, 6 for read and write
 
     /**
      * constructor
-     * @param raFile random access file
+     * @param file session file
      * @param realName real name
      * @param randomName random name
      * @param originalVersion version
      * @param permission permission
      */
-    public FdDetail(RandomAccessFile raFile, String realName, String randomName, int originalVersion, int permission) {
-        this.raFile = raFile;
+    public FdDetail(SessionFile file, String realName, String randomName, int originalVersion, int permission) {
+        this.file = file;
         this.realName = realName;
         this.randomName = randomName;
         this.originalVersion = originalVersion;
         this.permission = permission;
     }
 
-    public RandomAccessFile getRaFile() {
-        return raFile;
+    public SessionFile getFile() {
+        return file;
     }
 
     public String getRealName() {
@@ -38,6 +37,18 @@ public class FdDetail {
         return randomName;
     }
 
+    public String getBaseRandomName() {
+        return baseRandomName;
+    }
+
+    /**
+     * set the cached copy which a copy-on-write session reads from, it stays in use until fd is closed
+     * @param baseRandomName random name of cached copy
+     */
+    public void setBaseRandomName(String baseRandomName) {
+        this.baseRandomName = baseRandomName;
+    }
+
     public int getOriginalVersion() {
         return originalVersion;
     }
@@ -52,6 +63,6 @@ public class FdDetail {
      */
     @Override
     public String toString() {
-        return this.raFile + " " + this.realName + " " + this.randomName + " " + this.originalVersion +" " + this.permission;
+        return this.file + " " + this.realName + " " + this.randomName + " " + this.originalVersion +" " + this.permission;
     }
 }
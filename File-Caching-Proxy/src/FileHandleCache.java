@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of read-only file channels of server copies, so that the chunks of one download share one open file.
+ * <p>
+ * A server copy never changes once it is published, so a channel stays valid for its whole life. Channels are
+ * reference counted: a channel in use is never closed, and an unused one is closed when the cache holds more than its
+ * bound (least recently used first) or when it has been idle for a while. A copy which is deleted is invalidated, its
+ * channel is closed as soon as the last reader releases it.
+ */
+public class FileHandleCache {
+    private final int maxOpen;
+    private final long idleMillis;
+    private final LinkedHashMap<String, Entry> entries;
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * constructor
+     * @param maxOpen max number of unused channels kept open
+     * @param idleMillis unused channels are closed after this time
+     */
+    public FileHandleCache(int maxOpen, long idleMillis) {
+        this.maxOpen = maxOpen;
+        this.idleMillis = idleMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "handle-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleMillis / 2);
+        sweeper.scheduleWithFixedDelay(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * get channel of a file, it must be released after use
+     * @param name name of file, it is the key of cache
+     * @param path path of file
+     * @return handle of channel
+     * @throws IOException if file can not be opened, e.g. {@link java.nio.file.NoSuchFileException}
+     */
+    public Handle acquire(String name, String path) throws IOException {
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry != null && entry.channel.isOpen()) {
+                entry.refs++;
+                return new Handle(entry);
+            }
+        }
+        // open out of lock, another thread may open the same file meanwhile
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry != null && entry.channel.isOpen()) {
+                closeQuietly(channel);
+            } else {
+                entry = new Entry(channel);
+                entries.put(name, entry);
+            }
+            entry.refs++;
+            closeEldest();
+            return new Handle(entry);
+        }
+    }
+
+    /**
+     * drop channel of a file which is deleted, it is closed when the last reader releases it
+     * @param name name of file
+     */
+    public synchronized void invalidate(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            entry.invalid = true;
+            if (entry.refs == 0) {
+                closeQuietly(entry.channel);
+            }
+        }
+    }
+
+    /**
+     * get number of channels open in cache
+     * @return number of channels
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * close all unused channels which have been idle for too long
+     */
+    synchronized void closeIdle() {
+        long deadline = System.currentTimeMillis() - idleMillis;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.refs == 0 && entry.lastUsed <= deadline) {
+                it.remove();
+                closeQuietly(entry.channel);
+            }
+        }
+    }
+
+    /**
+     * close all channels and stop sweeper
+     */
+    public synchronized void close() {
+        sweeper.shutdownNow();
+        for (Entry entry : entries.values()) {
+            closeQuietly(entry.channel);
+        }
+        entries.clear();
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.refs--;
+        entry.lastUsed = System.currentTimeMillis();
+        if (entry.refs == 0 && entry.invalid) {
+            closeQuietly(entry.channel);
+        }
+        closeEldest();
+    }
+
+    private void closeEldest() {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && entries.size() > maxOpen; ) {
+            Entry entry = it.next();
+            if (entry.refs == 0) {
+                it.remove();
+                closeQuietly(entry.channel);
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Entry {
+        private final FileChannel channel;
+        private int refs;
+        private long lastUsed;
+        private boolean invalid;
+
+        Entry(FileChannel channel) {
+            this.channel = channel;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * a reference of a cached channel, close it to release the reference
+     */
+    public class Handle implements AutoCloseable {
+        private final Entry entry;
+        private boolean released;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * get channel, it must only be used by positional reads and transfers, since it is shared
+         * @return file channel
+         */
+        public FileChannel channel() {
+            return entry.channel;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(entry);
+            }
+        }
+    }
+}
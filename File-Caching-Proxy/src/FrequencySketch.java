@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+/**
+ * Approximate access counts of recently used keys, for admission of {@link TinyLfuPolicy}.
+ * <p>
+ * Counts are kept in a count-min sketch of 4 rows of 4-bit counters, and only the smallest counters of a key are
+ * raised. The first access of a key only sets its bits in a doorkeeper bloom filter, so keys which are seen once, e.g.
+ * by a scan, never take counters. After a sample of accesses, every counter is halved and doorkeeper is cleared, so
+ * counts follow recent popularity.
+ */
+public class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {0x97cb3127L, 0xc2b2ae3dL, 0x27d4eb2fL, 0x165667b1L};
+
+    private final byte[][] counters;
+    private final long[] doorkeeper;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * constructor
+     * @param expectedKeys number of keys which should be counted well, e.g. number of files cache holds
+     */
+    public FrequencySketch(int expectedKeys) {
+        int width = Integer.highestOneBit(Math.max(64, expectedKeys - 1) << 1);
+        this.counters = new byte[DEPTH][width];
+        this.doorkeeper = new long[width * 2 / Long.SIZE];
+        this.mask = width - 1;
+        this.sampleSize = width * 10;
+    }
+
+    /**
+     * count an access of a key
+     * @param key key
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        additions++;
+        if (!inDoorkeeper(hash)) {
+            putDoorkeeper(hash);
+        } else {
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, counters[row][index(hash, row)]);
+            }
+            if (min < MAX_COUNT) {
+                for (int row = 0; row < DEPTH; row++) {
+                    int i = index(hash, row);
+                    if (counters[row][i] == min) {
+                        counters[row][i]++;
+                    }
+                }
+            }
+        }
+        if (additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * get estimated number of recent accesses of a key
+     * @param key key
+     * @return estimated count
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters[row][index(hash, row)]);
+        }
+        return min + (inDoorkeeper(hash) ? 1 : 0);
+    }
+
+    private void reset() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        Arrays.fill(doorkeeper, 0);
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private boolean inDoorkeeper(int hash) {
+        int bits = doorkeeper.length * Long.SIZE - 1;
+        int first = hash & bits;
+        int second = (hash >>> 16 | hash << 16) & bits;
+        return (doorkeeper[first >>> 6] & (1L << first)) != 0 && (doorkeeper[second >>> 6] & (1L << second)) != 0;
+    }
+
+    private void putDoorkeeper(int hash) {
+        int bits = doorkeeper.length * Long.SIZE - 1;
+        int first = hash & bits;
+        int second = (hash >>> 16 | hash << 16) & bits;
+        doorkeeper[first >>> 6] |= 1L << first;
+        doorkeeper[second >>> 6] |= 1L << second;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -0,0 +1,323 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base of eviction policies which keep cached files on a few intrusive linked lists, eldest first.
+ * <p>
+ * Like {@link LruIndex}, a pinned file is unlinked from its list while pinned, so the eldest entry of every list is
+ * always evictable; the file still belongs to its list and is counted in its weight. A policy decides which list a
+ * file goes to on insert and on access, and which list the next victim is taken from.
+ * <p>
+ * Proxy touches a file more than once for one open, e.g. when it is opened and again when it is closed. So an access
+ * is only counted once from the time a file is pinned by an open, other touches only refresh its recency.
+ */
+abstract class ListPolicy implements EvictionPolicy {
+
+    protected final long capacity;
+    private final Map<String, Node> nodes;
+    private final Map<String, Integer> pins;
+    private long totalWeight;
+
+    /**
+     * constructor
+     * @param capacity size of cache in bytes
+     */
+    ListPolicy(long capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.nodes = new HashMap<>();
+        this.pins = new HashMap<>();
+    }
+
+    /**
+     * put a new file on a list
+     * @param node node of file
+     */
+    abstract void insert(Node node);
+
+    /**
+     * move a file on access
+     * @param node node of file
+     */
+    abstract void access(Node node);
+
+    /**
+     * choose the next victim, it is not removed yet
+     * @return linked node, null if there is none
+     */
+    abstract Node victim();
+
+    /**
+     * called when a victim has left its list
+     * @param node node of file
+     * @param from list it was on
+     */
+    void evicted(Node node, NodeList from) {
+    }
+
+    /**
+     * get all lists, in the order files are listed by {@link #snapshot()}
+     * @return lists
+     */
+    abstract List<NodeList> lists();
+
+    @Override
+    public synchronized void put(FileInfo fileInfo, long weight) {
+        Node node = nodes.get(fileInfo.getRealName());
+        if (node == null) {
+            node = new Node(fileInfo.getRealName(), fileInfo, weight);
+            node.pinned = pins.containsKey(node.key);
+            node.counted = true;
+            nodes.put(node.key, node);
+            totalWeight += weight;
+            insert(node);
+        } else {
+            node.fileInfo = fileInfo;
+            setWeight(node, weight);
+            record(node);
+        }
+    }
+
+    @Override
+    public synchronized boolean touch(String realName, FileInfo fileInfo) {
+        Node node = nodes.get(realName);
+        if (node == null) {
+            return false;
+        }
+        node.fileInfo = fileInfo;
+        record(node);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean demote(String realName) {
+        Node node = nodes.get(realName);
+        if (node == null) {
+            return false;
+        }
+        if (node.list != null) {
+            node.list.moveToFirst(node);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int pin(String realName) {
+        Integer counter = pins.get(realName);
+        counter = counter == null ? 1 : counter + 1;
+        pins.put(realName, counter);
+        Node node = nodes.get(realName);
+        if (node != null && counter == 1) {
+            // a new open, its first touch is an access
+            node.counted = false;
+        }
+        if (node != null && !node.pinned) {
+            node.pinned = true;
+            if (node.linked) {
+                node.list.unlink(node);
+            }
+        }
+        return counter;
+    }
+
+    @Override
+    public synchronized int unpin(String realName) {
+        Integer counter = pins.get(realName);
+        if (counter == null) {
+            return -1;
+        }
+        if (counter > 1) {
+            pins.put(realName, counter - 1);
+            return counter - 1;
+        }
+        pins.remove(realName);
+        Node node = nodes.get(realName);
+        if (node != null && node.pinned) {
+            node.pinned = false;
+            if (node.list != null) {
+                node.list.linkLast(node);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized void updateWeight(String realName, long weight) {
+        Node node = nodes.get(realName);
+        if (node != null) {
+            setWeight(node, weight);
+        }
+    }
+
+    @Override
+    public synchronized FileInfo remove(String realName) {
+        Node node = nodes.remove(realName);
+        if (node == null) {
+            return null;
+        }
+        if (node.list != null) {
+            node.list.remove(node);
+        }
+        totalWeight -= node.weight;
+        return node.fileInfo;
+    }
+
+    @Override
+    public synchronized FileInfo evict() {
+        Node node = victim();
+        if (node == null) {
+            return null;
+        }
+        NodeList from = node.list;
+        remove(node.key);
+        evicted(node, from);
+        return node.fileInfo;
+    }
+
+    @Override
+    public synchronized boolean contains(String realName) {
+        return nodes.containsKey(realName);
+    }
+
+    @Override
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    @Override
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    @Override
+    public synchronized List<FileInfo> snapshot() {
+        List<FileInfo> list = new ArrayList<>(nodes.size());
+        for (NodeList nodeList : lists()) {
+            for (Node node = nodeList.first(); node != null; node = nodeList.next(node)) {
+                list.add(node.fileInfo);
+            }
+        }
+        for (Node node : nodes.values()) {
+            if (node.pinned) {
+                list.add(node.fileInfo);
+            }
+        }
+        return list;
+    }
+
+    private void record(Node node) {
+        if (!node.counted) {
+            node.counted = true;
+            access(node);
+        } else if (node.list != null) {
+            node.list.moveToLast(node);
+        }
+    }
+
+    private void setWeight(Node node, long weight) {
+        totalWeight += weight - node.weight;
+        if (node.list != null) {
+            node.list.weight += weight - node.weight;
+        }
+        node.weight = weight;
+    }
+
+    /**
+     * node of a cached file
+     */
+    static class Node {
+        final String key;
+        FileInfo fileInfo;
+        long weight;
+        boolean pinned;
+        boolean linked;
+        // access of current open has been counted
+        boolean counted;
+        NodeList list;
+        Node prev;
+        Node next;
+
+        Node(String key, FileInfo fileInfo, long weight) {
+            this.key = key;
+            this.fileInfo = fileInfo;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * list of nodes, eldest first, with the total weight of its files, pinned ones included
+     */
+    static class NodeList {
+        private final Node head;
+        long weight;
+
+        NodeList() {
+            head = new Node(null, null, 0);
+            head.prev = head;
+            head.next = head;
+        }
+
+        /**
+         * add a node as the freshest one, a pinned node only joins the list and is linked when unpinned
+         * @param node node which is on no list
+         */
+        void add(Node node) {
+            node.list = this;
+            weight += node.weight;
+            if (!node.pinned) {
+                linkLast(node);
+            }
+        }
+
+        void remove(Node node) {
+            if (node.linked) {
+                unlink(node);
+            }
+            weight -= node.weight;
+            node.list = null;
+        }
+
+        void moveToLast(Node node) {
+            if (node.linked) {
+                unlink(node);
+                linkLast(node);
+            }
+        }
+
+        void moveToFirst(Node node) {
+            if (node.linked) {
+                unlink(node);
+                node.prev = head;
+                node.next = head.next;
+                head.next.prev = node;
+                head.next = node;
+                node.linked = true;
+            }
+        }
+
+        Node first() {
+            return head.next == head ? null : head.next;
+        }
+
+        Node next(Node node) {
+            return node.next == head ? null : node.next;
+        }
+
+        private void linkLast(Node node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            node.linked = true;
+        }
+
+        private void unlink(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            node.linked = false;
+        }
+    }
+}
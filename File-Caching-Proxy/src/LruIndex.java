@@ -0,0 +1,262 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Byte weighted LRU index of cached files, keyed by real name.
+ * <p>
+ * Entries are kept in a hash map and threaded on an intrusive doubly linked list, eldest first, so touch, insert,
+ * remove and eviction are all O(1). Pinned entries (files which are still opened by some client) are unlinked from the
+ * list while pinned, so the eldest entry of the list is always evictable and eviction never has to skip over them.
+ * Pins are counted per real name and may be taken before the file is put into index.
+ */
+public class LruIndex implements EvictionPolicy {
+
+    private final Map<String, Node> nodes;
+    private final Map<String, Integer> pins;
+    private final Node head; // sentinel, head.next is the eldest entry
+    private long totalWeight;
+
+    /**
+     * constructor
+     */
+    public LruIndex() {
+        nodes = new HashMap<>();
+        pins = new HashMap<>();
+        head = new Node(null, null, 0);
+        head.prev = head;
+        head.next = head;
+        totalWeight = 0;
+    }
+
+    /**
+     * insert a file into index as the freshest one, replace the old record if the name is already there
+     * @param fileInfo file info
+     * @param weight size of file in bytes
+     */
+    public synchronized void put(FileInfo fileInfo, long weight) {
+        Node node = nodes.get(fileInfo.getRealName());
+        if (node == null) {
+            node = new Node(fileInfo.getRealName(), fileInfo, 0);
+            node.pinned = pins.containsKey(node.key);
+            nodes.put(node.key, node);
+            if (!node.pinned) {
+                linkLast(node);
+            }
+        } else {
+            node.fileInfo = fileInfo;
+            moveToLast(node);
+        }
+        totalWeight += weight - node.weight;
+        node.weight = weight;
+    }
+
+    /**
+     * move a file to the freshest end of line
+     * @param realName real name
+     * @param fileInfo current file info of real name
+     * @return true if file is in index, false if not
+     */
+    public synchronized boolean touch(String realName, FileInfo fileInfo) {
+        Node node = nodes.get(realName);
+        if (node == null) {
+            return false;
+        }
+        node.fileInfo = fileInfo;
+        moveToLast(node);
+        return true;
+    }
+
+    /**
+     * move a file to the eldest end of line, e.g. a prefetched file which has not been opened yet, so that it is
+     * evicted before any file which has been used
+     * @param realName real name
+     * @return true if file is in index, false if not
+     */
+    public synchronized boolean demote(String realName) {
+        Node node = nodes.get(realName);
+        if (node == null) {
+            return false;
+        }
+        if (!node.pinned) {
+            unlink(node);
+            linkFirst(node);
+        }
+        return true;
+    }
+
+    /**
+     * pin a file, pinned files are never returned by {@link #eldest()}
+     * @param realName real name
+     * @return current pin counter
+     */
+    public synchronized int pin(String realName) {
+        Integer counter = pins.get(realName);
+        counter = counter == null ? 1 : counter + 1;
+        pins.put(realName, counter);
+        Node node = nodes.get(realName);
+        if (node != null && !node.pinned) {
+            node.pinned = true;
+            unlink(node);
+        }
+        return counter;
+    }
+
+    /**
+     * unpin a file, the file comes back as the freshest one when its last pin is released
+     * @param realName real name
+     * @return current pin counter, -1 if file is not pinned
+     */
+    public synchronized int unpin(String realName) {
+        Integer counter = pins.get(realName);
+        if (counter == null) {
+            return -1;
+        }
+        if (counter > 1) {
+            pins.put(realName, counter - 1);
+            return counter - 1;
+        }
+        pins.remove(realName);
+        Node node = nodes.get(realName);
+        if (node != null && node.pinned) {
+            node.pinned = false;
+            linkLast(node);
+        }
+        return 0;
+    }
+
+    /**
+     * update size of a file, used when a new version is cached
+     * @param realName real name
+     * @param weight new size in bytes
+     */
+    public synchronized void updateWeight(String realName, long weight) {
+        Node node = nodes.get(realName);
+        if (node != null) {
+            totalWeight += weight - node.weight;
+            node.weight = weight;
+        }
+    }
+
+    /**
+     * remove file from index
+     * @param realName real name
+     * @return removed file info, null if not in index
+     */
+    public synchronized FileInfo remove(String realName) {
+        Node node = nodes.remove(realName);
+        if (node == null) {
+            return null;
+        }
+        if (!node.pinned) {
+            unlink(node);
+        }
+        totalWeight -= node.weight;
+        return node.fileInfo;
+    }
+
+    /**
+     * get the least recently used file which is not pinned
+     * @return file info, null if every file is pinned or index is empty
+     */
+    public synchronized FileInfo eldest() {
+        return head.next == head ? null : head.next.fileInfo;
+    }
+
+    /**
+     * remove the least recently used file which is not pinned
+     * @return file info, null if every file is pinned or index is empty
+     */
+    public synchronized FileInfo evict() {
+        return head.next == head ? null : remove(head.next.key);
+    }
+
+    /**
+     * check whether file is in index
+     * @param realName real name
+     * @return true if in index
+     */
+    public synchronized boolean contains(String realName) {
+        return nodes.containsKey(realName);
+    }
+
+    /**
+     * get number of files in index
+     * @return number of files
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * get total size of files in index
+     * @return total size in bytes
+     */
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * list files in eviction order, pinned files are listed at the end
+     * @return list of file info
+     */
+    public synchronized List<FileInfo> snapshot() {
+        List<FileInfo> list = new ArrayList<>(nodes.size());
+        for (Node node = head.next; node != head; node = node.next) {
+            list.add(node.fileInfo);
+        }
+        for (Node node : nodes.values()) {
+            if (node.pinned) {
+                list.add(node.fileInfo);
+            }
+        }
+        return list;
+    }
+
+    private void moveToLast(Node node) {
+        if (!node.pinned) {
+            unlink(node);
+            linkLast(node);
+        }
+    }
+
+    private void linkFirst(Node node) {
+        node.prev = head;
+        node.next = head.next;
+        head.next.prev = node;
+        head.next = node;
+    }
+
+    private void linkLast(Node node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    /**
+     * node of intrusive linked list
+     */
+    private static class Node {
+        private final String key;
+        private FileInfo fileInfo;
+        private long weight;
+        private boolean pinned;
+        private Node prev;
+        private Node next;
+
+        Node(String key, FileInfo fileInfo, long weight) {
+            this.key = key;
+            this.fileInfo = fileInfo;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only session file backed by buffers which are shared by all fds of a cached version, either a mapping of
+ * {@link MappingCache} or a slice of {@link MemoryTier}. It only keeps a file pointer, reads are copies from the
+ * shared buffers.
+ */
+public class MappedSessionFile implements SessionFile {
+    private final Owner owner;
+    private final String randomName;
+    private final ByteBuffer[] segments;
+    private final long length;
+    private long position;
+    private boolean closed;
+
+    /**
+     * constructor
+     * @param owner holder of shared buffers
+     * @param randomName random name of cached version
+     * @param segments buffers of file, every one but the last holds {@link MappingCache#SEGMENT_SIZE} bytes
+     * @param length length of file
+     */
+    MappedSessionFile(Owner owner, String randomName, ByteBuffer[] segments, long length) {
+        this.owner = owner;
+        this.randomName = randomName;
+        this.segments = segments;
+        this.length = length;
+        this.position = 0;
+    }
+
+    @Override
+    public int read(byte[] buf) throws IOException {
+        if (closed) {
+            throw new IOException("File is closed");
+        }
+        if (position >= length) {
+            return -1;
+        }
+        int n = (int) Math.min(buf.length, length - position);
+        int done = 0;
+        while (done < n) {
+            long cur = position + done;
+            // duplicate so that fds do not share position of buffer
+            ByteBuffer segment = segments[(int) (cur / MappingCache.SEGMENT_SIZE)].duplicate();
+            segment.position((int) (cur % MappingCache.SEGMENT_SIZE));
+            int len = Math.min(n - done, segment.remaining());
+            segment.get(buf, done, len);
+            done += len;
+        }
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void write(byte[] buf) throws IOException {
+        throw new IOException("File is opened for read only");
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0) {
+            throw new IOException("Negative seek offset");
+        }
+        position = pos;
+    }
+
+    @Override
+    public long getFilePointer() {
+        return position;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            owner.release(randomName);
+        }
+    }
+
+    /**
+     * holder of shared buffers, which counts fds reading them
+     */
+    public interface Owner {
+        /**
+         * release one reference of buffers, called when a session file is closed
+         * @param randomName random name of cached version
+         */
+        void release(String randomName);
+    }
+}
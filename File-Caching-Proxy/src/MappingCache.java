@@ -0,0 +1,95 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only memory mappings of cached versions, shared by all fds which read the same version.
+ * <p>
+ * A cached version never changes once it is in cache folder (a new version gets a new random name), so it is mapped
+ * once when the first fd opens it and every later fd only copies from the mapping. Mappings are reference counted
+ * like {@code fileUserCounter} of proxy and dropped when the last fd is closed. A mapping stays valid even if the
+ * file is deleted meanwhile.
+ */
+public class MappingCache implements MappedSessionFile.Owner {
+
+    // a MappedByteBuffer is indexed by int, so large files are mapped in several segments
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    private final Map<String, Mapping> mappings;
+
+    /**
+     * constructor
+     */
+    public MappingCache() {
+        this.mappings = new HashMap<>();
+    }
+
+    /**
+     * open a cached version for read through its shared mapping
+     * @param randomName random name of cached version
+     * @param file file of cached version
+     * @return session file with its own file pointer
+     * @throws IOException if file can not be mapped
+     */
+    public synchronized MappedSessionFile open(String randomName, File file) throws IOException {
+        Mapping mapping = mappings.get(randomName);
+        if (mapping == null) {
+            mapping = new Mapping(file);
+            mappings.put(randomName, mapping);
+        }
+        mapping.refs++;
+        return new MappedSessionFile(this, randomName, mapping.segments, mapping.length);
+    }
+
+    @Override
+    public synchronized void release(String randomName) {
+        Mapping mapping = mappings.get(randomName);
+        if (mapping != null && --mapping.refs <= 0) {
+            mappings.remove(randomName);
+        }
+    }
+
+    /**
+     * get number of versions which are mapped now
+     * @return number of mappings
+     */
+    public synchronized int size() {
+        return mappings.size();
+    }
+
+    /**
+     * get number of fds which share the mapping of a version
+     * @param randomName random name of cached version
+     * @return number of references, 0 if not mapped
+     */
+    public synchronized int getRefs(String randomName) {
+        Mapping mapping = mappings.get(randomName);
+        return mapping == null ? 0 : mapping.refs;
+    }
+
+    /**
+     * mapping of one cached version
+     */
+    private static class Mapping {
+        private final ByteBuffer[] segments;
+        private final long length;
+        private int refs;
+
+        Mapping(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                length = channel.size();
+                int count = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+                segments = new ByteBuffer[count];
+                for (int i = 0; i < count; i++) {
+                    long start = (long) i * SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(SEGMENT_SIZE, length - start));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory tier of proxy cache for small files, in front of the cache folder.
+ * <p>
+ * Content is kept off heap in direct {@link ByteBuffer} slabs. Every slab is cut into slices of one size class (a power
+ * of two), and a file takes the smallest slice it fits in. The tier has its own byte budget for slabs. When it is
+ * full, the least recently used file which no fd is reading is handed to a {@link Spiller}, which writes it to the
+ * disk tier, and its slice is reused. A slab which becomes empty may be given back and cut into another size class.
+ * <p>
+ * Like a cached version in cache folder, content never changes once it is put. A file which is removed or spilled
+ * while some fds still read it is retired: new opens no longer see it, and its slice is freed when the last fd closes.
+ */
+public class MemoryTier implements MappedSessionFile.Owner {
+
+    public static final int MIN_SLICE_SIZE = 1024;
+    public static final int MIN_SLAB_SIZE = 1024 * 1024;
+
+    private final long budget;
+    private final int maxFileSize;
+    private final int slabSize;
+    private final Spiller spiller;
+    private final List<SizeClass> sizeClasses;
+    private final List<Slab> slabs;
+    // least recently opened first, only an open moves a file to the end
+    private final LinkedHashMap<String, Entry> entries;
+    private long slabBytes;
+    private long usedBytes;
+
+    /**
+     * constructor
+     * @param budget max bytes of slabs
+     * @param maxFileSize max size of file kept in memory
+     * @param spiller writer of files evicted from memory
+     */
+    public MemoryTier(long budget, int maxFileSize, Spiller spiller) {
+        this.budget = budget;
+        this.spiller = spiller;
+        this.sizeClasses = new ArrayList<>();
+        int sliceSize = MIN_SLICE_SIZE;
+        sizeClasses.add(new SizeClass(sliceSize));
+        while (sliceSize < maxFileSize) {
+            sliceSize <<= 1;
+            sizeClasses.add(new SizeClass(sliceSize));
+        }
+        this.maxFileSize = maxFileSize;
+        this.slabSize = Math.max(MIN_SLAB_SIZE, sliceSize);
+        this.slabs = new ArrayList<>();
+        this.entries = new LinkedHashMap<>();
+    }
+
+    /**
+     * keep content of a cached version in memory
+     * @param randomName random name of cached version
+     * @param content content of file
+     * @return true if it is kept, false if it is too large or no slice can be freed, then it belongs to disk tier
+     */
+    public synchronized boolean put(String randomName, byte[] content) {
+        if (content.length > maxFileSize || entries.containsKey(randomName)) {
+            return false;
+        }
+        Slice slice = allocate(content.length);
+        if (slice == null) {
+            return false;
+        }
+        ByteBuffer buffer = slice.buffer.duplicate();
+        buffer.put(content);
+        entries.put(randomName, new Entry(slice, content.length));
+        usedBytes += content.length;
+        return true;
+    }
+
+    /**
+     * open a file in memory for read
+     * @param randomName random name of cached version
+     * @return session file reading from memory, null if file is not in memory
+     */
+    public synchronized MappedSessionFile open(String randomName) {
+        Entry entry = entries.get(randomName);
+        if (entry == null || entry.retired) {
+            return null;
+        }
+        entries.remove(randomName);
+        entries.put(randomName, entry);
+        entry.refs++;
+        return new MappedSessionFile(this, randomName, new ByteBuffer[]{entry.content()}, entry.length);
+    }
+
+    @Override
+    public synchronized void release(String randomName) {
+        Entry entry = entries.get(randomName);
+        if (entry != null && --entry.refs <= 0 && entry.retired) {
+            free(randomName, entry);
+        }
+    }
+
+    /**
+     * check whether a file is in memory
+     * @param randomName random name of cached version
+     * @return true if in memory
+     */
+    public synchronized boolean contains(String randomName) {
+        Entry entry = entries.get(randomName);
+        return entry != null && !entry.retired;
+    }
+
+    /**
+     * get length of a file in memory
+     * @param randomName random name of cached version
+     * @return length, -1 if not in memory
+     */
+    public synchronized long length(String randomName) {
+        Entry entry = entries.get(randomName);
+        return entry == null || entry.retired ? -1 : entry.length;
+    }
+
+    /**
+     * write a file to disk tier now and drop it from memory, e.g. because it is about to be opened for write
+     * @param randomName random name of cached version
+     * @return true if file was in memory and has been spilled
+     * @throws IOException if spiller fails, file is then still in memory
+     */
+    public synchronized boolean spill(String randomName) throws IOException {
+        Entry entry = entries.get(randomName);
+        if (entry == null || entry.retired) {
+            return false;
+        }
+        spiller.spill(randomName, entry.content());
+        retire(randomName, entry);
+        return true;
+    }
+
+    /**
+     * drop a file from memory without spilling it
+     * @param randomName random name of cached version
+     * @return true if file was in memory
+     */
+    public synchronized boolean remove(String randomName) {
+        Entry entry = entries.get(randomName);
+        if (entry == null || entry.retired) {
+            return false;
+        }
+        retire(randomName, entry);
+        return true;
+    }
+
+    /**
+     * get number of files in memory
+     * @return number of files
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Entry entry : entries.values()) {
+            if (!entry.retired) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * get bytes of content in memory
+     * @return used bytes
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * get bytes of slabs allocated, which is never more than budget
+     * @return slab bytes
+     */
+    public synchronized long getSlabBytes() {
+        return slabBytes;
+    }
+
+    private void retire(String randomName, Entry entry) {
+        entry.retired = true;
+        usedBytes -= entry.length;
+        if (entry.refs <= 0) {
+            free(randomName, entry);
+        }
+    }
+
+    private void free(String randomName, Entry entry) {
+        entries.remove(randomName);
+        entry.slice.slab.used--;
+        entry.slice.slab.sizeClass.free.push(entry.slice);
+    }
+
+    private Slice allocate(int size) {
+        SizeClass sizeClass = null;
+        for (SizeClass candidate : sizeClasses) {
+            if (candidate.sliceSize >= size) {
+                sizeClass = candidate;
+                break;
+            }
+        }
+        while (true) {
+            if (!sizeClass.free.isEmpty()) {
+                Slice slice = sizeClass.free.pop();
+                slice.slab.used++;
+                return slice;
+            }
+            if (slabBytes + slabSize <= budget) {
+                newSlab(sizeClass);
+            } else if (!releaseEmptySlab() && !evictEldest()) {
+                return null;
+            }
+        }
+    }
+
+    private void newSlab(SizeClass sizeClass) {
+        Slab slab = new Slab(ByteBuffer.allocateDirect(slabSize), sizeClass);
+        for (int offset = 0; offset + sizeClass.sliceSize <= slabSize; offset += sizeClass.sliceSize) {
+            ByteBuffer buffer = slab.memory.duplicate();
+            buffer.position(offset);
+            buffer.limit(offset + sizeClass.sliceSize);
+            sizeClass.free.push(new Slice(slab, buffer.slice()));
+        }
+        slabs.add(slab);
+        slabBytes += slabSize;
+    }
+
+    private boolean releaseEmptySlab() {
+        for (Iterator<Slab> it = slabs.iterator(); it.hasNext(); ) {
+            Slab slab = it.next();
+            if (slab.used == 0) {
+                it.remove();
+                slab.sizeClass.free.removeIf(slice -> slice.slab == slab);
+                slabBytes -= slabSize;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean evictEldest() {
+        for (Map.Entry<String, Entry> eldest : entries.entrySet()) {
+            Entry entry = eldest.getValue();
+            if (entry.refs > 0 || entry.retired) {
+                continue;
+            }
+            try {
+                spiller.spill(eldest.getKey(), entry.content());
+            } catch (IOException e) {
+                System.err.println("Error in spilling " + eldest.getKey() + " to disk");
+                e.printStackTrace();
+                return false;
+            }
+            usedBytes -= entry.length;
+            entry.slice.slab.used--;
+            entry.slice.slab.sizeClass.free.push(entry.slice);
+            entries.remove(eldest.getKey());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * writer of files which leave memory tier
+     */
+    public interface Spiller {
+        /**
+         * write a file to disk tier
+         * @param randomName random name of cached version
+         * @param content content of file, from position 0 to limit
+         * @throws IOException
+         */
+        void spill(String randomName, ByteBuffer content) throws IOException;
+    }
+
+    private static class SizeClass {
+        private final int sliceSize;
+        private final ArrayDeque<Slice> free;
+
+        SizeClass(int sliceSize) {
+            this.sliceSize = sliceSize;
+            this.free = new ArrayDeque<>();
+        }
+    }
+
+    private static class Slab {
+        private final ByteBuffer memory;
+        private final SizeClass sizeClass;
+        private int used;
+
+        Slab(ByteBuffer memory, SizeClass sizeClass) {
+            this.memory = memory;
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    private static class Slice {
+        private final Slab slab;
+        private final ByteBuffer buffer;
+
+        Slice(Slab slab, ByteBuffer buffer) {
+            this.slab = slab;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Entry {
+        private final Slice slice;
+        private final int length;
+        private int refs;
+        private boolean retired;
+
+        Entry(Slice slice, int length) {
+            this.slice = slice;
+            this.length = length;
+        }
+
+        ByteBuffer content() {
+            ByteBuffer content = slice.buffer.duplicate();
+            content.position(0);
+            content.limit(length);
+            return content.slice();
+        }
+    }
+}
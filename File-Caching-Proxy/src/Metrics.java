@@ -0,0 +1,74 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters of proxy or server, e.g. bytes sent before and after compression. Counters are created on first use
+ * and can be updated by many threads.
+ */
+public class Metrics {
+    private final Map<String, LongAdder> counters;
+
+    /**
+     * constructor
+     */
+    public Metrics() {
+        this.counters = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * add to a counter
+     * @param name name of counter
+     * @param delta value to add
+     */
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * add one to a counter
+     * @param name name of counter
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * get value of a counter
+     * @param name name of counter
+     * @return value, 0 if counter has never been updated
+     */
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * get ratio of two counters, e.g. raw bytes to bytes on wire
+     * @param numerator name of numerator counter
+     * @param denominator name of denominator counter
+     * @return ratio, 1 if denominator is 0
+     */
+    public double ratio(String numerator, String denominator) {
+        long den = get(denominator);
+        return den == 0 ? 1.0 : (double) get(numerator) / den;
+    }
+
+    /**
+     * get values of all counters
+     * @return counters sorted by name
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            snapshot.put(counter.getKey(), counter.getValue().sum());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
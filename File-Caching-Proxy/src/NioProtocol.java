@@ -0,0 +1,171 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Framed binary protocol of NIO transport, which carries the operations of {@link Rpc} without RMI.
+ * <p>
+ * Every request is a frame of an int length, an op byte, then the arguments of op. Numbers and names are written by
+ * {@link DataOutputStream}, file content is a length prefixed byte array at the end of frame, and the few complex
+ * arguments (check and validate requests and results, signature, delta) are Java serialized. A response is a frame of
+ * an int length, a status byte, then the return value, or an error message if status is {@link #ERROR}. A raw chunk in
+ * a response is sent from the file by {@link java.nio.channels.FileChannel#transferTo}, so it never enters the heap of
+ * server.
+ */
+public class NioProtocol {
+
+    public static final byte UPLOAD_CHUNK = 1;
+    public static final byte BEGIN_UPLOAD = 2;
+    public static final byte UPLOAD_CHUNK_AT = 3;
+    public static final byte UPLOAD_FRAME_AT = 4;
+    public static final byte COMMIT_UPLOAD = 5;
+    public static final byte ABORT_UPLOAD = 6;
+    public static final byte UNLINK = 7;
+    public static final byte DOWNLOAD_CHUNK = 8;
+    public static final byte DOWNLOAD_FRAME = 9;
+    public static final byte CHECK_SERVER = 10;
+    public static final byte DOWNLOAD_DELTA = 11;
+    public static final byte GET_SIGNATURE = 12;
+    public static final byte UPLOAD_DELTA = 13;
+    public static final byte SKIP_CHUNKS = 14;
+    public static final byte VALIDATE = 15;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    // larger frames are taken as a broken stream
+    public static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    private NioProtocol() {
+    }
+
+    /**
+     * read one frame
+     * @param channel blocking socket channel
+     * @return content of frame without its length
+     * @throws IOException if stream ends or frame is broken
+     */
+    public static byte[] readFrame(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(channel, header);
+        int length = header.getInt(0);
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Broken frame of length " + length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        readFully(channel, frame);
+        return frame.array();
+    }
+
+    /**
+     * write one frame, made of fields and an optional trailing body which is not copied
+     * @param channel blocking socket channel
+     * @param fields fields of frame
+     * @param body trailing content, null if none
+     * @throws IOException
+     */
+    public static void writeFrame(SocketChannel channel, ByteArrayOutputStream fields, ByteBuffer body)
+            throws IOException {
+        int bodyLength = body == null ? 0 : body.remaining();
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(0, fields.size() + bodyLength);
+        ByteBuffer[] buffers = body == null
+                ? new ByteBuffer[]{header, ByteBuffer.wrap(fields.toByteArray())}
+                : new ByteBuffer[]{header, ByteBuffer.wrap(fields.toByteArray()), body};
+        writeFully(channel, buffers);
+    }
+
+    /**
+     * write buffers until all of them are sent
+     * @param channel blocking socket channel
+     * @param buffers buffers
+     * @throws IOException
+     */
+    public static void writeFully(SocketChannel channel, ByteBuffer... buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * read until buffer is full
+     * @param channel blocking socket channel
+     * @param buffer buffer to fill
+     * @throws IOException if stream ends first
+     */
+    public static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * write a byte array with its length, null is written as length -1
+     * @param out output
+     * @param bytes byte array
+     * @throws IOException
+     */
+    public static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * read a byte array written by {@link #writeBytes(DataOutputStream, byte[])}
+     * @param in input
+     * @return byte array, may be null
+     * @throws IOException
+     */
+    public static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * write a Java serialized object with its length
+     * @param out output
+     * @param object object, may be null
+     * @throws IOException
+     */
+    public static void writeObject(DataOutputStream out, Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+            objectOut.writeObject(object);
+        }
+        writeBytes(out, bytes.toByteArray());
+    }
+
+    /**
+     * read an object written by {@link #writeObject(DataOutputStream, Object)}
+     * @param in input
+     * @return object, may be null
+     * @throws IOException
+     */
+    public static Object readObject(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return objectIn.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Client side of NIO transport, which implements {@link Rpc} by {@link NioProtocol} instead of RMI.
+ * <p>
+ * A request takes an idle connection, or opens a new one, and gives it back after the response is read, so parallel
+ * chunk transfers use parallel connections. IO errors are thrown as {@link RemoteException}, like RMI does, and the
+ * connection is closed.
+ */
+public class NioRpc implements Rpc {
+    private final InetSocketAddress address;
+    private final ConcurrentLinkedQueue<SocketChannel> idle;
+
+    /**
+     * constructor, connections are opened on demand
+     * @param host host of server
+     * @param port NIO port of server
+     */
+    public NioRpc(String host, int port) {
+        this.address = new InetSocketAddress(host, port);
+        this.idle = new ConcurrentLinkedQueue<>();
+    }
+
+    @Override
+    public int uploadChunk(String realName, byte[] fileContent, int chunk, int totalChunk) throws RemoteException {
+        Request request = new Request(NioProtocol.UPLOAD_CHUNK);
+        try {
+            request.out.writeUTF(realName);
+            request.out.writeInt(chunk);
+            request.out.writeInt(totalChunk);
+            return request.call(fileContent).readInt();
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO uploadChunk", e);
+        }
+    }
+
+    @Override
+    public long beginUpload(String realName) throws RemoteException {
+        Request request = new Request(NioProtocol.BEGIN_UPLOAD);
+        try {
+            request.out.writeUTF(realName);
+            return request.call(null).readLong();
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO beginUpload", e);
+        }
+    }
+
+    @Override
+    public int uploadChunkAt(long uploadId, long offset, byte[] fileContent) throws RemoteException {
+        Request request = new Request(NioProtocol.UPLOAD_CHUNK_AT);
+        try {
+            request.out.writeLong(uploadId);
+            request.out.writeLong(offset);
+            return request.call(fileContent).readInt();
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO uploadChunkAt", e);
+        }
+    }
+
+    @Override
+    public int uploadChunkAt(long uploadId, long offset, byte[] frame, int codec) throws RemoteException {
+        Request request = new Request(NioProtocol.UPLOAD_FRAME_AT);
+        try {
+            request.out.writeLong(uploadId);
+            request.out.writeLong(offset);
+            request.out.writeInt(codec);
+            return request.call(frame).readInt();
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO uploadChunkAt", e);
+        }
+    }
+
+    @Override
+    public int commitUpload(long uploadId, long fileSize) throws RemoteException {
+        Request request = new Request(NioProtocol.COMMIT_UPLOAD);
+        try {
+            request.out.writeLong(uploadId);
+            request.out.writeLong(fileSize);
+            return request.call(null).readInt();
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO commitUpload", e);
+        }
+    }
+
+    @Override
+    public void abortUpload(long uploadId) throws RemoteException {
+        Request request = new Request(NioProtocol.ABORT_UPLOAD);
+        try {
+            request.out.writeLong(uploadId);
+            request.call(null);
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO abortUpload", e);
+        }
+    }
+
+    @Override
+    public int unlink(String realName) throws RemoteException {
+        Request request = new Request(NioProtocol.UNLINK);
+        try {
+            request.out.writeUTF(realName);
+            return request.call(null).readInt();
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO unlink", e);
+        }
+    }
+
+    @Override
+    public byte[] downloadChunk(String randomName, int offset, int size) throws RemoteException {
+        Request request = new Request(NioProtocol.DOWNLOAD_CHUNK);
+        try {
+            request.out.writeUTF(randomName);
+            request.out.writeInt(offset);
+            request.out.writeInt(size);
+            return NioProtocol.readBytes(request.call(null));
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO downloadChunk", e);
+        }
+    }
+
+    @Override
+    public byte[] downloadChunk(String randomName, int offset, int size, int codec) throws RemoteException {
+        Request request = new Request(NioProtocol.DOWNLOAD_FRAME);
+        try {
+            request.out.writeUTF(randomName);
+            request.out.writeInt(offset);
+            request.out.writeInt(size);
+            request.out.writeInt(codec);
+            return NioProtocol.readBytes(request.call(null));
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO downloadChunk", e);
+        }
+    }
+
+    @Override
+    public CheckResult checkServer(String realName, FileHandling.OpenOption o, int version) throws RemoteException {
+        return checkServer(new CheckRequest(realName, o, version));
+    }
+
+    @Override
+    public CheckResult checkServer(CheckRequest checkRequest) throws RemoteException {
+        Request request = new Request(NioProtocol.CHECK_SERVER);
+        try {
+            NioProtocol.writeObject(request.out, checkRequest);
+            return (CheckResult) NioProtocol.readObject(request.call(null));
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO checkServer", e);
+        }
+    }
+
+    @Override
+    public Delta downloadDelta(String randomName, BlockSignature signature) throws RemoteException {
+        Request request = new Request(NioProtocol.DOWNLOAD_DELTA);
+        try {
+            request.out.writeUTF(randomName);
+            NioProtocol.writeObject(request.out, signature);
+            return (Delta) NioProtocol.readObject(request.call(null));
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO downloadDelta", e);
+        }
+    }
+
+    @Override
+    public BlockSignature getSignature(String realName) throws RemoteException {
+        Request request = new Request(NioProtocol.GET_SIGNATURE);
+        try {
+            request.out.writeUTF(realName);
+            return (BlockSignature) NioProtocol.readObject(request.call(null));
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO getSignature", e);
+        }
+    }
+
+    @Override
+    public int uploadDelta(long uploadId, String baseName, Delta delta) throws RemoteException {
+        Request request = new Request(NioProtocol.UPLOAD_DELTA);
+        try {
+            request.out.writeLong(uploadId);
+            request.out.writeUTF(baseName);
+            NioProtocol.writeObject(request.out, delta);
+            return request.call(null).readInt();
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO uploadDelta", e);
+        }
+    }
+
+    @Override
+    public void skipChunks(String randomName, long bytes) throws RemoteException {
+        Request request = new Request(NioProtocol.SKIP_CHUNKS);
+        try {
+            request.out.writeUTF(randomName);
+            request.out.writeLong(bytes);
+            request.call(null);
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO skipChunks", e);
+        }
+    }
+
+    @Override
+    public ValidateResult validate(ValidateRequest validateRequest) throws RemoteException {
+        Request request = new Request(NioProtocol.VALIDATE);
+        try {
+            NioProtocol.writeObject(request.out, validateRequest);
+            return (ValidateResult) NioProtocol.readObject(request.call(null));
+        } catch (IOException e) {
+            throw new RemoteException("Error in NIO validate", e);
+        }
+    }
+
+    /**
+     * close idle connections
+     */
+    public void close() {
+        SocketChannel channel;
+        while ((channel = idle.poll()) != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        SocketChannel channel = idle.poll();
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        return channel;
+    }
+
+    /**
+     * one request, its fields are written to out before it is called
+     */
+    private class Request {
+        private final ByteArrayOutputStream fields;
+        private final DataOutputStream out;
+
+        Request(byte op) {
+            this.fields = new ByteArrayOutputStream();
+            this.out = new DataOutputStream(fields);
+            try {
+                out.writeByte(op);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * send request and wait for response
+         * @param body file content sent after fields without copying it, null if none
+         * @return return value of response
+         * @throws IOException if connection fails or server reports an error
+         */
+        DataInputStream call(byte[] body) throws IOException {
+            ByteBuffer bodyBuffer = null;
+            if (body != null) {
+                out.writeInt(body.length);
+                bodyBuffer = ByteBuffer.wrap(body);
+            }
+            out.flush();
+            SocketChannel channel = connect();
+            byte[] response;
+            try {
+                NioProtocol.writeFrame(channel, fields, bodyBuffer);
+                response = NioProtocol.readFrame(channel);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            idle.offer(channel);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+            if (in.readByte() == NioProtocol.ERROR) {
+                throw new IOException("Server error: " + in.readUTF());
+            }
+            return in;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Server side of NIO transport. It accepts connections of {@link NioRpc} and serves the requests of every connection
+ * by one thread, calling the same operations of {@link Server} as RMI does. Raw chunk downloads are sent straight
+ * from file to socket.
+ */
+public class NioServer implements Runnable {
+    private final Server server;
+    private final ServerSocketChannel listener;
+    private final ExecutorService workers;
+
+    /**
+     * constructor, it binds the port but does not accept connections until run
+     * @param server server which executes operations
+     * @param port port to listen on
+     * @throws IOException
+     */
+    public NioServer(Server server, int port) throws IOException {
+        this.server = server;
+        this.listener = ServerSocketChannel.open();
+        this.listener.bind(new InetSocketAddress(port));
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "nio-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * start accepting connections in a daemon thread
+     */
+    public void start() {
+        Thread thread = new Thread(this, "nio-accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (listener.isOpen()) {
+            try {
+                final SocketChannel channel = listener.accept();
+                channel.socket().setTcpNoDelay(true);
+                workers.execute(() -> serve(channel));
+            } catch (IOException e) {
+                if (listener.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * stop accepting connections
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        listener.close();
+        workers.shutdownNow();
+    }
+
+    /**
+     * serve requests of a connection until it is closed
+     * @param channel socket channel
+     */
+    private void serve(SocketChannel channel) {
+        try {
+            while (true) {
+                byte[] frame;
+                try {
+                    frame = NioProtocol.readFrame(channel);
+                } catch (EOFException e) {
+                    return;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+                byte op = in.readByte();
+                if (op == NioProtocol.DOWNLOAD_CHUNK) {
+                    // a failure in the middle of a chunk breaks the stream, so it closes the connection
+                    sendChunk(channel, in.readUTF(), in.readInt(), in.readInt());
+                    continue;
+                }
+                ByteArrayOutputStream fields = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(fields);
+                out.writeByte(NioProtocol.OK);
+                try {
+                    execute(op, in, out);
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    fields.reset();
+                    out.writeByte(NioProtocol.ERROR);
+                    out.writeUTF(String.valueOf(e));
+                }
+                out.flush();
+                NioProtocol.writeFrame(channel, fields, null);
+            }
+        } catch (IOException e) {
+            System.err.println("Error in NIO connection: " + e);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error in closing NIO connection: " + e);
+            }
+        }
+    }
+
+    /**
+     * execute one operation
+     * @param op op code
+     * @param in arguments
+     * @param out return value
+     * @throws IOException
+     */
+    private void execute(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (op) {
+            case NioProtocol.UPLOAD_CHUNK: {
+                String realName = in.readUTF();
+                int chunk = in.readInt();
+                int totalChunk = in.readInt();
+                out.writeInt(server.uploadChunk(realName, NioProtocol.readBytes(in), chunk, totalChunk));
+                break;
+            }
+            case NioProtocol.BEGIN_UPLOAD:
+                out.writeLong(server.beginUpload(in.readUTF()));
+                break;
+            case NioProtocol.UPLOAD_CHUNK_AT: {
+                long uploadId = in.readLong();
+                long offset = in.readLong();
+                out.writeInt(server.uploadChunkAt(uploadId, offset, NioProtocol.readBytes(in)));
+                break;
+            }
+            case NioProtocol.UPLOAD_FRAME_AT: {
+                long uploadId = in.readLong();
+                long offset = in.readLong();
+                int codec = in.readInt();
+                out.writeInt(server.uploadChunkAt(uploadId, offset, NioProtocol.readBytes(in), codec));
+                break;
+            }
+            case NioProtocol.COMMIT_UPLOAD:
+                out.writeInt(server.commitUpload(in.readLong(), in.readLong()));
+                break;
+            case NioProtocol.ABORT_UPLOAD:
+                server.abortUpload(in.readLong());
+                break;
+            case NioProtocol.UNLINK:
+                out.writeInt(server.unlink(in.readUTF()));
+                break;
+            case NioProtocol.DOWNLOAD_FRAME: {
+                String randomName = in.readUTF();
+                int offset = in.readInt();
+                int size = in.readInt();
+                NioProtocol.writeBytes(out, server.downloadChunk(randomName, offset, size, in.readInt()));
+                break;
+            }
+            case NioProtocol.CHECK_SERVER:
+                NioProtocol.writeObject(out, server.checkServer((CheckRequest) NioProtocol.readObject(in)));
+                break;
+            case NioProtocol.DOWNLOAD_DELTA: {
+                String randomName = in.readUTF();
+                BlockSignature signature = (BlockSignature) NioProtocol.readObject(in);
+                NioProtocol.writeObject(out, server.downloadDelta(randomName, signature));
+                break;
+            }
+            case NioProtocol.GET_SIGNATURE:
+                NioProtocol.writeObject(out, server.getSignature(in.readUTF()));
+                break;
+            case NioProtocol.UPLOAD_DELTA: {
+                long uploadId = in.readLong();
+                String baseName = in.readUTF();
+                out.writeInt(server.uploadDelta(uploadId, baseName, (Delta) NioProtocol.readObject(in)));
+                break;
+            }
+            case NioProtocol.SKIP_CHUNKS: {
+                String randomName = in.readUTF();
+                server.skipChunks(randomName, in.readLong());
+                break;
+            }
+            case NioProtocol.VALIDATE:
+                NioProtocol.writeObject(out, server.validate((ValidateRequest) NioProtocol.readObject(in)));
+                break;
+            default:
+                throw new IOException("Unknown op " + op);
+        }
+    }
+
+    /**
+     * send a raw chunk from file to socket. Like {@link Server#downloadChunk(String, int, int)}, a chunk beyond the
+     * end of file is padded with zeros, and a missing file is sent as null.
+     * @param channel socket channel
+     * @param randomName random name of server copy
+     * @param offset offset of chunk
+     * @param size size of chunk
+     * @throws IOException
+     */
+    private void sendChunk(SocketChannel channel, String randomName, int offset, int size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(9);
+        FileHandleCache.Handle handle;
+        try {
+            handle = server.openCopy(randomName);
+        } catch (NoSuchFileException e) {
+            System.err.println("Error in download chunk, file does not exist");
+            header.putInt(5).put(NioProtocol.OK).putInt(-1).flip();
+            NioProtocol.writeFully(channel, header);
+            return;
+        }
+        try {
+            FileChannel source = handle.channel();
+            long fileSize = source.size();
+            int available = (int) Math.max(0, Math.min(size, fileSize - offset));
+            header.putInt(5 + size).put(NioProtocol.OK).putInt(size).flip();
+            NioProtocol.writeFully(channel, header);
+            long done = 0;
+            while (done < available) {
+                long sent = source.transferTo(offset + done, available - done, channel);
+                if (sent <= 0) {
+                    throw new IOException("Unexpected end of " + randomName);
+                }
+                done += sent;
+            }
+            if (available < size) {
+                NioProtocol.writeFully(channel, ByteBuffer.allocate(size - available));
+            }
+            server.chunkSent(randomName, offset, size, fileSize);
+        } finally {
+            handle.close();
+        }
+    }
+}
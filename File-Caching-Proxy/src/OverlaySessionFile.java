@@ -0,0 +1,214 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Copy-on-write session file for write opens of a cached file.
+ * <p>
+ * Instead of copying the whole cached version, written bytes are appended to a log file, and an extent map records
+ * which range of the file each piece of log holds. Reads merge the extents over the shared read-only base version,
+ * so opening a file for write costs nothing no matter how large it is. The complete file is only built by
+ * {@link #materialize(FileChannel)} when the session is closed.
+ */
+public class OverlaySessionFile implements SessionFile {
+    private final FileChannel base;
+    private final long baseLength;
+    private final FileChannel log;
+    private final TreeMap<Long, Extent> extents;
+    private long logLength;
+    private long length;
+    private long position;
+
+    /**
+     * constructor
+     * @param baseFile cached version which the session starts from, it must not be deleted before session is closed
+     * @param logFile file to keep written bytes in, it is created if not exist
+     * @throws IOException
+     */
+    public OverlaySessionFile(File baseFile, File logFile) throws IOException {
+        this.base = FileChannel.open(baseFile.toPath(), StandardOpenOption.READ);
+        this.baseLength = base.size();
+        this.log = FileChannel.open(logFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.extents = new TreeMap<>();
+        this.logLength = 0;
+        this.length = baseLength;
+        this.position = 0;
+    }
+
+    @Override
+    public int read(byte[] buf) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        int n = (int) Math.min(buf.length, length - position);
+        int done = 0;
+        while (done < n) {
+            long cur = position + done;
+            Map.Entry<Long, Extent> entry = extents.floorEntry(cur);
+            int len;
+            if (entry != null && entry.getValue().end() > cur) {
+                // written by this session
+                Extent extent = entry.getValue();
+                len = (int) Math.min(n - done, extent.end() - cur);
+                readFully(log, buf, done, len, extent.logOffset + (cur - extent.start));
+            } else {
+                // not written, take it from base version, holes beyond base are zeros
+                Long nextStart = extents.higherKey(cur);
+                long gapEnd = nextStart == null ? position + n : Math.min(nextStart, position + n);
+                len = (int) (gapEnd - cur);
+                int fromBase = cur < baseLength ? (int) Math.min(len, baseLength - cur) : 0;
+                if (fromBase > 0) {
+                    readFully(base, buf, done, fromBase, cur);
+                }
+                Arrays.fill(buf, done + fromBase, done + len, (byte) 0);
+            }
+            done += len;
+        }
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void write(byte[] buf) throws IOException {
+        if (buf.length == 0) {
+            return;
+        }
+        long start = position;
+        long end = position + buf.length;
+        ByteBuffer buffer = ByteBuffer.wrap(buf);
+        while (buffer.hasRemaining()) {
+            log.write(buffer, logLength + buffer.position());
+        }
+
+        // cut the extent which begins before this write
+        Map.Entry<Long, Extent> lower = extents.lowerEntry(start);
+        if (lower != null && lower.getValue().end() > start) {
+            Extent extent = lower.getValue();
+            if (extent.end() > end) {
+                extents.put(end, extent.slice(end, extent.end()));
+            }
+            extents.put(extent.start, extent.slice(extent.start, start));
+        }
+        // drop or cut extents which begin inside this write
+        for (Extent extent : new ArrayList<>(extents.subMap(start, true, end, false).values())) {
+            extents.remove(extent.start);
+            if (extent.end() > end) {
+                extents.put(end, extent.slice(end, extent.end()));
+            }
+        }
+
+        // sequential writes extend the previous extent instead of adding a new one
+        Map.Entry<Long, Extent> previous = extents.lowerEntry(start);
+        if (previous != null && previous.getValue().end() == start
+                && previous.getValue().logOffset + previous.getValue().length == logLength) {
+            Extent extent = previous.getValue();
+            extents.put(extent.start, new Extent(extent.start, extent.length + buf.length, extent.logOffset));
+        } else {
+            extents.put(start, new Extent(start, buf.length, logLength));
+        }
+        logLength += buf.length;
+        position = end;
+        length = Math.max(length, end);
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0) {
+            throw new IOException("Negative seek offset");
+        }
+        position = pos;
+    }
+
+    @Override
+    public long getFilePointer() {
+        return position;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * write the complete file of this session
+     * @param out channel to write to, written from position 0
+     * @throws IOException
+     */
+    public void materialize(FileChannel out) throws IOException {
+        transferFully(base, 0, baseLength, out, 0);
+        for (Extent extent : extents.values()) {
+            transferFully(log, extent.logOffset, extent.length, out, extent.start);
+        }
+        if (out.size() < length) {
+            // file ends with a hole
+            out.write(ByteBuffer.allocate(1), length - 1);
+        }
+    }
+
+    /**
+     * get number of bytes written by this session, which is what the session takes in cache folder
+     * @return size in bytes
+     */
+    public long getOverlaySize() {
+        return logLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        base.close();
+        log.close();
+    }
+
+    private static void readFully(FileChannel channel, byte[] buf, int offset, int len, long from)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, offset, len);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, from + buffer.position() - offset) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static void transferFully(FileChannel from, long fromPosition, long count, FileChannel to, long toPosition)
+            throws IOException {
+        to.position(toPosition);
+        long done = 0;
+        while (done < count) {
+            long transferred = from.transferTo(fromPosition + done, count - done, to);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            done += transferred;
+        }
+    }
+
+    /**
+     * range of file which is held in log
+     */
+    private static class Extent {
+        private final long start;
+        private final long length;
+        private final long logOffset;
+
+        Extent(long start, long length, long logOffset) {
+            this.start = start;
+            this.length = length;
+            this.logOffset = logOffset;
+        }
+
+        long end() {
+            return start + length;
+        }
+
+        Extent slice(long from, long to) {
+            return new Extent(from, to - from, logOffset + (from - start));
+        }
+    }
+}
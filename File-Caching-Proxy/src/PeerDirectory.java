@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Directory of proxies which cache the latest version of a file, kept by server, so that a proxy which downloads a
+ * version can read its chunks from peers instead of from server.
+ * <p>
+ * Only the latest version of a file is tracked: a holder of an older version is never listed, and holders of a file
+ * are dropped once a newer version is registered or file is removed. So freshness is still decided by the version
+ * number of server, peers only serve bytes of a version server has authorized.
+ * <p>
+ * A proxy is listed by the check which gives it the version, before its download ends, and stays listed for a while
+ * after its latest check of file. It may have evicted the version meanwhile, so a read from a peer may fail, and the
+ * reader then falls back to server.
+ */
+public class PeerDirectory {
+    private final int maxHolders;
+    private final long holdMillis;
+    private final Map<String, Holders> files;
+
+    /**
+     * constructor
+     * @param maxHolders max number of proxies listed for a file, the ones which checked it most recently
+     * @param holdMillis how long a proxy is listed after its latest check of file
+     */
+    public PeerDirectory(int maxHolders, long holdMillis) {
+        this.maxHolders = maxHolders;
+        this.holdMillis = holdMillis;
+        this.files = new HashMap<>();
+    }
+
+    /**
+     * register a proxy which holds, or is about to hold, a version of file
+     * @param realName real name of file
+     * @param version version number
+     * @param peer peer interface of proxy
+     * @param now current time in milliseconds
+     */
+    public synchronized void add(String realName, int version, PeerRpc peer, long now) {
+        Holders holders = files.get(realName);
+        if (holders == null || holders.version < version) {
+            holders = new Holders(version);
+            files.put(realName, holders);
+        } else if (holders.version > version) {
+            return;
+        }
+        // most recent holder is the last one
+        holders.peers.remove(peer);
+        holders.peers.put(peer, now + holdMillis);
+        if (holders.peers.size() > maxHolders) {
+            Iterator<PeerRpc> it = holders.peers.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * find proxies which hold a version of file
+     * @param realName real name of file
+     * @param version version number
+     * @param except proxy which asks, it is never listed for itself
+     * @param now current time in milliseconds
+     * @return holders, most recent first, empty if there is none
+     */
+    public synchronized List<PeerRpc> find(String realName, int version, PeerRpc except, long now) {
+        List<PeerRpc> found = new ArrayList<>();
+        Holders holders = files.get(realName);
+        if (holders == null || holders.version != version) {
+            return found;
+        }
+        Iterator<Map.Entry<PeerRpc, Long>> it = holders.peers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PeerRpc, Long> holder = it.next();
+            if (holder.getValue() <= now) {
+                it.remove();
+            } else if (!holder.getKey().equals(except)) {
+                found.add(0, holder.getKey());
+            }
+        }
+        if (holders.peers.isEmpty()) {
+            files.remove(realName);
+        }
+        return found;
+    }
+
+    /**
+     * drop all holders of file after a new version is published or file is removed
+     * @param realName real name of file
+     */
+    public synchronized void remove(String realName) {
+        files.remove(realName);
+    }
+
+    /**
+     * holders of one version, in order of their latest check
+     */
+    private static class Holders {
+        private final int version;
+        private final LinkedHashMap<PeerRpc, Long> peers;
+
+        Holders(int version) {
+            this.version = version;
+            this.peers = new LinkedHashMap<>();
+        }
+    }
+}
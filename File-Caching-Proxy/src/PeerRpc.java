@@ -0,0 +1,19 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Interface which proxy exports to other proxies, so that a proxy can read chunks of a version from a peer which
+ * caches it instead of from server. Server tells proxies which peers hold which version, see {@link PeerDirectory}.
+ */
+public interface PeerRpc extends Remote {
+    /**
+     * read a chunk of a cached version
+     * @param realName real name of file
+     * @param version version number given by server
+     * @param offset offset of chunk
+     * @param size size of chunk
+     * @return content of chunk, null if peer does not hold the complete version
+     * @throws RemoteException
+     */
+    byte[] readChunk(String realName, int version, long offset, int size) throws RemoteException;
+}
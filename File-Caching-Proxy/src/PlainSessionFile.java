@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Session file which is a plain file in cache folder.
+ */
+public class PlainSessionFile implements SessionFile {
+    private final RandomAccessFile raFile;
+
+    /**
+     * constructor
+     * @param raFile random access file
+     */
+    public PlainSessionFile(RandomAccessFile raFile) {
+        this.raFile = raFile;
+    }
+
+    @Override
+    public int read(byte[] buf) throws IOException {
+        return raFile.read(buf);
+    }
+
+    @Override
+    public void write(byte[] buf) throws IOException {
+        raFile.write(buf);
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        raFile.seek(pos);
+    }
+
+    @Override
+    public long getFilePointer() throws IOException {
+        return raFile.getFilePointer();
+    }
+
+    @Override
+    public long length() throws IOException {
+        return raFile.length();
+    }
+
+    @Override
+    public void close() throws IOException {
+        raFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return raFile.toString();
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Learns which file is opened after which, and decides which files are worth downloading before they are opened.
+ * <p>
+ * Successors are kept in a first-order Markov table: for every file, the few files most often opened right after it by
+ * the same client, with their counts. Counts are halved from time to time, so the table follows a changing pattern,
+ * and the table keeps only the most recently opened files. A successor is predicted when it follows the file in a
+ * large enough part of the opens.
+ * <p>
+ * Prefetch downloads are bounded by a byte rate and by the cache space which prefetched files may hold before they
+ * are opened. A prefetched file is counted as a hit when it is opened, and as waste when it is evicted before that.
+ */
+public class Prefetcher {
+
+    public static final String ISSUED = "prefetch.issued";
+    public static final String BYTES = "prefetch.bytes";
+    public static final String HITS = "prefetch.hits";
+    public static final String WASTED_BYTES = "prefetch.wastedBytes";
+    public static final String SKIPPED = "prefetch.skipped";
+
+    private static final int MAX_STATES = 1024;
+    private static final int MAX_SUCCESSORS = 4;
+    private static final int MAX_PREDICTIONS = 2;
+    private static final double MIN_CONFIDENCE = 0.3;
+    // counts of a file are halved when they add up to this
+    private static final int AGING_COUNT = 64;
+    // a successor is trusted once it has been seen this many times
+    private static final int MIN_COUNT = 2;
+
+    private final LinkedHashMap<String, State> states;
+    private final Map<String, Long> unused;
+    private final long bandwidth;
+    private final long spaceBudget;
+    private final Metrics metrics;
+    private long unusedBytes;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * constructor
+     * @param bandwidth max average rate of prefetch downloads, in bytes per second
+     * @param spaceBudget max bytes of prefetched files which have not been opened yet
+     * @param metrics metrics of proxy
+     */
+    public Prefetcher(long bandwidth, long spaceBudget, Metrics metrics) {
+        this.states = new LinkedHashMap<String, State>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+                return size() > MAX_STATES;
+            }
+        };
+        this.unused = new HashMap<>();
+        this.bandwidth = bandwidth;
+        this.spaceBudget = spaceBudget;
+        this.metrics = metrics;
+        this.tokens = bandwidth;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * learn an open of a client and predict the files it opens next
+     * @param previous file opened before by the same client, null if none
+     * @param realName file which is opened
+     * @param size size of cached copy of file
+     * @return files likely to be opened next, most likely first
+     */
+    public synchronized List<String> recordOpen(String previous, String realName, long size) {
+        Long prefetchedSize = unused.remove(realName);
+        if (prefetchedSize != null) {
+            unusedBytes -= prefetchedSize;
+            metrics.increment(HITS);
+        }
+        State state = states.get(realName);
+        if (state == null) {
+            state = new State();
+            states.put(realName, state);
+        }
+        state.size = size;
+        if (previous != null && !previous.equals(realName)) {
+            State previousState = states.get(previous);
+            if (previousState != null) {
+                previousState.add(realName);
+            }
+        }
+        return state.predict();
+    }
+
+    /**
+     * decide whether a predicted file may be prefetched now, it takes the estimated size out of bandwidth budget
+     * @param realName predicted file
+     * @param freeSpace free space of cache, prefetch never evicts cached files
+     * @return true if it may be prefetched
+     */
+    public synchronized boolean admit(String realName, long freeSpace) {
+        State state = states.get(realName);
+        if (state == null || unused.containsKey(realName)) {
+            return false;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(bandwidth, tokens + bandwidth * ((now - lastRefill) / 1e9));
+        lastRefill = now;
+        if (tokens <= 0 || state.size > freeSpace || unusedBytes + state.size > spaceBudget) {
+            metrics.increment(SKIPPED);
+            return false;
+        }
+        // tokens may go below 0 for a file larger than one second of bandwidth, which delays the next prefetch
+        tokens -= state.size;
+        return true;
+    }
+
+    /**
+     * record a file which has been prefetched
+     * @param realName real name
+     * @param size size of downloaded copy
+     */
+    public synchronized void prefetched(String realName, long size) {
+        Long old = unused.put(realName, size);
+        unusedBytes += size - (old == null ? 0 : old);
+        metrics.increment(ISSUED);
+        metrics.add(BYTES, size);
+    }
+
+    /**
+     * record a file which leaves cache, it is a waste if it was prefetched and never opened
+     * @param realName real name
+     */
+    public synchronized void evicted(String realName) {
+        Long size = unused.remove(realName);
+        if (size != null) {
+            unusedBytes -= size;
+            metrics.add(WASTED_BYTES, size);
+        }
+    }
+
+    /**
+     * check whether a file has been prefetched and not opened yet
+     * @param realName real name
+     * @return true if it is waiting to be opened
+     */
+    public synchronized boolean isUnused(String realName) {
+        return unused.containsKey(realName);
+    }
+
+    /**
+     * get part of prefetched files which are opened
+     * @return hit rate, 0 if nothing is prefetched
+     */
+    public double getHitRate() {
+        long issued = metrics.get(ISSUED);
+        return issued == 0 ? 0 : (double) metrics.get(HITS) / issued;
+    }
+
+    /**
+     * successors of one file
+     */
+    private static class State {
+        private final String[] successors = new String[MAX_SUCCESSORS];
+        private final int[] counts = new int[MAX_SUCCESSORS];
+        private int total;
+        private long size;
+
+        void add(String next) {
+            int slot = -1;
+            int weakest = 0;
+            for (int i = 0; i < MAX_SUCCESSORS; i++) {
+                if (next.equals(successors[i])) {
+                    slot = i;
+                    break;
+                }
+                if (counts[i] < counts[weakest]) {
+                    weakest = i;
+                }
+            }
+            if (slot < 0) {
+                // the weakest successor makes room, its count is kept in total so a new one starts with low confidence
+                slot = weakest;
+                successors[slot] = next;
+                counts[slot] = 0;
+            }
+            counts[slot]++;
+            total++;
+            if (total >= AGING_COUNT) {
+                total = 0;
+                for (int i = 0; i < MAX_SUCCESSORS; i++) {
+                    counts[i] /= 2;
+                    total += counts[i];
+                }
+            }
+        }
+
+        List<String> predict() {
+            List<String> predictions = new ArrayList<>(MAX_PREDICTIONS);
+            boolean[] taken = new boolean[MAX_SUCCESSORS];
+            while (predictions.size() < MAX_PREDICTIONS) {
+                int best = -1;
+                for (int i = 0; i < MAX_SUCCESSORS; i++) {
+                    if (!taken[i] && successors[i] != null && (best < 0 || counts[i] > counts[best])) {
+                        best = i;
+                    }
+                }
+                if (best < 0 || counts[best] < MIN_COUNT || counts[best] < total * MIN_CONFIDENCE) {
+                    break;
+                }
+                taken[best] = true;
+                predictions.add(successors[best]);
+            }
+            return predictions;
+        }
+    }
+}
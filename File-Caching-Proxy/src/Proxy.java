@@ -2,28 +2,61 @@
 
 import java.io.*;
 import java.net.MalformedURLException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * proxy file which can support multiple client
  */
 class Proxy {
+    // chunks read from peers and sent to peers, and reads which a peer could not serve
+    public static final String PEER_RECEIVED = "peer.receivedBytes";
+    public static final String PEER_SERVED = "peer.servedBytes";
+    public static final String PEER_MISSES = "peer.misses";
+    // fills of uncached files which an open led or joined, and fills dropped because a newer version came meanwhile
+    public static final String FILL_LED = "fill.led";
+    public static final String FILL_JOINED = "fill.joined";
+    public static final String FILL_DISCARDED = "fill.discarded";
 
     private static final int ADD = 1;
     private static final int MINUS = 0;
+    private static final int LOCK_STRIPES = 64;
+    private static final String SEALED_SUFFIX = ".sealed";
+    private static final int PREFETCH_QUEUE_SIZE = 16;
+    // max number of files in one request of a revalidation sweep
+    private static final int VALIDATE_BATCH_SIZE = 1000;
+    // latest timestamp of a random name, names stay unique when several are generated in one millisecond
+    private static final AtomicLong lastTimeStamp = new AtomicLong();
 
-    private Object lock;
+    // open of one file is serialized by its stripe, cache size and eviction bookkeeping by proxy itself
+    private final Object[] fileLocks;
     // predefined varaiable in case of no input
     private String ipString = "127.0.0.1";
     private int serverPort = 11122;
@@ -31,8 +64,42 @@ class Proxy {
     private int cacheMaxSize = 100000;
     private Map<String, FileInfo> mainCopy;
     private Map<String, Integer> fileUserCounter;
-    private List<FileInfo> lru;
+    private EvictionPolicy evictionPolicy;
     private int proxyCacheSize;
+    private final ProxyConfig config;
+    private final ExecutorService transferPool;
+    private CacheJournal journal;
+    private final MappingCache mappings;
+    private final MemoryTier memoryTier;
+    private final Map<String, Lease> leases;
+    private final Map<String, Long> invalidations;
+    private ProxyCallback callback;
+    private PeerRpc peer;
+    // an exported object is only weakly held by rmi while no remote reference is alive
+    private PeerService peerService;
+    private BatchValidator validator;
+    // server checks of opens in flight, an open which finds another one validates in a batch
+    private final AtomicInteger checksInFlight;
+    private final Metrics metrics;
+    private Prefetcher prefetcher;
+    private ExecutorService prefetchPool;
+    private final Set<String> prefetching;
+    // downloads of cached versions which are still streaming, by random name
+    private final Map<String, StreamingDownload> streams;
+    // fills in flight by real name, shared by concurrent opens of an uncached file
+    private final Map<String, Fill> fills;
+    private final ConsistencyPolicy consistency;
+    // latest validation of cached version by real name, and files whose refresh is in flight
+    private final Map<String, Validation> validations;
+    private final Set<String> refreshing;
+    private ChunkTuner chunkTuner;
+    private WriteBackQueue writeBackQueue;
+    // written versions whose write back failed by real name, held and pinned in cache until they are uploaded
+    private final Map<String, String> failedUploads;
+    private AccessTrace trace;
+    private ChunkStore chunkStore;
+    // codec server picked in the latest check, used for chunk transfers
+    private volatile int codec;
     public Rpc rpc;
 
     /**
@@ -40,19 +107,125 @@ class Proxy {
      * @param args
      */
     public Proxy(String[] args) {
+        this(args, new ProxyConfig());
+    }
+
+    /**
+     * constructor with options
+     * @param args argument array
+     * @param config proxy options
+     */
+    public Proxy(String[] args, ProxyConfig config) {
+        this.config = config;
         this.ipString = args[0];
         this.serverPort = Integer.valueOf(args[1]);
         this.cacheFolder = args[2];
         this.cacheMaxSize = Integer.valueOf(args[3]);
         mainCopy = new ConcurrentHashMap<>();
         fileUserCounter = new ConcurrentHashMap<>();
-        lru = new CopyOnWriteArrayList<>();
+        evictionPolicy = EvictionPolicy.forName(config.getEviction(), cacheMaxSize);
+        mappings = new MappingCache();
+        leases = new ConcurrentHashMap<>();
+        metrics = new Metrics();
+        codec = Codec.NONE;
+        invalidations = new ConcurrentHashMap<>();
+        prefetching = ConcurrentHashMap.newKeySet();
+        streams = new ConcurrentHashMap<>();
+        fills = new ConcurrentHashMap<>();
+        failedUploads = new ConcurrentHashMap<>();
+        consistency = ConsistencyPolicy.parse(config.getConsistency());
+        validations = new ConcurrentHashMap<>();
+        refreshing = ConcurrentHashMap.newKeySet();
+        if (!consistency.isStrict()) {
+            System.err.println("Consistency rules " + consistency);
+        }
+        checksInFlight = new AtomicInteger();
+        memoryTier = new MemoryTier(config.getMemoryTierSize(), config.getMemoryTierMaxFile(), this::spillToDisk);
         proxyCacheSize = 0;
-        lock = new Object();
-        try {
-            rpc = (Rpc) Naming.lookup(getRpcAddr());
-        } catch (NotBoundException | MalformedURLException | RemoteException e) {
-            e.printStackTrace();
+        fileLocks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            fileLocks[i] = new Object();
+        }
+        transferPool = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "proxy-transfer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (config.isAdaptiveChunks()) {
+            chunkTuner = new ChunkTuner(config.getMinChunkSize(), config.getMaxChunkSize(), ChunksTask.CHUNK_SIZE);
+        }
+        if (config.isPrefetch()) {
+            prefetcher = new Prefetcher(config.getPrefetchBandwidth(),
+                    (long) (cacheMaxSize * config.getPrefetchSpaceRatio()), metrics);
+            // one background download at a time, predictions which do not fit in queue are dropped
+            prefetchPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE), r -> {
+                        Thread thread = new Thread(r, "proxy-prefetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        if (config.getTraceFile() != null) {
+            try {
+                trace = new AccessTrace(config.getTraceFile());
+            } catch (IOException e) {
+                System.err.println("Error in opening trace file " + config.getTraceFile());
+            }
+        }
+        if (config.isWriteBack()) {
+            writeBackQueue = new WriteBackQueue(new WriteBackUploader(), config.getWriteBackWorkers(), metrics);
+        }
+        if (config.isDedup()) {
+            chunkStore = new ChunkStore(cacheFolder, metrics);
+        }
+        if (config.isPersistentCache()) {
+            journal = new CacheJournal(cacheFolder);
+            recoverCache();
+        }
+        if (ProxyConfig.TRANSPORT_NIO.equals(config.getTransport())) {
+            rpc = new NioRpc(ipString, config.getNioPort(serverPort));
+        } else {
+            try {
+                rpc = (Rpc) Naming.lookup(getRpcAddr());
+            } catch (NotBoundException | MalformedURLException | RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+        if (rpc != null && config.isLeases()) {
+            try {
+                callback = (ProxyCallback) UnicastRemoteObject.exportObject(new LeaseCallback(), 0);
+            } catch (RemoteException e) {
+                System.err.println("Error in exporting callback, every open checks server");
+                e.printStackTrace();
+            }
+        }
+        if (rpc != null && config.isPeerCaching()) {
+            try {
+                peerService = new PeerService();
+                peer = (PeerRpc) UnicastRemoteObject.exportObject(peerService, 0);
+            } catch (RemoteException e) {
+                System.err.println("Error in exporting peer interface, cache is not shared");
+                e.printStackTrace();
+            }
+        }
+        if (rpc != null && config.isBatchValidation()) {
+            validator = new BatchValidator(this::sendValidation, VALIDATE_BATCH_SIZE, metrics);
+            if (!mainCopy.isEmpty()) {
+                // recovered versions get their leases back in a few requests, instead of one check per open
+                transferPool.execute(this::revalidateAll);
+            }
+            if (config.getRevalidateMillis() > 0) {
+                ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "proxy-revalidate");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                sweeper.scheduleWithFixedDelay(this::revalidateAll, config.getRevalidateMillis(),
+                        config.getRevalidateMillis(), TimeUnit.MILLISECONDS);
+            }
         }
     }
 
@@ -63,7 +236,9 @@ class Proxy {
      */
     public static void main(String[] args) throws IOException {
 
-        Proxy proxy = new Proxy(args);
+        final Proxy proxy = new Proxy(args);
+        // versions which wait for write back are uploaded before proxy stops
+        Runtime.getRuntime().addShutdownHook(new Thread(proxy::flush));
 
         (new RPCreceiver(new FileHandlingFactory(proxy))).run();
     }
@@ -90,6 +265,8 @@ class Proxy {
         private static final int READWRITE = 6;
         int fdCounter;
         Map<Integer, FdDetail> fdPool;
+        // file opened before by this client, which prefetcher learns successors from
+        private String lastOpened;
 
         FileHandler(Proxy proxy) {
             this.proxy = proxy;
@@ -106,112 +283,186 @@ class Proxy {
         public int open(String realName, OpenOption o) {
             realName = proxy.shortenName(realName);
 
-            synchronized (proxy.lock) {
-                if (!proxy.mainCopy.containsKey(realName)) {
-                    proxy.mainCopy.put(realName, new FileInfo(realName, null, 0));
+            int fd;
+            // pin it during open, so that other opens can not evict it before its user counter is added
+            proxy.evictionPolicy.pin(realName);
+            try {
+                Fill fill = proxy.fill(realName, o);
+                if (fill != null && fill.errno != 0) {
+                    fd = fill.errno;
+                } else {
+                    synchronized (proxy.lockFor(realName)) {
+                        fd = openLocked(realName, o, fill);
+                    }
                 }
+            } finally {
+                proxy.evictionPolicy.unpin(realName);
+            }
+            if (fd >= 0) {
+                proxy.traceOpen(realName);
+                proxy.prefetchAfter(lastOpened, realName);
+                lastOpened = realName;
+            }
+            return fd;
+        }
 
-                int ret = proxy.checkServerUpdateCache(realName, o);
-                if (ret != 0) {
-                    proxy.mainCopy.remove(realName);
-                    return ret;
-                }
+        /**
+         * open method, caller must hold the lock of real name
+         * @param realName normalized name of server
+         * @param o open option
+         * @param fill fill this open led or joined, its version is opened without checking server again, null if none
+         * @return fd if success, others if fail
+         */
+        private int openLocked(String realName, OpenOption o, Fill fill) {
+            if (o == OpenOption.CREATE_NEW && proxy.isUploadPending(realName)) {
+                // server may not know the file yet
+                return Errors.EEXIST;
+            }
+            proxy.mainCopy.putIfAbsent(realName, new FileInfo(realName, null, 0));
 
-                String randomName = realName;
-                if (proxy.mainCopy.containsKey(realName)) {
-                    randomName = proxy.mainCopy.get(realName).getRandomName();
-                }
+            FileInfo cached = proxy.mainCopy.get(realName);
+            boolean filled = fill != null && fill.randomName != null && cached != null
+                    && fill.randomName.equals(cached.getRandomName());
+            int ret = filled ? 0 : proxy.checkServerUpdateCache(realName, o);
+            if (ret != 0) {
+                proxy.mainCopy.remove(realName);
+                proxy.evictionPolicy.remove(realName);
+                proxy.recordRemove(realName);
+                return ret;
+            }
+
+            String randomName = realName;
+            if (proxy.mainCopy.containsKey(realName)) {
+                randomName = proxy.mainCopy.get(realName).getRandomName();
+            }
 
-                String path = proxy.toProxyPath(randomName);
-                File test = new File(path);
+            String path = proxy.toProxyPath(randomName);
+            File test = new File(path);
 
-                RandomAccessFile file = null;
-                int fd = assignFd();
-                int originalVersion = proxy.mainCopy.containsKey(realName) ? proxy.mainCopy.get(realName).getVersion() : 0;
-                String fileCopyRandomName;
+            SessionFile file = null;
+            int fd = assignFd();
+            int originalVersion = proxy.mainCopy.containsKey(realName) ? proxy.mainCopy.get(realName).getVersion() : 0;
+            String fileCopyRandomName;
 
-                if (o != OpenOption.READ && o != OpenOption.WRITE &&
-                        o != OpenOption.CREATE && o != OpenOption.CREATE_NEW) {
-                    return Errors.EINVAL;
+            if (o != OpenOption.READ && o != OpenOption.WRITE &&
+                    o != OpenOption.CREATE && o != OpenOption.CREATE_NEW) {
+                return Errors.EINVAL;
+            }
+
+            if (o != OpenOption.READ) {
+                // copy-on-write sessions read their base version from cache folder, all of it
+                if (!proxy.awaitStream(randomName)) {
+                    return ErrorCode.REMOTE;
                 }
+                proxy.ensureOnDisk(randomName);
+            }
 
-                FdDetail fdDetail = null;
-                switch (o) {
-                    case READ:
+            FdDetail fdDetail = null;
+            switch (o) {
+                case READ:
+                    StreamingDownload download = proxy.streams.get(randomName);
+                    if (download != null) {
                         try {
-                            file = new RandomAccessFile(path, "r");
+                            file = new StreamingSessionFile(download, new RandomAccessFile(path, "r"));
                         } catch (FileNotFoundException e) {
-                            System.err.println("Error in executing open, may be trying to open file folder for read");
+                            System.err.println("Error in opening streaming copy " + randomName);
                         }
-                        fdDetail = new FdDetail(file, realName, randomName, originalVersion, READ);
-                        proxy.addFileUserCounter(randomName);
-                        break;
-
-                    case WRITE:
-                        fileCopyRandomName = generateRandomName(realName);
+                    } else {
+                        file = proxy.memoryTier.open(randomName);
+                    }
+                    if (file == null && download == null && proxy.config.isMmapRead() && test.isFile()) {
                         try {
-                            File fileCopy = new File(proxy.toProxyPath(fileCopyRandomName));
-                            int filesize = (int) test.length();
-                            proxy.allocateLru(filesize);
-                            Files.copy(test.toPath(), fileCopy.toPath());
-                            file = new RandomAccessFile(fileCopy, "rw");
-                        } catch (FileNotFoundException e) {
-                            return Errors.ENOENT;
+                            file = proxy.mappings.open(randomName, test);
                         } catch (IOException e) {
-                            e.printStackTrace();
+                            System.err.println("Error in mapping " + randomName + ", read it as plain file");
+                        }
+                    }
+                    if (file == null) {
+                        try {
+                            file = new PlainSessionFile(new RandomAccessFile(path, "r"));
+                        } catch (FileNotFoundException e) {
+                            System.err.println("Error in executing open, may be trying to open file folder for read");
                         }
+                    }
+                    fdDetail = new FdDetail(file, realName, randomName, originalVersion, READ);
+                    proxy.addFileUserCounter(randomName);
+                    proxy.evictionPolicy.pin(realName);
+                    break;
 
-                        fdDetail = new FdDetail(file, realName, fileCopyRandomName, originalVersion, READWRITE);
-                        proxy.addFileUserCounter(fileCopyRandomName); // basically will not be used
-                        proxy.updateCacheSize(ADD, fileCopyRandomName);
-                        break;
+                case WRITE:
+                    fileCopyRandomName = generateRandomName(realName);
+                    try {
+                        file = new OverlaySessionFile(test, new File(proxy.toProxyPath(fileCopyRandomName)));
+                    } catch (NoSuchFileException e) {
+                        return Errors.ENOENT;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    fdDetail = newOverlayFdDetail(file, realName, fileCopyRandomName, randomName, originalVersion);
+                    break;
 
-                    case CREATE:
-                        fileCopyRandomName = generateRandomName(realName);
+                case CREATE:
+                    fileCopyRandomName = generateRandomName(realName);
 
+                    if (proxy.mainCopy.containsKey(realName)) {
                         try {
-                            if (proxy.mainCopy.containsKey(realName)) {
-                                File fileCopy = new File(proxy.toProxyPath(fileCopyRandomName));
-                                int filesize = (int) test.length();
-                                proxy.allocateLru(filesize);
-                                Files.copy(test.toPath(), fileCopy.toPath());
-                                file = new RandomAccessFile(fileCopy, "rw");
-                                //TODO bug will left two copy in proxy
-                            } else {
-                                file = new RandomAccessFile(proxy.toProxyPath(fileCopyRandomName), "rw");
-                                FileInfo fileInfo = new FileInfo(realName, fileCopyRandomName, originalVersion);
-                                proxy.mainCopy.put(realName, fileInfo);
-                                proxy.lru.add(fileInfo);
-                            }
+                            file = new OverlaySessionFile(test, new File(proxy.toProxyPath(fileCopyRandomName)));
                         } catch (IOException e) {
                             System.err.println("Error in create " + realName);
                         }
-
-                        fdDetail = new FdDetail(file, realName, fileCopyRandomName, originalVersion, READWRITE);
-                        proxy.addFileUserCounter(fileCopyRandomName);
-                        proxy.updateCacheSize(ADD, fileCopyRandomName);
+                        fdDetail = newOverlayFdDetail(file, realName, fileCopyRandomName, randomName, originalVersion);
                         break;
+                    }
+                    try {
+                        file = new PlainSessionFile(new RandomAccessFile(proxy.toProxyPath(fileCopyRandomName), "rw"));
+                        FileInfo fileInfo = new FileInfo(realName, fileCopyRandomName, originalVersion);
+                        proxy.mainCopy.put(realName, fileInfo);
+                        proxy.evictionPolicy.put(fileInfo, 0);
+                    } catch (IOException e) {
+                        System.err.println("Error in create " + realName);
+                    }
 
-                    case CREATE_NEW:
-                        fileCopyRandomName = generateRandomName(realName);
-                        try {
-                            file = new RandomAccessFile(proxy.toProxyPath(fileCopyRandomName), "rw");
-                            FileInfo fileInfo = new FileInfo(realName, fileCopyRandomName, originalVersion);
-                            proxy.mainCopy.put(realName, fileInfo);
-                            proxy.lru.add(fileInfo);
-                        } catch (IOException e) {
-                            System.err.println("Error in create new " + realName);
-                        }
-                        fdDetail = new FdDetail(file, realName, fileCopyRandomName, originalVersion, READWRITE);
-                        proxy.addFileUserCounter(fileCopyRandomName);
-                        proxy.updateCacheSize(ADD, fileCopyRandomName);
-                        break;
-                }
-                fdPool.put(fd, fdDetail);
-                proxy.updateLru(realName);
-                proxy.printLru();
-                return fd;
+                    fdDetail = new FdDetail(file, realName, fileCopyRandomName, originalVersion, READWRITE);
+                    proxy.addFileUserCounter(fileCopyRandomName);
+                    proxy.updateCacheSize(ADD, fileCopyRandomName);
+                    break;
+
+                case CREATE_NEW:
+                    fileCopyRandomName = generateRandomName(realName);
+                    try {
+                        file = new PlainSessionFile(new RandomAccessFile(proxy.toProxyPath(fileCopyRandomName), "rw"));
+                        FileInfo fileInfo = new FileInfo(realName, fileCopyRandomName, originalVersion);
+                        proxy.mainCopy.put(realName, fileInfo);
+                        proxy.evictionPolicy.put(fileInfo, 0);
+                    } catch (IOException e) {
+                        System.err.println("Error in create new " + realName);
+                    }
+                    fdDetail = new FdDetail(file, realName, fileCopyRandomName, originalVersion, READWRITE);
+                    proxy.addFileUserCounter(fileCopyRandomName);
+                    proxy.updateCacheSize(ADD, fileCopyRandomName);
+                    break;
             }
+            fdPool.put(fd, fdDetail);
+            proxy.updateLru(realName);
+            return fd;
+        }
+
+        /**
+         * create fd of a copy-on-write session, its base copy is kept in use until fd is closed
+         * @param file overlay session file
+         * @param realName real name
+         * @param logRandomName random name of overlay log
+         * @param baseRandomName random name of cached copy
+         * @param originalVersion version of cached copy
+         * @return fd detail
+         */
+        private FdDetail newOverlayFdDetail(SessionFile file, String realName, String logRandomName,
+                                            String baseRandomName, int originalVersion) {
+            FdDetail fdDetail = new FdDetail(file, realName, logRandomName, originalVersion, READWRITE);
+            fdDetail.setBaseRandomName(baseRandomName);
+            proxy.addFileUserCounter(baseRandomName);
+            proxy.evictionPolicy.pin(realName);
+            return fdDetail;
         }
 
         /**
@@ -224,26 +475,49 @@ class Proxy {
                 return Errors.EBADF;
             }
             FdDetail fdDetail = fdPool.get(fd);
-            int permission = fdDetail.getPermission();
-            int originalVersion = fdDetail.getOriginalVersion();
-            int latestVersion = proxy.mainCopy.containsKey(fdDetail.getRealName())
-                    ? proxy.mainCopy.get(fdDetail.getRealName()).getVersion() : -1;
-
-            proxy.minusFileUserCounter(fdDetail.getRandomName());
-            proxy.updateLru(fdDetail.getRealName());
-            if (permission == READ) {
-                if (latestVersion != originalVersion) {
-                    String randomFileName = fdDetail.getRandomName();
-                    if (proxy.fileUserCounter.get(randomFileName) == 0) {
-                        proxy.deleteRandomFile(randomFileName);
-                    }
+            String realName = fdDetail.getRealName();
+            String randomName = fdDetail.getRandomName();
+            SessionFile file = fdDetail.getFile();
+            String sealedName = null;
+            try {
+                if (file instanceof OverlaySessionFile) {
+                    sealedName = proxy.sealOverlay((OverlaySessionFile) file, randomName);
+                }
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Error in executing close(SessionFile) method.");
+            }
+
+            if (fdDetail.getPermission() == READ) {
+                proxy.releaseCachedCopy(realName, randomName, fdDetail.getOriginalVersion());
+            } else if (fdDetail.getBaseRandomName() != null) {
+                proxy.releaseCachedCopy(realName, fdDetail.getBaseRandomName(), fdDetail.getOriginalVersion());
+                if (file instanceof OverlaySessionFile) {
+                    proxy.countOverlay(-((OverlaySessionFile) file).getOverlaySize());
+                }
+                new File(proxy.toProxyPath(randomName)).delete();
+                if (sealedName != null && proxy.writeBackQueue != null) {
+                    proxy.queueUpload(realName, sealedName);
+                } else if (sealedName != null) {
+                    proxy.uploadFile(realName, sealedName);
+                    proxy.deleteSealedFile(sealedName);
                 }
             } else {
-                String randomName = fdDetail.getRandomName();
-                proxy.uploadFile(fdDetail.getRealName(), randomName);
-                proxy.deleteRandomFile(randomName);
+                proxy.minusFileUserCounter(randomName);
+                proxy.updateLru(realName);
+                if (proxy.writeBackQueue != null) {
+                    proxy.queueUpload(realName, randomName);
+                } else {
+                    proxy.uploadFile(realName, randomName);
+                    proxy.deleteRandomFile(randomName);
+                }
             }
             fdPool.remove(fd);
+            if (proxy.trace != null) {
+                proxy.trace.close(realName);
+            }
             return 0;
 
         }
@@ -265,11 +539,20 @@ class Proxy {
             if (!test.exists() || !test.canRead() || !test.canWrite()) {
                 return Errors.EBADF;
             }
+            SessionFile file = fdPool.get(fd).getFile();
+            boolean overlay = file instanceof OverlaySessionFile;
+            if (overlay) {
+                // log of a copy-on-write session grows by every write
+                proxy.countOverlay(buf.length);
+            }
             try {
-                fdPool.get(fd).getRaFile().write(buf);
+                file.write(buf);
                 return buf.length;
             } catch (IOException e) {
                 System.err.println("Error in executing write method.");
+                if (overlay) {
+                    proxy.countOverlay(-buf.length);
+                }
                 return Errors.EBADF;
             }
         }
@@ -284,15 +567,18 @@ class Proxy {
             if (!fdPool.containsKey(fd)) {
                 return Errors.EBADF;
             }
-            File test = new File(proxy.toProxyPath(fdPool.get(fd).getRandomName()));
-            if (test.isDirectory()) {
-                return Errors.EISDIR;
-            }
-            if (!test.exists() || !test.canRead()) {
-                return Errors.EBADF;
+            String randomName = fdPool.get(fd).getRandomName();
+            File test = new File(proxy.toProxyPath(randomName));
+            if (!proxy.memoryTier.contains(randomName)) {
+                if (test.isDirectory()) {
+                    return Errors.EISDIR;
+                }
+                if (!test.exists() || !test.canRead()) {
+                    return Errors.EBADF;
+                }
             }
             try {
-                long ret = fdPool.get(fd).getRaFile().read(buf);
+                long ret = fdPool.get(fd).getFile().read(buf);
                 return ret == -1 ? 0 : ret;
             } catch (IOException e) {
                 System.err.println("Error in executing read method.");
@@ -311,20 +597,27 @@ class Proxy {
             if (!fdPool.containsKey(fd)) {
                 return Errors.EBADF;
             }
-            File test = new File(proxy.toProxyPath(fdPool.get(fd).getRandomName()));
-            if (test.isDirectory()) {
-                return Errors.EISDIR;
-            }
-            if (!test.exists() || !test.canRead()) {
-                return Errors.EBADF;
+            String randomName = fdPool.get(fd).getRandomName();
+            File test = new File(proxy.toProxyPath(randomName));
+            if (!proxy.memoryTier.contains(randomName)) {
+                if (test.isDirectory()) {
+                    return Errors.EISDIR;
+                }
+                if (!test.exists() || !test.canRead()) {
+                    return Errors.EBADF;
+                }
             }
-            RandomAccessFile file = fdPool.get(fd).getRaFile();
+            SessionFile file = fdPool.get(fd).getFile();
             switch (o) {
                 case FROM_START:
                     pos += 0;
                     break;
                 case FROM_END:
-                    pos += test.length();
+                    try {
+                        pos += file.length();
+                    } catch (IOException e) {
+                        System.err.println("Error in executing length(lseek) method.");
+                    }
                     break;
                 case FROM_CURRENT:
                     try {
@@ -348,13 +641,19 @@ class Proxy {
          */
         public int unlink(String realName) {
             realName = proxy.shortenName(realName);
+            // a pending upload must not bring the file back after it is unlinked
+            proxy.flush(realName);
+            proxy.dropFailedUpload(realName);
             if (proxy.mainCopy.containsKey(realName)) {
                 String randomName = proxy.mainCopy.get(realName).getRandomName();
                 if (proxy.fileUserCounter.get(randomName) == 0) {
                     proxy.deleteRandomFile(randomName);
                 }
                 proxy.mainCopy.remove(realName);
+                proxy.evictionPolicy.remove(realName);
+                proxy.recordRemove(realName);
             }
+            proxy.leases.remove(realName);
             try {
                 return proxy.rpc.unlink(realName);
             } catch (RemoteException e) {
@@ -369,9 +668,10 @@ class Proxy {
         public void clientdone() {
             for (Integer fd : fdPool.keySet()) {
                 try {
-                    File test = new File(proxy.toProxyPath(fdPool.get(fd).getRandomName()));
-                    if (test.isFile()) {
-                        fdPool.get(fd).getRaFile().close();
+                    String randomName = fdPool.get(fd).getRandomName();
+                    File test = new File(proxy.toProxyPath(randomName));
+                    if (proxy.memoryTier.contains(randomName) || test.isFile()) {
+                        fdPool.get(fd).getFile().close();
                     }
                 } catch (IOException e) {
                     System.err.println("Error in executing close(RandomAccessFile) method.");
@@ -401,249 +701,1137 @@ class Proxy {
      * @return true if success, false if not
      */
     public boolean uploadFile(String realName, String uploadFileRandomName) {
-        try {
-            File file = new File(toProxyPath(uploadFileRandomName));
-            int fileSize = (int) file.length();
-            int totalChunks = (fileSize + ChunksTask.CHUNK_SIZE - 1) / ChunksTask.CHUNK_SIZE;
-            RandomAccessFile raFile = new RandomAccessFile(file, "r");
-            for (int i = 0; i < totalChunks; i++) {
-                int offset = i * ChunksTask.CHUNK_SIZE;
-                int size = i + 1 == totalChunks ? fileSize - offset : ChunksTask.CHUNK_SIZE;
-                byte[] bytes = new byte[size];
-                raFile.seek(offset);
-                raFile.read(bytes);
-                rpc.uploadChunk(realName, bytes, i, totalChunks);
-            }
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+        return upload(realName, uploadFileRandomName) > 0;
     }
 
     /**
-     * check server cache
+     * upload a file as new version of real name
      * @param realName real name
-     * @param o open option
-     * @return 0 if success or error number
+     * @param uploadFileRandomName upload file's name
+     * @return new version number if success, error number if fail
      */
-    public int checkServerUpdateCache(String realName, FileHandling.OpenOption o) {
-        int cacheVersion = 0; // if no file in cache, version is set to 0
-        if (mainCopy.containsKey(realName)) {
-            cacheVersion = mainCopy.get(realName).getVersion();
-        }
-
-        CheckResult result = null;
-        try {
-            result = rpc.checkServer(realName, o, cacheVersion);
+    private int upload(String realName, String uploadFileRandomName) {
+        Path path = Paths.get(toProxyPath(uploadFileRandomName));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            UploadTask task = new UploadTask(rpc, realName, channel, codec, metrics, getChunkSize(), chunkTuner);
+            int ret = ErrorCode.NO_DELTA;
+            if (config.isDeltaEnabled() && channel.size() >= config.getDeltaMinSize()) {
+                ret = task.uploadDelta();
+            }
+            if (ret == ErrorCode.NO_DELTA) {
+                ret = task.uploadAll(config.getUploadWindow(), transferPool);
+            }
+            if (ret < 0) {
+                System.err.println("Error in upload " + realName + ": " + ret);
+            }
+            return ret;
         } catch (IOException e) {
             e.printStackTrace();
             return ErrorCode.REMOTE;
         }
+    }
 
-        if (result.getErrno() == ErrorCode.READ_DIR) {
-            String randomName = generateRandomName(realName);
-            String randomPath = toProxyPath(randomName);
-            new File(randomPath).mkdir();
-            FileInfo fileInfo = new FileInfo(realName, randomName, 0);
-            mainCopy.put(realName, fileInfo);
-            return 0;
-        } else if (result.getErrno() == 0 && result.getVersion() == cacheVersion) {
-            return 0;
-        } else if (result.getErrno() == 0 && result.getVersion() != cacheVersion) {
-            String randomName = generateRandomName(realName);
-            String randomPath = toProxyPath(randomName);
-            int newFileSize = result.getFileContent().length;
-            ChunksTask chunksTask = result.getChunksTask();
-            if (chunksTask != null) {
-                newFileSize = chunksTask.getFileSize();
-            }
-
-            allocateLru(newFileSize);
-
-            try {
-                // set append to true
-                File file = new File(randomPath);
-                File parentFolder = file.getParentFile();
-                if (!parentFolder.exists()) {
-                    parentFolder.mkdirs();
-                }
-                OutputStream out = new FileOutputStream(file, true);
-                out.write(result.getFileContent());
-
-                if (chunksTask != null) {
-                    while (chunksTask.hasNextChunk()) {
-                        byte[] chunk = chunksTask.getNextChunk(this);
-                        out.write(chunk);
-                    }
-                }
-                out.close();
-                updateCacheSize(ADD, randomName);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            if (mainCopy.containsKey(realName)) {
-                FileInfo fileInfo = mainCopy.get(realName);
-                int oldVersion = fileInfo.getVersion();
-                String oldRandomFile = fileInfo.getRandomName();
-                fileInfo.updateCacheInfo(randomName, result.getVersion());
-                if (oldRandomFile != null && fileUserCounter.containsKey(oldRandomFile) && fileUserCounter.get(oldRandomFile) == 0) {
-                    deleteRandomFile(oldRandomFile);
-                }
-            } else {
-                FileInfo fileInfo = new FileInfo(realName, randomName, result.getVersion());
+    /**
+     * make a written version the cached copy of its file and queue it for write back. Until it is uploaded, the copy
+     * is pinned in cache and opens of the file use it without asking server.
+     * @param realName real name
+     * @param fileName name of written version in cache folder
+     */
+    private void queueUpload(String realName, String fileName) {
+        long size;
+        synchronized (lockFor(realName)) {
+            // a newer version replaces one whose upload failed
+            dropFailedUpload(realName);
+            // the queue holds the version until it leaves
+            addFileUserCounter(fileName);
+            evictionPolicy.pin(realName);
+            size = Math.max(0, cachedSize(fileName));
+            FileInfo fileInfo = mainCopy.get(realName);
+            if (fileInfo == null) {
+                fileInfo = new FileInfo(realName, fileName, 0);
                 mainCopy.put(realName, fileInfo);
-                lru.add(fileInfo);
-            }
-
-            return 0;
-        } else if (result.getErrno() == FileHandling.Errors.ENOENT) {
-            if (mainCopy.containsKey(realName)) {
-                FileInfo fileInfo = mainCopy.get(realName);
-                String randomName = fileInfo.getRandomName();
-                if (randomName != null && fileUserCounter.containsKey(randomName) && fileUserCounter.get(randomName) == 0) {
-                    deleteRandomFile(randomName);
+                evictionPolicy.put(fileInfo, size);
+            } else {
+                String oldRandomName = fileInfo.getRandomName();
+                // version 0 is never given by server, the copy is dirty until it is uploaded
+                fileInfo.updateCacheInfo(fileName, 0);
+                evictionPolicy.updateWeight(realName, size);
+                if (oldRandomName != null && !oldRandomName.equals(fileName)) {
+                    deleteRandomFile(oldRandomName);
                 }
-                mainCopy.remove(realName);
-                lru.remove(fileInfo);
             }
-            return FileHandling.Errors.ENOENT;
-        } else if (result.getErrno() != 0) {
-            // other error code
-            return result.getErrno();
-        } else {
-            return 0;
+            leases.remove(realName);
+            // journal only keeps versions which server has
+            recordRemove(realName);
         }
+        writeBackQueue.enqueue(realName, fileName, size);
     }
 
     /**
-     * generate random name (add timestamp to the end of file)
+     * check whether a file has a written version which server does not have yet
      * @param realName real name
-     * @return random name
+     * @return true if its upload is pending
      */
-    private static String generateRandomName(String realName) {
-        long timeStamp = new Date().getTime();
-        return realName + timeStamp;
+    private boolean isUploadPending(String realName) {
+        return writeBackQueue != null && (writeBackQueue.isPending(realName) || failedUploads.containsKey(realName));
     }
 
     /**
-     * convert file name to proxy path
-     * @param fileName file name
-     * @return proxy path of file name
+     * wait until every written version is uploaded, versions whose upload failed before are tried again. It does
+     * nothing unless write back is enabled.
+     * @return number of written versions which could not be uploaded, they stay in cache until a later flush
      */
-    private String toProxyPath(String fileName) {
-        return cacheFolder + "/" + fileName;
+    public int flush() {
+        if (writeBackQueue == null) {
+            return 0;
+        }
+        for (String realName : new ArrayList<>(failedUploads.keySet())) {
+            String fileName;
+            long size;
+            synchronized (lockFor(realName)) {
+                fileName = failedUploads.remove(realName);
+                if (fileName == null) {
+                    continue;
+                }
+                size = Math.max(0, cachedSize(fileName));
+            }
+            // the version is still held and pinned, the queue releases it when it leaves
+            writeBackQueue.enqueue(realName, fileName, size);
+        }
+        try {
+            writeBackQueue.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return failedUploads.size();
     }
 
     /**
-     * add file user counter, user counter is used to record how many user are using this file, counter is added when
-     * the file is open
-     * @param randomName random name
-     * @return current counter value
+     * release a written version whose upload failed, once a newer version or an unlink replaces it
+     * @param realName real name
      */
-    private synchronized int addFileUserCounter(String randomName) {
-        if (fileUserCounter.containsKey(randomName)) {
-            fileUserCounter.put(randomName, fileUserCounter.get(randomName) + 1);
-        } else {
-            fileUserCounter.put(randomName, 1);
+    private void dropFailedUpload(String realName) {
+        synchronized (lockFor(realName)) {
+            String fileName = failedUploads.remove(realName);
+            if (fileName != null) {
+                minusFileUserCounter(fileName);
+                evictionPolicy.unpin(realName);
+            }
         }
-        return fileUserCounter.get(randomName);
     }
 
     /**
-     * minus file user counter, user counter minused when the file is closed
-     * @param randomName random name of file
-     * @return current counter
+     * wait until every written version of a file is uploaded, caller must not hold the lock of file
+     * @param realName real name
      */
-    private synchronized int minusFileUserCounter(String randomName) {
-        if (!fileUserCounter.containsKey(randomName)) {
-            return -1;
+    private void flush(String realName) {
+        if (writeBackQueue == null) {
+            return;
         }
-        int newCounter = fileUserCounter.get(randomName) - 1;
-        if (newCounter < 0) {
-            return -1;
+        try {
+            writeBackQueue.flush(realName);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        fileUserCounter.put(randomName, newCounter);
-        return newCounter;
     }
 
     /**
-     * update LRU to move the freshest one to the end of line
+     * fill cache with a file which is not cached yet, before it is opened. Concurrent reads of the file share one fill:
+     * the first one checks server and downloads the file without holding the lock of real name, so opens of other
+     * files in the same stripe do not wait for it, and the others wait for it and then open the same version. Other
+     * opens wait for a fill in flight before they check server themselves.
      * @param realName real name
+     * @param o open option
+     * @return finished fill, null if open checks server as usual
      */
-    private void updateLru(String realName) {
-        FileInfo fileInfo = mainCopy.get(realName);
-        if (fileInfo != null) {
-            lru.remove(fileInfo);
-            lru.add(fileInfo);
-        } else {
-            System.err.println(realName + " Error: no record in LRU");
+    private Fill fill(String realName, FileHandling.OpenOption o) {
+        if (!config.isSingleFlight()) {
+            return null;
         }
-    }
-
-    /**
-     * allocate a particular size of space, this method will pick the right file to evict
-     * @param allocateSize size to be allocated
-     * @return 0 if success
-     */
-    private synchronized int allocateLru(int allocateSize) {
-        //TODO implement it
-        int expectedFreeSize = proxyCacheSize + allocateSize - cacheMaxSize;
-
-        int i = 0;
-        while (expectedFreeSize > 0 && i < lru.size()) {
-            FileInfo fileInfo = lru.get(i);
-            String randomName = fileInfo.getRandomName();
-            int randomFileUsage = fileUserCounter.containsKey(randomName) ? fileUserCounter.get(randomName) : 0;
-            if (randomFileUsage == 0) {
-                File file = new File(toProxyPath(fileInfo.getRandomName()));
-                if (file.exists()) {
-                    int filesize = (int) file.length();
-                    deleteRandomFile(fileInfo.getRandomName());
-                    lru.remove(fileInfo);
-                    mainCopy.remove(fileInfo.getRealName());
-                    expectedFreeSize -= filesize;
-                } else {
-                    System.err.println("Error in LRU evict " + fileInfo.getRandomName() + " does not exist");
+        Fill running = fills.get(realName);
+        if (o != FileHandling.OpenOption.READ) {
+            if (running != null) {
+                running.await();
+            }
+            return null;
+        }
+        if (running == null) {
+            FileInfo cached = mainCopy.get(realName);
+            if (cached != null && cached.getRandomName() != null) {
+                return null;
+            }
+            Fill fill = new Fill();
+            running = fills.putIfAbsent(realName, fill);
+            if (running == null) {
+                metrics.increment(FILL_LED);
+                int errno = ErrorCode.REMOTE;
+                try {
+                    errno = checkServerUpdateCache(realName, o);
+                } finally {
+                    FileInfo fileInfo = mainCopy.get(realName);
+                    fill.finish(errno, fileInfo == null ? null : fileInfo.getRandomName());
+                    fills.remove(realName, fill);
                 }
-            } else {
-                i++;
+                return fill;
             }
         }
-        return 0;
+        metrics.increment(FILL_JOINED);
+        // a joiner which is interrupted opens as usual
+        return running.await() ? running : null;
+    }
+
+    /**
+     * check whether another thread has put a version of file in cache since a server check read its cache entry,
+     * which may happen while a fill runs without the lock of real name
+     * @param realName real name
+     * @param baseName random name of cached copy when check started, null if none
+     * @return true if cache entry holds another version
+     */
+    private boolean changedSince(String realName, String baseName) {
+        FileInfo fileInfo = mainCopy.get(realName);
+        String randomName = fileInfo == null ? null : fileInfo.getRandomName();
+        return randomName != null && !randomName.equals(baseName);
+    }
+
+    /**
+     * check server cache
+     * @param realName real name
+     * @param o open option
+     * @return 0 if success or error number
+     */
+    public int checkServerUpdateCache(String realName, FileHandling.OpenOption o) {
+        return checkServerUpdateCache(realName, o, Long.MAX_VALUE);
+    }
+
+    /**
+     * check server cache, unless a new version would take more than some space
+     * @param realName real name
+     * @param o open option
+     * @param spaceLimit max size of new version, e.g. free space of cache when nothing may be evicted for it
+     * @return 0 if success, {@link ErrorCode#NO_SPACE} if new version is larger than limit, or error number
+     */
+    private int checkServerUpdateCache(String realName, FileHandling.OpenOption o, long spaceLimit) {
+        if (isUploadPending(realName)) {
+            // cached copy is newer than server's
+            return 0;
+        }
+        if (o == FileHandling.OpenOption.READ || o == FileHandling.OpenOption.WRITE) {
+            if (holdsLease(realName)) {
+                return 0;
+            }
+            if (o == FileHandling.OpenOption.READ && readsCached(realName)) {
+                return 0;
+            }
+            // a lone open checks server at once, which also brings a new version; concurrent ones share validations
+            if (validator != null && checksInFlight.get() > 0 && validateCached(realName)) {
+                return 0;
+            }
+        }
+        checksInFlight.incrementAndGet();
+        try {
+            return checkServerUpdateCache(realName, o, true, spaceLimit);
+        } finally {
+            checksInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * decide by consistency rule of file whether a read can skip server. A version validated recently enough is read
+     * as it is, and so is an older one under stale-while-revalidate, whose refresh then runs in background.
+     * @param realName real name
+     * @return true if cached version is read without checking server
+     */
+    private boolean readsCached(String realName) {
+        if (consistency.isStrict()) {
+            return false;
+        }
+        ConsistencyPolicy.Rule rule = consistency.ruleFor(realName);
+        metrics.increment(rule.getReadsMetric());
+        FileInfo fileInfo = mainCopy.get(realName);
+        if (rule.isStrict() || fileInfo == null || fileInfo.getRandomName() == null || fileInfo.getVersion() <= 0) {
+            return false;
+        }
+        Validation validation = validations.get(realName);
+        if (validation != null && validation.version == fileInfo.getVersion()
+                && System.currentTimeMillis() - validation.time <= rule.getMaxStaleMillis()) {
+            metrics.increment(ConsistencyPolicy.CACHED_READS);
+            return true;
+        }
+        if (!rule.isStaleWhileRevalidate()) {
+            return false;
+        }
+        metrics.increment(ConsistencyPolicy.STALE_READS);
+        refresh(realName);
+        return true;
+    }
+
+    /**
+     * bring cached copy of a file up to date in background, one refresh of a file at a time
+     * @param realName real name
+     */
+    private void refresh(final String realName) {
+        if (!refreshing.add(realName)) {
+            return;
+        }
+        try {
+            transferPool.execute(() -> {
+                try {
+                    synchronized (lockFor(realName)) {
+                        if (!holdsLease(realName)) {
+                            checkServerUpdateCache(realName, FileHandling.OpenOption.READ, true, Long.MAX_VALUE);
+                            metrics.increment(ConsistencyPolicy.REFRESHES);
+                        }
+                    }
+                } finally {
+                    refreshing.remove(realName);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(realName);
+        }
+    }
+
+    /**
+     * validate cached version of file in a batch with other opens
+     * @param realName real name
+     * @return true if cached version is still the latest, false if it is stale or can not be validated, then open
+     * checks server as usual
+     */
+    private boolean validateCached(String realName) {
+        FileInfo fileInfo = mainCopy.get(realName);
+        if (fileInfo == null || fileInfo.getRandomName() == null || fileInfo.getVersion() <= 0) {
+            return false;
+        }
+        int version = fileInfo.getVersion();
+        long invalidation = invalidations.getOrDefault(realName, 0L);
+        long requestTime = System.currentTimeMillis();
+        ValidateResult result;
+        checksInFlight.incrementAndGet();
+        try {
+            result = validator.validate(realName, version);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            checksInFlight.decrementAndGet();
+        }
+        if (result == null || !result.isUpToDate(realName)) {
+            return false;
+        }
+        takeLease(realName, version, result.getLeaseMillis(), invalidation, requestTime);
+        return true;
+    }
+
+    /**
+     * validate every cached version in batches, versions which are still the latest get leases so that their next
+     * opens skip server, and leases of stale ones are dropped
+     * @return number of stale versions, -1 if validation fails
+     */
+    public int revalidateAll() {
+        Map<String, Integer> versions = new LinkedHashMap<>();
+        Map<String, Long> seen = new HashMap<>();
+        for (Map.Entry<String, FileInfo> entry : mainCopy.entrySet()) {
+            FileInfo fileInfo = entry.getValue();
+            String realName = entry.getKey();
+            if (fileInfo.getRandomName() != null && fileInfo.getVersion() > 0 && !isUploadPending(realName)) {
+                versions.put(realName, fileInfo.getVersion());
+                seen.put(realName, invalidations.getOrDefault(realName, 0L));
+            }
+        }
+        if (versions.isEmpty()) {
+            return 0;
+        }
+        long requestTime = System.currentTimeMillis();
+        ValidateResult result;
+        try {
+            result = validator.validateAll(versions);
+        } catch (IOException e) {
+            System.err.println("Error in revalidating cached files");
+            e.printStackTrace();
+            return -1;
+        }
+        for (Map.Entry<String, Integer> entry : versions.entrySet()) {
+            String realName = entry.getKey();
+            if (result.isUpToDate(realName)) {
+                takeLease(realName, entry.getValue(), result.getLeaseMillis(), seen.get(realName), requestTime);
+            } else {
+                leases.remove(realName);
+            }
+        }
+        return result.getChanged().size();
+    }
+
+    /**
+     * send one batch of validation to server
+     * @param versions version number of cached copy by real name
+     * @return files whose cached version is stale
+     * @throws IOException
+     */
+    private ValidateResult sendValidation(Map<String, Integer> versions) throws IOException {
+        ValidateRequest request = new ValidateRequest();
+        for (Map.Entry<String, Integer> entry : versions.entrySet()) {
+            request.add(entry.getKey(), entry.getValue());
+        }
+        request.setCallback(callback);
+        request.setPeer(peer);
+        return rpc.validate(request);
+    }
+
+    /**
+     * check server cache
+     * @param realName real name
+     * @param o open option
+     * @param allowReuse true if new version may be rebuilt from cached content, either by a delta against the stale
+     *                   cached copy or from chunks held by any cached version, or read from peers
+     * @param spaceLimit max size of new version
+     * @return 0 if success, {@link ErrorCode#NO_SPACE} if new version is larger than limit, or error number
+     */
+    private int checkServerUpdateCache(String realName, FileHandling.OpenOption o, boolean allowReuse,
+                                       long spaceLimit) {
+        int cacheVersion = 0; // if no file in cache, version is set to 0
+        String baseName = null;
+        if (mainCopy.containsKey(realName)) {
+            cacheVersion = mainCopy.get(realName).getVersion();
+            baseName = mainCopy.get(realName).getRandomName();
+        }
+
+        CheckRequest request = new CheckRequest(realName, o, cacheVersion);
+        if (allowReuse && config.isDeltaEnabled() && cacheVersion > 0 && baseName != null
+                && !streams.containsKey(baseName)) {
+            File base = new File(toProxyPath(baseName));
+            if (base.isFile() && base.length() >= config.getDeltaMinSize()) {
+                request.setDeltaBaseLength(base.length());
+            }
+        }
+        request.setManifestWanted(allowReuse && chunkStore != null && !chunkStore.isEmpty());
+        if (allowReuse) {
+            request.setPeer(peer);
+        }
+
+        request.setCallback(callback);
+        request.setAcceptCodecs(config.isCompression() ? Codec.supported() : 0);
+        request.setChunkSize(getChunkSize());
+        long invalidation = invalidations.getOrDefault(realName, 0L);
+        long requestTime = System.currentTimeMillis();
+
+        CheckResult result = null;
+        try {
+            long start = System.nanoTime();
+            result = rpc.checkServer(request);
+            if (chunkTuner != null) {
+                chunkTuner.record(result.getFileContent().length, System.nanoTime() - start);
+            }
+            if (result.getCodec() != Codec.NONE) {
+                result.setFileContent(Codec.decode(result.getFileContent(), result.getCodec(), metrics));
+            }
+            codec = result.getErrno() == 0 ? result.getCodec() : codec;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ErrorCode.REMOTE;
+        }
+
+        if (result.getErrno() == ErrorCode.READ_DIR) {
+            synchronized (lockFor(realName)) {
+                if (changedSince(realName, baseName)) {
+                    return 0;
+                }
+                String randomName = generateRandomName(realName);
+                String randomPath = toProxyPath(randomName);
+                new File(randomPath).mkdir();
+                FileInfo fileInfo = new FileInfo(realName, randomName, 0);
+                mainCopy.put(realName, fileInfo);
+            }
+            return 0;
+        } else if (result.getErrno() == 0 && result.getVersion() == cacheVersion) {
+            takeLease(realName, result, invalidation, requestTime);
+            return 0;
+        } else if (result.getErrno() == 0 && result.getVersion() != cacheVersion) {
+            // size of a delta is known once it is downloaded
+            long size = result.getChunksTask() != null ? result.getChunksTask().getFileSize()
+                    : result.getFileContent().length;
+            if (result.getDeltaSource() == null && size > spaceLimit) {
+                if (result.getChunksTask() != null) {
+                    // server holds the copy for the chunks which are not downloaded
+                    try {
+                        rpc.skipChunks(result.getChunksTask().getServerRandomName(),
+                                size - result.getFileContent().length);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                return ErrorCode.NO_SPACE;
+            }
+            String randomName = generateRandomName(realName);
+            String randomPath = toProxyPath(randomName);
+
+            // cache entry is only updated after every chunk has been written, or after the first one if it streams
+            File file = new File(randomPath);
+            File parentFolder = file.getParentFile();
+            if (!parentFolder.exists()) {
+                parentFolder.mkdirs();
+            }
+            int newFileSize;
+            ChunkManifest manifest = null;
+            if (result.getDeltaSource() != null) {
+                newFileSize = downloadDelta(result.getDeltaSource(), baseName, file, spaceLimit);
+                if (newFileSize < 0) {
+                    // delta is not available, download the whole file instead
+                    file.delete();
+                    return checkServerUpdateCache(realName, o, false, spaceLimit);
+                }
+            } else if (result.getChunksTask() != null && result.getChunksTask().getPeers() != null
+                    || holdsChunks(result.getChunksTask())) {
+                newFileSize = downloadReusing(result, file);
+                if (newFileSize < 0) {
+                    file.delete();
+                    return checkServerUpdateCache(realName, o, false, spaceLimit);
+                }
+                manifest = result.getChunksTask().getManifest();
+            } else {
+                boolean streaming = config.isStreamingOpen() && o == FileHandling.OpenOption.READ;
+                newFileSize = downloadWhole(result, realName, randomName, file, streaming);
+                if (newFileSize < 0) {
+                    file.delete();
+                    return ErrorCode.REMOTE;
+                }
+            }
+            updateCacheSize(ADD, randomName);
+            fileUserCounter.putIfAbsent(randomName, 0);
+            // a streaming version is journaled once it is complete
+            boolean complete = !streams.containsKey(randomName);
+            if (complete) {
+                addToStore(randomName, manifest);
+            }
+
+            synchronized (lockFor(realName)) {
+                if (changedSince(realName, baseName) && mainCopy.get(realName).getVersion() >= result.getVersion()) {
+                    // a version as new is already cached, drop this one which nobody has opened
+                    deleteRandomFile(randomName);
+                    metrics.increment(FILL_DISCARDED);
+                    return 0;
+                }
+                if (mainCopy.containsKey(realName)) {
+                    FileInfo fileInfo = mainCopy.get(realName);
+                    int oldVersion = fileInfo.getVersion();
+                    String oldRandomFile = fileInfo.getRandomName();
+                    fileInfo.updateCacheInfo(randomName, result.getVersion());
+                    evictionPolicy.updateWeight(realName, newFileSize);
+                    if (complete) {
+                        recordPut(fileInfo, newFileSize);
+                    }
+                    if (oldRandomFile != null && fileUserCounter.containsKey(oldRandomFile) && fileUserCounter.get(oldRandomFile) == 0) {
+                        deleteRandomFile(oldRandomFile);
+                    }
+                } else {
+                    FileInfo fileInfo = new FileInfo(realName, randomName, result.getVersion());
+                    mainCopy.put(realName, fileInfo);
+                    evictionPolicy.put(fileInfo, newFileSize);
+                    if (complete) {
+                        recordPut(fileInfo, newFileSize);
+                    }
+                }
+                takeLease(realName, result, invalidation, requestTime);
+            }
+            if (complete && (result.getChunksTask() != null || result.getDeltaSource() != null)) {
+                announceHolder(realName, result.getVersion());
+            }
+
+            return 0;
+        } else if (result.getErrno() == FileHandling.Errors.ENOENT) {
+            leases.remove(realName);
+            if (prefetcher != null) {
+                prefetcher.evicted(realName);
+            }
+            synchronized (lockFor(realName)) {
+                if (mainCopy.containsKey(realName) && !changedSince(realName, baseName)) {
+                    FileInfo fileInfo = mainCopy.get(realName);
+                    String randomName = fileInfo.getRandomName();
+                    if (randomName != null && fileUserCounter.containsKey(randomName) && fileUserCounter.get(randomName) == 0) {
+                        deleteRandomFile(randomName);
+                    }
+                    mainCopy.remove(realName);
+                    evictionPolicy.remove(realName);
+                    recordRemove(realName);
+                }
+            }
+            return FileHandling.Errors.ENOENT;
+        } else if (result.getErrno() != 0) {
+            // other error code
+            return result.getErrno();
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * check whether cached version of file is covered by a lease, then open can skip server
+     * @param realName real name
+     * @return true if lease is valid for cached version
+     */
+    private boolean holdsLease(String realName) {
+        Lease lease = leases.get(realName);
+        if (lease == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() >= lease.expiry) {
+            leases.remove(realName, lease);
+            return false;
+        }
+        FileInfo fileInfo = mainCopy.get(realName);
+        return fileInfo != null && fileInfo.getRandomName() != null && fileInfo.getVersion() == lease.version;
+    }
+
+    /**
+     * keep lease granted by server. Lease is counted from the time request was sent, so it ends before server thinks
+     * so, and it is dropped if server revoked it while the request was on the way.
+     * @param realName real name
+     * @param result check result
+     * @param invalidation number of invalidations of file seen before request was sent
+     * @param requestTime time request was sent
+     */
+    private void takeLease(String realName, CheckResult result, long invalidation, long requestTime) {
+        takeLease(realName, result.getVersion(), result.getLeaseMillis(), invalidation, requestTime);
+    }
+
+    /**
+     * keep lease of a version granted by server, and remember when the version was validated, which bounds staleness
+     * of reads which skip server by consistency rule
+     * @param realName real name
+     * @param version version the lease covers
+     * @param leaseMillis lease in milliseconds, 0 if none
+     * @param invalidation number of invalidations of file seen before request was sent
+     * @param requestTime time request was sent
+     */
+    private void takeLease(String realName, int version, long leaseMillis, long invalidation, long requestTime) {
+        validations.put(realName, new Validation(version, requestTime));
+        if (invalidations.getOrDefault(realName, 0L) != invalidation) {
+            validations.remove(realName);
+        }
+        if (leaseMillis <= 0) {
+            return;
+        }
+        leases.put(realName, new Lease(version, requestTime + leaseMillis));
+        if (invalidations.getOrDefault(realName, 0L) != invalidation) {
+            leases.remove(realName);
+        }
+    }
+
+    /**
+     * build the complete file of a copy-on-write session, which is then uploaded
+     * @param overlay overlay session file
+     * @param logRandomName random name of overlay log
+     * @return random name of complete file
+     * @throws IOException
+     */
+    private String sealOverlay(OverlaySessionFile overlay, String logRandomName) throws IOException {
+        String sealedName = logRandomName + SEALED_SUFFIX;
+        allocateLru((int) overlay.length());
+        try (FileChannel out = FileChannel.open(Paths.get(toProxyPath(sealedName)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            overlay.materialize(out);
+        }
+        updateCacheSize(ADD, sealedName);
+        // an unchanged rewrite shares its bytes with the base version
+        addToStore(sealedName, null);
+        return sealedName;
+    }
+
+    /**
+     * count bytes of overlay logs in cache size while their sessions are open, space is made for new bytes by eviction
+     * @param bytes bytes appended to a log, negative when a log is deleted
+     */
+    private synchronized void countOverlay(long bytes) {
+        if (bytes > 0) {
+            allocateLru((int) bytes);
+        }
+        proxyCacheSize += bytes;
+    }
+
+    /**
+     * delete complete file of a copy-on-write session after it is uploaded
+     * @param sealedName random name of complete file
+     */
+    private synchronized void deleteSealedFile(String sealedName) {
+        uncount(sealedName);
+        new File(toProxyPath(sealedName)).delete();
+    }
+
+    /**
+     * release a cached copy opened for read, the copy is deleted if it is no longer the latest version and nobody
+     * else is using it
+     * @param realName real name
+     * @param randomName random name of cached copy
+     * @param originalVersion version of cached copy
+     */
+    private void releaseCachedCopy(String realName, String randomName, int originalVersion) {
+        minusFileUserCounter(randomName);
+        evictionPolicy.unpin(realName);
+        updateLru(realName);
+        FileInfo latest = mainCopy.get(realName);
+        int latestVersion = latest != null ? latest.getVersion() : -1;
+        if (latestVersion != originalVersion) {
+            Integer users = fileUserCounter.get(randomName);
+            if (users != null && users == 0) {
+                deleteRandomFile(randomName);
+            }
+        }
+    }
+
+    /**
+     * download whole file of a check result, first chunk is in the result and the others are downloaded in parallel
+     * @param result check result
+     * @param realName real name
+     * @param randomName random name of new version
+     * @param file file to write to, unless the new version is small enough to be kept in memory tier
+     * @param streaming true if it may return after the first chunk, the others are then downloaded in background
+     * @return size of file, -1 if fail
+     */
+    private int downloadWhole(CheckResult result, String realName, String randomName, File file,
+                              boolean streaming) {
+        int newFileSize = result.getFileContent().length;
+        ChunksTask chunksTask = result.getChunksTask();
+        if (chunksTask != null) {
+            newFileSize = chunksTask.getFileSize();
+        }
+
+        allocateLru(newFileSize);
+        if (chunksTask == null && memoryTier.put(randomName, result.getFileContent())) {
+            return newFileSize;
+        }
+
+        if (chunksTask != null && streaming) {
+            return startStream(chunksTask, result.getFileContent(), realName, randomName, file);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer first = ByteBuffer.wrap(result.getFileContent());
+            while (first.hasRemaining()) {
+                channel.write(first, first.position());
+            }
+            if (chunksTask == null || chunksTask.downloadAll(this, channel, config.getDownloadWindow(), transferPool)) {
+                return newFileSize;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * check whether cached versions hold any chunk of a chunked download, except the first one which is already sent
+     * @param chunksTask chunks task of check result, may be null
+     * @return true if a chunk is held
+     */
+    private boolean holdsChunks(ChunksTask chunksTask) {
+        if (chunksTask == null || chunksTask.getManifest() == null || chunkStore == null) {
+            return false;
+        }
+        ChunkManifest manifest = chunksTask.getManifest();
+        for (int i = 0; i < manifest.getChunks(); i++) {
+            if (manifest.getOffset(i) + manifest.getSize(i) > chunksTask.getChunkSize()
+                    && chunkStore.holds(manifest.getDigest(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * download a new version which shares chunks with cached versions, or which peers hold. Content in check result
+     * is written first, held chunks are copied from cache folder, and the others are downloaded in parallel, from
+     * peers if server listed any. Bytes which server does not send are skipped on server.
+     * @param result check result, whose chunks task has a manifest
+     * @param file file to write to
+     * @return size of file, -1 if fail
+     */
+    private int downloadReusing(CheckResult result, File file) {
+        ChunksTask chunksTask = result.getChunksTask();
+        ChunkManifest manifest = chunksTask.getManifest();
+        int chunkSize = chunksTask.getChunkSize();
+        // no content is sent with check result when chunks are read from peers
+        int sent = result.getFileContent().length;
+        allocateLru(chunksTask.getFileSize());
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer first = ByteBuffer.wrap(result.getFileContent());
+            while (first.hasRemaining()) {
+                channel.write(first, first.position());
+            }
+            // runs of missing bytes after the content sent, as start and end
+            List<long[]> missing = new ArrayList<>();
+            long skipped = 0;
+            for (int i = 0; i < manifest.getChunks(); i++) {
+                long start = Math.max(manifest.getOffset(i), sent);
+                long end = manifest.getOffset(i) + manifest.getSize(i);
+                if (end <= start) {
+                    continue;
+                }
+                if (chunkStore != null && chunkStore.copyChunk(manifest.getDigest(i), manifest.getSize(i), channel,
+                        manifest.getOffset(i))) {
+                    skipped += end - start;
+                } else if (!missing.isEmpty() && missing.get(missing.size() - 1)[1] == start) {
+                    missing.get(missing.size() - 1)[1] = end;
+                } else {
+                    missing.add(new long[]{start, end});
+                }
+            }
+            if (skipped > 0) {
+                rpc.skipChunks(chunksTask.getServerRandomName(), skipped);
+            }
+            List<int[]> ranges = new ArrayList<>();
+            for (long[] run : missing) {
+                for (long offset = run[0]; offset < run[1]; offset += chunkSize) {
+                    ranges.add(new int[]{(int) offset, (int) Math.min(chunkSize, run[1] - offset)});
+                }
+            }
+            final String serverRandomName = chunksTask.getServerRandomName();
+            AtomicLong fromPeers = new AtomicLong();
+            StreamingDownload.Fetcher fetcher = chunksTask.getPeers() == null
+                    ? (offset, size) -> downloadChunk(serverRandomName, offset, size)
+                    : new PeerFetcher(result, fromPeers);
+            boolean success = chunksTask.downloadRanges(fetcher, channel, ranges, config.getDownloadWindow(),
+                    transferPool);
+            if (fromPeers.get() > 0) {
+                rpc.skipChunks(serverRandomName, fromPeers.get());
+            }
+            if (!success) {
+                return -1;
+            }
+            // held chunks are only matched by digest and peers are not trusted, so the rebuilt file is checked against
+            // manifest of server
+            if (!ChunkManifest.compute(channel).equals(manifest)) {
+                System.err.println("Error in rebuilding " + serverRandomName + " from held chunks and peers");
+                return -1;
+            }
+            return chunksTask.getFileSize();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * write first chunk of a new version, and start downloading the other chunks in background
+     * @param chunksTask chunks task of check result
+     * @param firstChunk content of first chunk
+     * @param realName real name
+     * @param randomName random name of new version
+     * @param file file to write to
+     * @return size of file, -1 if fail
+     */
+    private int startStream(final ChunksTask chunksTask, byte[] firstChunk, final String realName,
+                            final String randomName, File file) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            ByteBuffer first = ByteBuffer.wrap(firstChunk);
+            while (first.hasRemaining()) {
+                channel.write(first, first.position());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    closeError.printStackTrace();
+                }
+            }
+            return -1;
+        }
+        StreamingDownload download = new StreamingDownload(
+                (offset, size) -> downloadChunk(chunksTask.getServerRandomName(), offset, size), channel,
+                chunksTask.getFileSize(), chunksTask.getChunkSize(),
+                success -> finishStream(realName, randomName, success));
+        streams.put(randomName, download);
+        download.start(transferPool, config.getDownloadWindow());
+        return chunksTask.getFileSize();
+    }
+
+    /**
+     * called when a streaming download finishes. A complete version is journaled, a failed one leaves cache, and its
+     * copy is deleted once no session reads it.
+     * @param realName real name
+     * @param randomName random name of version
+     * @param success true if every chunk is written
+     */
+    private void finishStream(String realName, String randomName, boolean success) {
+        synchronized (lockFor(realName)) {
+            FileInfo fileInfo = mainCopy.get(realName);
+            boolean current = fileInfo != null && randomName.equals(fileInfo.getRandomName());
+            if (success) {
+                StreamingDownload download = streams.remove(randomName);
+                if (download != null) {
+                    addToStore(randomName, null);
+                }
+                if (current && download != null) {
+                    recordPut(fileInfo, download.getFileSize());
+                    announceHolder(realName, fileInfo.getVersion());
+                }
+                return;
+            }
+            System.err.println("Error in streaming download of " + realName);
+            if (current) {
+                leases.remove(realName);
+                mainCopy.remove(realName);
+                evictionPolicy.remove(realName);
+                recordRemove(realName);
+            }
+            deleteRandomFile(randomName);
+        }
+    }
+
+    /**
+     * tell server in background that a version of a large file has been downloaded, so that it lists this proxy as a
+     * holder for other proxies. A version is only announced once every byte is cached, a peer which is still
+     * downloading could not serve it.
+     * @param realName real name
+     * @param version version which is cached
+     */
+    private void announceHolder(final String realName, final int version) {
+        if (peer == null) {
+            return;
+        }
+        try {
+            transferPool.execute(() -> {
+                ValidateRequest request = new ValidateRequest();
+                request.add(realName, version);
+                request.setPeer(peer);
+                try {
+                    rpc.validate(request);
+                } catch (IOException e) {
+                    System.err.println("Error in announcing " + realName + " to server");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // proxy is closing
+        }
+    }
+
+    /**
+     * wait until a cached version which is still streaming is complete
+     * @param randomName random name of version
+     * @return true if it is complete, false if its download failed
+     */
+    private boolean awaitStream(String randomName) {
+        StreamingDownload download = streams.get(randomName);
+        return download == null || download.awaitComplete();
+    }
+
+    /**
+     * download delta of server copy against cached copy, and rebuild the new version from them
+     * @param deltaSource random name of server copy
+     * @param baseName random name of cached copy
+     * @param file file to write new version to
+     * @param spaceLimit max size of new version
+     * @return size of new version, -1 if delta is not available or new version is larger than limit
+     */
+    private int downloadDelta(String deltaSource, String baseName, File file, long spaceLimit) {
+        try (FileChannel base = FileChannel.open(Paths.get(toProxyPath(baseName)), StandardOpenOption.READ)) {
+            BlockSignature signature = BlockSignature.compute(baseName, base);
+            Delta delta = rpc.downloadDelta(deltaSource, signature);
+            if (delta == null || delta.getTargetLength() > spaceLimit) {
+                return -1;
+            }
+            allocateLru((int) delta.getTargetLength());
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                delta.apply(base, channel);
+            }
+            return (int) delta.getTargetLength();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * generate random name (add timestamp to the end of file)
+     * @param realName real name
+     * @return random name
+     */
+    private static String generateRandomName(String realName) {
+        long now = new Date().getTime();
+        long timeStamp = lastTimeStamp.updateAndGet(last -> Math.max(last + 1, now));
+        return realName + timeStamp;
+    }
+
+    /**
+     * convert file name to proxy path
+     * @param fileName file name
+     * @return proxy path of file name
+     */
+    private String toProxyPath(String fileName) {
+        return cacheFolder + "/" + fileName;
+    }
+
+    /**
+     * add file user counter, user counter is used to record how many user are using this file, counter is added when
+     * the file is open
+     * @param randomName random name
+     * @return current counter value
+     */
+    private synchronized int addFileUserCounter(String randomName) {
+        if (fileUserCounter.containsKey(randomName)) {
+            fileUserCounter.put(randomName, fileUserCounter.get(randomName) + 1);
+        } else {
+            fileUserCounter.put(randomName, 1);
+        }
+        return fileUserCounter.get(randomName);
+    }
+
+    /**
+     * minus file user counter, user counter minused when the file is closed
+     * @param randomName random name of file
+     * @return current counter
+     */
+    private synchronized int minusFileUserCounter(String randomName) {
+        if (!fileUserCounter.containsKey(randomName)) {
+            return -1;
+        }
+        int newCounter = fileUserCounter.get(randomName) - 1;
+        if (newCounter < 0) {
+            return -1;
+        }
+        fileUserCounter.put(randomName, newCounter);
+        return newCounter;
+    }
+
+    /**
+     * update LRU to move the freshest one to the end of line
+     * @param realName real name
+     */
+    private void updateLru(String realName) {
+        FileInfo fileInfo = mainCopy.get(realName);
+        if (fileInfo != null) {
+            if (!evictionPolicy.touch(realName, fileInfo)) {
+                String randomName = fileInfo.getRandomName();
+                long size = randomName == null ? 0 : Math.max(0, cachedSize(randomName));
+                evictionPolicy.put(fileInfo, size);
+            }
+            if (journal != null) {
+                journal.touch(realName);
+            }
+        } else {
+            System.err.println(realName + " Error: no record in LRU");
+        }
+    }
+
+    /**
+     * allocate a particular size of space, this method will pick the right file to evict
+     * @param allocateSize size to be allocated
+     * @return 0 if success
+     */
+    private synchronized int allocateLru(int allocateSize) {
+        int expectedFreeSize = proxyCacheSize + allocateSize - cacheMaxSize;
+
+        while (expectedFreeSize > 0) {
+            // pinned files are never chosen, so a victim can always be evicted
+            FileInfo fileInfo = evictionPolicy.evict();
+            if (fileInfo == null) {
+                break;
+            }
+            if (mainCopy.remove(fileInfo.getRealName(), fileInfo)) {
+                recordRemove(fileInfo.getRealName());
+            }
+            if (cachedSize(fileInfo.getRandomName()) >= 0) {
+                // content shared with another version frees nothing
+                int before = proxyCacheSize;
+                deleteRandomFile(fileInfo.getRandomName());
+                expectedFreeSize -= before - proxyCacheSize;
+            } else {
+                System.err.println("Error in evict " + fileInfo.getRandomName() + " does not exist");
+            }
+            if (prefetcher != null) {
+                prefetcher.evicted(fileInfo.getRealName());
+            }
+        }
+        return 0;
     }
 
     /**
      * delete random file
      * @param randomFileName random file to be delete
      */
-    private void deleteRandomFile(String randomFileName) {
+    private synchronized void deleteRandomFile(String randomFileName) {
         if (!fileUserCounter.containsKey(randomFileName)) {
             return;
         }
         if (fileUserCounter.get(randomFileName) != 0) {
             return;
         }
-        File file = new File(toProxyPath(randomFileName));
-        if (file.exists()) {
-            updateCacheSize(MINUS, randomFileName);
-            file.delete();
+        if (cachedSize(randomFileName) >= 0) {
+            uncount(randomFileName);
+            StreamingDownload download = streams.remove(randomFileName);
+            if (download != null) {
+                download.cancel();
+            }
+            memoryTier.remove(randomFileName);
+            new File(toProxyPath(randomFileName)).delete();
         } else {
             System.err.println(randomFileName + " did not exist at all");
         }
     }
 
+    /**
+     * get size of a cached version, which is either in memory tier or in cache folder
+     * @param randomName random name of file
+     * @return size in bytes, -1 if it is in neither tier
+     */
+    private long cachedSize(String randomName) {
+        StreamingDownload download = streams.get(randomName);
+        if (download != null) {
+            // cache file may still be shorter
+            return download.getFileSize();
+        }
+        long size = memoryTier.length(randomName);
+        if (size >= 0) {
+            return size;
+        }
+        File file = new File(toProxyPath(randomName));
+        return file.exists() ? file.length() : -1;
+    }
+
+    /**
+     * make sure a cached version is in cache folder, a version in memory tier is moved to disk tier
+     * @param randomName random name of file
+     */
+    private void ensureOnDisk(String randomName) {
+        try {
+            memoryTier.spill(randomName);
+        } catch (IOException e) {
+            System.err.println("Error in moving " + randomName + " from memory to cache folder");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * write a file which leaves memory tier to cache folder, its size is still counted in cache size
+     * @param randomName random name of file
+     * @param content content of file
+     * @throws IOException
+     */
+    private void spillToDisk(String randomName, ByteBuffer content) throws IOException {
+        Path path = Paths.get(toProxyPath(randomName));
+        java.nio.file.Files.createDirectories(path.getParent());
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+    }
+
     /**
      * update cache size
      * @param option add or minus
      * @param randomName random name of file
      * @return changed size
      */
-    private int updateCacheSize(int option, String randomName) {
-        File file = new File(toProxyPath(randomName));
-        if (file.exists()) {
-            int fileSize = (int) file.length();
+    private synchronized int updateCacheSize(int option, String randomName) {
+        long size = cachedSize(randomName);
+        if (size >= 0) {
+            int fileSize = (int) size;
             if (option == ADD) {
                 proxyCacheSize += fileSize;
                 return fileSize;
@@ -656,12 +1844,264 @@ class Proxy {
         }
     }
 
+    /**
+     * add a complete version in cache folder to chunk store. If identical content is already held, the version shares
+     * it and its bytes are no longer counted in cache size.
+     * @param randomName random name of version, which must be counted in cache size
+     * @param manifest manifest of version, null to compute it from file
+     */
+    private void addToStore(String randomName, ChunkManifest manifest) {
+        if (chunkStore == null || chunkStore.contains(randomName) || memoryTier.contains(randomName)
+                || streams.containsKey(randomName)) {
+            return;
+        }
+        File file = new File(toProxyPath(randomName));
+        try {
+            if (manifest == null) {
+                manifest = ChunkManifest.compute(file.toPath());
+            }
+        } catch (IOException e) {
+            System.err.println("Error in adding " + randomName + " to chunk store");
+            e.printStackTrace();
+            return;
+        }
+        synchronized (this) {
+            // a version which is deleted meanwhile is not added
+            if (!file.isFile()) {
+                return;
+            }
+            long shared = chunkStore.add(randomName, manifest);
+            if (shared > 0) {
+                proxyCacheSize -= shared;
+            }
+        }
+    }
+
+    /**
+     * stop counting a version which is going to be deleted, content which another version shares stays counted
+     * @param randomName random name of version
+     */
+    private synchronized void uncount(String randomName) {
+        long freed = chunkStore == null ? -1 : chunkStore.remove(randomName);
+        if (freed >= 0) {
+            proxyCacheSize -= freed;
+        } else {
+            updateCacheSize(MINUS, randomName);
+        }
+    }
+
+    /**
+     * rebuild cache from persistent index after restart. Entries whose cached copy is missing or has a wrong size are
+     * dropped. Files in cache folder which belong to no entry (left by a crash, e.g. partial downloads or write
+     * sessions) are only deleted if {@link ProxyConfig#isCollectOrphans()}, since cache folder may hold other files of
+     * users. Versions are revalidated by the usual server check when the file is opened. Recovered
+     * versions are added to chunk store again, which reads each of them once.
+     */
+    private void recoverCache() {
+        List<CacheJournal.Entry> entries;
+        try {
+            entries = journal.load();
+        } catch (IOException e) {
+            System.err.println("Error in loading cache index, start with empty cache");
+            e.printStackTrace();
+            return;
+        }
+        Set<String> liveFiles = new HashSet<>();
+        for (CacheJournal.Entry entry : entries) {
+            File file = new File(toProxyPath(entry.getRandomName()));
+            if (!file.isFile() || file.length() != entry.getSize()) {
+                journal.remove(entry.getRealName());
+                continue;
+            }
+            FileInfo fileInfo = new FileInfo(entry.getRealName(), entry.getRandomName(), entry.getVersion());
+            mainCopy.put(entry.getRealName(), fileInfo);
+            evictionPolicy.put(fileInfo, entry.getSize());
+            fileUserCounter.put(entry.getRandomName(), 0);
+            proxyCacheSize += entry.getSize();
+            addToStore(entry.getRandomName(), null);
+            liveFiles.add(Paths.get(entry.getRandomName()).normalize().toString());
+        }
+
+        Path root = Paths.get(cacheFolder);
+        int orphans = 0;
+        try (java.util.stream.Stream<Path> paths = java.nio.file.Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = root.relativize(path).toString();
+                if (java.nio.file.Files.isRegularFile(path) && !liveFiles.contains(name)
+                        && !CacheJournal.isIndexFile(name)) {
+                    orphans++;
+                    if (config.isCollectOrphans()) {
+                        java.nio.file.Files.delete(path);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error in collecting orphan files of cache");
+            e.printStackTrace();
+        }
+        if (orphans > 0 && !config.isCollectOrphans()) {
+            System.err.println(orphans + " files in cache folder belong to no cached version, they are kept");
+        }
+        journal.compact();
+        allocateLru(0);
+        System.err.println("Recovered " + liveFiles.size() + " cached files, " + proxyCacheSize + " bytes");
+    }
+
+    /**
+     * record a new cached version in persistent index
+     * @param fileInfo file info
+     * @param size size of cached copy
+     */
+    private void recordPut(FileInfo fileInfo, long size) {
+        if (journal != null) {
+            journal.put(fileInfo, size);
+        }
+    }
+
+    /**
+     * record a removed file in persistent index
+     * @param realName real name
+     */
+    private void recordRemove(String realName) {
+        if (journal != null) {
+            journal.remove(realName);
+        }
+    }
+
+    /**
+     * get the lock which serializes open of a file, different files mostly fall into different stripes
+     * @param realName real name
+     * @return lock object
+     */
+    Object lockFor(String realName) {
+        return fileLocks[(realName.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * download a chunk of server copy, encoded by negotiated codec
+     * @param randomName random name of server copy
+     * @param offset offset of chunk
+     * @param size size of chunk
+     * @return content of chunk, null if fail
+     * @throws IOException
+     */
+    byte[] downloadChunk(String randomName, int offset, int size) throws IOException {
+        int chunkCodec = codec;
+        long start = System.nanoTime();
+        byte[] bytes = chunkCodec == Codec.NONE
+                ? rpc.downloadChunk(randomName, offset, size)
+                : rpc.downloadChunk(randomName, offset, size, chunkCodec);
+        if (bytes != null && chunkTuner != null) {
+            chunkTuner.record(bytes.length, System.nanoTime() - start);
+        }
+        return chunkCodec == Codec.NONE ? bytes : Codec.decode(bytes, chunkCodec, metrics);
+    }
+
+    /**
+     * get chunk size of next transfer
+     * @return chunk size, tuned from recent transfers if adaptive chunks are enabled
+     */
+    int getChunkSize() {
+        return chunkTuner == null ? ChunksTask.CHUNK_SIZE : chunkTuner.getChunkSize();
+    }
+
+    /**
+     * log an open to trace file, if there is one
+     * @param realName real name
+     */
+    private void traceOpen(String realName) {
+        if (trace == null) {
+            return;
+        }
+        FileInfo fileInfo = mainCopy.get(realName);
+        long size = fileInfo == null || fileInfo.getRandomName() == null ? 0 : cachedSize(fileInfo.getRandomName());
+        trace.open(realName, Math.max(0, size));
+    }
+
+    /**
+     * learn an open of a client, and prefetch the files which are likely to be opened next in background
+     * @param previous file opened before by the same client, null if none
+     * @param realName file which is opened
+     */
+    private void prefetchAfter(String previous, String realName) {
+        if (prefetcher == null) {
+            return;
+        }
+        FileInfo fileInfo = mainCopy.get(realName);
+        long size = fileInfo == null || fileInfo.getRandomName() == null ? 0 : cachedSize(fileInfo.getRandomName());
+        for (final String next : prefetcher.recordOpen(previous, realName, Math.max(0, size))) {
+            if (!prefetching.add(next)) {
+                continue;
+            }
+            try {
+                prefetchPool.execute(() -> {
+                    try {
+                        prefetch(next);
+                    } finally {
+                        prefetching.remove(next);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                prefetching.remove(next);
+                metrics.increment(Prefetcher.SKIPPED);
+            }
+        }
+    }
+
+    /**
+     * bring cached copy of a file up to date before it is opened, if budget of prefetcher allows. A new copy is put at
+     * the eldest end of LRU until it is opened, so a wrong guess is evicted before any file which has been used.
+     * @param realName real name
+     */
+    private void prefetch(String realName) {
+        synchronized (lockFor(realName)) {
+            FileInfo cached = mainCopy.get(realName);
+            if (cached != null && holdsLease(realName)) {
+                return;
+            }
+            long freeSpace;
+            synchronized (this) {
+                freeSpace = cacheMaxSize - proxyCacheSize;
+            }
+            if (!prefetcher.admit(realName, freeSpace)) {
+                return;
+            }
+            String oldRandomName = cached == null ? null : cached.getRandomName();
+            // file may have grown since its size was recorded, so server's size is checked as well
+            if (checkServerUpdateCache(realName, FileHandling.OpenOption.READ, freeSpace) != 0) {
+                return;
+            }
+            FileInfo fileInfo = mainCopy.get(realName);
+            if (fileInfo != null && fileInfo.getRandomName() != null
+                    && !fileInfo.getRandomName().equals(oldRandomName) && evictionPolicy.demote(realName)) {
+                prefetcher.prefetched(realName, Math.max(0, cachedSize(fileInfo.getRandomName())));
+            }
+        }
+    }
+
+    /**
+     * get metrics of proxy
+     * @return metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * print metrics of proxy, e.g. compression ratio of transfers
+     */
+    public void printMetrics() {
+        System.err.printf("Metrics: %s, compression ratio received %.2f, sent %.2f, prefetch hit rate %.2f%n", metrics,
+                metrics.ratio(Codec.RECEIVED_RAW, Codec.RECEIVED_WIRE), metrics.ratio(Codec.SENT_RAW, Codec.SENT_WIRE),
+                prefetcher == null ? 0 : prefetcher.getHitRate());
+    }
+
     /**
      * print lru info
      */
     public void printLru() {
         System.err.print("LRU: ");
-        for (FileInfo fileInfo : lru) {
+        for (FileInfo fileInfo : evictionPolicy.snapshot()) {
             System.err.print(fileInfo.getRealName() + " " + fileUserCounter.get(fileInfo.getRandomName()) + "   ");
         }
         System.err.println();
@@ -676,5 +2116,199 @@ class Proxy {
         Path path = Paths.get(input);
         return path.normalize().toString();
     }
-}
 
+    /**
+     * uploads versions of write back queue, and updates cache when they leave it
+     */
+    private class WriteBackUploader implements WriteBackQueue.Uploader {
+        @Override
+        public int upload(String realName, String fileName) {
+            return Proxy.this.upload(realName, fileName);
+        }
+
+        @Override
+        public void done(String realName, String fileName, int result) {
+            synchronized (lockFor(realName)) {
+                FileInfo fileInfo = mainCopy.get(realName);
+                boolean current = fileInfo != null && fileName.equals(fileInfo.getRandomName());
+                if (current && result < 0) {
+                    // keep the only copy of written data, still held and pinned, until flush uploads it
+                    System.err.println("Error in write back of " + realName + ", written version is kept in cache");
+                    failedUploads.put(realName, fileName);
+                    return;
+                }
+                minusFileUserCounter(fileName);
+                evictionPolicy.unpin(realName);
+                if (!current) {
+                    deleteRandomFile(fileName);
+                } else if (result > 0) {
+                    // proxy wrote this version, no need to download it again
+                    fileInfo.updateCacheInfo(fileName, result);
+                    recordPut(fileInfo, Math.max(0, cachedSize(fileName)));
+                }
+            }
+        }
+    }
+
+    /**
+     * lease of a cached version
+     */
+    private static class Lease {
+        private final int version;
+        private final long expiry;
+
+        Lease(int version, long expiry) {
+            this.version = version;
+            this.expiry = expiry;
+        }
+    }
+
+    private static class Validation {
+        private final int version;
+        private final long time;
+
+        Validation(int version, long time) {
+            this.version = version;
+            this.time = time;
+        }
+    }
+
+    /**
+     * fill of an uncached file, which concurrent opens of the file wait for
+     */
+    private static class Fill {
+        private int errno;
+        private String randomName;
+        private boolean done;
+
+        /**
+         * wake up the opens which wait for fill
+         * @param errno 0 if file is cached, or error number of server check
+         * @param randomName random name of cached version, null if none
+         */
+        synchronized void finish(int errno, String randomName) {
+            this.errno = errno;
+            this.randomName = randomName;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * wait until fill is finished
+         * @return true if finished, false if thread is interrupted
+         */
+        synchronized boolean await() {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * read a chunk of a cached version for a peer. Only a complete version which is the latest one proxy knows is
+     * served, and its file is never written once cached.
+     * @param realName real name of file
+     * @param version version number given by server
+     * @param offset offset of chunk
+     * @param size size of chunk
+     * @return content of chunk, null if version is not held, or chunk is larger than max chunk size or out of file
+     */
+    byte[] readForPeer(String realName, int version, long offset, int size) {
+        FileInfo fileInfo = mainCopy.get(realName);
+        String randomName = fileInfo == null ? null : fileInfo.getRandomName();
+        if (randomName == null || version <= 0 || fileInfo.getVersion() != version || offset < 0 || size < 0
+                || size > config.getMaxChunkSize() || streams.containsKey(randomName)
+                || memoryTier.contains(randomName) || isUploadPending(realName)) {
+            return null;
+        }
+        // a version which is evicted meanwhile can not be opened, the peer then asks server
+        try (FileChannel channel = FileChannel.open(Paths.get(toProxyPath(randomName)), StandardOpenOption.READ)) {
+            if (offset > channel.size() - size) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+                // keep reading until the chunk is full
+            }
+            if (buffer.hasRemaining()) {
+                return null;
+            }
+            metrics.add(PEER_SERVED, size);
+            return buffer.array();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * fetches chunks of a version from the peers server listed, chunks are spread over peers. A chunk which no peer
+     * can send is downloaded from server, and a peer which fails once is not asked again.
+     */
+    private class PeerFetcher implements StreamingDownload.Fetcher {
+        private final CheckResult result;
+        private final List<PeerRpc> peers;
+        private final Set<PeerRpc> failed;
+        private final AtomicLong fromPeers;
+
+        PeerFetcher(CheckResult result, AtomicLong fromPeers) {
+            this.result = result;
+            this.peers = result.getChunksTask().getPeers();
+            this.failed = ConcurrentHashMap.newKeySet();
+            this.fromPeers = fromPeers;
+        }
+
+        @Override
+        public byte[] fetch(int offset, int size) throws IOException {
+            ChunksTask chunksTask = result.getChunksTask();
+            int first = offset / chunksTask.getChunkSize();
+            for (int i = 0; i < peers.size(); i++) {
+                PeerRpc holder = peers.get((first + i) % peers.size());
+                if (failed.contains(holder)) {
+                    continue;
+                }
+                byte[] bytes = null;
+                try {
+                    bytes = holder.readChunk(result.getRealName(), result.getVersion(), offset, size);
+                } catch (RemoteException e) {
+                    System.err.println("Error in reading chunk from peer: " + e);
+                }
+                if (bytes != null && bytes.length == size) {
+                    fromPeers.addAndGet(size);
+                    metrics.add(PEER_RECEIVED, size);
+                    return bytes;
+                }
+                failed.add(holder);
+                metrics.add(PEER_MISSES, 1);
+            }
+            return downloadChunk(chunksTask.getServerRandomName(), offset, size);
+        }
+    }
+
+    /**
+     * interface which other proxies call to read cached versions
+     */
+    private class PeerService implements PeerRpc {
+        @Override
+        public byte[] readChunk(String realName, int version, long offset, int size) {
+            return readForPeer(realName, version, offset, size);
+        }
+    }
+
+    /**
+     * callback which server calls to revoke leases
+     */
+    private class LeaseCallback implements ProxyCallback {
+        @Override
+        public void invalidate(String realName) {
+            invalidations.merge(realName, 1L, Long::sum);
+            leases.remove(realName);
+            validations.remove(realName);
+        }
+    }
+}
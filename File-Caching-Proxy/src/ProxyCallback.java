@@ -0,0 +1,14 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Callback interface which proxy exports to server, so that server can revoke leases of cached files
+ */
+public interface ProxyCallback extends Remote {
+    /**
+     * tell proxy that its cached version of a file is no longer the latest one, proxy must check server on next open
+     * @param realName real name of file
+     * @throws RemoteException
+     */
+    void invalidate(String realName) throws RemoteException;
+}
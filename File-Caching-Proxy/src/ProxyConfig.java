@@ -0,0 +1,450 @@
+/**
+ * Tunable options of proxy. Default values can be overridden by system properties, e.g.
+ * <pre>
+ *     java -Dproxy.downloadWindow=8 Proxy 127.0.0.1 11122 ProxyFile 100000
+ * </pre>
+ */
+public class ProxyConfig {
+    public static final String TRANSPORT_RMI = "rmi";
+    public static final String TRANSPORT_NIO = "nio";
+
+    private int downloadWindow;
+    private int uploadWindow;
+    private boolean deltaEnabled;
+    private long deltaMinSize;
+    private boolean persistentCache;
+    private boolean collectOrphans;
+    private boolean mmapRead;
+    private long memoryTierSize;
+    private int memoryTierMaxFile;
+    private boolean leases;
+    private boolean compression;
+    private String transport;
+    private int nioPort;
+    private boolean prefetch;
+    private long prefetchBandwidth;
+    private double prefetchSpaceRatio;
+    private boolean adaptiveChunks;
+    private int minChunkSize;
+    private int maxChunkSize;
+    private boolean streamingOpen;
+    private boolean writeBack;
+    private int writeBackWorkers;
+    private String eviction;
+    private String traceFile;
+    private boolean dedup;
+    private boolean peerCaching;
+    private boolean batchValidation;
+    private long revalidateMillis;
+    private boolean singleFlight;
+    private String consistency;
+
+    /**
+     * constructor, read options from system properties
+     */
+    public ProxyConfig() {
+        downloadWindow = Integer.getInteger("proxy.downloadWindow", 4);
+        uploadWindow = Integer.getInteger("proxy.uploadWindow", 4);
+        deltaEnabled = Boolean.parseBoolean(System.getProperty("proxy.delta", "true"));
+        deltaMinSize = Long.getLong("proxy.deltaMinSize", ChunksTask.CHUNK_SIZE);
+        persistentCache = Boolean.parseBoolean(System.getProperty("proxy.persistentCache", "false"));
+        collectOrphans = Boolean.parseBoolean(System.getProperty("proxy.collectOrphans", "false"));
+        mmapRead = Boolean.parseBoolean(System.getProperty("proxy.mmapRead", "false"));
+        memoryTierSize = Long.getLong("proxy.memoryTierSize", 16L * 1024 * 1024);
+        memoryTierMaxFile = Integer.getInteger("proxy.memoryTierMaxFile", 64 * 1024);
+        leases = Boolean.parseBoolean(System.getProperty("proxy.leases", "true"));
+        transport = System.getProperty("proxy.transport", TRANSPORT_RMI);
+        nioPort = Integer.getInteger("proxy.nioPort", -1);
+        prefetch = Boolean.parseBoolean(System.getProperty("proxy.prefetch", "false"));
+        prefetchBandwidth = Long.getLong("proxy.prefetchBandwidth", 8L * 1024 * 1024);
+        prefetchSpaceRatio = Double.parseDouble(System.getProperty("proxy.prefetchSpaceRatio", "0.25"));
+        adaptiveChunks = Boolean.parseBoolean(System.getProperty("proxy.adaptiveChunks", "true"));
+        minChunkSize = Integer.getInteger("proxy.minChunkSize", 64 * 1024);
+        maxChunkSize = Integer.getInteger("proxy.maxChunkSize", 16 * 1024 * 1024);
+        streamingOpen = Boolean.parseBoolean(System.getProperty("proxy.streamingOpen", "false"));
+        writeBack = Boolean.parseBoolean(System.getProperty("proxy.writeBack", "false"));
+        writeBackWorkers = Integer.getInteger("proxy.writeBackWorkers", 2);
+        eviction = System.getProperty("proxy.eviction", EvictionPolicy.LRU);
+        traceFile = System.getProperty("proxy.traceFile");
+        dedup = Boolean.parseBoolean(System.getProperty("proxy.dedup", "true"));
+        peerCaching = Boolean.parseBoolean(System.getProperty("proxy.peerCaching", "false"));
+        batchValidation = Boolean.parseBoolean(System.getProperty("proxy.batchValidation", "true"));
+        revalidateMillis = Long.getLong("proxy.revalidateMillis", 0);
+        singleFlight = Boolean.parseBoolean(System.getProperty("proxy.singleFlight", "true"));
+        consistency = System.getProperty("proxy.consistency", "");
+        // NIO transport sends raw chunks without copying them, so compression is off unless asked for
+        compression = Boolean.parseBoolean(System.getProperty("proxy.compression",
+                String.valueOf(!TRANSPORT_NIO.equals(transport))));
+    }
+
+    /**
+     * get number of chunk requests which may be in flight at the same time when downloading a file, 1 means chunks
+     * are downloaded one by one
+     * @return download window
+     */
+    public int getDownloadWindow() {
+        return downloadWindow;
+    }
+
+    public void setDownloadWindow(int downloadWindow) {
+        this.downloadWindow = Math.max(1, downloadWindow);
+    }
+
+    /**
+     * get number of chunks which may be in flight at the same time when uploading a file
+     * @return upload window
+     */
+    public int getUploadWindow() {
+        return uploadWindow;
+    }
+
+    public void setUploadWindow(int uploadWindow) {
+        this.uploadWindow = Math.max(1, uploadWindow);
+    }
+
+    /**
+     * check whether files are transferred as block deltas when the other side holds an older version
+     * @return true if delta transfer is enabled
+     */
+    public boolean isDeltaEnabled() {
+        return deltaEnabled;
+    }
+
+    public void setDeltaEnabled(boolean deltaEnabled) {
+        this.deltaEnabled = deltaEnabled;
+    }
+
+    /**
+     * get min size of file which is worth a delta transfer, smaller files are always sent as a whole
+     * @return size in bytes
+     */
+    public long getDeltaMinSize() {
+        return deltaMinSize;
+    }
+
+    public void setDeltaMinSize(long deltaMinSize) {
+        this.deltaMinSize = deltaMinSize;
+    }
+
+    /**
+     * check whether cache index is kept on disk, so that cached files are reused after restart
+     * @return true if cache index is persistent
+     */
+    public boolean isPersistentCache() {
+        return persistentCache;
+    }
+
+    public void setPersistentCache(boolean persistentCache) {
+        this.persistentCache = persistentCache;
+    }
+
+    /**
+     * check whether files in cache folder which belong to no recovered version, e.g. partial downloads left by a crash,
+     * are deleted after restart. Cache folder must then hold nothing but cache of proxy.
+     * @return true if orphan files are deleted
+     */
+    public boolean isCollectOrphans() {
+        return collectOrphans;
+    }
+
+    public void setCollectOrphans(boolean collectOrphans) {
+        this.collectOrphans = collectOrphans;
+    }
+
+    /**
+     * check whether cached versions opened for read are memory-mapped and shared by all fds
+     * @return true if read opens use mappings
+     */
+    public boolean isMmapRead() {
+        return mmapRead;
+    }
+
+    public void setMmapRead(boolean mmapRead) {
+        this.mmapRead = mmapRead;
+    }
+
+    /**
+     * get byte budget of in-memory tier for small files, 0 disables it
+     * @return budget in bytes
+     */
+    public long getMemoryTierSize() {
+        return memoryTierSize;
+    }
+
+    public void setMemoryTierSize(long memoryTierSize) {
+        this.memoryTierSize = Math.max(0, memoryTierSize);
+    }
+
+    /**
+     * get max size of file which is kept in in-memory tier, larger files go to cache folder
+     * @return max file size in bytes
+     */
+    public int getMemoryTierMaxFile() {
+        return memoryTierMaxFile;
+    }
+
+    public void setMemoryTierMaxFile(int memoryTierMaxFile) {
+        this.memoryTierMaxFile = Math.max(0, memoryTierMaxFile);
+    }
+
+    /**
+     * check whether proxy asks server for leases, so that opens of files with a valid lease skip server
+     * @return true if leases are used
+     */
+    public boolean isLeases() {
+        return leases;
+    }
+
+    public void setLeases(boolean leases) {
+        this.leases = leases;
+    }
+
+    /**
+     * check whether proxy offers compression of file content to server
+     * @return true if compression is offered
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * get transport of proxy to server traffic
+     * @return {@link #TRANSPORT_RMI} or {@link #TRANSPORT_NIO}
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * get port of NIO transport of server
+     * @param serverPort RMI port of server
+     * @return NIO port, port after RMI port unless set
+     */
+    public int getNioPort(int serverPort) {
+        return nioPort > 0 ? nioPort : serverPort + 1;
+    }
+
+    public void setNioPort(int nioPort) {
+        this.nioPort = nioPort;
+    }
+
+    /**
+     * check whether proxy prefetches files which are likely to be opened next
+     * @return true if prefetch is enabled
+     */
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * get max average rate of prefetch downloads
+     * @return bytes per second
+     */
+    public long getPrefetchBandwidth() {
+        return prefetchBandwidth;
+    }
+
+    public void setPrefetchBandwidth(long prefetchBandwidth) {
+        this.prefetchBandwidth = prefetchBandwidth;
+    }
+
+    /**
+     * get max part of cache which may be taken by prefetched files that have not been opened yet
+     * @return ratio of cache size
+     */
+    public double getPrefetchSpaceRatio() {
+        return prefetchSpaceRatio;
+    }
+
+    public void setPrefetchSpaceRatio(double prefetchSpaceRatio) {
+        this.prefetchSpaceRatio = prefetchSpaceRatio;
+    }
+
+    /**
+     * check whether chunk size is tuned from measured round trip and bandwidth, instead of
+     * {@link ChunksTask#CHUNK_SIZE}
+     * @return true if chunk size is adaptive
+     */
+    public boolean isAdaptiveChunks() {
+        return adaptiveChunks;
+    }
+
+    public void setAdaptiveChunks(boolean adaptiveChunks) {
+        this.adaptiveChunks = adaptiveChunks;
+    }
+
+    /**
+     * get min chunk size of adaptive chunks
+     * @return bytes
+     */
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public void setMinChunkSize(int minChunkSize) {
+        this.minChunkSize = minChunkSize;
+    }
+
+    /**
+     * get max chunk size of adaptive chunks, every transfer in flight holds a chunk in memory
+     * @return bytes
+     */
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public void setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * check whether open for read returns once the first chunk of a new version is cached, while the other chunks are
+     * downloaded in background
+     * @return true if read opens stream
+     */
+    public boolean isStreamingOpen() {
+        return streamingOpen;
+    }
+
+    public void setStreamingOpen(boolean streamingOpen) {
+        this.streamingOpen = streamingOpen;
+    }
+
+    /**
+     * check whether close of a written file returns before its upload, which is done in background. Other proxies
+     * see the new version only once it is uploaded, and a version which is not uploaded yet is lost if proxy stops.
+     * @return true if uploads are written back
+     */
+    public boolean isWriteBack() {
+        return writeBack;
+    }
+
+    public void setWriteBack(boolean writeBack) {
+        this.writeBack = writeBack;
+    }
+
+    /**
+     * get number of files which are uploaded in parallel by write back
+     * @return number of workers
+     */
+    public int getWriteBackWorkers() {
+        return writeBackWorkers;
+    }
+
+    public void setWriteBackWorkers(int writeBackWorkers) {
+        this.writeBackWorkers = Math.max(1, writeBackWorkers);
+    }
+
+    /**
+     * get eviction policy of cache
+     * @return {@link EvictionPolicy#LRU}, {@link EvictionPolicy#TINY_LFU} or {@link EvictionPolicy#ARC}
+     */
+    public String getEviction() {
+        return eviction;
+    }
+
+    public void setEviction(String eviction) {
+        this.eviction = eviction;
+    }
+
+    /**
+     * get file which opens and closes are logged to, for {@link CacheSimulator}
+     * @return path of trace file, null if not logged
+     */
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    public void setTraceFile(String traceFile) {
+        this.traceFile = traceFile;
+    }
+
+    /**
+     * check whether cached versions are kept in a {@link ChunkStore}, so identical content is stored once, and
+     * downloads copy the chunks proxy already holds instead of transferring them
+     * @return true if deduplicated
+     */
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    /**
+     * check whether proxy shares its cached versions with other proxies of the same server, and reads a new version
+     * from proxies which hold it before asking server for it
+     * @return true if cache is shared
+     */
+    public boolean isPeerCaching() {
+        return peerCaching;
+    }
+
+    public void setPeerCaching(boolean peerCaching) {
+        this.peerCaching = peerCaching;
+    }
+
+    /**
+     * check whether cached versions are validated in batches: opens of cached files which run at the same time share
+     * one validation, and versions recovered after restart are validated by a few requests in background
+     * @return true if validated in batches
+     */
+    public boolean isBatchValidation() {
+        return batchValidation;
+    }
+
+    public void setBatchValidation(boolean batchValidation) {
+        this.batchValidation = batchValidation;
+    }
+
+    /**
+     * get period of background sweeps which validate every cached version, so that files which are still up to date
+     * keep their leases and are opened without checking server. It should be shorter than the lease of server.
+     * @return period in milliseconds, 0 if there is no sweep
+     */
+    public long getRevalidateMillis() {
+        return revalidateMillis;
+    }
+
+    public void setRevalidateMillis(long revalidateMillis) {
+        this.revalidateMillis = revalidateMillis;
+    }
+
+    /**
+     * check whether concurrent opens of a file which is not cached share one fill: the first one downloads the file,
+     * and the others wait for it and open the same version
+     * @return true if fills are shared
+     */
+    public boolean isSingleFlight() {
+        return singleFlight;
+    }
+
+    public void setSingleFlight(boolean singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * get consistency rules of reads by path prefix, see {@link ConsistencyPolicy}
+     * @return comma separated list of prefix=mode[:millis], empty if every read is strict
+     */
+    public String getConsistency() {
+        return consistency;
+    }
+
+    public void setConsistency(String consistency) {
+        this.consistency = consistency;
+    }
+}
@@ -16,6 +16,52 @@ public interface Rpc extends Remote {
      */
     int uploadChunk(String realName, byte[] fileContent, int chunk, int totalChunk) throws RemoteException;
 
+    /**
+     * begin an upload session of file. Chunks of session can be uploaded in any order and by several threads, the new
+     * version is invisible until the session is committed.
+     * @param realName real name of file
+     * @return upload id if success, error number (negative) if fail
+     * @throws RemoteException
+     */
+    long beginUpload(String realName) throws RemoteException;
+
+    /**
+     * upload one chunk of an upload session, the chunk is written at its offset
+     * @param uploadId upload id
+     * @param offset offset of chunk in file
+     * @param fileContent byte array of chunk content
+     * @return 0 is success or error number
+     * @throws RemoteException
+     */
+    int uploadChunkAt(long uploadId, long offset, byte[] fileContent) throws RemoteException;
+
+    /**
+     * upload one chunk of an upload session as a frame of negotiated codec, see {@link Codec}
+     * @param uploadId upload id
+     * @param offset offset of chunk in file
+     * @param frame encoded chunk content
+     * @param codec codec of frame
+     * @return 0 is success or error number
+     * @throws RemoteException
+     */
+    int uploadChunkAt(long uploadId, long offset, byte[] frame, int codec) throws RemoteException;
+
+    /**
+     * commit an upload session, which atomically publishes the uploaded file as the newest version
+     * @param uploadId upload id
+     * @param fileSize size of uploaded file
+     * @return new version number if success, error number (negative) if fail
+     * @throws RemoteException
+     */
+    int commitUpload(long uploadId, long fileSize) throws RemoteException;
+
+    /**
+     * abort an upload session and drop what has been uploaded
+     * @param uploadId upload id
+     * @throws RemoteException
+     */
+    void abortUpload(long uploadId) throws RemoteException;
+
     /**
      * delete file in server.
      * @param realName real name of file
@@ -34,6 +80,17 @@ public interface Rpc extends Remote {
      */
     byte[] downloadChunk(String randomName, int offset, int size) throws RemoteException;
 
+    /**
+     * download chunks from server as a frame of negotiated codec, see {@link Codec}
+     * @param randomName random number of file
+     * @param offset offset of file
+     * @param size size of chunk to download
+     * @param codec codec of frame
+     * @return encoded chunk content
+     * @throws RemoteException
+     */
+    byte[] downloadChunk(String randomName, int offset, int size, int codec) throws RemoteException;
+
     /**
      * check server and download files
      * @param realName real name of file
@@ -44,4 +101,58 @@ public interface Rpc extends Remote {
      */
     CheckResult checkServer(String realName, FileHandling.OpenOption o, int version) throws RemoteException;
 
+    /**
+     * check server and download files, the request may ask for a delta against cached copy. A proxy which shares its
+     * cache may be given peers which hold the version, see {@link ChunksTask#getPeers()}. It is listed as holder itself
+     * if it already holds the version, otherwise once it announces the version with {@link #validate}.
+     * @param request check request
+     * @return CheckResult class
+     * @throws RemoteException
+     */
+    CheckResult checkServer(CheckRequest request) throws RemoteException;
+
+    /**
+     * download delta of server copy against signature of client copy
+     * @param randomName random name of server copy, given by {@link CheckResult#getDeltaSource()}
+     * @param signature signature of client copy
+     * @return delta, or null if delta is not smaller than the file itself
+     * @throws RemoteException
+     */
+    Delta downloadDelta(String randomName, BlockSignature signature) throws RemoteException;
+
+    /**
+     * get signature of current version of file, which client can compute an upload delta against
+     * @param realName real name of file
+     * @return signature, source name of signature is the server copy, or null if there is no such file
+     * @throws RemoteException
+     */
+    BlockSignature getSignature(String realName) throws RemoteException;
+
+    /**
+     * upload a delta in an upload session, the session file is rebuilt from base copy and delta
+     * @param uploadId upload id
+     * @param baseName source name of signature which delta is computed against
+     * @param delta delta
+     * @return 0 is success or error number
+     * @throws RemoteException
+     */
+    int uploadDelta(long uploadId, String baseName, Delta delta) throws RemoteException;
+
+    /**
+     * tell server that some bytes of a chunked download will not be asked for, because proxy copies them from chunks it
+     * already holds or reads them from peers. Server copy is released once every byte is either downloaded or skipped.
+     * @param randomName random name of server copy, given by {@link ChunksTask#getServerRandomName()}
+     * @param bytes number of bytes skipped
+     * @throws RemoteException
+     */
+    void skipChunks(String randomName, long bytes) throws RemoteException;
+
+    /**
+     * check cached versions of many files in one round trip. Files whose version is still the latest get a lease, if
+     * proxy asked for one, as {@link #checkServer(CheckRequest)} gives.
+     * @param request cached versions
+     * @return files whose cached version is stale or which no longer exist
+     * @throws RemoteException
+     */
+    ValidateResult validate(ValidateRequest request) throws RemoteException;
 }
@@ -1,20 +1,71 @@
 import java.io.*;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Server class which can handle multiple proxy.
+ * <p>
+ * Every file has its own read write lock: checks of a file share its read lock, and publishing a new version or
+ * unlinking takes its write lock, so operations of independent files never wait for each other. Content is read out of
+ * any lock, the copy being read is kept by {@link VersionRefs} until its reader finishes.
  */
 public class Server extends UnicastRemoteObject implements Rpc {
+    // content bytes of versions sent to proxies, in check results and chunks
+    public static final String SENT_BYTES = "server.sentBytes";
+    // files checked by validate requests, however many requests they took
+    public static final String VALIDATED_FILES = "server.validatedFiles";
+    private static final int SIGNATURE_CACHE_SIZE = 16;
+    // how long a proxy may use its cached version without checking server
+    private static final long LEASE_MILLIS = Long.getLong("server.leaseMillis", 10000);
+    private static final int MAX_OPEN_FILES = Integer.getInteger("server.maxOpenFiles", 128);
+    private static final long HANDLE_IDLE_MILLIS = Long.getLong("server.handleIdleMillis", 30000);
+    // bounds of chunk size proxies may ask for, a chunk is held in memory of server while it is sent
+    private static final int MIN_CHUNK_SIZE = Integer.getInteger("server.minChunkSize", 64 * 1024);
+    private static final int MAX_CHUNK_SIZE = Integer.getInteger("server.maxChunkSize", 64 * 1024 * 1024);
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("server.compression", "true"));
+    // proxies listed as holders of a version, and how long one stays listed after its latest check
+    private static final int MAX_PEERS = Integer.getInteger("server.maxPeers", 4);
+    private static final long PEER_HOLD_MILLIS = Long.getLong("server.peerHoldMillis", 60000);
+    // an upload session which receives nothing for this long is dropped
+    private static final long UPLOAD_IDLE_MILLIS = Long.getLong("server.uploadIdleMillis", 600000);
+    // references of a retired copy which are neither taken nor given back for this long are dropped
+    private static final long REF_IDLE_MILLIS = Long.getLong("server.refIdleMillis", 600000);
     private static String ROOT_FOLDER;
     private final Map<String, FileInfo> fileIndex;
-    private Map<String, String> uploadTaskMap;
-    private Set<String> inUseSet;
+    private final Map<String, ReentrantReadWriteLock> fileLocks;
+    private final Map<String, String> uploadTaskMap;
+    private final Map<Long, UploadSession> uploadSessions;
+    private final AtomicLong nextUploadId;
+    private final Map<String, BlockSignature> signatureCache;
+    private final Map<String, ChunkManifest> manifestCache;
+    // copies whose manifests are being computed in background
+    private final Set<String> manifestsPending;
+    private final ExecutorService manifestPool;
+    private final VersionRefs versionRefs;
+    private final VersionIndex versionIndex;
+    private final Map<String, Map<ProxyCallback, Long>> leaseHolders;
+    private final PeerDirectory peerDirectory;
+    private final Metrics metrics;
+    private final FileHandleCache handles;
+    private final ScheduledExecutorService sweeper;
 
     /**
      * constructor which use port and root folder
@@ -25,9 +76,102 @@ public class Server extends UnicastRemoteObject implements Rpc {
     protected Server(int port, String rootFolder) throws RemoteException {
         super(port);
         ROOT_FOLDER = rootFolder;
-        fileIndex = new HashMap<>();
-        uploadTaskMap = new HashMap<>();
-        inUseSet = new HashSet<>();
+        fileIndex = new ConcurrentHashMap<>();
+        fileLocks = new ConcurrentHashMap<>();
+        uploadTaskMap = new ConcurrentHashMap<>();
+        uploadSessions = new ConcurrentHashMap<>();
+        nextUploadId = new AtomicLong(1);
+        // copies are never modified once published, so signature and manifest of a copy never change
+        signatureCache = new LinkedHashMap<String, BlockSignature>(SIGNATURE_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BlockSignature> eldest) {
+                return size() > SIGNATURE_CACHE_SIZE;
+            }
+        };
+        manifestCache = new LinkedHashMap<String, ChunkManifest>(SIGNATURE_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ChunkManifest> eldest) {
+                return size() > SIGNATURE_CACHE_SIZE;
+            }
+        };
+        manifestsPending = ConcurrentHashMap.newKeySet();
+        manifestPool = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "server-manifest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        leaseHolders = new ConcurrentHashMap<>();
+        peerDirectory = new PeerDirectory(MAX_PEERS, PEER_HOLD_MILLIS);
+        metrics = new Metrics();
+        handles = new FileHandleCache(MAX_OPEN_FILES, HANDLE_IDLE_MILLIS);
+        versionRefs = new VersionRefs(this::deleteCopy);
+        versionIndex = new VersionIndex(rootFolder);
+        recoverIndex();
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "server-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, Math.min(UPLOAD_IDLE_MILLIS, REF_IDLE_MILLIS) / 2);
+        sweeper.scheduleWithFixedDelay(() -> {
+            expireUploads(System.currentTimeMillis() - UPLOAD_IDLE_MILLIS);
+            versionRefs.expire(System.currentTimeMillis() - REF_IDLE_MILLIS);
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * rebuild file index from persistent index and a scan of root folder. A version whose file is gone is dropped, and
+     * one whose size has changed gets a new version number. Copies which index records as made by server and not
+     * current, i.e. retired versions and uploads which were never committed, are deleted. The rest of files are
+     * indexed under their own names, so a file of users is never deleted for the way it is named.
+     */
+    private void recoverIndex() {
+        Map<String, Long> files = VersionIndex.scan(ROOT_FOLDER);
+        List<VersionIndex.Entry> entries;
+        try {
+            entries = versionIndex.load();
+        } catch (IOException e) {
+            System.err.println("Error in loading server index, rebuild it from files");
+            e.printStackTrace();
+            entries = new ArrayList<>();
+        }
+        Set<String> liveFiles = new HashSet<>();
+        for (VersionIndex.Entry entry : entries) {
+            String randomName = Paths.get(entry.getRandomName()).normalize().toString();
+            Long size = files.get(randomName);
+            if (size == null) {
+                versionIndex.remove(entry.getRealName());
+                continue;
+            }
+            FileInfo fileInfo = new FileInfo(entry.getRealName(), entry.getRandomName(), entry.getVersion());
+            if (size != entry.getSize()) {
+                // changed while server was down
+                fileInfo.updateCacheInfo(entry.getRandomName(), versionIndex.nextVersion());
+                versionIndex.put(fileInfo, size);
+            }
+            fileIndex.put(entry.getRealName(), fileInfo);
+            liveFiles.add(randomName);
+        }
+
+        int deleted = 0;
+        for (String copy : versionIndex.getCopies()) {
+            String name = Paths.get(copy).normalize().toString();
+            if (!liveFiles.contains(name) && files.remove(name) != null) {
+                new File(toServerPath(name)).delete();
+                deleted++;
+            }
+            versionIndex.removeCopy(copy);
+        }
+        for (Map.Entry<String, Long> file : files.entrySet()) {
+            String name = file.getKey();
+            if (!liveFiles.contains(name)) {
+                FileInfo fileInfo = new FileInfo(name, name, versionIndex.nextVersion());
+                fileIndex.put(name, fileInfo);
+                versionIndex.put(fileInfo, file.getValue());
+            }
+        }
+        versionIndex.compact();
+        System.err.println("Recovered " + fileIndex.size() + " server files, deleted " + deleted + " stale copies");
     }
 
     /**
@@ -54,33 +198,34 @@ public class Server extends UnicastRemoteObject implements Rpc {
         } catch (RemoteException | MalformedURLException e) {
             e.printStackTrace();
         }
+        // NIO transport listens on a second port only when asked for, proxies choose it with proxy.transport=nio
+        if (Boolean.parseBoolean(System.getProperty("server.nio", "false"))) {
+            int nioPort = Integer.getInteger("server.nioPort", port + 1);
+            try {
+                new NioServer(server, nioPort).start();
+            } catch (IOException e) {
+                System.err.println("Error in starting NIO transport on port " + nioPort);
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
      * see the document in {@link Rpc}
      */
     @Override
-    public synchronized byte[] downloadChunk(String randomName, int offset, int size) throws RemoteException {
-
-        File file = new File(toServerPath(randomName));
-
-        RandomAccessFile raFile = null;
-        try {
-            raFile = new RandomAccessFile(file, "r");
-        } catch (FileNotFoundException e) {
-            System.err.println("Error in download chunk, file does not exist");
-            return null;
-        }
-
+    public byte[] downloadChunk(String randomName, int offset, int size) throws RemoteException {
         byte[] bytes = new byte[size];
-        try {
-            raFile.seek(offset);
-            raFile.read(bytes);
-
-            int fileSize = (int) raFile.length();
-            if (offset + size >= fileSize) {
-                inUseSet.remove(randomName);
+        try (FileHandleCache.Handle handle = openCopy(randomName)) {
+            FileChannel channel = handle.channel();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+                // positional read, the channel is shared by all downloads of this copy
             }
+            chunkSent(randomName, offset, size, channel.size());
+        } catch (NoSuchFileException e) {
+            System.err.println("Error in download chunk, file does not exist");
+            return null;
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -88,6 +233,45 @@ public class Server extends UnicastRemoteObject implements Rpc {
         return bytes;
     }
 
+    /**
+     * open a server copy for read through the handle cache
+     * @param randomName random name of server copy
+     * @return handle, which must be closed after use
+     * @throws IOException if copy does not exist
+     */
+    FileHandleCache.Handle openCopy(String randomName) throws IOException {
+        return handles.acquire(randomName, toServerPath(randomName));
+    }
+
+    /**
+     * release the references a chunked download holds for the bytes of a chunk which has been sent, the copy is
+     * released once every chunk has been sent, whatever order they are asked for
+     * @param randomName random name of server copy
+     * @param offset offset of chunk
+     * @param size size of chunk
+     * @param fileSize size of server copy
+     */
+    void chunkSent(String randomName, long offset, int size, long fileSize) {
+        long bytes = Math.min(size, fileSize - offset);
+        if (bytes > 0) {
+            metrics.add(SENT_BYTES, bytes);
+            versionRefs.release(randomName, bytes);
+        }
+    }
+
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public byte[] downloadChunk(String randomName, int offset, int size, int codec) throws RemoteException {
+        byte[] bytes = downloadChunk(randomName, offset, size);
+        if (bytes == null) {
+            return null;
+        }
+        // compress out of server lock
+        return Codec.encode(bytes, 0, bytes.length, codec, metrics);
+    }
+
     /**
      * see the document in {@link Rpc}
      */
@@ -97,6 +281,7 @@ public class Server extends UnicastRemoteObject implements Rpc {
         String randomName = null;
         if (chunk == 0) {
             randomName = generateRandomName(realName);
+            versionIndex.addCopy(randomName);
             uploadTaskMap.put(realName, randomName);
         }
         randomName = uploadTaskMap.get(realName);
@@ -109,9 +294,15 @@ public class Server extends UnicastRemoteObject implements Rpc {
         }
 
         if (chunk + 1 == totalChunk) {
-            synchronized (fileIndex) {
+            Lock lock = lockOf(realName).writeLock();
+            lock.lock();
+            try {
                 updateFileIndex(realName, randomName);
+            } finally {
+                lock.unlock();
             }
+            peerDirectory.remove(realName);
+            revokeLeases(realName);
         }
         return 0;
     }
@@ -120,43 +311,490 @@ public class Server extends UnicastRemoteObject implements Rpc {
      * see the document in {@link Rpc}
      */
     @Override
-    public synchronized CheckResult checkServer(String realName, FileHandling.OpenOption o, int version) throws RemoteException {
+    public long beginUpload(String realName) throws RemoteException {
+        if (!inServerFolder(realName)) {
+            return FileHandling.Errors.EPERM;
+        }
+        long uploadId = nextUploadId.getAndIncrement();
+        // upload id makes the name unique even if two sessions of one file begin in the same millisecond
+        String randomName = generateRandomName(realName) + "-" + uploadId;
+        versionIndex.addCopy(randomName);
+        File file = new File(toServerPath(randomName));
+        File parentFolder = file.getParentFile();
+        if (!parentFolder.exists()) {
+            parentFolder.mkdirs();
+        }
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            uploadSessions.put(uploadId, new UploadSession(realName, randomName, channel));
+        } catch (IOException e) {
+            e.printStackTrace();
+            versionIndex.removeCopy(randomName);
+            return FileHandling.Errors.EPERM;
+        }
+        return uploadId;
+    }
 
-        int testOpenRet = testOpen(realName, o);
-        if (testOpenRet != 0) {
-            return new CheckResult(testOpenRet);
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public int uploadChunkAt(long uploadId, long offset, byte[] fileContent) throws RemoteException {
+        UploadSession session = uploadSessions.get(uploadId);
+        if (session == null) {
+            return ErrorCode.NO_UPLOAD;
+        }
+        if (offset < 0 || offset > Long.MAX_VALUE - fileContent.length) {
+            return FileHandling.Errors.EINVAL;
+        }
+        session.touch();
+        try {
+            // positional write of file channel is safe when chunks arrive from several threads
+            ByteBuffer buffer = ByteBuffer.wrap(fileContent);
+            while (buffer.hasRemaining()) {
+                session.channel.write(buffer, offset + buffer.position());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ErrorCode.REMOTE;
         }
+        session.received(offset, offset + fileContent.length);
+        return 0;
+    }
 
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public int uploadChunkAt(long uploadId, long offset, byte[] frame, int codec) throws RemoteException {
+        try {
+            return uploadChunkAt(uploadId, offset, Codec.decode(frame, codec, metrics));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return FileHandling.Errors.EINVAL;
+        }
+    }
+
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public int commitUpload(long uploadId, long fileSize) throws RemoteException {
+        UploadSession session = uploadSessions.remove(uploadId);
+        if (session == null) {
+            return ErrorCode.NO_UPLOAD;
+        }
+        try {
+            // a missing chunk would be committed as a hole of zeros
+            if (session.channel.size() != fileSize || !session.isComplete(fileSize)) {
+                System.err.println("Error in commit upload " + session.realName + ", size does not match or a chunk "
+                        + "is missing");
+                session.channel.close();
+                deleteUpload(session.randomName);
+                return FileHandling.Errors.EINVAL;
+            }
+            session.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            deleteUpload(session.randomName);
+            return ErrorCode.REMOTE;
+        }
+        // the whole file is written under its own name, publishing it is one index update
+        int version;
+        Lock lock = lockOf(session.realName).writeLock();
+        lock.lock();
+        try {
+            version = updateFileIndex(session.realName, session.randomName);
+        } finally {
+            lock.unlock();
+        }
+        peerDirectory.remove(session.realName);
+        revokeLeases(session.realName);
+        return version;
+    }
+
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public void abortUpload(long uploadId) throws RemoteException {
+        UploadSession session = uploadSessions.remove(uploadId);
+        if (session == null) {
+            return;
+        }
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        deleteUpload(session.randomName);
+    }
+
+    /**
+     * count references of the current copy of a file, one per byte of chunks which are not sent or skipped yet
+     * @param realName real name of file
+     * @return number of references, 0 if file is not found
+     */
+    long getRefs(String realName) {
         String randomName = getRandomName(realName);
-        if (randomName == null) {
-            return new CheckResult(FileHandling.Errors.ENOENT);
+        return randomName == null ? 0 : versionRefs.getRefs(randomName);
+    }
+
+    /**
+     * drop upload sessions which have received nothing since a deadline, e.g. of a proxy which crashed during upload
+     * @param deadline sessions last used at or before this time are dropped
+     * @return number of dropped sessions
+     */
+    int expireUploads(long deadline) {
+        int expired = 0;
+        for (Map.Entry<Long, UploadSession> entry : uploadSessions.entrySet()) {
+            UploadSession session = entry.getValue();
+            if (session.lastUsed > deadline || !uploadSessions.remove(entry.getKey(), session)) {
+                continue;
+            }
+            System.err.println("Upload of " + session.realName + " is idle, drop it");
+            try {
+                session.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            deleteUpload(session.randomName);
+            expired++;
         }
-        int serverVersion = fileIndex.get(realName).getVersion();
-        if (serverVersion == version) {
-            return new CheckResult(realName, version);
-        } else {
-            CheckResult result = new CheckResult(realName, serverVersion);
-            File randomFile = new File(toServerPath(randomName));
-            if (randomFile.isDirectory()) {
+        return expired;
+    }
+
+    /**
+     * delete copy of an upload which is never committed
+     * @param randomName random name of upload copy
+     */
+    private void deleteUpload(String randomName) {
+        new File(toServerPath(randomName)).delete();
+        versionIndex.removeCopy(randomName);
+    }
+
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public CheckResult checkServer(String realName, FileHandling.OpenOption o, int version) throws RemoteException {
+        return checkServer(new CheckRequest(realName, o, version));
+    }
+
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public CheckResult checkServer(CheckRequest request) throws RemoteException {
+        String realName = request.getRealName();
+        FileHandling.OpenOption o = request.getOption();
+        int version = request.getVersion();
+        if (!inServerFolder(realName)) {
+            return new CheckResult(FileHandling.Errors.EPERM);
+        }
+
+        // only creating a file changes index, other checks of a file run in parallel
+        boolean creates = o == FileHandling.OpenOption.CREATE || o == FileHandling.OpenOption.CREATE_NEW;
+        ReentrantReadWriteLock fileLock = lockOf(realName);
+        Lock lock = creates ? fileLock.writeLock() : fileLock.readLock();
+        String randomName;
+        CheckResult result;
+        List<PeerRpc> peers = null;
+        lock.lock();
+        try {
+            int testOpenRet = testOpen(realName, o);
+            if (testOpenRet != 0) {
+                return new CheckResult(testOpenRet);
+            }
+
+            randomName = getRandomName(realName);
+            if (randomName == null) {
+                return new CheckResult(FileHandling.Errors.ENOENT);
+            }
+            int serverVersion = fileIndex.get(realName).getVersion();
+            int codec = COMPRESSION ? Codec.choose(request.getAcceptCodecs()) : Codec.NONE;
+            if (serverVersion == version) {
+                result = new CheckResult(realName, version);
+                result.setCodec(codec);
+                grantLease(request, result);
+                if (request.getPeer() != null) {
+                    peerDirectory.add(realName, version, request.getPeer(), System.currentTimeMillis());
+                }
+                return result;
+            }
+            if (new File(toServerPath(randomName)).isDirectory()) {
                 return new CheckResult(ErrorCode.READ_DIR);
             }
+            result = new CheckResult(realName, serverVersion);
+            result.setCodec(codec);
+            grantLease(request, result);
+            if (request.getPeer() != null) {
+                // the proxy is listed as holder once it has the whole version, see validate
+                peers = peerDirectory.find(realName, serverVersion, request.getPeer(), System.currentTimeMillis());
+            }
+            // the copy is kept until its content is sent, even if a new version is published meanwhile
+            versionRefs.acquire(randomName);
+        } finally {
+            lock.unlock();
+        }
+
+        File randomFile = new File(toServerPath(randomName));
+        int fileSize = (int) randomFile.length();
+        int chunkSize = chooseChunkSize(request.getChunkSize());
+        if (fileSize > chunkSize && request.getDeltaBaseLength() > 0) {
+            // client will ask for a delta, which releases the copy
+            result.setDeltaSource(randomName);
+            return result;
+        }
+        ChunkManifest manifest = null;
+        if (peers != null && !peers.isEmpty() && fileSize > MIN_CHUNK_SIZE) {
+            // proxy reads every chunk from peers, the manifest lets it check what peers send. Until the copy is hashed
+            // in background the proxy reads from server instead
+            manifest = readyManifest(randomName);
+        }
+        try (InputStream in = new FileInputStream(randomFile)) {
+            int bufferSize = manifest != null ? 0 : fileSize > chunkSize ? chunkSize : fileSize;
+            byte[] fileContent = new byte[bufferSize];
+            int read = 0;
+            while (read < bufferSize) {
+                int n = in.read(fileContent, read, bufferSize - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            result.setFileContent(Codec.encode(fileContent, 0, fileContent.length, result.getCodec(), metrics));
+            metrics.add(SENT_BYTES, read);
+            if (fileSize > bufferSize) {
+                // one reference per byte of following chunks, which are released as chunks are sent or skipped
+                versionRefs.acquire(randomName, fileSize - bufferSize);
+                ChunksTask chunksTask = new ChunksTask(randomName, chunkSize, bufferSize > 0 ? 1 : 0);
+                if (manifest != null) {
+                    chunksTask.setManifest(manifest);
+                    chunksTask.setPeers(peers);
+                } else {
+                    // proxy copies the chunks it holds and skips them. A manifest which is not ready is not waited
+                    // for, but computed for later checks even if this one does not want it.
+                    ChunkManifest ready = readyManifest(randomName);
+                    if (request.isManifestWanted()) {
+                        chunksTask.setManifest(ready);
+                    }
+                }
+                result.setChunksTask(chunksTask);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            versionRefs.release(randomName);
+        }
+        return result;
+    }
+
+    /**
+     * get manifest of a server copy if it has been computed, otherwise start computing it in background. Caller must
+     * hold a reference of copy.
+     * @param randomName random name of server copy
+     * @return manifest, null if it is not ready yet
+     */
+    private ChunkManifest readyManifest(String randomName) {
+        ChunkManifest manifest;
+        synchronized (manifestCache) {
+            manifest = manifestCache.get(randomName);
+        }
+        if (manifest == null) {
+            prepareManifest(randomName);
+        }
+        return manifest;
+    }
+
+    /**
+     * compute manifest of a server copy in background, the copy is referenced until it is done. Caller must hold a
+     * reference of copy or the lock of its file.
+     * @param randomName random name of server copy
+     */
+    private void prepareManifest(final String randomName) {
+        if (!manifestsPending.add(randomName)) {
+            return;
+        }
+        versionRefs.acquire(randomName);
+        manifestPool.execute(() -> {
             try {
-                inUseSet.add(randomName);
-                int fileSize = (int) randomFile.length();
-                int bufferSize = fileSize > ChunksTask.CHUNK_SIZE ? ChunksTask.CHUNK_SIZE : fileSize;
-                byte[] fileContent = new byte[bufferSize];
-                InputStream in = new FileInputStream(randomFile);
-                in.read(fileContent);
-                result.setFileContent(fileContent);
-                if (fileSize > ChunksTask.CHUNK_SIZE) {
-                    result.setChunksTask(new ChunksTask(randomName));
+                manifestOf(randomName);
+            } finally {
+                manifestsPending.remove(randomName);
+                versionRefs.release(randomName);
+            }
+        });
+    }
+
+    /**
+     * get manifest of a server copy, caller must hold a reference of copy
+     * @param randomName random name of server copy
+     * @return manifest, null if copy can not be read
+     */
+    private ChunkManifest manifestOf(String randomName) {
+        synchronized (manifestCache) {
+            ChunkManifest manifest = manifestCache.get(randomName);
+            if (manifest != null) {
+                return manifest;
+            }
+        }
+        try {
+            ChunkManifest manifest = ChunkManifest.compute(Paths.get(toServerPath(randomName)));
+            synchronized (manifestCache) {
+                manifestCache.put(randomName, manifest);
+            }
+            return manifest;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public void skipChunks(String randomName, long bytes) throws RemoteException {
+        if (inServerFolder(randomName) && bytes > 0) {
+            versionRefs.release(randomName, bytes);
+        }
+    }
+
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public ValidateResult validate(ValidateRequest request) throws RemoteException {
+        ValidateResult result = new ValidateResult();
+        for (Map.Entry<String, Integer> entry : request.getVersions().entrySet()) {
+            String realName = entry.getKey();
+            if (!inServerFolder(realName)) {
+                result.setChanged(realName, ValidateResult.REMOVED);
+                continue;
+            }
+            // the same lock as a check of file, so a lease is either revoked by next publish or granted for it
+            Lock lock = lockOf(realName).readLock();
+            lock.lock();
+            try {
+                FileInfo fileInfo = getRandomName(realName) == null ? null : fileIndex.get(realName);
+                if (fileInfo == null) {
+                    result.setChanged(realName, ValidateResult.REMOVED);
+                } else if (fileInfo.getVersion() != entry.getValue()) {
+                    result.setChanged(realName, fileInfo.getVersion());
                 } else {
-                    inUseSet.remove(randomName);
+                    result.setLeaseMillis(grantLease(realName, request.getCallback()));
+                    if (request.getPeer() != null) {
+                        peerDirectory.add(realName, fileInfo.getVersion(), request.getPeer(),
+                                System.currentTimeMillis());
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        metrics.add(VALIDATED_FILES, request.getVersions().size());
+        return result;
+    }
+
+    /**
+     * choose chunk size of a download
+     * @param requested chunk size proxy asks for, 0 if none
+     * @return chunk size within bounds of server
+     */
+    private static int chooseChunkSize(int requested) {
+        if (requested <= 0) {
+            return ChunksTask.CHUNK_SIZE;
+        }
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, requested));
+    }
+
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public Delta downloadDelta(String randomName, BlockSignature signature) throws RemoteException {
+        if (!inServerFolder(randomName)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(toServerPath(randomName)), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            return Delta.compute(signature, channel, Math.min(fileSize / 2, Delta.MAX_DELTA_SIZE));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            versionRefs.release(randomName);
+        }
+    }
+
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public BlockSignature getSignature(String realName) throws RemoteException {
+        if (!inServerFolder(realName)) {
+            return null;
+        }
+        String randomName;
+        Lock lock = lockOf(realName).readLock();
+        lock.lock();
+        try {
+            randomName = getRandomName(realName);
+            if (randomName == null || new File(toServerPath(randomName)).isDirectory()) {
+                return null;
+            }
+            versionRefs.acquire(randomName);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            synchronized (signatureCache) {
+                BlockSignature signature = signatureCache.get(randomName);
+                if (signature != null) {
+                    return signature;
+                }
+            }
+            try (FileChannel channel = FileChannel.open(Paths.get(toServerPath(randomName)), StandardOpenOption.READ)) {
+                BlockSignature signature = BlockSignature.compute(randomName, channel);
+                synchronized (signatureCache) {
+                    signatureCache.put(randomName, signature);
                 }
+                return signature;
             } catch (IOException e) {
                 e.printStackTrace();
+                return null;
             }
-            return result;
+        } finally {
+            versionRefs.release(randomName);
+        }
+    }
+
+    /**
+     * see the document in {@link Rpc}
+     */
+    @Override
+    public int uploadDelta(long uploadId, String baseName, Delta delta) throws RemoteException {
+        UploadSession session = uploadSessions.get(uploadId);
+        if (session == null) {
+            return ErrorCode.NO_UPLOAD;
+        }
+        if (!inServerFolder(baseName)) {
+            return FileHandling.Errors.EPERM;
+        }
+        // base may be retired meanwhile, then it is either kept until delta is applied or already gone
+        session.touch();
+        versionRefs.acquire(baseName);
+        try (FileChannel base = FileChannel.open(Paths.get(toServerPath(baseName)), StandardOpenOption.READ)) {
+            delta.apply(base, session.channel);
+            // delta writes the whole file from its start
+            session.received(0, session.channel.size());
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ErrorCode.REMOTE;
+        } finally {
+            versionRefs.release(baseName);
         }
     }
 
@@ -232,29 +870,138 @@ public class Server extends UnicastRemoteObject implements Rpc {
      * see the document in {@link Rpc}
      */
     @Override
-    public synchronized int unlink(String realName) throws RemoteException {
+    public int unlink(String realName) throws RemoteException {
+        int ret = unlinkFile(realName);
+        if (ret == 0) {
+            peerDirectory.remove(realName);
+            revokeLeases(realName);
+        }
+        return ret;
+    }
+
+    /**
+     * remove file from index, its copy is deleted once no download reads it
+     * @param realName real name of file
+     * @return 0 if success, others if fail
+     */
+    private int unlinkFile(String realName) {
 
         if (!inServerFolder(realName)) {
             return FileHandling.Errors.ENOENT;
         }
 
-        String randomName = getRandomName(realName);
-        if (randomName == null) {
-            return FileHandling.Errors.ENOENT;
+        Lock lock = lockOf(realName).writeLock();
+        lock.lock();
+        try {
+            String randomName = getRandomName(realName);
+            if (randomName == null) {
+                return FileHandling.Errors.ENOENT;
+            }
+            fileIndex.remove(realName);
+            versionIndex.remove(realName);
+            versionRefs.retire(randomName);
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * delete a retired copy
+     * @param randomName random name of copy
+     */
+    private void deleteCopy(String randomName) {
+        new File(toServerPath(randomName)).delete();
+        versionIndex.removeCopy(randomName);
+        handles.invalidate(randomName);
+        synchronized (signatureCache) {
+            signatureCache.remove(randomName);
         }
-        String randomPath = toServerPath(randomName);
-        File file = new File(randomPath);
-        while (inUseSet.contains(randomName)) {
+        synchronized (manifestCache) {
+            manifestCache.remove(randomName);
         }
+    }
 
-        randomName = getRandomName(realName);
-        if (randomName == null) {
-            return FileHandling.Errors.ENOENT;
+    /**
+     * get read write lock of a file
+     * @param realName real name of file
+     * @return lock of file
+     */
+    private ReentrantReadWriteLock lockOf(String realName) {
+        return fileLocks.computeIfAbsent(realName, name -> new ReentrantReadWriteLock());
+    }
+
+    /**
+     * grant a lease of file to the proxy which sent the request, if it asked for one. It must be called under the lock
+     * of file, so that it is either revoked by next publish or granted for the new version.
+     * @param request check request
+     * @param result check result to carry the lease
+     */
+    private void grantLease(CheckRequest request, CheckResult result) {
+        result.setLeaseMillis(grantLease(request.getRealName(), request.getCallback()));
+    }
+
+    /**
+     * grant a lease of file to a proxy, under the lock of file
+     * @param realName real name of file
+     * @param callback callback of proxy, null if it takes no lease
+     * @return lease in milliseconds, 0 if no lease is granted
+     */
+    private long grantLease(String realName, final ProxyCallback callback) {
+        if (callback == null || LEASE_MILLIS <= 0) {
+            return 0;
         }
+        final long expiry = System.currentTimeMillis() + LEASE_MILLIS;
+        leaseHolders.compute(realName, (name, holders) -> {
+            if (holders == null) {
+                holders = new HashMap<>();
+            }
+            holders.put(callback, expiry);
+            return holders;
+        });
+        return LEASE_MILLIS;
+    }
 
-        file.delete();
-        fileIndex.remove(realName);
-        return 0;
+    /**
+     * revoke all leases of a file after a new version is published or file is removed. It must be called after the
+     * index is updated, so that no lease of the old version is granted afterwards. A proxy which can not be called
+     * back may use its old version until its lease ends, so the caller waits until then, which keeps open-close
+     * consistency: once close of writer returns, no proxy serves the old version.
+     * @param realName real name of file
+     */
+    private void revokeLeases(String realName) {
+        Map<ProxyCallback, Long> holders = leaseHolders.remove(realName);
+        if (holders == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long waitUntil = now;
+        for (Map.Entry<ProxyCallback, Long> holder : holders.entrySet()) {
+            if (holder.getValue() <= now) {
+                continue;
+            }
+            try {
+                holder.getKey().invalidate(realName);
+            } catch (RemoteException e) {
+                System.err.println("Error in revoking lease of " + realName + ", wait until it ends");
+                waitUntil = Math.max(waitUntil, holder.getValue());
+            }
+        }
+        try {
+            while (System.currentTimeMillis() < waitUntil) {
+                Thread.sleep(Math.max(1, waitUntil - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * get metrics of server
+     * @return metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -291,36 +1038,54 @@ public class Server extends UnicastRemoteObject implements Rpc {
     }
 
     /**
-     * load file to server record. When server is started, there is no its content info in the server.
+     * load file to server record, if it has been put into root folder since server started
      * @param realName real name of file
      */
     private void loadFile(String realName) {
         File file = new File(toServerPath(realName));
         if (!fileIndex.containsKey(realName) && file.exists()) {
-            fileIndex.put(realName, new FileInfo(realName, realName, 1));
+            FileInfo fileInfo = new FileInfo(realName, realName, versionIndex.nextVersion());
+            // folders are never downloaded, so only files are kept in persistent index
+            if (fileIndex.putIfAbsent(realName, fileInfo) == null && file.isFile()) {
+                versionIndex.put(fileInfo, file.length());
+                if (file.length() > MIN_CHUNK_SIZE) {
+                    prepareManifest(realName);
+                }
+            }
         }
     }
 
     /**
-     * update file index
+     * update file index, it must be called under the write lock of file. The replaced copy is retired.
      * @param realName real name of server
      * @param newRandomName new random name
-     * @return new random name
+     * @return new version number
      */
-    private synchronized String updateFileIndex(String realName, String newRandomName) {
-        if (fileIndex.containsKey(realName)) {
-            FileInfo fileInfo = fileIndex.get(realName);
-            fileInfo.updateRandomName(newRandomName);
-            fileInfo.updateVersion();
-            return newRandomName;
+    private int updateFileIndex(String realName, String newRandomName) {
+        int version = versionIndex.nextVersion();
+        FileInfo fileInfo = fileIndex.get(realName);
+        String oldRandomName = null;
+        if (fileInfo == null) {
+            fileInfo = new FileInfo(realName, newRandomName, version);
+            fileIndex.put(realName, fileInfo);
         } else {
-            fileIndex.put(realName, new FileInfo(realName, newRandomName, 1));
-            return null;
+            oldRandomName = fileInfo.getRandomName();
+            fileInfo.updateCacheInfo(newRandomName, version);
+        }
+        long size = new File(toServerPath(newRandomName)).length();
+        versionIndex.put(fileInfo, size);
+        if (size > MIN_CHUNK_SIZE) {
+            // ready before proxies holding older versions ask for it
+            prepareManifest(newRandomName);
         }
+        if (oldRandomName != null && !oldRandomName.equals(newRandomName)) {
+            versionRefs.retire(oldRandomName);
+        }
+        return version;
     }
 
     /**
-     * decide whether in the range of root folder
+     * decide whether in the range of root folder, the persistent index in root folder is out of range
      * @param inputName name of input file name
      * @return true if in root folder of its subfolder; false if not
      */
@@ -329,6 +1094,65 @@ public class Server extends UnicastRemoteObject implements Rpc {
         Path fileFolderAbsPath = fileFolder.toPath().toAbsolutePath().normalize();
         File input = new File(toServerPath(inputName));
         Path inputAbsPath = input.toPath().toAbsolutePath().normalize();
-        return inputAbsPath.startsWith(fileFolderAbsPath);
+        return inputAbsPath.startsWith(fileFolderAbsPath)
+                && !VersionIndex.isIndexFile(fileFolderAbsPath.relativize(inputAbsPath).toString());
+    }
+
+    /**
+     * upload session which is not committed yet
+     */
+    private static class UploadSession {
+        private final String realName;
+        private final String randomName;
+        private final FileChannel channel;
+        // received byte ranges as start to end, adjacent ranges are merged
+        private final TreeMap<Long, Long> ranges;
+        private volatile long lastUsed;
+
+        UploadSession(String realName, String randomName, FileChannel channel) {
+            this.realName = realName;
+            this.randomName = randomName;
+            this.channel = channel;
+            this.ranges = new TreeMap<>();
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * record bytes which have been written
+         * @param start first offset
+         * @param end offset after the last byte
+         */
+        synchronized void received(long start, long end) {
+            if (start >= end) {
+                return;
+            }
+            Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> after;
+            while ((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                ranges.remove(after.getKey());
+            }
+            ranges.put(start, end);
+        }
+
+        /**
+         * check whether every byte of file has been received
+         * @param fileSize size of file
+         * @return true if received bytes are exactly the file
+         */
+        synchronized boolean isComplete(long fileSize) {
+            if (fileSize == 0) {
+                return ranges.isEmpty();
+            }
+            return ranges.size() == 1 && ranges.firstKey() == 0 && ranges.firstEntry().getValue() == fileSize;
+        }
     }
-}
\ No newline at end of file
+}
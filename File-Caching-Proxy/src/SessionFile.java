@@ -0,0 +1,49 @@
+import java.io.IOException;
+
+/**
+ * File opened by one fd of a client. It has its own file pointer, like {@link java.io.RandomAccessFile}.
+ */
+public interface SessionFile {
+
+    /**
+     * read bytes from file pointer
+     * @param buf buf to fill
+     * @return number of bytes read, -1 if file pointer is at the end of file
+     * @throws IOException
+     */
+    int read(byte[] buf) throws IOException;
+
+    /**
+     * write bytes at file pointer
+     * @param buf content to write
+     * @throws IOException if file is read only
+     */
+    void write(byte[] buf) throws IOException;
+
+    /**
+     * set file pointer
+     * @param pos new position
+     * @throws IOException
+     */
+    void seek(long pos) throws IOException;
+
+    /**
+     * get file pointer
+     * @return current position
+     * @throws IOException
+     */
+    long getFilePointer() throws IOException;
+
+    /**
+     * get length of file
+     * @return length in bytes
+     * @throws IOException
+     */
+    long length() throws IOException;
+
+    /**
+     * close file
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Download of a chunked version which may be read before all of its chunks have arrived.
+ * <p>
+ * The first chunk comes with the check result, the following ones are fetched in background in file order. A bitmap
+ * records which chunks are written to cache file, and another one which chunks somebody is fetching. A read of a
+ * range which is not there yet waits for its chunks, and a chunk which nobody is fetching yet is fetched at once by
+ * the reader itself, so a seek far ahead does not wait for every chunk before it.
+ * <p>
+ * There is no retry: once a chunk fails the whole download fails, and every read of a missing range fails as well.
+ */
+public class StreamingDownload {
+    private final Fetcher fetcher;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int totalChunks;
+    private final Consumer<Boolean> onFinish;
+    private final BitSet present;
+    private final BitSet claimed;
+    private boolean finished;
+    private boolean failed;
+
+    /**
+     * constructor, the first chunk must already be written
+     * @param fetcher fetches a chunk of server copy
+     * @param channel channel of cache file, it is closed when download finishes
+     * @param fileSize size of whole file
+     * @param chunkSize size of every chunk but the last one
+     * @param onFinish called once with true when every chunk is written, or with false when download fails, it is
+     *                 called out of lock by the thread which wrote the last chunk or saw the failure
+     */
+    public StreamingDownload(Fetcher fetcher, FileChannel channel, long fileSize, int chunkSize,
+                             Consumer<Boolean> onFinish) {
+        this.fetcher = fetcher;
+        this.channel = channel;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        this.onFinish = onFinish;
+        this.present = new BitSet(totalChunks);
+        this.claimed = new BitSet(totalChunks);
+        present.set(0);
+        claimed.set(0);
+    }
+
+    /**
+     * start background workers which fetch the missing chunks in file order
+     * @param executor executor which runs workers
+     * @param window max number of chunk requests of background in flight
+     */
+    public void start(ExecutorService executor, int window) {
+        for (int i = 0; i < window && i < totalChunks - 1; i++) {
+            try {
+                executor.execute(this::fetchInOrder);
+            } catch (RejectedExecutionException e) {
+                // readers fetch the chunks themselves
+                return;
+            }
+        }
+    }
+
+    /**
+     * wait until every chunk of a range is written, fetching chunks nobody is fetching yet
+     * @param offset offset of range
+     * @param length length of range
+     * @throws IOException if download has failed
+     */
+    public void awaitRange(long offset, long length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        int first = (int) (offset / chunkSize);
+        int last = (int) (Math.min(offset + length, fileSize) - 1) / chunkSize;
+        for (int chunk = first; chunk <= last; chunk++) {
+            awaitChunk(chunk);
+        }
+    }
+
+    /**
+     * wait until every chunk is written
+     * @return true if download is complete, false if it has failed
+     */
+    public boolean awaitComplete() {
+        try {
+            awaitRange(0, fileSize);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * stop a download whose cache file is deleted, onFinish is not called
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            failed = true;
+            notifyAll();
+        }
+        closeChannel();
+    }
+
+    /**
+     * get size of whole file
+     * @return size in bytes
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * check whether every chunk is written
+     * @return true if complete
+     */
+    public synchronized boolean isComplete() {
+        return present.cardinality() == totalChunks;
+    }
+
+    /**
+     * check whether download has failed or is cancelled
+     * @return true if failed
+     */
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+
+    private void awaitChunk(int chunk) throws IOException {
+        synchronized (this) {
+            while (true) {
+                if (present.get(chunk)) {
+                    return;
+                }
+                if (failed) {
+                    throw new IOException("Download of chunk " + chunk + " failed");
+                }
+                if (!claimed.get(chunk)) {
+                    claimed.set(chunk);
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted in waiting for chunk " + chunk);
+                }
+            }
+        }
+        if (!fetch(chunk)) {
+            throw new IOException("Download of chunk " + chunk + " failed");
+        }
+    }
+
+    private void fetchInOrder() {
+        while (true) {
+            int chunk;
+            synchronized (this) {
+                chunk = claimed.nextClearBit(1);
+                if (failed || chunk >= totalChunks) {
+                    return;
+                }
+                claimed.set(chunk);
+            }
+            if (!fetch(chunk)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * fetch a claimed chunk and write it at its offset
+     * @param chunk chunk index
+     * @return true if it is written
+     */
+    private boolean fetch(int chunk) {
+        long offset = (long) chunk * chunkSize;
+        int size = (int) Math.min(chunkSize, fileSize - offset);
+        try {
+            byte[] bytes = fetcher.fetch((int) offset, size);
+            if (bytes == null || bytes.length != size) {
+                System.err.println("Error in download chunk " + chunk);
+                fail();
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            if (!isFailed()) {
+                e.printStackTrace();
+            }
+            fail();
+            return false;
+        }
+        synchronized (this) {
+            if (finished) {
+                return false;
+            }
+            present.set(chunk);
+            notifyAll();
+            if (present.cardinality() < totalChunks) {
+                return true;
+            }
+            finished = true;
+        }
+        closeChannel();
+        onFinish.accept(true);
+        return true;
+    }
+
+    private void fail() {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            failed = true;
+            notifyAll();
+        }
+        closeChannel();
+        onFinish.accept(false);
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * fetches one chunk of server copy
+     */
+    public interface Fetcher {
+        /**
+         * fetch a chunk
+         * @param offset offset of chunk
+         * @param size size of chunk
+         * @return content of chunk, null if fail
+         * @throws IOException
+         */
+        byte[] fetch(int offset, int size) throws IOException;
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Session file of a version which is still being downloaded. A read waits for the chunks of its range, length is the
+ * size of the whole version, though cache file may still be shorter.
+ */
+public class StreamingSessionFile implements SessionFile {
+    private final StreamingDownload download;
+    private final RandomAccessFile raFile;
+
+    /**
+     * constructor
+     * @param download download of version
+     * @param raFile cache file opened for read
+     */
+    public StreamingSessionFile(StreamingDownload download, RandomAccessFile raFile) {
+        this.download = download;
+        this.raFile = raFile;
+    }
+
+    @Override
+    public int read(byte[] buf) throws IOException {
+        long pos = raFile.getFilePointer();
+        long length = download.getFileSize();
+        if (pos >= length) {
+            return buf.length == 0 ? 0 : -1;
+        }
+        int n = (int) Math.min(buf.length, length - pos);
+        download.awaitRange(pos, n);
+        return raFile.read(buf, 0, n);
+    }
+
+    @Override
+    public void write(byte[] buf) throws IOException {
+        throw new IOException("Session file is read only");
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        raFile.seek(pos);
+    }
+
+    @Override
+    public long getFilePointer() throws IOException {
+        return raFile.getFilePointer();
+    }
+
+    @Override
+    public long length() {
+        return download.getFileSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        raFile.close();
+    }
+}
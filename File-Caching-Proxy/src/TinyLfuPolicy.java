@@ -0,0 +1,141 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Size aware W-TinyLFU eviction policy, which keeps frequently used files when a scan passes through cache.
+ * <p>
+ * New files enter a small LRU window. A file pushed out of window is a candidate for the main part, which is a
+ * segmented LRU of a probation and a protected list: a file accessed again in probation is protected. The candidate is
+ * only admitted if it has been accessed more often than the files it would push out of probation together, by
+ * estimates of a {@link FrequencySketch}; otherwise the candidate itself is evicted. A file which is opened once never
+ * gets past the window, however large it is.
+ */
+public class TinyLfuPolicy extends ListPolicy {
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+    // files of this size are assumed when sizing sketch
+    private static final long TYPICAL_FILE_SIZE = 64 * 1024;
+    private static final int MIN_SKETCH_KEYS = 1024;
+
+    private final NodeList window;
+    private final NodeList probation;
+    private final NodeList protectedList;
+    private final long windowBudget;
+    private final long protectedBudget;
+    private final FrequencySketch sketch;
+
+    /**
+     * constructor
+     * @param capacity size of cache in bytes
+     */
+    public TinyLfuPolicy(long capacity) {
+        super(capacity);
+        this.window = new NodeList();
+        this.probation = new NodeList();
+        this.protectedList = new NodeList();
+        this.windowBudget = Math.max(1, (long) (this.capacity * WINDOW_RATIO));
+        this.protectedBudget = (long) ((this.capacity - windowBudget) * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20,
+                Math.max(MIN_SKETCH_KEYS, this.capacity / TYPICAL_FILE_SIZE)));
+    }
+
+    /**
+     * get estimated number of recent accesses of a file
+     * @param realName real name
+     * @return estimated count
+     */
+    public synchronized int frequency(String realName) {
+        return sketch.frequency(realName);
+    }
+
+    @Override
+    void insert(Node node) {
+        sketch.increment(node.key);
+        window.add(node);
+    }
+
+    @Override
+    void access(Node node) {
+        sketch.increment(node.key);
+        if (node.list == probation) {
+            probation.remove(node);
+            protectedList.add(node);
+            // protected list overflows into probation, eldest first
+            Node eldest = protectedList.first();
+            while (protectedList.weight > protectedBudget && eldest != null) {
+                Node next = protectedList.next(eldest);
+                if (eldest != node) {
+                    protectedList.remove(eldest);
+                    probation.add(eldest);
+                }
+                eldest = next;
+            }
+        } else if (node.list != null) {
+            node.list.moveToLast(node);
+        }
+    }
+
+    @Override
+    Node victim() {
+        while (window.weight > windowBudget) {
+            Node candidate = window.first();
+            if (candidate == null) {
+                // every file of window is pinned
+                break;
+            }
+            List<Node> victims = mainVictims(candidate.weight);
+            if (victims == null) {
+                // main part has room, candidate joins it without a contest
+                window.remove(candidate);
+                probation.add(candidate);
+                continue;
+            }
+            if (victims.isEmpty()) {
+                // every file of main part is pinned
+                return candidate;
+            }
+            int victimFrequency = 0;
+            for (Node victim : victims) {
+                victimFrequency += sketch.frequency(victim.key);
+            }
+            if (sketch.frequency(candidate.key) > victimFrequency) {
+                window.remove(candidate);
+                probation.add(candidate);
+                return victims.get(0);
+            }
+            return candidate;
+        }
+        for (NodeList list : Arrays.asList(probation, protectedList, window)) {
+            if (list.first() != null) {
+                return list.first();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    List<NodeList> lists() {
+        return Arrays.asList(probation, protectedList, window);
+    }
+
+    /**
+     * collect the eldest files of probation, then of protected list, which a candidate of some size would push out
+     * @param weight size of candidate
+     * @return victims, eldest first, null if main part still has room for candidate
+     */
+    private List<Node> mainVictims(long weight) {
+        if (probation.weight + protectedList.weight + weight <= capacity - windowBudget) {
+            return null;
+        }
+        List<Node> victims = new ArrayList<>();
+        long freed = 0;
+        for (NodeList list : Arrays.asList(probation, protectedList)) {
+            for (Node node = list.first(); node != null && freed < weight; node = list.next(node)) {
+                victims.add(node);
+                freed += node.weight;
+            }
+        }
+        return victims;
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is used for uploading a file to server through an upload session. Chunks are addressed by offset, so
+ * several of them can be in flight at the same time and arrive in any order. Server publishes the new version only
+ * when the session is committed. If server holds a similar version, only a delta against it may be uploaded instead.
+ */
+public class UploadTask {
+
+    private final Rpc rpc;
+    private final String realName;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int totalChunks;
+    private final int codec;
+    private final Metrics metrics;
+    private final ChunkTuner tuner;
+
+    /**
+     * constructor
+     * @param rpc rpc of server
+     * @param realName real name of file on server
+     * @param channel channel of file to upload
+     * @throws IOException
+     */
+    public UploadTask(Rpc rpc, String realName, FileChannel channel) throws IOException {
+        this(rpc, realName, channel, Codec.NONE, null);
+    }
+
+    /**
+     * constructor with compression
+     * @param rpc rpc of server
+     * @param realName real name of file on server
+     * @param channel channel of file to upload
+     * @param codec codec negotiated with server, chunks are sent as frames of it
+     * @param metrics metrics to record compression in, may be null
+     * @throws IOException
+     */
+    public UploadTask(Rpc rpc, String realName, FileChannel channel, int codec, Metrics metrics) throws IOException {
+        this(rpc, realName, channel, codec, metrics, ChunksTask.CHUNK_SIZE, null);
+    }
+
+    /**
+     * constructor with compression and chunk size
+     * @param rpc rpc of server
+     * @param realName real name of file on server
+     * @param channel channel of file to upload
+     * @param codec codec negotiated with server, chunks are sent as frames of it
+     * @param metrics metrics to record compression in, may be null
+     * @param chunkSize size of chunks
+     * @param tuner tuner to record time of chunks in, may be null
+     * @throws IOException
+     */
+    public UploadTask(Rpc rpc, String realName, FileChannel channel, int codec, Metrics metrics, int chunkSize,
+                      ChunkTuner tuner) throws IOException {
+        this.rpc = rpc;
+        this.realName = realName;
+        this.channel = channel;
+        this.fileSize = channel.size();
+        this.chunkSize = chunkSize;
+        this.totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        this.codec = codec;
+        this.metrics = metrics;
+        this.tuner = tuner;
+    }
+
+    /**
+     * upload the whole file with at most window chunks in flight, and commit it
+     * @param window max number of chunk requests in flight
+     * @param executor executor which runs parallel requests
+     * @return new version number if success, error number if fail
+     * @throws IOException
+     */
+    public int uploadAll(int window, ExecutorService executor) throws IOException {
+        long uploadId = rpc.beginUpload(realName);
+        if (uploadId < 0) {
+            return (int) uploadId;
+        }
+        AtomicInteger next = new AtomicInteger(0);
+        List<Future<Integer>> workers = new ArrayList<>();
+        for (int i = 0; i < window - 1 && i < totalChunks - 1; i++) {
+            workers.add(executor.submit(new ChunkWorker(uploadId, next)));
+        }
+        int ret = new ChunkWorker(uploadId, next).call();
+        for (Future<Integer> worker : workers) {
+            try {
+                int workerRet = worker.get();
+                ret = ret != 0 ? ret : workerRet;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ret = ErrorCode.REMOTE;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                ret = ErrorCode.REMOTE;
+            }
+        }
+        if (ret != 0) {
+            rpc.abortUpload(uploadId);
+            return ret;
+        }
+        return rpc.commitUpload(uploadId, fileSize);
+    }
+
+    /**
+     * upload the file as a delta against current version on server, and commit it
+     * @return new version number if success, {@link ErrorCode#NO_DELTA} if delta does not pay off, or error number
+     * @throws IOException
+     */
+    public int uploadDelta() throws IOException {
+        BlockSignature signature = rpc.getSignature(realName);
+        if (signature == null) {
+            return ErrorCode.NO_DELTA;
+        }
+        Delta delta = Delta.compute(signature, channel, Math.min(fileSize / 2, Delta.MAX_DELTA_SIZE));
+        if (delta == null) {
+            return ErrorCode.NO_DELTA;
+        }
+        long uploadId = rpc.beginUpload(realName);
+        if (uploadId < 0) {
+            return (int) uploadId;
+        }
+        if (rpc.uploadDelta(uploadId, signature.getSourceName(), delta) != 0) {
+            // e.g. base copy has been deleted since signature was made
+            rpc.abortUpload(uploadId);
+            return ErrorCode.NO_DELTA;
+        }
+        return rpc.commitUpload(uploadId, fileSize);
+    }
+
+    /**
+     * worker which keeps taking next chunk, it reuses one buffer for all of its chunks
+     */
+    private class ChunkWorker implements Callable<Integer> {
+        private final long uploadId;
+        private final AtomicInteger next;
+        private final byte[] bytes;
+
+        ChunkWorker(long uploadId, AtomicInteger next) {
+            this.uploadId = uploadId;
+            this.next = next;
+            this.bytes = new byte[(int) Math.min(chunkSize, fileSize)];
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            int chunk;
+            while ((chunk = next.getAndIncrement()) < totalChunks) {
+                long offset = (long) chunk * chunkSize;
+                int size = (int) Math.min(chunkSize, fileSize - offset);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                int ret;
+                long start = System.nanoTime();
+                if (codec == Codec.NONE) {
+                    byte[] content = size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+                    ret = rpc.uploadChunkAt(uploadId, offset, content);
+                } else {
+                    ret = rpc.uploadChunkAt(uploadId, offset, Codec.encode(bytes, 0, size, codec, metrics), codec);
+                }
+                if (tuner != null) {
+                    tuner.record(size, System.nanoTime() - start);
+                }
+                if (ret != 0) {
+                    // stop other workers as well
+                    next.set(totalChunks);
+                    return ret;
+                }
+            }
+            return 0;
+        }
+    }
+}
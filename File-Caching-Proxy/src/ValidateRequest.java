@@ -0,0 +1,63 @@
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * request of {@link Rpc#validate(ValidateRequest)}, which checks cached versions of many files in one round trip
+ * <p>
+ * Like {@link CheckRequest}, proxy may ask for leases of files whose versions are still the latest, and be listed as
+ * their holder, but no content is ever sent back.
+ */
+public class ValidateRequest implements Serializable {
+    private final Map<String, Integer> versions;
+    private ProxyCallback callback;
+    private PeerRpc peer;
+
+    /**
+     * constructor
+     */
+    public ValidateRequest() {
+        this.versions = new LinkedHashMap<>();
+    }
+
+    /**
+     * add a cached file to validate
+     * @param realName real name of file
+     * @param version version number of cached copy
+     */
+    public void add(String realName, int version) {
+        versions.put(realName, version);
+    }
+
+    /**
+     * get cached versions to validate
+     * @return version number of cached copy by real name
+     */
+    public Map<String, Integer> getVersions() {
+        return versions;
+    }
+
+    public ProxyCallback getCallback() {
+        return callback;
+    }
+
+    /**
+     * ask server for a lease of every file whose version is still the latest
+     * @param callback callback of proxy
+     */
+    public void setCallback(ProxyCallback callback) {
+        this.callback = callback;
+    }
+
+    public PeerRpc getPeer() {
+        return peer;
+    }
+
+    /**
+     * list proxy as a holder of every file whose version is still the latest
+     * @param peer peer interface of proxy
+     */
+    public void setPeer(PeerRpc peer) {
+        this.peer = peer;
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * result of {@link Rpc#validate(ValidateRequest)}. Only files whose cached version is no longer the latest are listed,
+ * every other file of request is still up to date.
+ */
+public class ValidateResult implements Serializable {
+    // latest version of a file which no longer exists, real versions start from 1
+    public static final int REMOVED = 0;
+
+    private final Map<String, Integer> changed;
+    private long leaseMillis;
+
+    /**
+     * constructor
+     */
+    public ValidateResult() {
+        this.changed = new HashMap<>();
+    }
+
+    /**
+     * list a file whose cached version is stale
+     * @param realName real name of file
+     * @param version latest version on server, {@link #REMOVED} if file no longer exists or can not be read
+     */
+    public void setChanged(String realName, int version) {
+        changed.put(realName, version);
+    }
+
+    /**
+     * get files whose cached version is stale
+     * @return latest version on server by real name, {@link #REMOVED} if file no longer exists or can not be read
+     */
+    public Map<String, Integer> getChanged() {
+        return changed;
+    }
+
+    /**
+     * check whether cached version of a file in request is still the latest
+     * @param realName real name of file
+     * @return true if up to date
+     */
+    public boolean isUpToDate(String realName) {
+        return !changed.containsKey(realName);
+    }
+
+    /**
+     * get how long proxy may use every up to date file without checking server
+     * @return lease in milliseconds, 0 if no lease is granted
+     */
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+}
@@ -0,0 +1,403 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent version index of server, so that versions cached by proxies stay valid after a restart of server.
+ * <p>
+ * Like {@link CacheJournal} of proxy, every change of index is appended to a journal file, and the journal is folded
+ * into a snapshot file when it grows much larger than the index. Versions come from one counter of the whole server,
+ * which is saved with the index, so a version number is never given twice, even to a file which is removed and
+ * created again.
+ * <p>
+ * Index also records copies server has made which are not a current version, i.e. uploads in progress and retired
+ * versions which wait for their readers. After a crash exactly these files are deleted, any other file in root folder
+ * is a file of users, whatever its name is.
+ */
+public class VersionIndex {
+
+    public static final String SNAPSHOT_NAME = ".server-index";
+    public static final String JOURNAL_NAME = ".server-journal";
+    private static final int MIN_COMPACT_RECORDS = 1000;
+    // random name of a version is real name followed by a millisecond timestamp, and upload id if it is uploaded
+    private static final Pattern VERSION_NAME = Pattern.compile("(.+)\\d{13}(-\\d+)?");
+
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'R';
+    private static final byte COUNTER = 'C';
+    private static final byte COPY = 'K';
+    private static final byte DROP = 'D';
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final Map<String, Entry> entries;
+    // copies made by server which are not a current version of any file
+    private final Set<String> copies;
+    private int lastVersion;
+    private DataOutputStream journal;
+    private int journalRecords;
+
+    /**
+     * constructor
+     * @param rootFolder root folder of server
+     */
+    public VersionIndex(String rootFolder) {
+        File folder = new File(rootFolder);
+        folder.mkdirs();
+        this.snapshotFile = new File(folder, SNAPSHOT_NAME);
+        this.journalFile = new File(folder, JOURNAL_NAME);
+        this.entries = new HashMap<>();
+        this.copies = new HashSet<>();
+    }
+
+    /**
+     * load index from snapshot and journal, then start a fresh journal
+     * @return entries of index
+     * @throws IOException
+     */
+    public synchronized List<Entry> load() throws IOException {
+        entries.clear();
+        copies.clear();
+        lastVersion = 0;
+        replay(snapshotFile);
+        replay(journalFile);
+        compact();
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * get a version number which has never been given
+     * @return new version number
+     */
+    public synchronized int nextVersion() {
+        lastVersion++;
+        return lastVersion;
+    }
+
+    /**
+     * record current version of file
+     * @param fileInfo file info of server
+     * @param size size of version file
+     */
+    public synchronized void put(FileInfo fileInfo, long size) {
+        Entry entry = new Entry(fileInfo.getRealName(), fileInfo.getRandomName(), fileInfo.getVersion(), size);
+        applyPut(entry);
+        append(PUT, entry);
+    }
+
+    /**
+     * record that a file is removed, its copy is kept as a retired one until it is deleted
+     * @param realName real name
+     */
+    public synchronized void remove(String realName) {
+        Entry entry = entries.get(realName);
+        if (entry != null) {
+            applyRemove(realName);
+            append(REMOVE, entry);
+        }
+    }
+
+    /**
+     * record a copy which server is about to create, e.g. an upload, so that it is deleted if server crashes before
+     * it becomes a version
+     * @param randomName name of copy relative to root folder
+     */
+    public synchronized void addCopy(String randomName) {
+        if (copies.add(randomName)) {
+            appendName(COPY, randomName);
+        }
+    }
+
+    /**
+     * record that a copy is deleted
+     * @param randomName name of copy relative to root folder
+     */
+    public synchronized void removeCopy(String randomName) {
+        if (copies.remove(randomName)) {
+            appendName(DROP, randomName);
+        }
+    }
+
+    /**
+     * get copies made by server which are not a current version, which may be deleted after a restart
+     * @return names of copies relative to root folder
+     */
+    public synchronized Set<String> getCopies() {
+        return new HashSet<>(copies);
+    }
+
+    /**
+     * write a snapshot of index and start a fresh journal
+     */
+    public synchronized void compact() {
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                // counter goes first, it may be ahead of every version left in index
+                out.writeByte(COUNTER);
+                out.writeInt(lastVersion);
+                for (Entry entry : entries.values()) {
+                    write(out, PUT, entry);
+                }
+                for (String copy : copies) {
+                    out.writeByte(COPY);
+                    out.writeUTF(copy);
+                }
+            }
+            Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile)));
+            journalRecords = 0;
+        } catch (IOException e) {
+            System.err.println("Error in writing server index snapshot");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * close journal
+     */
+    public synchronized void close() {
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * get number of files in index
+     * @return number of files
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * check whether a file in root folder belongs to the index itself
+     * @param fileName name of file relative to root folder
+     * @return true if it is snapshot or journal
+     */
+    public static boolean isIndexFile(String fileName) {
+        return fileName.startsWith(SNAPSHOT_NAME) || fileName.equals(JOURNAL_NAME);
+    }
+
+    /**
+     * get real name of a version file by its random name
+     * @param fileName name of file relative to root folder
+     * @return real name, null if it is not named as a version file
+     */
+    public static String toRealName(String fileName) {
+        Matcher matcher = VERSION_NAME.matcher(fileName);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
+    /**
+     * check whether a file is a copy of an upload which has never been committed
+     * @param fileName name of file relative to root folder
+     * @return true if it is named as an upload copy
+     */
+    public static boolean isUploadName(String fileName) {
+        Matcher matcher = VERSION_NAME.matcher(fileName);
+        return matcher.matches() && matcher.group(2) != null;
+    }
+
+    /**
+     * list all regular files under root folder with their sizes, every folder is listed by its own task in parallel
+     * @param rootFolder root folder of server
+     * @return sizes of files by names relative to root folder, index files are left out
+     */
+    public static Map<String, Long> scan(String rootFolder) {
+        Map<String, Long> files = new ConcurrentHashMap<>();
+        ForkJoinPool.commonPool().invoke(new ScanTask(new File(rootFolder), "", files));
+        return files;
+    }
+
+    private void append(byte op, Entry entry) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            write(journal, op, entry);
+            journal.flush();
+            journalRecords++;
+        } catch (IOException e) {
+            System.err.println("Error in writing server journal");
+            e.printStackTrace();
+        }
+        if (journalRecords > Math.max(MIN_COMPACT_RECORDS, entries.size() * 2)) {
+            compact();
+        }
+    }
+
+    private void appendName(byte op, String randomName) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.writeByte(op);
+            journal.writeUTF(randomName);
+            journal.flush();
+            journalRecords++;
+        } catch (IOException e) {
+            System.err.println("Error in writing server journal");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * make an entry current, the copy it replaces is retired
+     * @param entry entry of index
+     */
+    private void applyPut(Entry entry) {
+        Entry old = entries.put(entry.realName, entry);
+        if (old != null && !old.randomName.equals(entry.randomName)) {
+            copies.add(old.randomName);
+        }
+        copies.remove(entry.randomName);
+    }
+
+    private void applyRemove(String realName) {
+        Entry old = entries.remove(realName);
+        if (old != null) {
+            copies.add(old.randomName);
+        }
+    }
+
+    private static void write(DataOutputStream out, byte op, Entry entry) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(entry.realName);
+        out.writeInt(entry.version);
+        if (op == PUT) {
+            out.writeUTF(entry.randomName);
+            out.writeLong(entry.size);
+        }
+    }
+
+    private void replay(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte op = in.readByte();
+                if (op == COUNTER) {
+                    lastVersion = Math.max(lastVersion, in.readInt());
+                    continue;
+                }
+                if (op == COPY) {
+                    copies.add(in.readUTF());
+                    continue;
+                }
+                if (op == DROP) {
+                    copies.remove(in.readUTF());
+                    continue;
+                }
+                String realName = in.readUTF();
+                int version = in.readInt();
+                lastVersion = Math.max(lastVersion, version);
+                if (op == PUT) {
+                    applyPut(new Entry(realName, in.readUTF(), version, in.readLong()));
+                } else if (op == REMOVE) {
+                    applyRemove(realName);
+                } else {
+                    System.err.println("Error in server journal, unknown record " + op);
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            // end of file, or a torn record written during a crash
+        }
+    }
+
+    /**
+     * task which lists one folder and forks a task for each of its sub folders
+     */
+    private static class ScanTask extends RecursiveAction {
+        private final File folder;
+        private final String prefix;
+        private final Map<String, Long> files;
+
+        ScanTask(File folder, String prefix, Map<String, Long> files) {
+            this.folder = folder;
+            this.prefix = prefix;
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            File[] children = folder.listFiles();
+            if (children == null) {
+                return;
+            }
+            List<ScanTask> subTasks = new ArrayList<>();
+            for (File child : children) {
+                String name = prefix + child.getName();
+                if (child.isDirectory()) {
+                    subTasks.add(new ScanTask(child, name + "/", files));
+                } else if (child.isFile() && !isIndexFile(name)) {
+                    files.put(name, child.length());
+                }
+            }
+            invokeAll(subTasks);
+        }
+    }
+
+    /**
+     * record of one file on server
+     */
+    public static class Entry {
+        private final String realName;
+        private final String randomName;
+        private final int version;
+        private final long size;
+
+        Entry(String realName, String randomName, int version, long size) {
+            this.realName = realName;
+            this.randomName = randomName;
+            this.version = version;
+            this.size = size;
+        }
+
+        public String getRealName() {
+            return realName;
+        }
+
+        public String getRandomName() {
+            return randomName;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
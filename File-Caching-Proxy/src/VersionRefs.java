@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reference counts of server copies, one copy for every version of a file.
+ * <p>
+ * A copy is referenced while a download, delta or signature still reads it. When a copy is replaced by a newer
+ * version or its file is unlinked, it is retired: an unreferenced copy is deleted at once, a referenced one is deleted
+ * by the release of its last reader. So unlink never waits for readers, and readers never see their copy disappear.
+ * <p>
+ * A reader may take several references at once, e.g. a chunked download holds one reference per byte still to be
+ * sent, and gives them back chunk by chunk in whatever order chunks are fetched.
+ * <p>
+ * A reader which is abandoned, e.g. a download of a proxy which crashed, never gives its references back. So the
+ * references of a retired copy which has been idle for long are dropped by {@link #expire(long)}, and the copy is
+ * deleted.
+ */
+public class VersionRefs {
+    private final Map<String, Entry> entries;
+    private final Consumer<String> deleter;
+
+    /**
+     * constructor
+     * @param deleter deletes storage of a copy by its random name, it is called out of lock
+     */
+    public VersionRefs(Consumer<String> deleter) {
+        this.entries = new HashMap<>();
+        this.deleter = deleter;
+    }
+
+    /**
+     * add a reference of copy
+     * @param randomName random name of copy
+     */
+    public void acquire(String randomName) {
+        acquire(randomName, 1);
+    }
+
+    /**
+     * add references of copy
+     * @param randomName random name of copy
+     * @param count number of references
+     */
+    public synchronized void acquire(String randomName, long count) {
+        Entry entry = entries.get(randomName);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(randomName, entry);
+        }
+        entry.refs += count;
+        entry.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * remove a reference of copy, the copy is deleted if it is retired and this is its last reference
+     * @param randomName random name of copy
+     */
+    public void release(String randomName) {
+        release(randomName, 1);
+    }
+
+    /**
+     * remove references of copy, the copy is deleted if it is retired and no reference is left
+     * @param randomName random name of copy
+     * @param count number of references
+     */
+    public void release(String randomName, long count) {
+        synchronized (this) {
+            Entry entry = entries.get(randomName);
+            if (entry == null) {
+                // e.g. its references have expired
+                System.err.println("Error: release of unreferenced copy " + randomName);
+                return;
+            }
+            entry.refs -= count;
+            entry.lastUsed = System.currentTimeMillis();
+            if (entry.refs > 0) {
+                return;
+            }
+            entries.remove(randomName);
+            if (!entry.retired) {
+                return;
+            }
+        }
+        deleter.accept(randomName);
+    }
+
+    /**
+     * retire a copy which is no longer in index, it is deleted once it is not referenced
+     * @param randomName random name of copy
+     */
+    public void retire(String randomName) {
+        synchronized (this) {
+            Entry entry = entries.get(randomName);
+            if (entry != null) {
+                entry.retired = true;
+                return;
+            }
+        }
+        deleter.accept(randomName);
+    }
+
+    /**
+     * drop all references of retired copies which have not been acquired or released since a deadline, and delete them
+     * @param deadline copies last used at or before this time are deleted
+     * @return number of deleted copies
+     */
+    public int expire(long deadline) {
+        List<String> expired = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Entry> entry = it.next();
+                if (entry.getValue().retired && entry.getValue().lastUsed <= deadline) {
+                    it.remove();
+                    expired.add(entry.getKey());
+                }
+            }
+        }
+        for (String randomName : expired) {
+            System.err.println("References of retired copy " + randomName + " expire");
+            deleter.accept(randomName);
+        }
+        return expired.size();
+    }
+
+    /**
+     * get number of references of copy
+     * @param randomName random name of copy
+     * @return number of references, 0 if none
+     */
+    public synchronized long getRefs(String randomName) {
+        Entry entry = entries.get(randomName);
+        return entry == null ? 0 : entry.refs;
+    }
+
+    private static class Entry {
+        private long refs;
+        private boolean retired;
+        private long lastUsed;
+    }
+}
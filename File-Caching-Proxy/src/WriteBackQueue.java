@@ -0,0 +1,195 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Versions written by clients which wait to be uploaded, so that close returns before its upload is done.
+ * <p>
+ * Versions of one file are uploaded one at a time, in the order they were closed. A version still waiting when a
+ * newer version of the same file is closed is dropped, since server would replace it at once anyway. Different files
+ * are uploaded in parallel by a few workers. A failed upload is retried a few times, unless a newer version waits.
+ */
+public class WriteBackQueue {
+
+    public static final String QUEUED = "writeBack.queued";
+    public static final String COALESCED = "writeBack.coalesced";
+    public static final String UPLOADED = "writeBack.uploaded";
+    public static final String FAILED = "writeBack.failed";
+    public static final String BACKLOG = "writeBack.backlog";
+    public static final String BACKLOG_BYTES = "writeBack.backlogBytes";
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_MILLIS = 500;
+
+    private final Uploader uploader;
+    private final ExecutorService workers;
+    private final Metrics metrics;
+    // newest version of every file which waits for upload
+    private final Map<String, Pending> waiting;
+    // files which have a worker uploading their versions
+    private final Set<String> active;
+
+    /**
+     * constructor
+     * @param uploader uploads versions and is told when they leave queue
+     * @param workers number of files uploaded in parallel
+     * @param metrics metrics of proxy
+     */
+    public WriteBackQueue(Uploader uploader, int workers, Metrics metrics) {
+        this.uploader = uploader;
+        this.metrics = metrics;
+        this.waiting = new HashMap<>();
+        this.active = new HashSet<>();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+            Thread thread = new Thread(r, "proxy-write-back");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * queue a version for upload, an older version of the same file which is still waiting is dropped
+     * @param realName real name
+     * @param fileName name of version in cache folder
+     * @param size size of version
+     */
+    public void enqueue(final String realName, String fileName, long size) {
+        Pending dropped;
+        boolean start = false;
+        synchronized (this) {
+            dropped = waiting.put(realName, new Pending(fileName, size));
+            metrics.increment(QUEUED);
+            metrics.increment(BACKLOG);
+            metrics.add(BACKLOG_BYTES, size);
+            if (dropped != null) {
+                metrics.increment(COALESCED);
+                metrics.add(BACKLOG, -1);
+                metrics.add(BACKLOG_BYTES, -dropped.size);
+            } else if (active.add(realName)) {
+                start = true;
+            }
+        }
+        if (dropped != null) {
+            uploader.done(realName, dropped.fileName, 0);
+        }
+        if (start) {
+            workers.execute(() -> drain(realName));
+        }
+    }
+
+    /**
+     * check whether a file has a version which server does not have yet
+     * @param realName real name
+     * @return true if a version of it waits or is being uploaded
+     */
+    public synchronized boolean isPending(String realName) {
+        return waiting.containsKey(realName) || active.contains(realName);
+    }
+
+    /**
+     * wait until every version of a file queued before is uploaded or has failed
+     * @param realName real name
+     * @throws InterruptedException
+     */
+    public synchronized void flush(String realName) throws InterruptedException {
+        while (isPending(realName)) {
+            wait();
+        }
+    }
+
+    /**
+     * wait until every version queued before is uploaded or has failed
+     * @throws InterruptedException
+     */
+    public synchronized void flush() throws InterruptedException {
+        while (!waiting.isEmpty() || !active.isEmpty()) {
+            wait();
+        }
+    }
+
+    /**
+     * upload versions of a file until none waits
+     * @param realName real name
+     */
+    private void drain(String realName) {
+        while (true) {
+            Pending pending;
+            synchronized (this) {
+                pending = waiting.remove(realName);
+                if (pending == null) {
+                    active.remove(realName);
+                    notifyAll();
+                    return;
+                }
+            }
+            int result = upload(realName, pending);
+            synchronized (this) {
+                metrics.add(BACKLOG, -1);
+                metrics.add(BACKLOG_BYTES, -pending.size);
+                metrics.increment(result > 0 ? UPLOADED : FAILED);
+            }
+            uploader.done(realName, pending.fileName, result);
+        }
+    }
+
+    private int upload(String realName, Pending pending) {
+        int result = ErrorCode.REMOTE;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            result = uploader.upload(realName, pending.fileName);
+            if (result > 0) {
+                return result;
+            }
+            System.err.println("Error in write back of " + realName + ", attempt " + attempt + ": " + result);
+            synchronized (this) {
+                if (waiting.containsKey(realName)) {
+                    // a newer version replaces this one anyway
+                    break;
+                }
+            }
+            if (attempt == MAX_ATTEMPTS) {
+                break;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * uploads versions of queue
+     */
+    public interface Uploader {
+        /**
+         * upload a version
+         * @param realName real name
+         * @param fileName name of version in cache folder
+         * @return new version number of server if success, error number if fail
+         */
+        int upload(String realName, String fileName);
+
+        /**
+         * called once for every version which leaves queue, out of lock of queue
+         * @param realName real name
+         * @param fileName name of version in cache folder
+         * @param result new version number if uploaded, error number if failed, 0 if dropped for a newer version
+         */
+        void done(String realName, String fileName, int result);
+    }
+
+    private static class Pending {
+        private final String fileName;
+        private final long size;
+
+        Pending(String fileName, long size) {
+            this.fileName = fileName;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers shared by tests which run a proxy: wrappers of the rpc of proxy which watch, delay or fail its calls to
+ * server, and reading a whole file through a file handler.
+ */
+public final class ProxyTestSupport {
+
+    private ProxyTestSupport() {
+    }
+
+    /**
+     * wrap rpc so that every call goes through an interceptor before it reaches server
+     * @param rpc rpc to wrap
+     * @param interceptor sees every call, and fails it by throwing
+     * @return wrapped rpc
+     */
+    public static Rpc intercept(final Rpc rpc, final Interceptor interceptor) {
+        return (Rpc) java.lang.reflect.Proxy.newProxyInstance(Rpc.class.getClassLoader(), new Class<?>[]{Rpc.class},
+                (proxy, method, args) -> {
+                    interceptor.before(method.getName(), args);
+                    try {
+                        return method.invoke(rpc, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    /**
+     * wrap rpc so that calls of one method are counted
+     * @param rpc rpc to wrap
+     * @param methodName name of counted method, e.g. checkServer
+     * @param calls counter
+     * @return wrapped rpc
+     */
+    public static Rpc counting(Rpc rpc, final String methodName, final AtomicInteger calls) {
+        return intercept(rpc, (method, args) -> {
+            if (method.equals(methodName)) {
+                calls.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * wrap rpc so that every call takes at least a simulated latency
+     * @param rpc rpc to wrap
+     * @param millis latency in milliseconds
+     * @return wrapped rpc
+     */
+    public static Rpc delayed(Rpc rpc, final long millis) {
+        return intercept(rpc, (method, args) -> Thread.sleep(millis));
+    }
+
+    /**
+     * open a file for read and read all of it
+     * @param handler file handler of a client
+     * @param name name of file
+     * @return content of file
+     */
+    public static byte[] read(Proxy.FileHandler handler, String name) {
+        int fd = handler.open(name, FileHandling.OpenOption.READ);
+        Assert.assertTrue(fd > 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 20];
+        long n;
+        while ((n = handler.read(fd, buffer)) > 0) {
+            out.write(buffer, 0, (int) n);
+        }
+        Assert.assertEquals(0, handler.close(fd));
+        return out.toByteArray();
+    }
+
+    /**
+     * sees calls of proxy to server
+     */
+    public interface Interceptor {
+        /**
+         * called before a call is sent
+         * @param method name of method
+         * @param args arguments of call
+         * @throws Exception to fail the call
+         */
+        void before(String method, Object[] args) throws Exception;
+    }
+}
@@ -0,0 +1,134 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batched validation of cached versions: concurrent validations are coalesced, and a sweep of a restarted proxy
+ * validates thousands of files with a few requests, after which their opens do not check server.
+ */
+public class TestBatchValidator {
+    private static final int FILES = 2500;
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final CountDownLatch firstSent = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> sizes = new ArrayList<>();
+        Metrics metrics = new Metrics();
+        final BatchValidator validator = new BatchValidator(versions -> {
+            synchronized (sizes) {
+                sizes.add(versions.size());
+            }
+            firstSent.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ValidateResult result = new ValidateResult();
+            if (versions.containsKey("stale")) {
+                result.setChanged("stale", 2);
+            }
+            return result;
+        }, 100, metrics);
+
+        ExecutorService pool = Executors.newCachedThreadPool();
+        Future<ValidateResult> first = pool.submit(() -> validator.validate("first", 1));
+        Assert.assertTrue(firstSent.await(5, TimeUnit.SECONDS));
+        // validations which arrive while the first batch is in flight go together in the next one
+        List<Future<ValidateResult>> waiting = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            final String name = i == 0 ? "stale" : "file" + i;
+            waiting.add(pool.submit(() -> validator.validate(name, 1)));
+        }
+        Thread.sleep(200);
+        release.countDown();
+        Assert.assertTrue(first.get().isUpToDate("first"));
+        Assert.assertFalse(waiting.get(0).get().isUpToDate("stale"));
+        for (Future<ValidateResult> result : waiting) {
+            Assert.assertTrue(result.get().isUpToDate("file1"));
+        }
+        Assert.assertEquals(2, sizes.size());
+        Assert.assertEquals(9, (long) sizes.get(1));
+        Assert.assertEquals(2, metrics.get(BatchValidator.BATCHES));
+        Assert.assertEquals(1, metrics.get(BatchValidator.STALE));
+
+        // a sweep is split into bounded batches
+        Map<String, Integer> versions = new HashMap<>();
+        for (int i = 0; i < 250; i++) {
+            versions.put("file" + i, 1);
+        }
+        Assert.assertTrue(validator.validateAll(versions).getChanged().isEmpty());
+        Assert.assertEquals(5, metrics.get(BatchValidator.BATCHES));
+        pool.shutdown();
+    }
+
+    @Test
+    public void testSweep() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        for (int i = 0; i < FILES; i++) {
+            Files.write(root.resolve("small" + i), ("content " + i).getBytes());
+        }
+        int port = 30000 + new Random().nextInt(10000);
+        Server server = new Server(port, root.toString());
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://127.0.0.1:" + port + "/server", server);
+        String[] args = {"127.0.0.1", String.valueOf(port), Files.createTempDirectory("ProxyFile").toString(),
+                String.valueOf(FILES * 1000)};
+        ProxyConfig config = new ProxyConfig();
+        config.setPrefetch(false);
+        config.setPersistentCache(true);
+        // versions in memory tier do not survive restart
+        config.setMemoryTierSize(0);
+        Proxy.FileHandler handler = new Proxy.FileHandler(new Proxy(args, config));
+        for (int i = 0; i < FILES; i++) {
+            int fd = handler.open("small" + i, FileHandling.OpenOption.READ);
+            Assert.assertTrue(fd > 0);
+            handler.close(fd);
+        }
+        int fd = handler.open("small0", FileHandling.OpenOption.WRITE);
+        handler.write(fd, "changed".getBytes());
+        handler.close(fd);
+        handler.clientdone();
+
+        // a restarted proxy validates its recovered versions in background, a few files per request
+        long start = System.nanoTime();
+        Proxy restarted = new Proxy(args, config);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (restarted.getMetrics().get(BatchValidator.FILES) < FILES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        System.out.printf("revalidated %d files with %d requests in %d ms, %d stale%n",
+                restarted.getMetrics().get(BatchValidator.FILES), restarted.getMetrics().get(BatchValidator.BATCHES),
+                (System.nanoTime() - start) / 1000000, restarted.getMetrics().get(BatchValidator.STALE));
+        Assert.assertEquals(FILES, restarted.getMetrics().get(BatchValidator.FILES));
+        Assert.assertEquals((FILES + 999) / 1000, restarted.getMetrics().get(BatchValidator.BATCHES));
+
+        // only stale versions are checked on open, the others are covered by leases of the sweep
+        final AtomicInteger checks = new AtomicInteger();
+        restarted.rpc = ProxyTestSupport.counting(restarted.rpc, "checkServer", checks);
+        handler = new Proxy.FileHandler(restarted);
+        for (int i = 0; i < FILES; i++) {
+            fd = handler.open("small" + i, FileHandling.OpenOption.READ);
+            Assert.assertTrue(fd > 0);
+            handler.close(fd);
+        }
+        Assert.assertEquals(restarted.getMetrics().get(BatchValidator.STALE), checks.get());
+        Assert.assertTrue(checks.get() <= 1);
+    }
+}
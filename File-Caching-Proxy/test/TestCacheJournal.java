@@ -0,0 +1,108 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Unit test of persistent cache index, and of recovery of cache folder by a proxy, which do not need a running server.
+ */
+public class TestCacheJournal {
+    @Test
+    public void test() throws IOException {
+        File folder = Files.createTempDirectory("cache").toFile();
+
+        CacheJournal journal = new CacheJournal(folder.getPath());
+        Assert.assertTrue(journal.load().isEmpty());
+        journal.put(new FileInfo("a", "a-1", 1), 10);
+        journal.put(new FileInfo("b", "b-1", 1), 20);
+        journal.put(new FileInfo("c", "c-1", 1), 30);
+        journal.touch("a");
+        journal.put(new FileInfo("b", "b-2", 2), 25);
+        journal.remove("c");
+        journal.close();
+
+        // a crash in the middle of a record leaves a torn tail
+        try (FileOutputStream out = new FileOutputStream(new File(folder, CacheJournal.JOURNAL_NAME), true)) {
+            out.write(new byte[]{'P', 0, 5, 'd'});
+        }
+
+        journal = new CacheJournal(folder.getPath());
+        List<CacheJournal.Entry> entries = journal.load();
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("a", entries.get(0).getRealName());
+        Assert.assertEquals("a-1", entries.get(0).getRandomName());
+        Assert.assertEquals(10, entries.get(0).getSize());
+        Assert.assertEquals("b", entries.get(1).getRealName());
+        Assert.assertEquals("b-2", entries.get(1).getRandomName());
+        Assert.assertEquals(2, entries.get(1).getVersion());
+        Assert.assertEquals(25, entries.get(1).getSize());
+
+        // after compaction, snapshot alone keeps the index
+        journal.touch("a");
+        journal.compact();
+        journal.close();
+        journal = new CacheJournal(folder.getPath());
+        entries = journal.load();
+        Assert.assertEquals("b", entries.get(0).getRealName());
+        Assert.assertEquals("a", entries.get(1).getRealName());
+        journal.close();
+    }
+
+    @Test
+    public void testTouchesAreCoalesced() throws IOException {
+        File folder = Files.createTempDirectory("cache").toFile();
+        File journalFile = new File(folder, CacheJournal.JOURNAL_NAME);
+
+        CacheJournal journal = new CacheJournal(folder.getPath());
+        journal.load();
+        journal.put(new FileInfo("a", "a-1", 1), 10);
+        journal.put(new FileInfo("b", "b-1", 1), 20);
+        long length = journalFile.length();
+        for (int i = 0; i < 10; i++) {
+            journal.touch("a");
+            journal.touch("b");
+        }
+        journal.touch("a");
+        Assert.assertEquals("touches are written one by one", length, journalFile.length());
+
+        // one touch of every file, in order of latest touches, comes before the next put
+        journal.put(new FileInfo("c", "c-1", 1), 30);
+        journal.touch("b");
+        // a crash loses the latest order only
+        journal = new CacheJournal(folder.getPath());
+        List<CacheJournal.Entry> entries = journal.load();
+        Assert.assertEquals("b", entries.get(0).getRealName());
+        Assert.assertEquals("a", entries.get(1).getRealName());
+        Assert.assertEquals("c", entries.get(2).getRealName());
+
+        // pending touches are written at close
+        journal.touch("a");
+        journal.close();
+        journal = new CacheJournal(folder.getPath());
+        entries = journal.load();
+        Assert.assertEquals("a", entries.get(2).getRealName());
+        journal.close();
+    }
+
+    @Test
+    public void testOrphansAreKept() throws IOException {
+        File folder = Files.createTempDirectory("cache").toFile();
+        File orphan = new File(folder, "notes.txt");
+        Files.write(orphan.toPath(), "notes".getBytes());
+        // no server is needed to recover cache
+        String[] args = new String[]{"127.0.0.1", "1", folder.getPath(), "100000"};
+        ProxyConfig config = new ProxyConfig();
+        config.setPrefetch(false);
+        config.setPersistentCache(true);
+        new Proxy(args, config);
+        Assert.assertTrue(orphan.exists());
+
+        config.setCollectOrphans(true);
+        new Proxy(args, config);
+        Assert.assertFalse(orphan.exists());
+    }
+}
@@ -0,0 +1,93 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compare fixed and adaptive chunk size over a link with simulated latency. It starts its own server in a temporary
+ * folder, every request of proxies is delayed, and the time to download and upload the same files is printed.
+ */
+public class TestChunkSize {
+    private static final int FILES = 4;
+    private static final int FILE_SIZE = 12 * 1000 * 1000 + 4321;
+    private static final long LATENCY_MILLIS = 20;
+
+    @Test
+    public void testTuner() {
+        // 10 ms round trip and 100 MB/s, chunks of 4 round trips are 4 MB
+        ChunkTuner tuner = new ChunkTuner(64 * 1024, 64 * 1024 * 1024, ChunksTask.CHUNK_SIZE);
+        Assert.assertEquals(ChunksTask.CHUNK_SIZE, tuner.getChunkSize());
+        for (int i = 0; i < 8; i++) {
+            long size = i % 2 == 0 ? 100 : 1000000 * (i + 1);
+            tuner.record(size, (long) ((0.01 + size / 1e8) * 1e9));
+        }
+        Assert.assertTrue(Math.abs(tuner.getRoundTrip() - 0.01) < 1e-6);
+        Assert.assertTrue(Math.abs(tuner.getChunkSize() - 4000000) < 100);
+
+        // bounded by configured sizes
+        ChunkTuner small = new ChunkTuner(64 * 1024, 2 * 1024 * 1024, ChunksTask.CHUNK_SIZE);
+        for (int i = 0; i < 8; i++) {
+            long size = i % 2 == 0 ? 100 : 1000000;
+            small.record(size, (long) ((0.01 + size / 1e8) * 1e9));
+        }
+        Assert.assertEquals(2 * 1024 * 1024, small.getChunkSize());
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        byte[][] contents = new byte[FILES][];
+        Random random = new Random(15440);
+        for (int i = 0; i < FILES; i++) {
+            contents[i] = new byte[FILE_SIZE];
+            random.nextBytes(contents[i]);
+            // every run reads files of its own, which no proxy of a previous run holds to share with it
+            Files.write(root.resolve("fixed-file" + i), contents[i]);
+            Files.write(root.resolve("adaptive-file" + i), contents[i]);
+        }
+        int port = 30000 + new Random().nextInt(10000);
+        Server.main(new String[]{String.valueOf(port), root.toString()});
+        Rpc server = (Rpc) Naming.lookup("rmi://127.0.0.1:" + port + "/server");
+
+        for (boolean adaptive : new boolean[]{false, true}) {
+            ProxyConfig config = new ProxyConfig();
+            config.setAdaptiveChunks(adaptive);
+            config.setPrefetch(false);
+            config.setCompression(false);
+            String[] args = {"127.0.0.1", String.valueOf(port), Files.createTempDirectory("ProxyFile").toString(),
+                    String.valueOf(FILES * FILE_SIZE * 2)};
+            Proxy proxy = new Proxy(args, config);
+            // every request takes at least the simulated latency
+            proxy.rpc = ProxyTestSupport.delayed(server, LATENCY_MILLIS);
+            Proxy.FileHandler handler = new Proxy.FileHandler(proxy);
+            String name = adaptive ? "adaptive" : "fixed";
+
+            long total = 0;
+            for (int i = 0; i < FILES; i++) {
+                long start = System.nanoTime();
+                Assert.assertArrayEquals(contents[i], ProxyTestSupport.read(handler, name + "-file" + i));
+                long millis = (System.nanoTime() - start) / 1000000;
+                // the first file is where adaptive proxy learns the link
+                total += i == 0 ? 0 : millis;
+                System.out.printf("%s download file%d: %d ms, chunk size %d%n", name, i, millis,
+                        proxy.getChunkSize());
+            }
+            long start = System.nanoTime();
+            int fd = handler.open("up-" + name, FileHandling.OpenOption.CREATE_NEW);
+            Assert.assertEquals(FILE_SIZE, handler.write(fd, contents[0]));
+            Assert.assertEquals(0, handler.close(fd));
+            System.out.printf("%s: download %d ms after first file, upload %d ms%n", name, total,
+                    (System.nanoTime() - start) / 1000000);
+            Assert.assertArrayEquals(contents[0], Files.readAllBytes(root.resolve(
+                    server.checkServer(new CheckRequest("up-" + name, FileHandling.OpenOption.READ, -1))
+                            .getChunksTask().getServerRandomName())));
+            if (adaptive) {
+                Assert.assertTrue("chunks grow over a link with latency", proxy.getChunkSize() > ChunksTask.CHUNK_SIZE);
+            }
+        }
+    }
+}
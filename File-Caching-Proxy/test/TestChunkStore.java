@@ -0,0 +1,132 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit test of chunk store and chunk manifest, which does not need a running server, and of manifests a server sends.
+ */
+public class TestChunkStore {
+
+    @Test
+    public void testServerManifestIsNotWaitedFor() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        byte[] content = randomBytes(300000);
+        Files.write(root.resolve("old"), content);
+        Server server = new Server(0, root.toString());
+
+        // a copy which has never been hashed is sent without manifest, which is computed meanwhile
+        Assert.assertNull(manifestOf(server, "old"));
+        ChunkManifest manifest = awaitManifest(server, "old");
+        Assert.assertEquals(ChunkManifest.compute(root.resolve("old")).getContentDigest(), manifest.getContentDigest());
+
+        // a committed version is hashed at once
+        long uploadId = server.beginUpload("new");
+        Assert.assertEquals(0, server.uploadChunkAt(uploadId, 0, content));
+        Assert.assertTrue(server.commitUpload(uploadId, content.length) > 0);
+        Assert.assertEquals(manifest.getContentDigest(), awaitManifest(server, "new").getContentDigest());
+    }
+
+    private static ChunkManifest manifestOf(Server server, String realName) throws Exception {
+        CheckRequest request = new CheckRequest(realName, FileHandling.OpenOption.READ, 0);
+        request.setManifestWanted(true);
+        request.setChunkSize(64 * 1024);
+        return server.checkServer(request).getChunksTask().getManifest();
+    }
+
+    private static ChunkManifest awaitManifest(Server server, String realName) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        ChunkManifest manifest;
+        while ((manifest = manifestOf(server, realName)) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(manifest != null);
+        return manifest;
+    }
+
+    @Test
+    public void testManifest() throws IOException {
+        Path folder = Files.createTempDirectory("chunks");
+        byte[] content = randomBytes(ChunkManifest.CHUNK_SIZE * 2 + 100);
+        Files.write(folder.resolve("a"), content);
+        content[ChunkManifest.CHUNK_SIZE + 1] ^= 1;
+        Files.write(folder.resolve("b"), content);
+        Files.write(folder.resolve("empty"), new byte[0]);
+
+        ChunkManifest a = ChunkManifest.compute(folder.resolve("a"));
+        ChunkManifest b = ChunkManifest.compute(folder.resolve("b"));
+        Assert.assertEquals(3, a.getChunks());
+        Assert.assertEquals(100, a.getSize(2));
+        Assert.assertEquals(a.getDigest(0), b.getDigest(0));
+        Assert.assertFalse(a.getDigest(1).equals(b.getDigest(1)));
+        Assert.assertEquals(a.getDigest(2), b.getDigest(2));
+        Assert.assertFalse(a.getContentDigest().equals(b.getContentDigest()));
+        Assert.assertEquals(0, ChunkManifest.compute(folder.resolve("empty")).getChunks());
+    }
+
+    @Test
+    public void testSharing() throws IOException {
+        Path folder = Files.createTempDirectory("chunks");
+        byte[] content = randomBytes(ChunkManifest.CHUNK_SIZE + 10);
+        Files.write(folder.resolve("a1"), content);
+        Files.write(folder.resolve("b1"), content);
+        Metrics metrics = new Metrics();
+        ChunkStore store = new ChunkStore(folder.toString(), metrics);
+
+        Assert.assertEquals(0, store.add("a1", ChunkManifest.compute(folder.resolve("a1"))));
+        // identical content is linked, its bytes are shared
+        Assert.assertEquals(content.length, store.add("b1", ChunkManifest.compute(folder.resolve("b1"))));
+        Assert.assertEquals(0, store.add("b1", ChunkManifest.compute(folder.resolve("b1"))));
+        Assert.assertEquals(Files.readAttributes(folder.resolve("a1"), "unix:ino").get("ino"),
+                Files.readAttributes(folder.resolve("b1"), "unix:ino").get("ino"));
+        Assert.assertEquals(content.length, metrics.get(ChunkStore.SHARED_BYTES));
+
+        // bytes are freed with the last version
+        Assert.assertEquals(0, store.remove("a1"));
+        Files.delete(folder.resolve("a1"));
+        Assert.assertTrue(Arrays.equals(content, Files.readAllBytes(folder.resolve("b1"))));
+        Assert.assertEquals(content.length, store.remove("b1"));
+        Assert.assertEquals(-1, store.remove("b1"));
+        Assert.assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void testCopyChunk() throws IOException {
+        Path folder = Files.createTempDirectory("chunks");
+        byte[] content = randomBytes(ChunkManifest.CHUNK_SIZE + 10);
+        Files.write(folder.resolve("a1"), content);
+        Metrics metrics = new Metrics();
+        ChunkStore store = new ChunkStore(folder.toString(), metrics);
+        ChunkManifest manifest = ChunkManifest.compute(folder.resolve("a1"));
+        store.add("a1", manifest);
+        Assert.assertTrue(store.holds(manifest.getDigest(1)));
+
+        // the short last chunk is copied to its offset of another file
+        try (FileChannel channel = FileChannel.open(folder.resolve("copy"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Assert.assertTrue(store.copyChunk(manifest.getDigest(1), 10, channel, 5));
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            channel.read(buffer, 5);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(content, ChunkManifest.CHUNK_SIZE, content.length),
+                    buffer.array()));
+            Assert.assertFalse(store.copyChunk("00", 10, channel, 0));
+        }
+        Assert.assertEquals(10, metrics.get(ChunkStore.REUSED_BYTES));
+
+        store.remove("a1");
+        Assert.assertFalse(store.holds(manifest.getDigest(0)));
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,137 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test of parallel chunk download of {@link ChunksTask}, chunks come from a byte array instead of a server.
+ */
+public class TestChunksTask {
+    private static final int CHUNK_SIZE = 1000;
+    private static final int WINDOW = 3;
+
+    @Test
+    public void testWindow() throws Exception {
+        byte[] content = new byte[9500];
+        new Random(1).nextBytes(content);
+        ChunksTask task = newTask(content);
+        List<int[]> ranges = ranges(task);
+        Assert.assertEquals(9, ranges.size());
+
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+        Path target = Files.createTempFile("chunks", null);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(content, 0, CHUNK_SIZE), 0);
+            boolean success = task.downloadRanges((offset, size) -> {
+                int running = inFlight.incrementAndGet();
+                maxInFlight.accumulateAndGet(running, Math::max);
+                try {
+                    // earlier chunks are slower, so they complete after later ones
+                    Thread.sleep(10 * (10 - offset / CHUNK_SIZE));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                completed.add(offset / CHUNK_SIZE);
+                return Arrays.copyOfRange(content, offset, offset + size);
+            }, channel, ranges, WINDOW, executor);
+            Assert.assertTrue(success);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(WINDOW, maxInFlight.get());
+        Assert.assertEquals(9, completed.size());
+        List<Integer> sorted = new ArrayList<>(completed);
+        Collections.sort(sorted);
+        Assert.assertFalse("chunks completed in order", sorted.equals(completed));
+        Assert.assertArrayEquals(content, Files.readAllBytes(target));
+        Assert.assertFalse(task.hasNextChunk());
+    }
+
+    @Test
+    public void testFailureStopsWindow() throws Exception {
+        byte[] content = new byte[9500];
+        ChunksTask task = newTask(content);
+        final AtomicInteger fetched = new AtomicInteger();
+        Path target = Files.createTempFile("chunks", null);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            boolean success = task.downloadRanges((offset, size) -> {
+                fetched.incrementAndGet();
+                // the second range fails at once, others take a while
+                if (offset == 2 * CHUNK_SIZE) {
+                    return null;
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new byte[size];
+            }, channel, ranges(task), 2, executor);
+            Assert.assertFalse(success);
+        } finally {
+            executor.shutdownNow();
+        }
+        // no worker takes a new chunk after the failure
+        Assert.assertTrue("fetched " + fetched.get(), fetched.get() <= 3);
+    }
+
+    @Test
+    public void testTruncatedChunkFails() throws Exception {
+        byte[] content = new byte[9500];
+        ChunksTask task = newTask(content);
+        Path target = Files.createTempFile("chunks", null);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            // one range comes back shorter than asked for, which would leave a hole in the file
+            boolean success = task.downloadRanges((offset, size) ->
+                    new byte[offset == 4 * CHUNK_SIZE ? size - 1 : size], channel, ranges(task), WINDOW, executor);
+            Assert.assertFalse(success);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * make a server copy of content, the first chunk of which is sent with check result
+     * @param content content of copy
+     * @return chunks task of copy
+     */
+    private static ChunksTask newTask(byte[] content) throws Exception {
+        Path root = Files.createTempDirectory("server");
+        // server sets root folder of copies
+        new Server(0, root.toString());
+        Files.write(root.resolve("copy"), content);
+        return new ChunksTask("copy", CHUNK_SIZE);
+    }
+
+    /**
+     * ranges which follow the first chunk, as {@link ChunksTask#downloadAll} asks for them
+     * @param task chunks task
+     * @return offset and size of every range
+     */
+    private static List<int[]> ranges(ChunksTask task) {
+        List<int[]> ranges = new ArrayList<>();
+        for (int offset = task.getChunkSize(); offset < task.getFileSize(); offset += task.getChunkSize()) {
+            ranges.add(new int[]{offset, Math.min(task.getChunkSize(), task.getFileSize() - offset)});
+        }
+        return ranges;
+    }
+}
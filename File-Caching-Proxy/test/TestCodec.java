@@ -0,0 +1,47 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Unit test of wire compression, which does not need a running server.
+ */
+public class TestCodec {
+    @Test
+    public void test() throws IOException {
+        Random random = new Random(15440);
+        Metrics metrics = new Metrics();
+
+        // text compresses
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 200000) {
+            text.append("{\"name\": \"file").append(random.nextInt(100)).append("\", \"size\": ")
+                    .append(random.nextInt(100000)).append("}\n");
+        }
+        byte[] json = text.toString().getBytes();
+        byte[] frame = Codec.encode(json, 0, json.length, Codec.DEFLATE, metrics);
+        Assert.assertTrue(frame.length * 3 < json.length);
+        Assert.assertArrayEquals(json, Codec.decode(frame, Codec.DEFLATE, metrics));
+
+        // random bytes are sent raw after sampling
+        byte[] noise = new byte[200000];
+        random.nextBytes(noise);
+        frame = Codec.encode(noise, 100, 150000, Codec.DEFLATE, metrics);
+        Assert.assertEquals(1, metrics.get(Codec.SENT_SKIPPED));
+        byte[] decoded = Codec.decode(frame, Codec.DEFLATE, null);
+        Assert.assertEquals(150000, decoded.length);
+        for (int i = 0; i < decoded.length; i++) {
+            Assert.assertEquals(noise[100 + i], decoded[i]);
+        }
+
+        // no codec, payload is sent as it is
+        Assert.assertTrue(noise == Codec.encode(noise, 0, noise.length, Codec.NONE, metrics));
+        Assert.assertArrayEquals(new byte[0], Codec.decode(new byte[0], Codec.DEFLATE, metrics));
+
+        Assert.assertEquals(Codec.DEFLATE, Codec.choose(Codec.supported()));
+        Assert.assertEquals(Codec.NONE, Codec.choose(0));
+        Assert.assertEquals(json.length + 150000, metrics.get(Codec.SENT_RAW));
+        Assert.assertTrue(metrics.ratio(Codec.RECEIVED_RAW, Codec.RECEIVED_WIRE) > 1.5);
+    }
+}
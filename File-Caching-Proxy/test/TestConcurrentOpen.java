@@ -0,0 +1,138 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test that opens of different files run in parallel. The check of "slow" file at server is intercepted and
+ * blocks until the open of "fast" file returns, which could never happen if opens were serialized by one global lock.
+ * Concurrent opens of the uncached "slow" file share one check and download.
+ */
+public class TestConcurrentOpen {
+    @Test
+    public void test() throws IOException, InterruptedException {
+        String[] args = new String[4];
+        args[0] = "127.0.0.1";
+        args[1] = "11199";
+        args[2] = Files.createTempDirectory("ProxyFile").toString();
+        args[3] = "10000000";
+
+        Proxy proxy = new Proxy(args);
+        final SlowServer rpc = slowServer("slow", "fast");
+        proxy.rpc = rpc.rpc;
+
+        final Proxy.FileHandler slowHandler = new Proxy.FileHandler(proxy);
+        final AtomicInteger slowFd = new AtomicInteger();
+        Thread slow = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                slowFd.set(slowHandler.open("slow", FileHandling.OpenOption.READ));
+            }
+        });
+        slow.start();
+        Assert.assertTrue(rpc.slowStarted.await(5, TimeUnit.SECONDS));
+
+        Proxy.FileHandler fastHandler = new Proxy.FileHandler(proxy);
+        int fastFd = fastHandler.open("fast", FileHandling.OpenOption.READ);
+        rpc.fastDone.countDown();
+        slow.join();
+
+        Assert.assertTrue(fastFd > 0);
+        Assert.assertTrue(slowFd.get() > 0);
+        Assert.assertTrue("open of fast file waited for slow file", rpc.overlapped);
+        Assert.assertEquals(0, fastHandler.close(fastFd));
+        Assert.assertEquals(0, slowHandler.close(slowFd.get()));
+    }
+
+    @Test
+    public void testSingleFlight() throws IOException, InterruptedException {
+        String[] args = {"127.0.0.1", "11199", Files.createTempDirectory("ProxyFile").toString(), "10000000"};
+        ProxyConfig config = new ProxyConfig();
+        config.setPrefetch(false);
+        Proxy proxy = new Proxy(args, config);
+        // a file which shares the stripe of "slow" file
+        String neighbour = "fast";
+        for (int i = 0; proxy.lockFor(neighbour) != proxy.lockFor("slow"); i++) {
+            neighbour = "fast" + i;
+        }
+        final SlowServer rpc = slowServer("slow", neighbour);
+        proxy.rpc = rpc.rpc;
+
+        final List<Proxy.FileHandler> handlers = new ArrayList<>();
+        final int[] fds = new int[5];
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < fds.length; i++) {
+            final int reader = i;
+            handlers.add(new Proxy.FileHandler(proxy));
+            readers.add(new Thread(() -> fds[reader] = handlers.get(reader).open("slow", FileHandling.OpenOption.READ)));
+            readers.get(i).start();
+            if (i == 0) {
+                Assert.assertTrue(rpc.slowStarted.await(5, TimeUnit.SECONDS));
+            }
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (proxy.getMetrics().get(Proxy.FILL_JOINED) < fds.length - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // fill runs without the lock of its stripe, so a file which shares the stripe is opened meanwhile
+        Proxy.FileHandler neighbourHandler = new Proxy.FileHandler(proxy);
+        int neighbourFd = neighbourHandler.open(neighbour, FileHandling.OpenOption.READ);
+        rpc.fastDone.countDown();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        Assert.assertTrue(neighbourFd > 0);
+        Assert.assertTrue("open of a file in the same stripe waited for fill", rpc.overlapped);
+        for (int i = 0; i < fds.length; i++) {
+            Assert.assertTrue(fds[i] > 0);
+            byte[] buf = new byte[16];
+            Assert.assertEquals(4, handlers.get(i).read(fds[i], buf));
+            Assert.assertEquals(0, handlers.get(i).close(fds[i]));
+        }
+        Assert.assertEquals("every open checked server", 1, rpc.slowChecks.get());
+        // one fill of each file
+        Assert.assertEquals(2, proxy.getMetrics().get(Proxy.FILL_LED));
+        Assert.assertEquals(fds.length - 1, proxy.getMetrics().get(Proxy.FILL_JOINED));
+    }
+
+    /**
+     * make a server whose files hold their own names, and whose check of "slow" file blocks until "fast" file is
+     * opened
+     * @param names names of files
+     * @return server and the latches around the slow check
+     */
+    private static SlowServer slowServer(String... names) throws IOException {
+        Path root = Files.createTempDirectory("server");
+        for (String name : names) {
+            Files.write(root.resolve(name), name.getBytes());
+        }
+        return new SlowServer(new Server(0, root.toString()));
+    }
+
+    private static class SlowServer {
+        private final CountDownLatch slowStarted = new CountDownLatch(1);
+        private final CountDownLatch fastDone = new CountDownLatch(1);
+        private final AtomicInteger slowChecks = new AtomicInteger();
+        private final Rpc rpc;
+        private volatile boolean overlapped = false;
+
+        SlowServer(Server server) {
+            rpc = ProxyTestSupport.intercept(server, (method, args) -> {
+                if (method.equals("checkServer") && ((CheckRequest) args[0]).getRealName().equals("slow")) {
+                    slowChecks.incrementAndGet();
+                    slowStarted.countDown();
+                    overlapped = fastDone.await(5, TimeUnit.SECONDS);
+                }
+            });
+        }
+    }
+}
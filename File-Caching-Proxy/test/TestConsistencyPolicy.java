@@ -0,0 +1,107 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consistency rules by path prefix: strict reads check server on every open, bounded ones skip it for a while after
+ * a validation, and stale-while-revalidate ones read the cached version at once and refresh it in background.
+ */
+public class TestConsistencyPolicy {
+
+    @Test
+    public void testRules() {
+        ConsistencyPolicy policy = ConsistencyPolicy.parse("static-=bounded:5000, static-models-=swr:100,tmp-=strict");
+        Assert.assertFalse(policy.isStrict());
+        Assert.assertEquals(ConsistencyPolicy.BOUNDED, policy.ruleFor("static-a").getMode());
+        Assert.assertEquals(5000, policy.ruleFor("static-a").getMaxStaleMillis());
+        // the longest prefix wins
+        Assert.assertEquals(ConsistencyPolicy.STALE_WHILE_REVALIDATE, policy.ruleFor("static-models-m").getMode());
+        Assert.assertTrue(policy.ruleFor("tmp-x").isStrict());
+        Assert.assertTrue(policy.ruleFor("other").isStrict());
+        Assert.assertEquals("consistency.swr.reads", policy.ruleFor("static-models-m").getReadsMetric());
+
+        Assert.assertTrue(ConsistencyPolicy.parse("").isStrict());
+        Assert.assertTrue(ConsistencyPolicy.parse("a=strict").isStrict());
+        for (String bad : new String[]{"static-", "a=eventual", "a=bounded:x", "a=bounded:-1"}) {
+            try {
+                ConsistencyPolicy.parse(bad);
+                Assert.fail(bad + " is parsed");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testReads() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Files.write(root.resolve("static-a"), "asset".getBytes());
+        Files.write(root.resolve("model-m"), "model 1".getBytes());
+        Files.write(root.resolve("other"), "other".getBytes());
+        int port = 30000 + new Random().nextInt(10000);
+        Server server = new Server(port, root.toString());
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://127.0.0.1:" + port + "/server", server);
+
+        ProxyConfig config = new ProxyConfig();
+        config.setPrefetch(false);
+        // without leases a strict read checks server on every open
+        config.setLeases(false);
+        config.setBatchValidation(false);
+        config.setConsistency("static-=bounded:300,model-=swr:0");
+        Proxy proxy = new Proxy(newArgs(port), config);
+        final AtomicInteger checks = new AtomicInteger();
+        proxy.rpc = ProxyTestSupport.counting(proxy.rpc, "checkServer", checks);
+        Proxy.FileHandler handler = new Proxy.FileHandler(proxy);
+        Metrics metrics = proxy.getMetrics();
+
+        read(handler, "other");
+        read(handler, "other");
+        Assert.assertEquals("strict read skipped server", 2, checks.get());
+
+        // a bounded read skips server until its bound is over
+        checks.set(0);
+        read(handler, "static-a");
+        read(handler, "static-a");
+        Assert.assertEquals(1, checks.get());
+        Thread.sleep(400);
+        read(handler, "static-a");
+        Assert.assertEquals(2, checks.get());
+        Assert.assertEquals(3, metrics.get("consistency.bounded.reads"));
+        Assert.assertEquals(1, metrics.get(ConsistencyPolicy.CACHED_READS));
+
+        // a stale-while-revalidate read serves the cached version while the new one is fetched in background
+        Assert.assertEquals("model 1", read(handler, "model-m"));
+        ProxyConfig writerConfig = new ProxyConfig();
+        writerConfig.setPrefetch(false);
+        Proxy.FileHandler writer = new Proxy.FileHandler(new Proxy(newArgs(port), writerConfig));
+        int fd = writer.open("model-m", FileHandling.OpenOption.WRITE);
+        Assert.assertTrue(fd > 0);
+        writer.write(fd, "model 2".getBytes());
+        Assert.assertEquals(0, writer.close(fd));
+
+        Assert.assertEquals("model 1", read(handler, "model-m"));
+        Assert.assertEquals(1, metrics.get(ConsistencyPolicy.STALE_READS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.get(ConsistencyPolicy.REFRESHES) < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("model 2", read(handler, "model-m"));
+        System.out.println("consistency metrics: " + metrics);
+    }
+
+    private static String[] newArgs(int port) throws Exception {
+        return new String[]{"127.0.0.1", String.valueOf(port), Files.createTempDirectory("ProxyFile").toString(),
+                "100000"};
+    }
+
+    private static String read(Proxy.FileHandler handler, String name) {
+        return new String(ProxyTestSupport.read(handler, name));
+    }
+}
@@ -0,0 +1,67 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit test of block signature and delta, which does not need a running server.
+ */
+public class TestDelta {
+    @Test
+    public void test() throws IOException {
+        Random random = new Random(440);
+        byte[] base = new byte[3000000];
+        random.nextBytes(base);
+
+        // append small records
+        byte[] appended = Arrays.copyOf(base, base.length + 100);
+        checkDelta(base, appended, 10000);
+
+        // change some bytes in the middle and insert some bytes, which shifts the rest of file
+        byte[] modified = new byte[base.length + 7];
+        System.arraycopy(base, 0, modified, 0, 1000000);
+        System.arraycopy("INSERT!".getBytes(), 0, modified, 1000000, 7);
+        System.arraycopy(base, 1000000, modified, 1000007, base.length - 1000000);
+        modified[2000000] ^= 1;
+        checkDelta(base, modified, 20000);
+
+        // totally different file is not worth a delta
+        byte[] different = new byte[base.length];
+        random.nextBytes(different);
+        Path basePath = write(base);
+        Path targetPath = write(different);
+        try (FileChannel baseChannel = FileChannel.open(basePath);
+             FileChannel target = FileChannel.open(targetPath)) {
+            BlockSignature signature = BlockSignature.compute("base", baseChannel);
+            Assert.assertNull(Delta.compute(signature, target, different.length / 2));
+        }
+    }
+
+    private void checkDelta(byte[] base, byte[] target, int maxDeltaSize) throws IOException {
+        Path basePath = write(base);
+        Path targetPath = write(target);
+        Path rebuiltPath = Files.createTempFile("rebuilt", null);
+        try (FileChannel baseChannel = FileChannel.open(basePath);
+             FileChannel targetChannel = FileChannel.open(targetPath);
+             FileChannel rebuilt = FileChannel.open(rebuiltPath, StandardOpenOption.WRITE)) {
+            BlockSignature signature = BlockSignature.compute("base", baseChannel);
+            Delta delta = Delta.compute(signature, targetChannel, target.length / 2);
+            Assert.assertNotNull(delta);
+            Assert.assertTrue("delta is too large: " + delta.size(), delta.size() < maxDeltaSize);
+            delta.apply(baseChannel, rebuilt);
+        }
+        Assert.assertArrayEquals(target, Files.readAllBytes(rebuiltPath));
+    }
+
+    private Path write(byte[] content) throws IOException {
+        Path path = Files.createTempFile("delta", null);
+        Files.write(path, content);
+        return path;
+    }
+}
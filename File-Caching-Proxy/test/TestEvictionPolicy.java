@@ -0,0 +1,124 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit test of eviction policies and cache simulator, which does not need a running server.
+ */
+public class TestEvictionPolicy {
+    private static final String[] POLICIES = {EvictionPolicy.LRU, EvictionPolicy.TINY_LFU, EvictionPolicy.ARC};
+
+    @Test
+    public void testContract() {
+        for (String name : POLICIES) {
+            EvictionPolicy policy = EvictionPolicy.forName(name, 1000);
+            FileInfo a = new FileInfo("A", "A1", 1);
+            FileInfo b = new FileInfo("B", "B1", 1);
+            FileInfo c = new FileInfo("C", "C1", 1);
+            policy.put(a, 100);
+            policy.put(b, 200);
+            policy.put(c, 300);
+            Assert.assertEquals(name, 600, policy.getTotalWeight());
+            Assert.assertEquals(name, 3, policy.size());
+
+            // pinned files are never evicted
+            policy.pin("A");
+            policy.pin("B");
+            Assert.assertEquals(name, c, policy.evict());
+            Assert.assertNull(name, policy.evict());
+            Assert.assertEquals(name, 300, policy.getTotalWeight());
+            Assert.assertEquals(name, 2, policy.snapshot().size());
+
+            // file pinned before it is put
+            policy.pin("D");
+            policy.put(new FileInfo("D", "D1", 1), 10);
+            Assert.assertNull(name, policy.evict());
+            policy.updateWeight("D", 50);
+            Assert.assertEquals(name, 350, policy.getTotalWeight());
+
+            policy.unpin("B");
+            Assert.assertEquals(name, b, policy.evict());
+            Assert.assertFalse(name, policy.contains("B"));
+            Assert.assertEquals(name, a, policy.remove("A"));
+            Assert.assertNull(name, policy.remove("A"));
+            Assert.assertEquals(name, -1, policy.unpin("A") + policy.unpin("A"));
+            Assert.assertEquals(name, 50, policy.getTotalWeight());
+            policy.unpin("D");
+            Assert.assertEquals(name, "D", policy.evict().getRealName());
+            Assert.assertEquals(name, 0, policy.getTotalWeight());
+            Assert.assertEquals(name, 0, policy.size());
+        }
+    }
+
+    @Test
+    public void testDemote() {
+        for (String name : POLICIES) {
+            EvictionPolicy policy = EvictionPolicy.forName(name, 1000);
+            FileInfo a = new FileInfo("A", "A1", 1);
+            FileInfo b = new FileInfo("B", "B1", 1);
+            policy.put(a, 1);
+            policy.put(b, 1);
+            Assert.assertTrue(name, policy.demote("B"));
+            Assert.assertFalse(name, policy.demote("C"));
+            Assert.assertEquals(name, b, policy.evict());
+            Assert.assertEquals(name, a, policy.evict());
+        }
+    }
+
+    @Test
+    public void testScanResistance() {
+        // 20 hot files fit in cache, a one-pass scan of as many opens goes through it
+        List<AccessTrace.Event> events = new ArrayList<>();
+        Random random = new Random(1);
+        int scanned = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 5; i++) {
+                open(events, "hot" + random.nextInt(20));
+            }
+            for (int i = 0; i < 5; i++) {
+                open(events, "scan" + scanned++);
+            }
+        }
+        double lru = CacheSimulator.run(EvictionPolicy.forName(EvictionPolicy.LRU, 250), 250, events)
+                .getObjectHitRatio();
+        double tinyLfu = CacheSimulator.run(EvictionPolicy.forName(EvictionPolicy.TINY_LFU, 250), 250, events)
+                .getObjectHitRatio();
+        double arc = CacheSimulator.run(EvictionPolicy.forName(EvictionPolicy.ARC, 250), 250, events)
+                .getObjectHitRatio();
+        // at most half of opens can hit
+        Assert.assertTrue(lru < 0.3);
+        Assert.assertTrue(tinyLfu > 0.45);
+        Assert.assertTrue(arc > 0.45);
+    }
+
+    @Test
+    public void testOneAccessPerOpen() {
+        // touches of the same open, e.g. on close, do not make a file frequent
+        ArcPolicy policy = new ArcPolicy(100);
+        FileInfo a = new FileInfo("A", "A1", 1);
+        policy.pin("A");
+        policy.put(a, 10);
+        policy.touch("A", a);
+        policy.unpin("A");
+        policy.touch("A", a);
+        policy.put(new FileInfo("B", "B1", 1), 10);
+        Assert.assertEquals(a, policy.evict());
+
+        // a second open does
+        policy = new ArcPolicy(100);
+        policy.put(a, 10);
+        policy.put(new FileInfo("B", "B1", 1), 10);
+        policy.pin("A");
+        policy.touch("A", a);
+        policy.unpin("A");
+        Assert.assertEquals("B", policy.evict().getRealName());
+    }
+
+    private static void open(List<AccessTrace.Event> events, String realName) {
+        events.add(new AccessTrace.Event(true, realName, 10));
+        events.add(new AccessTrace.Event(false, realName, 0));
+    }
+}
@@ -0,0 +1,73 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+
+/**
+ * Unit test of server file handle cache, which does not need a running server.
+ */
+public class TestFileHandleCache {
+    @Test
+    public void test() throws Exception {
+        File folder = Files.createTempDirectory("server").toFile();
+        for (int i = 0; i < 5; i++) {
+            Files.write(new File(folder, "v" + i).toPath(), ("version " + i).getBytes());
+        }
+        FileHandleCache cache = new FileHandleCache(2, 200);
+
+        // one channel is shared by all readers of a file
+        FileHandleCache.Handle first = cache.acquire("v0", path(folder, "v0"));
+        FileHandleCache.Handle second = cache.acquire("v0", path(folder, "v0"));
+        Assert.assertTrue(first.channel() == second.channel());
+        Assert.assertEquals("version 0", read(second.channel()));
+        first.close();
+        first.close();
+        Assert.assertTrue(second.channel().isOpen());
+
+        // unused channels beyond the bound are closed, used ones are kept
+        for (int i = 1; i < 5; i++) {
+            cache.acquire("v" + i, path(folder, "v" + i)).close();
+        }
+        Assert.assertEquals(2, cache.size());
+        Assert.assertTrue(second.channel().isOpen());
+        Assert.assertEquals("version 0", read(second.channel()));
+
+        // a deleted file is closed after its last reader
+        cache.invalidate("v0");
+        Assert.assertTrue(second.channel().isOpen());
+        FileChannel channel = second.channel();
+        second.close();
+        Assert.assertFalse(channel.isOpen());
+
+        // idle channels are closed by sweeper
+        FileHandleCache.Handle idle = cache.acquire("v4", path(folder, "v4"));
+        channel = idle.channel();
+        idle.close();
+        Thread.sleep(600);
+        Assert.assertFalse(channel.isOpen());
+        Assert.assertEquals(0, cache.size());
+
+        try {
+            cache.acquire("none", path(folder, "none"));
+            Assert.fail("file does not exist");
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+        cache.close();
+    }
+
+    private static String path(File folder, String name) {
+        return new File(folder, name).getPath();
+    }
+
+    private static String read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        channel.read(buffer, 0);
+        return new String(buffer.array());
+    }
+}
@@ -0,0 +1,66 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Leases and callback revocation: an open of a file whose lease is valid skips server, and a new version published by
+ * another proxy revokes the lease, so the next open checks server again and reads the new version.
+ */
+public class TestLease {
+
+    @Test
+    public void testRevoke() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Files.write(root.resolve("a"), "version 1".getBytes());
+        int port = 30000 + new Random().nextInt(10000);
+        Server server = new Server(port, root.toString());
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://127.0.0.1:" + port + "/server", server);
+
+        Proxy proxy = new Proxy(newArgs(port), newConfig());
+        final AtomicInteger checks = new AtomicInteger();
+        proxy.rpc = ProxyTestSupport.counting(proxy.rpc, "checkServer", checks);
+        Proxy.FileHandler handler = new Proxy.FileHandler(proxy);
+
+        Assert.assertEquals("version 1", read(handler, "a"));
+        Assert.assertEquals("version 1", read(handler, "a"));
+        Assert.assertEquals("open within lease checked server", 1, checks.get());
+
+        // another proxy publishes a new version, which revokes the lease before its close returns
+        Proxy.FileHandler writer = new Proxy.FileHandler(new Proxy(newArgs(port), newConfig()));
+        int fd = writer.open("a", FileHandling.OpenOption.WRITE);
+        Assert.assertTrue(fd > 0);
+        writer.write(fd, "version 2".getBytes());
+        Assert.assertEquals(0, writer.close(fd));
+
+        Assert.assertEquals("version 2", read(handler, "a"));
+        Assert.assertEquals(2, checks.get());
+        // the new version is leased again
+        Assert.assertEquals("version 2", read(handler, "a"));
+        Assert.assertEquals(2, checks.get());
+    }
+
+    private static ProxyConfig newConfig() {
+        ProxyConfig config = new ProxyConfig();
+        config.setLeases(true);
+        config.setPrefetch(false);
+        config.setBatchValidation(false);
+        config.setRevalidateMillis(0);
+        return config;
+    }
+
+    private static String[] newArgs(int port) throws Exception {
+        return new String[]{"127.0.0.1", String.valueOf(port), Files.createTempDirectory("ProxyFile").toString(),
+                "100000"};
+    }
+
+    private static String read(Proxy.FileHandler handler, String name) {
+        return new String(ProxyTestSupport.read(handler, name));
+    }
+}
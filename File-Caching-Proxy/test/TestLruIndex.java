@@ -0,0 +1,50 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test of LruIndex, which does not need a running server.
+ */
+public class TestLruIndex {
+    @Test
+    public void test() {
+        LruIndex lru = new LruIndex();
+        FileInfo a = new FileInfo("A", "A1", 1);
+        FileInfo b = new FileInfo("B", "B1", 1);
+        FileInfo c = new FileInfo("C", "C1", 1);
+        lru.put(a, 100);
+        lru.put(b, 200);
+        lru.put(c, 300);
+        Assert.assertEquals(600, lru.getTotalWeight());
+        Assert.assertEquals(a, lru.eldest());
+
+        // touch A, B becomes the eldest one
+        lru.touch("A", a);
+        Assert.assertEquals(b, lru.eldest());
+
+        // pinned B is skipped, and comes back as the freshest one when unpinned
+        lru.pin("B");
+        lru.pin("B");
+        Assert.assertEquals(c, lru.eldest());
+        lru.remove("C");
+        Assert.assertEquals(a, lru.eldest());
+        lru.unpin("B");
+        Assert.assertEquals(a, lru.eldest());
+        lru.unpin("B");
+        Assert.assertEquals(a, lru.eldest());
+        lru.remove("A");
+        Assert.assertEquals(b, lru.eldest());
+        Assert.assertEquals(200, lru.getTotalWeight());
+
+        // every file pinned, nothing can be evicted
+        lru.pin("B");
+        Assert.assertNull(lru.eldest());
+
+        // file pinned before it is put into index
+        lru.pin("D");
+        lru.put(new FileInfo("D", "D1", 1), 10);
+        Assert.assertNull(lru.eldest());
+        Assert.assertEquals(2, lru.snapshot().size());
+        lru.updateWeight("B", 50);
+        Assert.assertEquals(60, lru.getTotalWeight());
+    }
+}
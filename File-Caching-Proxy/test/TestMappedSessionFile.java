@@ -0,0 +1,64 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit test of shared read-only mappings, which does not need a running server.
+ */
+public class TestMappedSessionFile {
+    @Test
+    public void test() throws IOException {
+        Random random = new Random(15440);
+        byte[] expected = new byte[300000];
+        random.nextBytes(expected);
+        File version = File.createTempFile("version", null);
+        Files.write(version.toPath(), expected);
+
+        MappingCache cache = new MappingCache();
+        MappedSessionFile first = cache.open("v1", version);
+        MappedSessionFile second = cache.open("v1", version);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(2, cache.getRefs("v1"));
+        Assert.assertEquals(expected.length, first.length());
+
+        // fds share the mapping but not the file pointer
+        byte[] buf = new byte[1000];
+        Assert.assertEquals(1000, first.read(buf));
+        Assert.assertArrayEquals(Arrays.copyOfRange(expected, 0, 1000), buf);
+        second.seek(expected.length - 300);
+        Assert.assertEquals(300, second.read(buf));
+        Assert.assertArrayEquals(Arrays.copyOfRange(expected, expected.length - 300, expected.length),
+                Arrays.copyOf(buf, 300));
+        Assert.assertEquals(-1, second.read(buf));
+        Assert.assertEquals(1000, first.read(buf));
+        Assert.assertArrayEquals(Arrays.copyOfRange(expected, 1000, 2000), buf);
+
+        // mapping outlives deletion of cached version
+        Assert.assertTrue(version.delete());
+        for (int i = 0; i < 100; i++) {
+            int pos = random.nextInt(expected.length);
+            first.seek(pos);
+            int n = first.read(buf);
+            Assert.assertEquals(Math.min(buf.length, expected.length - pos), n);
+            Assert.assertArrayEquals(Arrays.copyOfRange(expected, pos, pos + n), Arrays.copyOf(buf, n));
+        }
+
+        try {
+            first.write(buf);
+            Assert.fail("write to read only file");
+        } catch (IOException e) {
+            // expected
+        }
+
+        first.close();
+        first.close();
+        Assert.assertEquals(1, cache.getRefs("v1"));
+        second.close();
+        Assert.assertEquals(0, cache.size());
+    }
+}
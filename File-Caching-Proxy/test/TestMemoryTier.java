@@ -0,0 +1,100 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Unit test of in-memory tier for small files, which does not need a running server.
+ */
+public class TestMemoryTier {
+    @Test
+    public void test() throws IOException {
+        final Map<String, byte[]> disk = new HashMap<>();
+        MemoryTier tier = new MemoryTier(2 * MemoryTier.MIN_SLAB_SIZE, 64 * 1024, new MemoryTier.Spiller() {
+            @Override
+            public void spill(String randomName, ByteBuffer content) {
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+                disk.put(randomName, bytes);
+            }
+        });
+
+        Random random = new Random(15440);
+        Map<String, byte[]> files = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] content = new byte[random.nextInt(64 * 1024)];
+            random.nextBytes(content);
+            files.put("f" + i, content);
+            Assert.assertTrue(tier.put("f" + i, content));
+            Assert.assertTrue(tier.getSlabBytes() <= 2 * MemoryTier.MIN_SLAB_SIZE);
+        }
+        Assert.assertFalse(tier.put("large", new byte[64 * 1024 + 1]));
+
+        // every file is in exactly one tier and keeps its content
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            String name = file.getKey();
+            Assert.assertTrue(tier.contains(name) != disk.containsKey(name));
+            if (disk.containsKey(name)) {
+                Assert.assertArrayEquals(file.getValue(), disk.get(name));
+            } else {
+                Assert.assertArrayEquals(file.getValue(), readAll(tier.open(name)));
+            }
+        }
+        Assert.assertFalse(tier.contains("f0"));
+        Assert.assertTrue(tier.contains("f99"));
+
+        // a file being read is not evicted, and removing it waits for the reader
+        MappedSessionFile reader = tier.open("f99");
+        for (int i = 100; i < 200; i++) {
+            tier.put("f" + i, new byte[4096]);
+        }
+        Assert.assertTrue(tier.contains("f99"));
+        Assert.assertTrue(tier.remove("f99"));
+        Assert.assertFalse(tier.contains("f99"));
+        Assert.assertNull(tier.open("f99"));
+        Assert.assertArrayEquals(files.get("f99"), readAll(reader));
+        reader.close();
+
+        // spilling moves a file to disk tier now
+        Assert.assertTrue(tier.spill("f199"));
+        Assert.assertFalse(tier.contains("f199"));
+        Assert.assertArrayEquals(new byte[4096], disk.get("f199"));
+        Assert.assertFalse(tier.spill("f199"));
+    }
+
+    @Test
+    public void testQueriesKeepOrder() throws IOException {
+        final Map<String, byte[]> disk = new HashMap<>();
+        // one slab of 64 KB slices holds 16 files
+        MemoryTier tier = new MemoryTier(MemoryTier.MIN_SLAB_SIZE, 64 * 1024,
+                (randomName, content) -> disk.put(randomName, new byte[content.remaining()]));
+        for (int i = 0; i < 16; i++) {
+            Assert.assertTrue(tier.put("f" + i, new byte[40 * 1024]));
+        }
+        // size queries are no access, so the eldest file is still evicted first
+        Assert.assertTrue(tier.contains("f0"));
+        Assert.assertEquals(40 * 1024, tier.length("f0"));
+        Assert.assertTrue(tier.put("f16", new byte[40 * 1024]));
+        Assert.assertTrue(disk.containsKey("f0"));
+
+        // an open is an access
+        readAll(tier.open("f1"));
+        Assert.assertTrue(tier.put("f17", new byte[40 * 1024]));
+        Assert.assertTrue(tier.contains("f1"));
+        Assert.assertTrue(disk.containsKey("f2"));
+    }
+
+    private static byte[] readAll(MappedSessionFile file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        file.seek(0);
+        int n = file.read(content);
+        Assert.assertEquals(content.length == 0 ? -1 : content.length, n);
+        file.close();
+        return Arrays.copyOf(content, content.length);
+    }
+}
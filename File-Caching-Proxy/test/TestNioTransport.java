@@ -0,0 +1,76 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compare RMI and NIO transport side by side. It starts its own server in a temporary folder, downloads and uploads
+ * the same file through both transports and prints the time each one takes.
+ */
+public class TestNioTransport {
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void test() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        byte[] content = new byte[8 * ChunksTask.CHUNK_SIZE + 12345];
+        new Random(15440).nextBytes(content);
+        Files.write(root.resolve("big"), content);
+        int port = 30000 + new Random().nextInt(10000);
+        System.setProperty("server.nio", "true");
+        try {
+            Server.main(new String[]{String.valueOf(port), root.toString()});
+        } finally {
+            System.clearProperty("server.nio");
+        }
+
+        Rpc rmi = (Rpc) Naming.lookup("rmi://127.0.0.1:" + port + "/server");
+        NioRpc nio = new NioRpc("127.0.0.1", port + 1);
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Rpc rpc : new Rpc[]{rmi, nio}) {
+                String name = rpc == nio ? "nio" : "rmi";
+                long start = System.nanoTime();
+                Assert.assertArrayEquals(content, download(rpc));
+                long downloaded = System.nanoTime();
+                Assert.assertTrue(upload(rpc, "up-" + name, content) > 0);
+                long uploaded = System.nanoTime();
+                System.out.printf("%s round %d: download %d ms, upload %d ms%n", name, round,
+                        (downloaded - start) / 1000000, (uploaded - downloaded) / 1000000);
+                Assert.assertArrayEquals(content, Files.readAllBytes(root.resolve(
+                        rmi.checkServer(new CheckRequest("up-" + name, FileHandling.OpenOption.READ, -1))
+                                .getChunksTask().getServerRandomName())));
+            }
+        }
+
+        // errors of server are reported as in RMI
+        Assert.assertEquals(FileHandling.Errors.ENOENT, nio.unlink("nonexist"));
+        Assert.assertNull(nio.downloadChunk("nonexist", 0, 10));
+        nio.close();
+        Assert.assertTrue(new File(root.toFile(), "big").exists());
+    }
+
+    private static byte[] download(Rpc rpc) throws Exception {
+        CheckResult result = rpc.checkServer(new CheckRequest("big", FileHandling.OpenOption.READ, 0));
+        ChunksTask task = result.getChunksTask();
+        byte[] content = Arrays.copyOf(result.getFileContent(), task.getFileSize());
+        for (int offset = ChunksTask.CHUNK_SIZE; offset < content.length; offset += ChunksTask.CHUNK_SIZE) {
+            int size = Math.min(ChunksTask.CHUNK_SIZE, content.length - offset);
+            System.arraycopy(rpc.downloadChunk(task.getServerRandomName(), offset, size), 0, content, offset, size);
+        }
+        return content;
+    }
+
+    private static int upload(Rpc rpc, String realName, byte[] content) throws Exception {
+        long uploadId = rpc.beginUpload(realName);
+        for (int offset = 0; offset < content.length; offset += ChunksTask.CHUNK_SIZE) {
+            int size = Math.min(ChunksTask.CHUNK_SIZE, content.length - offset);
+            Assert.assertEquals(0, rpc.uploadChunkAt(uploadId, offset, Arrays.copyOfRange(content, offset, offset + size)));
+        }
+        return rpc.commitUpload(uploadId, content.length);
+    }
+}
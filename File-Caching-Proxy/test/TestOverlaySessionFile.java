@@ -0,0 +1,103 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit test of copy-on-write session file, random writes and reads are checked against a byte array. Log of a session
+ * of a proxy is also checked to be counted in its cache size.
+ */
+public class TestOverlaySessionFile {
+    @Test
+    public void test() throws IOException {
+        Random random = new Random(15440);
+        byte[] expected = new byte[100000];
+        random.nextBytes(expected);
+        File base = File.createTempFile("base", null);
+        Files.write(base.toPath(), expected);
+        File log = File.createTempFile("log", null);
+        int length = expected.length;
+
+        OverlaySessionFile file = new OverlaySessionFile(base, log);
+        for (int i = 0; i < 2000; i++) {
+            int pos = random.nextInt(length + 1000);
+            file.seek(pos);
+            if (random.nextBoolean()) {
+                byte[] buf = new byte[random.nextInt(3000) + 1];
+                random.nextBytes(buf);
+                file.write(buf);
+                if (pos + buf.length > expected.length) {
+                    expected = Arrays.copyOf(expected, pos + buf.length);
+                }
+                System.arraycopy(buf, 0, expected, pos, buf.length);
+                length = Math.max(length, pos + buf.length);
+                Assert.assertEquals(pos + buf.length, file.getFilePointer());
+            } else {
+                byte[] buf = new byte[random.nextInt(5000) + 1];
+                int n = file.read(buf);
+                if (pos >= length) {
+                    Assert.assertEquals(-1, n);
+                } else {
+                    Assert.assertEquals(Math.min(buf.length, length - pos), n);
+                    Assert.assertArrayEquals(Arrays.copyOfRange(expected, pos, pos + n), Arrays.copyOf(buf, n));
+                }
+            }
+            Assert.assertEquals(length, file.length());
+        }
+        Assert.assertTrue(file.getOverlaySize() < 2000 * 3000);
+
+        File complete = File.createTempFile("complete", null);
+        try (FileChannel out = FileChannel.open(complete.toPath(), StandardOpenOption.WRITE)) {
+            file.materialize(out);
+        }
+        file.close();
+        Assert.assertArrayEquals(Arrays.copyOf(expected, length), Files.readAllBytes(complete.toPath()));
+    }
+
+    @Test
+    public void testLogIsCounted() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Files.write(root.resolve("base"), new byte[400]);
+        Files.write(root.resolve("other"), new byte[400]);
+        int port = 30000 + new Random().nextInt(10000);
+        Server server = new Server(port, root.toString());
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://127.0.0.1:" + port + "/server", server);
+
+        ProxyConfig config = new ProxyConfig();
+        config.setLeases(false);
+        config.setPrefetch(false);
+        config.setBatchValidation(false);
+        Proxy proxy = new Proxy(new String[]{"127.0.0.1", String.valueOf(port),
+                Files.createTempDirectory("ProxyFile").toString(), "1000"}, config);
+        final List<CheckRequest> checks = Collections.synchronizedList(new ArrayList<CheckRequest>());
+        proxy.rpc = ProxyTestSupport.intercept(proxy.rpc, (method, args) -> {
+            if (args != null && args.length == 1 && args[0] instanceof CheckRequest) {
+                checks.add((CheckRequest) args[0]);
+            }
+        });
+        Proxy.FileHandler handler = new Proxy.FileHandler(proxy);
+        ProxyTestSupport.read(handler, "other");
+
+        int fd = handler.open("base", FileHandling.OpenOption.WRITE);
+        Assert.assertTrue(fd > 0);
+        Assert.assertEquals(300, handler.write(fd, new byte[300]));
+        // base and log of session do not fit with other
+        checks.clear();
+        ProxyTestSupport.read(handler, "other");
+        Assert.assertEquals(0, checks.get(0).getVersion());
+        Assert.assertEquals(0, handler.close(fd));
+    }
+}
@@ -0,0 +1,168 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cooperative caching of several proxies on localhost. It starts its own server in a temporary folder, adds proxies
+ * one by one which all read the same file, and prints the bytes server sends per proxy.
+ */
+public class TestPeerCaching {
+    private static final int MAX_PROXIES = 3;
+    private static final int FILE_SIZE = 5 * 1000 * 1000 + 4321;
+
+    @Test
+    public void testDirectory() {
+        PeerRpc a = (realName, version, offset, size) -> null;
+        PeerRpc b = (realName, version, offset, size) -> null;
+        PeerRpc c = (realName, version, offset, size) -> null;
+        PeerDirectory directory = new PeerDirectory(2, 100);
+        directory.add("f", 1, a, 0);
+        directory.add("f", 1, b, 10);
+        Assert.assertEquals(Arrays.asList(b, a), directory.find("f", 1, c, 20));
+        Assert.assertEquals(Arrays.asList(a), directory.find("f", 1, b, 20));
+        // only the latest holders are listed
+        directory.add("f", 1, c, 20);
+        Assert.assertEquals(Arrays.asList(c, b), directory.find("f", 1, null, 30));
+        // holders of an older version are never listed
+        Assert.assertTrue(directory.find("f", 0, null, 30).isEmpty());
+        directory.add("f", 2, a, 40);
+        directory.add("f", 1, b, 40);
+        Assert.assertEquals(Arrays.asList(a), directory.find("f", 2, null, 50));
+        Assert.assertTrue(directory.find("f", 1, null, 50).isEmpty());
+        // a holder which does not check file again is dropped
+        Assert.assertTrue(directory.find("f", 2, null, 140).isEmpty());
+        directory.add("f", 2, a, 150);
+        directory.remove("f");
+        Assert.assertTrue(directory.find("f", 2, null, 160).isEmpty());
+    }
+
+    @Test
+    public void testHolderIsListedOnceComplete() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        byte[] content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        Files.write(root.resolve("f"), content);
+        Server server = new Server(0, root.toString());
+        PeerRpc a = (realName, version, offset, size) -> null;
+        PeerRpc b = (realName, version, offset, size) -> null;
+        // peers are only given once the copy has been hashed in background
+        CheckRequest hashed = new CheckRequest("f", FileHandling.OpenOption.READ, 0);
+        hashed.setManifestWanted(true);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.checkServer(hashed).getChunksTask().getManifest() == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        CheckRequest check = new CheckRequest("f", FileHandling.OpenOption.READ, 0);
+        check.setPeer(a);
+        int version = server.checkServer(check).getVersion();
+        // a has only started its download, b reads from server
+        check.setPeer(b);
+        Assert.assertNull(server.checkServer(check).getChunksTask().getPeers());
+
+        // a announces the version once it is downloaded
+        ValidateRequest announce = new ValidateRequest();
+        announce.add("f", version);
+        announce.setPeer(a);
+        server.validate(announce);
+        Assert.assertEquals(Arrays.asList(a), server.checkServer(check).getChunksTask().getPeers());
+    }
+
+    @Test
+    public void testReadForPeer() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        byte[] content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        Files.write(root.resolve("f"), content);
+        int port = 30000 + new Random().nextInt(10000);
+        Server server = new Server(port, root.toString());
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://127.0.0.1:" + port + "/server", server);
+
+        ProxyConfig config = new ProxyConfig();
+        config.setPeerCaching(true);
+        config.setPrefetch(false);
+        String[] args = {"127.0.0.1", String.valueOf(port), Files.createTempDirectory("ProxyFile").toString(),
+                String.valueOf(FILE_SIZE * 2)};
+        Proxy proxy = new Proxy(args, config);
+        Assert.assertArrayEquals(content, ProxyTestSupport.read(new Proxy.FileHandler(proxy), "f"));
+        int version = server.checkServer(new CheckRequest("f", FileHandling.OpenOption.READ, -1)).getVersion();
+
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, FILE_SIZE - 10, FILE_SIZE),
+                proxy.readForPeer("f", version, FILE_SIZE - 10, 10));
+        // a chunk past the end of file, or larger than any chunk, is refused before it is allocated
+        Assert.assertNull(proxy.readForPeer("f", version, FILE_SIZE - 10, 11));
+        Assert.assertNull(proxy.readForPeer("f", version, Long.MAX_VALUE, 10));
+        Assert.assertNull(proxy.readForPeer("f", version, 0, Integer.MAX_VALUE));
+        Assert.assertNull(proxy.readForPeer("f", version + 1, 0, 10));
+    }
+
+    @Test
+    public void testServerBytes() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Random random = new Random(15440);
+        int port = 30000 + new Random().nextInt(10000);
+        Server server = new Server(port, root.toString());
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://127.0.0.1:" + port + "/server", server);
+        Metrics metrics = server.getMetrics();
+
+        for (boolean peerCaching : new boolean[]{false, true}) {
+            // a new file for every run, so proxies of earlier runs hold none of it
+            byte[] content = new byte[FILE_SIZE];
+            random.nextBytes(content);
+            String name = "shared-" + peerCaching;
+            Files.write(root.resolve(name), content);
+
+            List<Proxy> proxies = new ArrayList<>();
+            long total = 0;
+            for (int n = 1; n <= MAX_PROXIES; n++) {
+                ProxyConfig config = new ProxyConfig();
+                config.setPeerCaching(peerCaching);
+                config.setPrefetch(false);
+                String[] args = {"127.0.0.1", String.valueOf(port), Files.createTempDirectory("ProxyFile").toString(),
+                        String.valueOf(FILE_SIZE * 2)};
+                Proxy proxy = new Proxy(args, config);
+                proxies.add(proxy);
+                long start = metrics.get(Server.SENT_BYTES);
+                long validated = metrics.get(Server.VALIDATED_FILES);
+                Assert.assertArrayEquals(content, ProxyTestSupport.read(new Proxy.FileHandler(proxy), name));
+                long sent = metrics.get(Server.SENT_BYTES) - start;
+                // the next proxy is given this one as peer once it has announced the whole file
+                long deadline = System.currentTimeMillis() + 5000;
+                while (peerCaching && metrics.get(Server.VALIDATED_FILES) == validated
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                total += sent;
+                System.out.printf("peer caching %s, %d proxies: server sent %d bytes per proxy, peers sent %d bytes%n",
+                        peerCaching, n, total / n, proxy.getMetrics().get(Proxy.PEER_RECEIVED));
+                if (!peerCaching) {
+                    Assert.assertEquals("every proxy downloads from server", FILE_SIZE, sent);
+                } else {
+                    Assert.assertEquals("server bytes per proxy drop as proxies are added", FILE_SIZE / n, total / n);
+                }
+            }
+
+            // a new version is read from server, never from peers which hold the old one
+            byte[] update = Arrays.copyOf(content, FILE_SIZE);
+            update[FILE_SIZE / 2] ^= 1;
+            Proxy.FileHandler writer = new Proxy.FileHandler(proxies.get(0));
+            int fd = writer.open(name, FileHandling.OpenOption.WRITE);
+            Assert.assertTrue(fd > 0);
+            Assert.assertEquals(FILE_SIZE, writer.write(fd, update));
+            Assert.assertEquals(0, writer.close(fd));
+            Assert.assertArrayEquals(update, ProxyTestSupport.read(new Proxy.FileHandler(proxies.get(MAX_PROXIES - 1)), name));
+            Assert.assertArrayEquals(update, ProxyTestSupport.read(new Proxy.FileHandler(proxies.get(1)), name));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit test of {@link Prefetcher}, and of prefetches of a proxy against a running server.
+ */
+public class TestPrefetcher {
+
+    @Test
+    public void testPredict() {
+        Prefetcher prefetcher = new Prefetcher(1 << 20, 1 << 20, new Metrics());
+        // config is followed by include, then one of two shards
+        for (int i = 0; i < 4; i++) {
+            prefetcher.recordOpen(null, "config", 10);
+            prefetcher.recordOpen("config", "include", 20);
+            prefetcher.recordOpen("include", i % 2 == 0 ? "shard0" : "shard1", 30);
+        }
+        Assert.assertEquals(Collections.singletonList("include"), prefetcher.recordOpen(null, "config", 10));
+        Assert.assertEquals(Arrays.asList("shard0", "shard1"), prefetcher.recordOpen("config", "include", 20));
+        Assert.assertTrue(prefetcher.recordOpen("include", "shard0", 30).isEmpty());
+
+        // a successor seen once is not trusted
+        prefetcher.recordOpen(null, "a", 10);
+        prefetcher.recordOpen("a", "b", 10);
+        Assert.assertTrue(prefetcher.recordOpen(null, "a", 10).isEmpty());
+    }
+
+    @Test
+    public void testBudgetAndMetrics() {
+        Metrics metrics = new Metrics();
+        Prefetcher prefetcher = new Prefetcher(1000, 500, metrics);
+        prefetcher.recordOpen(null, "small", 300);
+        prefetcher.recordOpen(null, "other", 300);
+        prefetcher.recordOpen(null, "large", 800);
+
+        Assert.assertFalse("unknown file", prefetcher.admit("unknown", 10000));
+        Assert.assertFalse("prefetch never evicts", prefetcher.admit("small", 100));
+        Assert.assertFalse("over space budget", prefetcher.admit("large", 10000));
+        Assert.assertTrue(prefetcher.admit("small", 10000));
+        prefetcher.prefetched("small", 300);
+        Assert.assertTrue(prefetcher.isUnused("small"));
+        Assert.assertFalse("already prefetched", prefetcher.admit("small", 10000));
+        Assert.assertFalse("unused prefetches fill space budget", prefetcher.admit("other", 10000));
+
+        prefetcher.recordOpen(null, "small", 300);
+        Assert.assertEquals(1, metrics.get(Prefetcher.HITS));
+        Assert.assertFalse(prefetcher.isUnused("small"));
+        Assert.assertTrue(prefetcher.admit("other", 10000));
+        prefetcher.prefetched("other", 300);
+        prefetcher.evicted("other");
+        prefetcher.evicted("small");
+        Assert.assertEquals(300, metrics.get(Prefetcher.WASTED_BYTES));
+        Assert.assertEquals(600, metrics.get(Prefetcher.BYTES));
+        Assert.assertTrue(Math.abs(prefetcher.getHitRate() - 0.5) < 1e-9);
+
+        // bandwidth of one second is used up
+        Assert.assertTrue(prefetcher.admit("small", 10000));
+        Assert.assertTrue(prefetcher.admit("other", 10000));
+        Assert.assertFalse(prefetcher.admit("small", 10000));
+    }
+
+    @Test
+    public void testGrownFileIsNotPrefetched() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Files.write(root.resolve("a"), new byte[100]);
+        Files.write(root.resolve("b"), new byte[100]);
+        Files.write(root.resolve("hot"), new byte[300]);
+        int port = 30000 + new Random().nextInt(10000);
+        Server server = new Server(port, root.toString());
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://127.0.0.1:" + port + "/server", server);
+
+        ProxyConfig config = new ProxyConfig();
+        config.setPrefetch(true);
+        config.setLeases(false);
+        config.setBatchValidation(false);
+        Proxy proxy = new Proxy(newArgs(port, 1000), config);
+        final List<CheckRequest> checks = Collections.synchronizedList(new ArrayList<>());
+        proxy.rpc = ProxyTestSupport.intercept(proxy.rpc, (method, args) -> {
+            if (args != null && args.length == 1 && args[0] instanceof CheckRequest) {
+                checks.add((CheckRequest) args[0]);
+            }
+        });
+        Proxy.FileHandler handler = new Proxy.FileHandler(proxy);
+        // learn that b follows a
+        for (String name : new String[]{"a", "b", "a", "b", "hot"}) {
+            ProxyTestSupport.read(handler, name);
+        }
+
+        // b grows larger than free space of cache after its size was recorded
+        ProxyConfig writerConfig = new ProxyConfig();
+        writerConfig.setPrefetch(false);
+        Proxy.FileHandler writer = new Proxy.FileHandler(new Proxy(newArgs(port, 100000), writerConfig));
+        int fd = writer.open("b", FileHandling.OpenOption.WRITE);
+        Assert.assertTrue(fd > 0);
+        writer.write(fd, new byte[700]);
+        Assert.assertEquals(0, writer.close(fd));
+
+        checks.clear();
+        ProxyTestSupport.read(handler, "a");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (checks.stream().noneMatch(request -> request.getRealName().equals("b"))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(0, proxy.getMetrics().get(Prefetcher.BYTES));
+
+        // nothing has been evicted for b
+        checks.clear();
+        ProxyTestSupport.read(handler, "hot");
+        Assert.assertEquals("hot", checks.get(0).getRealName());
+        Assert.assertTrue(checks.get(0).getVersion() > 0);
+        Assert.assertEquals(700, ProxyTestSupport.read(handler, "b").length);
+    }
+
+    @Test
+    public void testSkippedPrefetchReleasesServerCopy() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Files.write(root.resolve("a"), new byte[100]);
+        Files.write(root.resolve("b"), new byte[100]);
+        int port = 30000 + new Random().nextInt(10000);
+        Server server = new Server(port, root.toString());
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://127.0.0.1:" + port + "/server", server);
+
+        ProxyConfig config = new ProxyConfig();
+        config.setPrefetch(true);
+        config.setLeases(false);
+        config.setBatchValidation(false);
+        Proxy proxy = new Proxy(newArgs(port, 1000), config);
+        final List<String> checks = Collections.synchronizedList(new ArrayList<>());
+        proxy.rpc = ProxyTestSupport.intercept(proxy.rpc, (method, args) -> {
+            if (args != null && args.length == 1 && args[0] instanceof CheckRequest) {
+                checks.add(((CheckRequest) args[0]).getRealName());
+            }
+        });
+        Proxy.FileHandler handler = new Proxy.FileHandler(proxy);
+        for (String name : new String[]{"a", "b", "a", "b"}) {
+            ProxyTestSupport.read(handler, name);
+        }
+
+        // b grows so large that server sends it in chunks
+        ProxyConfig writerConfig = new ProxyConfig();
+        writerConfig.setPrefetch(false);
+        Proxy.FileHandler writer = new Proxy.FileHandler(new Proxy(newArgs(port, 10000000), writerConfig));
+        int fd = writer.open("b", FileHandling.OpenOption.WRITE);
+        Assert.assertTrue(fd > 0);
+        writer.write(fd, new byte[2 * ChunksTask.CHUNK_SIZE]);
+        Assert.assertEquals(0, writer.close(fd));
+
+        checks.clear();
+        ProxyTestSupport.read(handler, "a");
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((!checks.contains("b") || server.getRefs("b") > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(checks.contains("b"));
+        Assert.assertEquals(0, proxy.getMetrics().get(Prefetcher.BYTES));
+        // the chunks which are not downloaded are skipped, server does not hold the copy for them
+        Assert.assertEquals(0, server.getRefs("b"));
+    }
+
+    private static String[] newArgs(int port, int cacheSize) throws Exception {
+        return new String[]{"127.0.0.1", String.valueOf(port), Files.createTempDirectory("ProxyFile").toString(),
+                String.valueOf(cacheSize)};
+    }
+}
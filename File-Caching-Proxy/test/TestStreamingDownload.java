@@ -0,0 +1,145 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit test of streaming download, which does not need a running server. Chunks come from a byte array.
+ */
+public class TestStreamingDownload {
+    private static final int CHUNK_SIZE = 1000;
+
+    @Test
+    public void testOnDemand() throws IOException {
+        byte[] content = content(4500);
+        File file = firstChunk(content);
+        List<Integer> fetched = Collections.synchronizedList(new ArrayList<Integer>());
+        AtomicReference<Boolean> finished = new AtomicReference<>();
+        StreamingDownload download = new StreamingDownload((offset, size) -> {
+            fetched.add(offset / CHUNK_SIZE);
+            return Arrays.copyOfRange(content, offset, offset + size);
+        }, open(file), content.length, CHUNK_SIZE, finished::set);
+
+        // no background workers, every chunk is fetched by reads
+        StreamingSessionFile session = new StreamingSessionFile(download, new RandomAccessFile(file, "r"));
+        Assert.assertEquals(content.length, session.length());
+        byte[] buf = new byte[300];
+        session.seek(4300);
+        Assert.assertEquals(200, session.read(buf));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 4300, 4500), Arrays.copyOf(buf, 200));
+        Assert.assertEquals(Arrays.asList(4), fetched);
+        Assert.assertEquals(-1, session.read(buf));
+
+        session.seek(1900);
+        Assert.assertEquals(300, session.read(buf));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 1900, 2200), buf);
+        Assert.assertEquals(Arrays.asList(4, 1, 2), fetched);
+        Assert.assertNull(finished.get());
+        Assert.assertFalse(download.isComplete());
+
+        Assert.assertTrue(download.awaitComplete());
+        Assert.assertEquals(4, fetched.size());
+        Assert.assertTrue(download.isComplete());
+        Assert.assertEquals(Boolean.TRUE, finished.get());
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        session.close();
+    }
+
+    @Test
+    public void testBackground() throws IOException, InterruptedException {
+        byte[] content = content(20500);
+        File file = firstChunk(content);
+        AtomicReference<Boolean> finished = new AtomicReference<>();
+        StreamingDownload download = new StreamingDownload((offset, size) -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Arrays.copyOfRange(content, offset, offset + size);
+        }, open(file), content.length, CHUNK_SIZE, finished::set);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        download.start(executor, 3);
+
+        // a sequential reader races background workers
+        StreamingSessionFile session = new StreamingSessionFile(download, new RandomAccessFile(file, "r"));
+        byte[] read = new byte[content.length];
+        byte[] buf = new byte[700];
+        int pos = 0;
+        int n;
+        while ((n = session.read(buf)) > 0) {
+            System.arraycopy(buf, 0, read, pos, n);
+            pos += n;
+        }
+        Assert.assertEquals(content.length, pos);
+        Assert.assertArrayEquals(content, read);
+        Assert.assertTrue(download.awaitComplete());
+        // the worker which wrote the last chunk reports it right after
+        for (int i = 0; i < 100 && finished.get() == null; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Boolean.TRUE, finished.get());
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        session.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFailure() throws IOException {
+        byte[] content = content(3500);
+        File file = firstChunk(content);
+        AtomicReference<Boolean> finished = new AtomicReference<>();
+        StreamingDownload download = new StreamingDownload((offset, size) -> offset / CHUNK_SIZE == 2 ? null
+                : Arrays.copyOfRange(content, offset, offset + size), open(file), content.length, CHUNK_SIZE,
+                finished::set);
+        StreamingSessionFile session = new StreamingSessionFile(download, new RandomAccessFile(file, "r"));
+
+        byte[] buf = new byte[500];
+        Assert.assertEquals(500, session.read(buf));
+        session.seek(2100);
+        try {
+            session.read(buf);
+            Assert.fail("read of a failed chunk should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertTrue(download.isFailed());
+        Assert.assertEquals(Boolean.FALSE, finished.get());
+        Assert.assertFalse(download.awaitComplete());
+        // chunks which were written before stay readable
+        session.seek(100);
+        Assert.assertEquals(500, session.read(buf));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 100, 600), buf);
+        session.close();
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(15440).nextBytes(content);
+        return content;
+    }
+
+    private static File firstChunk(byte[] content) throws IOException {
+        File file = File.createTempFile("stream", null);
+        file.deleteOnExit();
+        Files.write(file.toPath(), Arrays.copyOf(content, CHUNK_SIZE));
+        return file;
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+    }
+}
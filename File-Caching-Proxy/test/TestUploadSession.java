@@ -0,0 +1,68 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Unit test of upload sessions of server: chunks may arrive in any order, but a session is committed only when every
+ * byte has been received, and a session which is abandoned is dropped.
+ */
+public class TestUploadSession {
+    @Test
+    public void testOutOfOrder() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Server server = new Server(0, root.toString());
+
+        long uploadId = server.beginUpload("a");
+        Assert.assertEquals(0, server.uploadChunkAt(uploadId, 8, "89".getBytes()));
+        Assert.assertEquals(0, server.uploadChunkAt(uploadId, 4, "4567".getBytes()));
+        Assert.assertEquals(0, server.uploadChunkAt(uploadId, 0, "0123".getBytes()));
+        // a chunk sent twice
+        Assert.assertEquals(0, server.uploadChunkAt(uploadId, 2, "23".getBytes()));
+        Assert.assertTrue(server.commitUpload(uploadId, 10) > 0);
+        CheckResult result = server.checkServer(new CheckRequest("a", FileHandling.OpenOption.READ, 0));
+        Assert.assertEquals("0123456789", new String(result.getFileContent()));
+    }
+
+    @Test
+    public void testIncomplete() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Server server = new Server(0, root.toString());
+
+        // tail chunk is written, middle one is missing
+        long uploadId = server.beginUpload("a");
+        Assert.assertEquals(0, server.uploadChunkAt(uploadId, 0, "0123".getBytes()));
+        Assert.assertEquals(0, server.uploadChunkAt(uploadId, 8, "89".getBytes()));
+        Assert.assertEquals(FileHandling.Errors.EINVAL, server.commitUpload(uploadId, 10));
+        Assert.assertEquals(FileHandling.Errors.ENOENT,
+                server.checkServer(new CheckRequest("a", FileHandling.OpenOption.READ, 0)).getErrno());
+
+        uploadId = server.beginUpload("a");
+        Assert.assertEquals(FileHandling.Errors.EINVAL, server.uploadChunkAt(uploadId, -1, "0".getBytes()));
+        Assert.assertEquals(FileHandling.Errors.EINVAL,
+                server.uploadChunkAt(uploadId, Long.MAX_VALUE, "0".getBytes()));
+        server.abortUpload(uploadId);
+        // no copy is left behind
+        Assert.assertTrue(VersionIndex.scan(root.toString()).isEmpty());
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Server server = new Server(0, root.toString());
+
+        long idle = server.beginUpload("a");
+        Assert.assertEquals(0, server.uploadChunkAt(idle, 0, "0123".getBytes()));
+        long deadline = System.currentTimeMillis();
+        Thread.sleep(10);
+        long active = server.beginUpload("b");
+        Assert.assertEquals(1, server.expireUploads(deadline));
+
+        Assert.assertEquals(ErrorCode.NO_UPLOAD, server.uploadChunkAt(idle, 4, "4".getBytes()));
+        Assert.assertEquals(ErrorCode.NO_UPLOAD, server.commitUpload(idle, 5));
+        Assert.assertEquals(1, VersionIndex.scan(root.toString()).size());
+        Assert.assertEquals(0, server.uploadChunkAt(active, 0, "b".getBytes()));
+        Assert.assertTrue(server.commitUpload(active, 1) > 0);
+    }
+}
@@ -0,0 +1,103 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit test of persistent version index of server, it starts servers in a temporary folder without RMI registry.
+ */
+public class TestVersionIndex {
+    @Test
+    public void testJournal() throws Exception {
+        File folder = Files.createTempDirectory("server").toFile();
+
+        VersionIndex index = new VersionIndex(folder.getPath());
+        Assert.assertTrue(index.load().isEmpty());
+        index.put(new FileInfo("a", "a1", index.nextVersion()), 10);
+        index.put(new FileInfo("b", "b1", index.nextVersion()), 20);
+        index.put(new FileInfo("b", "b2", index.nextVersion()), 25);
+        index.remove("b");
+        // copies made by server are kept in index until they are deleted
+        index.addCopy("c1-1");
+        index.addCopy("c2-2");
+        index.removeCopy("c2-2");
+        index.close();
+        try (FileOutputStream out = new FileOutputStream(new File(folder, VersionIndex.JOURNAL_NAME), true)) {
+            out.write(new byte[]{'P', 0, 5, 'c'});
+        }
+
+        index = new VersionIndex(folder.getPath());
+        List<VersionIndex.Entry> entries = index.load();
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals("a1", entries.get(0).getRandomName());
+        Assert.assertEquals(1, entries.get(0).getVersion());
+        Assert.assertEquals(10, entries.get(0).getSize());
+        // version of removed file is never given again, also after compaction
+        Assert.assertEquals(4, index.nextVersion());
+        index.compact();
+        index.close();
+        index = new VersionIndex(folder.getPath());
+        index.load();
+        Assert.assertEquals(5, index.nextVersion());
+        // retired versions of b and the upload which never became a version
+        Assert.assertEquals(new java.util.HashSet<>(java.util.Arrays.asList("b1", "b2", "c1-1")), index.getCopies());
+        index.close();
+
+        Assert.assertEquals("dir/x1", VersionIndex.toRealName("dir/x11700000000000"));
+        Assert.assertNull(VersionIndex.toRealName("x1"));
+        Assert.assertTrue(VersionIndex.isUploadName("x1700000000000-3"));
+        Assert.assertFalse(VersionIndex.isUploadName("x1700000000000"));
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Files.write(root.resolve("plain"), "plain".getBytes());
+        Files.createDirectories(root.resolve("dir"));
+        Files.write(root.resolve("dir/x"), "x".getBytes());
+        // files of users which are named like copies of server
+        Files.write(root.resolve("report1700000000000"), "report".getBytes());
+        Files.write(root.resolve("plain1700000000000-3"), "user".getBytes());
+
+        Server server = new Server(0, root.toString());
+        Assert.assertEquals(4, VersionIndex.scan(root.toString()).size());
+        int plainVersion = server.checkServer(new CheckRequest("plain", FileHandling.OpenOption.READ, 0)).getVersion();
+        int version = upload(server, "plain", "new content");
+        Assert.assertTrue(version > plainVersion);
+        Assert.assertFalse(Files.exists(root.resolve("plain")));
+        // an upload which is never committed
+        Assert.assertTrue(server.beginUpload("dir/x") > 0);
+
+        Map<String, Long> files = VersionIndex.scan(root.toString());
+        Assert.assertEquals(5, files.size());
+
+        server = new Server(0, root.toString());
+        CheckResult result = server.checkServer(new CheckRequest("plain", FileHandling.OpenOption.READ, version));
+        Assert.assertEquals(version, result.getVersion());
+        Assert.assertEquals(0, result.getFileContent().length);
+        // only the upload copy is deleted
+        Assert.assertEquals(4, VersionIndex.scan(root.toString()).size());
+        for (String name : new String[]{"report1700000000000", "plain1700000000000-3"}) {
+            Assert.assertTrue(name, server.checkServer(new CheckRequest(name, FileHandling.OpenOption.READ, 0))
+                    .getFileContent().length > 0);
+        }
+        Assert.assertEquals(FileHandling.Errors.EPERM,
+                server.checkServer(new CheckRequest(VersionIndex.SNAPSHOT_NAME, FileHandling.OpenOption.READ, 0))
+                        .getErrno());
+
+        Assert.assertEquals(0, server.unlink("plain"));
+        int created = upload(server, "plain", "again");
+        Assert.assertTrue(created > version);
+    }
+
+    private static int upload(Server server, String realName, String content) throws Exception {
+        long uploadId = server.beginUpload(realName);
+        Assert.assertEquals(0, server.uploadChunkAt(uploadId, 0, content.getBytes()));
+        return server.commitUpload(uploadId, content.length());
+    }
+}
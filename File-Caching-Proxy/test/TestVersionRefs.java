@@ -0,0 +1,91 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit test of {@link VersionRefs}, which does not need a running server.
+ */
+public class TestVersionRefs {
+
+    @Test
+    public void testUnreferencedCopyIsDeletedAtOnce() {
+        List<String> deleted = new ArrayList<>();
+        VersionRefs refs = new VersionRefs(deleted::add);
+        refs.retire("a1");
+        Assert.assertEquals(1, deleted.size());
+        Assert.assertEquals("a1", deleted.get(0));
+    }
+
+    @Test
+    public void testLastReaderDeletesRetiredCopy() {
+        List<String> deleted = new ArrayList<>();
+        VersionRefs refs = new VersionRefs(deleted::add);
+        refs.acquire("a1");
+        refs.acquire("a1");
+        refs.retire("a1");
+        Assert.assertTrue(deleted.isEmpty());
+        refs.release("a1");
+        Assert.assertTrue(deleted.isEmpty());
+        Assert.assertEquals(1, refs.getRefs("a1"));
+        refs.release("a1");
+        Assert.assertEquals(1, deleted.size());
+        Assert.assertEquals(0, refs.getRefs("a1"));
+    }
+
+    @Test
+    public void testLiveCopyIsKept() {
+        List<String> deleted = new ArrayList<>();
+        VersionRefs refs = new VersionRefs(deleted::add);
+        refs.acquire("a1");
+        refs.release("a1");
+        Assert.assertTrue(deleted.isEmpty());
+        // a copy is retired once, a later reference does not bring it back
+        refs.retire("a1");
+        refs.acquire("a1");
+        refs.release("a1");
+        Assert.assertEquals(1, deleted.size());
+    }
+
+    @Test
+    public void testBytesOfDownload() {
+        List<String> deleted = new ArrayList<>();
+        VersionRefs refs = new VersionRefs(deleted::add);
+        refs.acquire("a1", 300);
+        refs.retire("a1");
+        // chunks are released in any order
+        refs.release("a1", 100);
+        refs.release("a1", 150);
+        Assert.assertEquals(50, refs.getRefs("a1"));
+        Assert.assertTrue(deleted.isEmpty());
+        refs.release("a1", 50);
+        Assert.assertEquals(1, deleted.size());
+    }
+
+    @Test
+    public void testAbandonedReaderExpires() throws Exception {
+        List<String> deleted = new ArrayList<>();
+        VersionRefs refs = new VersionRefs(deleted::add);
+        // a download which is never finished, of a copy which is retired, and one of a live copy
+        refs.acquire("a1", 300);
+        refs.retire("a1");
+        refs.acquire("b1", 300);
+        refs.release("a1", 100);
+        long deadline = System.currentTimeMillis();
+        Thread.sleep(10);
+        refs.acquire("c1");
+        refs.retire("c1");
+
+        Assert.assertEquals(1, refs.expire(deadline));
+        Assert.assertEquals(1, deleted.size());
+        Assert.assertEquals("a1", deleted.get(0));
+        Assert.assertEquals(0, refs.getRefs("a1"));
+        // live copies and retired copies which are still read are kept
+        Assert.assertEquals(300, refs.getRefs("b1"));
+        Assert.assertEquals(1, refs.getRefs("c1"));
+        // a late release of an expired reader deletes nothing again
+        refs.release("a1", 100);
+        Assert.assertEquals(1, deleted.size());
+    }
+}
@@ -0,0 +1,141 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit test of write back queue, which does not need a running server. Uploads are recorded instead of being sent.
+ * The last test runs a proxy with write back against its own server, whose uploads fail for a while.
+ */
+public class TestWriteBackQueue {
+
+    @Test
+    public void testOrderAndCoalescing() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<String> uploaded = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        Metrics metrics = new Metrics();
+        WriteBackQueue queue = new WriteBackQueue(new WriteBackQueue.Uploader() {
+            @Override
+            public int upload(String realName, String fileName) {
+                if (fileName.equals("a1")) {
+                    started.countDown();
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                uploaded.add(fileName);
+                return uploaded.size();
+            }
+
+            @Override
+            public void done(String realName, String fileName, int result) {
+                done.add(fileName + ":" + (result > 0 ? "ok" : result == 0 ? "dropped" : "failed"));
+            }
+        }, 2, metrics);
+
+        queue.enqueue("a", "a1", 10);
+        started.await();
+        // a1 is being uploaded, a2 waits and is replaced by a3
+        queue.enqueue("b", "b1", 5);
+        queue.enqueue("a", "a2", 20);
+        queue.enqueue("a", "a3", 30);
+        Assert.assertTrue(queue.isPending("a"));
+        Assert.assertEquals(1, metrics.get(WriteBackQueue.COALESCED));
+        Assert.assertTrue(done.contains("a2:dropped"));
+
+        // b is not held up by a
+        for (int i = 0; i < 100 && queue.isPending("b"); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(queue.isPending("b"));
+        Assert.assertTrue(queue.isPending("a"));
+
+        gate.countDown();
+        queue.flush();
+        Assert.assertFalse(queue.isPending("a"));
+        Assert.assertEquals(Arrays.asList("b1", "a1", "a3"), uploaded);
+        Assert.assertTrue(done.indexOf("a1:ok") < done.indexOf("a3:ok"));
+        Assert.assertEquals(0, metrics.get(WriteBackQueue.BACKLOG));
+        Assert.assertEquals(0, metrics.get(WriteBackQueue.BACKLOG_BYTES));
+        Assert.assertEquals(3, metrics.get(WriteBackQueue.UPLOADED));
+    }
+
+    @Test
+    public void testFailure() throws InterruptedException {
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        Metrics metrics = new Metrics();
+        WriteBackQueue queue = new WriteBackQueue(new WriteBackQueue.Uploader() {
+            private int attempts;
+
+            @Override
+            public synchronized int upload(String realName, String fileName) {
+                attempts++;
+                // first attempt fails, the retry succeeds
+                return attempts == 1 ? ErrorCode.REMOTE : 7;
+            }
+
+            @Override
+            public void done(String realName, String fileName, int result) {
+                results.add(result);
+            }
+        }, 1, metrics);
+        queue.enqueue("a", "a1", 10);
+        queue.flush("a");
+        Assert.assertEquals(Arrays.asList(7), results);
+        Assert.assertEquals(0, metrics.get(WriteBackQueue.FAILED));
+    }
+
+    @Test
+    public void testFailedUploadIsKept() throws Exception {
+        Path root = Files.createTempDirectory("server");
+        Files.write(root.resolve("f"), "old".getBytes());
+        int port = 30000 + new Random().nextInt(10000);
+        Server server = new Server(port, root.toString());
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://127.0.0.1:" + port + "/server", server);
+        ProxyConfig config = new ProxyConfig();
+        config.setPrefetch(false);
+        config.setWriteBack(true);
+        String[] args = {"127.0.0.1", String.valueOf(port), Files.createTempDirectory("ProxyFile").toString(), "100000"};
+        Proxy proxy = new Proxy(args, config);
+        final boolean[] failing = {true};
+        proxy.rpc = ProxyTestSupport.intercept(proxy.rpc, (method, arguments) -> {
+            if (failing[0] && method.equals("beginUpload")) {
+                throw new RemoteException("server is away");
+            }
+        });
+        Proxy.FileHandler handler = new Proxy.FileHandler(proxy);
+        Assert.assertEquals("old", new String(ProxyTestSupport.read(handler, "f")));
+        int fd = handler.open("f", FileHandling.OpenOption.WRITE);
+        Assert.assertEquals(3, handler.write(fd, "new".getBytes()));
+        Assert.assertEquals(0, handler.close(fd));
+
+        // written version outlives its failed upload, it is neither replaced by server's version nor evicted
+        Assert.assertEquals(1, proxy.flush());
+        Assert.assertEquals(1, proxy.getMetrics().get(WriteBackQueue.FAILED));
+        Assert.assertEquals("new", new String(ProxyTestSupport.read(handler, "f")));
+        Assert.assertEquals("old", new String(Files.readAllBytes(root.resolve("f"))));
+
+        // a later flush uploads it
+        failing[0] = false;
+        Assert.assertEquals(0, proxy.flush());
+        Assert.assertEquals(1, proxy.getMetrics().get(WriteBackQueue.UPLOADED));
+        Proxy.FileHandler other = new Proxy.FileHandler(new Proxy(new String[]{args[0], args[1],
+                Files.createTempDirectory("ProxyFile").toString(), args[3]}, config));
+        Assert.assertEquals("new", new String(ProxyTestSupport.read(other, "f")));
+    }
+}